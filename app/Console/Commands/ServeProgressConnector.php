@@ -0,0 +1,27 @@
+<?php
+
+namespace App\Console\Commands;
+
+use Illuminate\Console\Command;
+use App\Services\ProgressService;
+
+class ServeProgressConnector extends Command
+{
+    protected $signature = 'progress:connector-serve {--port= : Porta local do conector (padrão PROGRESS_CONNECTOR_PORT ou 17600)}';
+    protected $description = 'Inicia o conector JDBC Progress residente (uma JVM atendendo todas as consultas)';
+
+    public function handle()
+    {
+        $port = $this->option('port') !== null ? (int) $this->option('port') : null;
+
+        $this->info('Iniciando conector JDBC Progress residente...');
+        $this->line('Defina PROGRESS_CONNECTOR_PORT no .env para que o ProgressService use este processo.');
+
+        try {
+            return (new ProgressService())->serveJavaConnector($port);
+        } catch (\Exception $e) {
+            $this->error('❌ Falha ao iniciar conector: ' . $e->getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+<?php
+
+namespace App\Console\Commands;
+
+use Illuminate\Console\Command;
+use App\Services\ProgressService;
+
+class TrainProgressConnectorArchive extends Command
+{
+    protected $signature = 'progress:connector-cds';
+    protected $description = 'Gera o arquivo AppCDS que acelera a partida do conector JDBC no modo CLI (uma JVM por chamada)';
+
+    public function handle()
+    {
+        $this->info('Rodando as ações do conector para gerar o arquivo CDS...');
+        $this->line('Rode de novo após cada deploy: recompilar o conector invalida o arquivo.');
+
+        try {
+            $result = (new ProgressService())->trainJavaConnectorArchive();
+        } catch (\Exception $e) {
+            $this->error('❌ Falha ao gerar arquivo CDS: ' . $e->getMessage());
+            return 1;
+        }
+
+        $data = $result['data'] ?? [];
+        $this->table(['Ação', 'Formato', 'OK', 'ms'], array_map(fn($action) => [
+            $action['action'],
+            $action['format'],
+            $action['success'] ? 'sim' : 'não',
+            $action['elapsed_ms']
+        ], $data['actions'] ?? []));
+
+        if (($data['failed'] ?? 0) > 0) {
+            // As classes do caminho de erro também entram no arquivo; só avisar
+            $this->warn("⚠️  {$data['failed']} execuções falharam (ex: tabela ausente neste banco)");
+        }
+
+        $this->info(sprintf('✅ Arquivo CDS gerado: %s (%.1f MB)', $data['archive'], $data['archive_bytes'] / 1048576));
+
+        return 0;
+    }
+}
@@ -34,7 +34,9 @@ public function index(Request $request): JsonResponse
             'situacao' => 'nullable|string|max:1',
             'apenas_recentes' => 'nullable|string|max:1',
             'data_inicio' => 'nullable|date',
-            'data_fim' => 'nullable|date'
+            'data_fim' => 'nullable|date',
+            'cursor' => 'nullable|string|max:512|regex:/^[A-Za-z0-9_\-]+$/',
+            'direction' => 'nullable|in:next,prev'
         ]);
 
         $page = (int) $request->get('page', 1);
@@ -62,7 +64,9 @@ public function index(Request $request): JsonResponse
             'situacao' => $situacao,
             'apenas_recentes' => $apenasRecentes,
             'data_inicio' => $dataInicio,
-            'data_fim' => $dataFim
+            'data_fim' => $dataFim,
+            'cursor' => $request->get('cursor'),
+            'direction' => $request->get('direction', 'next')
         ];
 
         // LGPD: Log apenas quando há filtros específicos (evita spam de logs)
@@ -41,7 +41,9 @@ public function index(Request $request): JsonResponse
             ],
             'tipo' => 'nullable|string|in:autonomo,empresa,todos',
             'natureza' => 'nullable|string|in:T,A',
-            'status_ativo' => 'nullable|in:true,false,1,0'  // Accept both boolean and string representations
+            'status_ativo' => 'nullable|in:true,false,1,0',  // Accept both boolean and string representations
+            'last_id' => 'nullable|string|max:512|regex:/^[A-Za-z0-9_\-]+$/',  // Cursor opaco (next_cursor/prev_cursor)
+            'direction' => 'nullable|in:next,prev'
         ]);
 
         $page = isset($validated['page']) ? (int) $validated['page'] : 1;
@@ -63,7 +65,9 @@ public function index(Request $request): JsonResponse
             'nome' => $nome,
             'tipo' => $tipo,
             'natureza' => $natureza,
-            'ativo' => $ativo
+            'ativo' => $ativo,
+            'cursor' => $validated['last_id'] ?? null,
+            'direction' => $validated['direction'] ?? 'next'
         ];
 
         // LGPD Art. 46 - Log de acesso a dados de transportadores
@@ -8,6 +8,33 @@
 
 class ProgressService
 {
+    /**
+     * Classe principal e pacote do conector Java (módulo Maven em storage/app/java)
+     */
+    private const JAVA_CONNECTOR_MAIN = 'br.com.tambasa.connector.ProgressJDBCConnector';
+    private const JAVA_CONNECTOR_PACKAGE_DIR = 'br/com/tambasa/connector';
+
+    /**
+     * Jar do conector (gerado a partir de target/classes na compilação), opções da JVM do
+     * modo CLI e arquivo AppCDS, relativos a storage/app/java. O CDS só arquiva classes
+     * lidas de jars, por isso o conector roda do jar e não do diretório de classes
+     */
+    private const JAVA_CONNECTOR_JAR = 'target/progress-jdbc-connector.jar';
+    private const JAVA_CLI_OPTIONS_FILE = 'connector-cli.jvmopts';
+    private const JAVA_CDS_ARCHIVE = 'target/connector-cli.jsa';
+
+    /**
+     * TTL (segundos) enviado ao conector residente no campo "cache" das próximas
+     * chamadas, definido por withConnectorCache(). null = padrão do conector
+     */
+    private ?int $connectorCacheTtl = null;
+
+    /**
+     * Classe de prioridade enviada ao conector residente no campo "priority" das
+     * próximas chamadas, definida por withConnectorPriority(). null = padrão pela ação
+     */
+    private ?string $connectorPriority = null;
+
     /**
      * Escapa string para uso seguro em queries SQL
      * Protege contra SQL injection
@@ -115,13 +142,12 @@ public function getTransportesPaginated(array $filters): array
             $perPage = $filters['per_page'] ?? 10;
             $search = $filters['search'] ?? '';
 
-            // KEYSET PAGINATION: Use cursor (last_id) instead of page number
-            $lastId = $filters['last_id'] ?? null;
-            $direction = $filters['direction'] ?? 'next';
+            // KEYSET PAGINATION: cursor opaco (next_cursor/prev_cursor) em vez de número de página
+            $cursor = $filters['cursor'] ?? $filters['last_id'] ?? null;
+            $direction = ($filters['direction'] ?? 'next') === 'prev' ? 'prev' : 'next';
 
-            // Legacy support: if 'page' is provided but no last_id, use old method
+            // Sem cursor, a página é posicionada pelo número (lendo apenas as chaves puladas)
             $page = $filters['page'] ?? 1;
-            $isLegacyMode = ($lastId === null && $page > 1);
 
             // Campos essenciais para diferenciar tipos de transportadores
             $campos = "codtrn, nomtrn, flgautonomo, natcam, tipcam, codcnpjcpf, numpla, numtel, dddtel, flgati, indcd";
@@ -165,88 +191,34 @@ public function getTransportesPaginated(array $filters): array
                 $whereConditions[] = ($ativo === 'true' || $ativo === '1' || $ativo === 1) ? "flgati = 1" : "flgati = 0";
             }
 
-            $whereClause = !empty($whereConditions) ? " WHERE " . implode(' AND ', $whereConditions) : "";
-
-            // BUILD SQL BASED ON PAGINATION MODE
-            if ($lastId !== null) {
-                // KEYSET PAGINATION: Use codtrn > $lastId for next, < for prev
-                $cursorCondition = $whereClause ? " AND " : " WHERE ";
-                if ($direction === 'prev') {
-                    $simpleSql = "SELECT TOP $perPage $campos FROM PUB.transporte$whereClause{$cursorCondition}codtrn < " . intval($lastId) . " ORDER BY codtrn DESC";
-                } else {
-                    $simpleSql = "SELECT TOP $perPage $campos FROM PUB.transporte$whereClause{$cursorCondition}codtrn > " . intval($lastId) . " ORDER BY codtrn";
-                }
-            } elseif ($isLegacyMode) {
-                // LEGACY MODE: Inefficient offset simulation (deprecated)
-                $offset = ($page - 1) * $perPage;
-                $skipSql = "SELECT TOP $offset codtrn FROM PUB.transporte$whereClause ORDER BY codtrn";
-                $skipResult = $this->executeCustomQuery($skipSql);
-                if ($skipResult['success'] && !empty($skipResult['data']['results'])) {
-                    $lastSkipId = (int) end($skipResult['data']['results'])['codtrn'];
-                    $conditionPrefix = $whereClause ? " AND " : " WHERE ";
-                    $simpleSql = "SELECT TOP $perPage $campos FROM PUB.transporte$whereClause{$conditionPrefix}codtrn > $lastSkipId ORDER BY codtrn";
-                } else {
-                    $simpleSql = "SELECT TOP $perPage $campos FROM PUB.transporte WHERE 1=0";
-                }
-            } else {
-                // FIRST PAGE: No cursor needed
-                $simpleSql = "SELECT TOP $perPage $campos FROM PUB.transporte$whereClause ORDER BY codtrn";
-            }
-
-            Log::info('SQL paginação', ['sql' => $simpleSql, 'cursor_mode' => ($lastId !== null), 'direction' => $direction]);
+            // Página, cursores e total (mesmos filtros) em uma única chamada ao conector
+            $result = $this->executeKeysetPage([
+                'from' => 'PUB.transporte',
+                'columns' => $campos,
+                'keys' => ['codtrn'],
+                'where' => implode(' AND ', $whereConditions),
+                'limit' => (int) $perPage,
+                'cursor' => $cursor,
+                'direction' => $direction,
+                'skip' => $cursor === null ? max(0, ((int) $page - 1) * (int) $perPage) : 0,
+                'count' => true
+            ]);
 
-            $result = $this->executeCustomQuery($simpleSql);
+            Log::info('SQL paginação', ['sql' => $result['data']['sql'] ?? null, 'cursor_mode' => ($cursor !== null), 'direction' => $direction]);
 
             if ($result['success']) {
-                $results = $result['data']['results'] ?? [];
-
-                // If we fetched in reverse (prev), reverse the array back
-                if ($direction === 'prev' && !empty($results)) {
-                    $results = array_reverse($results);
-                    $result['data']['results'] = $results;
-                }
-
-                // Count total records for pagination (apply same filters)
-                $countSql = "SELECT COUNT(*) as total FROM PUB.transporte$whereClause";
-                $totalResult = $this->executeCustomQuery($countSql);
-
-                $total = 0;
-                if ($totalResult['success'] && !empty($totalResult['data']['results'])) {
-                    $total = $totalResult['data']['results'][0]['total'] ?? 0;
-                }
-
-                // Extract cursor information for next/prev navigation
-                $firstId = !empty($results) ? $results[0]['codtrn'] : null;
-                $currentLastId = !empty($results) ? end($results)['codtrn'] : null;
-
-                // Determine if there are more pages
-                $hasNext = false;
-                $hasPrev = false;
-
-                if ($currentLastId !== null) {
-                    $nextCheckSql = "SELECT TOP 1 codtrn FROM PUB.transporte$whereClause" . ($whereClause ? " AND " : " WHERE ") . "codtrn > " . intval($currentLastId) . " ORDER BY codtrn";
-                    $nextCheck = $this->executeCustomQuery($nextCheckSql);
-                    $hasNext = $nextCheck['success'] && !empty($nextCheck['data']['results']);
-                }
-
-                if ($firstId !== null) {
-                    $prevCheckSql = "SELECT TOP 1 codtrn FROM PUB.transporte$whereClause" . ($whereClause ? " AND " : " WHERE ") . "codtrn < " . intval($firstId) . " ORDER BY codtrn DESC";
-                    $prevCheck = $this->executeCustomQuery($prevCheckSql);
-                    $hasPrev = $prevCheck['success'] && !empty($prevCheck['data']['results']);
-                }
-
-                $lastPage = ceil($total / $perPage);
+                $total = $result['data']['total'] ?? 0;
 
                 $result['pagination'] = [
                     'current_page' => $page,
                     'per_page' => $perPage,
                     'total' => $total,
-                    'last_page' => $lastPage,
-                    'has_next' => $hasNext,
-                    'has_prev' => $hasPrev,
-                    'next_cursor' => $currentLastId,
-                    'prev_cursor' => $firstId,
-                    'count' => count($results)
+                    'last_page' => ceil($total / $perPage),
+                    'has_next' => $result['data']['has_next'],
+                    'has_prev' => $result['data']['has_prev'],
+                    'next_cursor' => $result['data']['next_cursor'],
+                    'prev_cursor' => $result['data']['prev_cursor'],
+                    'count' => $result['data']['count']
                 ];
 
                 $result['data']['filters_applied'] = $filters;
@@ -285,9 +257,11 @@ public function getTransporteById($id): array
 
             Log::info('Buscando transporte por ID', ['id' => $id]);
 
-            $sql = "SELECT codtrn, nomtrn, flgautonomo, natcam, tipcam, codcnpjcpf, numpla, numtel, dddtel, numcel, dddcel, flgati, indcd, desend, numend, cplend, numceptrn, \"e-mail\", numhab, venhab, cathab, datnas FROM PUB.transporte WHERE codtrn = $id";
-
-            $result = $this->executeJavaConnector('query', $sql);
+            // Leitura de cadastro: pode vir da cópia local do conector residente
+            $result = $this->lookupTable('transporte', ['codtrn' => $id], [
+                'columns' => ['codtrn', 'nomtrn', 'flgautonomo', 'natcam', 'tipcam', 'codcnpjcpf', 'numpla', 'numtel', 'dddtel', 'numcel', 'dddcel', 'flgati', 'indcd', 'desend', 'numend', 'cplend', 'numceptrn', 'e-mail', 'numhab', 'venhab', 'cathab', 'datnas'],
+                'limit' => 1
+            ]);
             
             if (!$result['success']) {
                 return [
@@ -439,41 +413,28 @@ public function getPacotesPaginated($filters): array
             // Sempre mostrar apenas pacotes com transportador
             $whereConditions[] = "p.codtrn > 0";
 
-            $whereClause = " WHERE " . implode(' AND ', $whereConditions);
-            
-            // Query principal com paginação e JOIN para pegar nome do transportador
+            // Query principal com paginação keyset e JOIN para pegar nome do transportador.
+            // Com cursor a página custa o mesmo em qualquer profundidade; por número de
+            // página o conector lê apenas os codpac pulados para posicionar a busca.
             $offset = ($page - 1) * $perPage;
-            
-            if ($offset == 0) {
-                // Primeira página
-                $sql = "SELECT TOP $perPage $campos FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac $whereClause ORDER BY p.codpac DESC";
-            } else {
-                // Páginas subsequentes usando offset simulado
-                $offsetSql = "SELECT TOP $offset p.codpac FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac $whereClause ORDER BY p.codpac DESC";
-                $offsetResult = $this->executeCustomQuery($offsetSql);
-                
-                if ($offsetResult['success'] && !empty($offsetResult['data']['results'])) {
-                    $lastId = end($offsetResult['data']['results'])['codpac'];
-                    $sql = "SELECT TOP $perPage $campos FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac $whereClause AND p.codpac < $lastId ORDER BY p.codpac DESC";
-                } else {
-                    $sql = "SELECT TOP $perPage $campos FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac WHERE 1=0";
-                }
-            }
+            $cursor = $filters['cursor'] ?? null;
+
+            $result = $this->executeKeysetPage([
+                'from' => 'PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac',
+                'columns' => $campos,
+                'keys' => ['p.codpac DESC'],
+                'where' => implode(' AND ', $whereConditions),
+                'limit' => (int) $perPage,
+                'cursor' => $cursor,
+                'direction' => ($filters['direction'] ?? 'next') === 'prev' ? 'prev' : 'next',
+                'skip' => $cursor === null ? max(0, (int) $offset) : 0,
+                'count' => true
+            ]);
 
-            Log::info('SQL Pacotes', ['sql' => $sql]);
-            
-            $result = $this->executeCustomQuery($sql);
+            Log::info('SQL Pacotes', ['sql' => $result['data']['sql'] ?? null]);
 
             if ($result['success']) {
-                // Contar total com os mesmos filtros
-                $countSql = "SELECT COUNT(*) as total FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac $whereClause";
-                $totalResult = $this->executeCustomQuery($countSql);
-
-                $total = 0;
-                if ($totalResult['success'] && !empty($totalResult['data']['results'])) {
-                    $total = $totalResult['data']['results'][0]['total'] ?? 0;
-                }
-
+                $total = $result['data']['total'] ?? 0;
                 $lastPage = ceil($total / $perPage);
 
                 $result['pagination'] = [
@@ -483,12 +444,14 @@ public function getPacotesPaginated($filters): array
                     'last_page' => $lastPage,
                     'from' => $offset + 1,
                     'to' => min($offset + $perPage, $total),
-                    'has_more_pages' => $page < $lastPage
+                    'has_more_pages' => $cursor === null ? $page < $lastPage : $result['data']['has_next'],
+                    'has_next' => $result['data']['has_next'],
+                    'has_prev' => $result['data']['has_prev'],
+                    'next_cursor' => $result['data']['next_cursor'],
+                    'prev_cursor' => $result['data']['prev_cursor']
                 ];
 
                 Log::info('Pacotes encontrados', ['total' => count($result['data']['results'] ?? [])]);
-                
-                return $result;
             }
 
             return $result;
@@ -562,32 +525,35 @@ public function getItinerarioPacote($codPac): array
         try {
             Log::info('Buscando itinerário do pacote', ['codpac' => $codPac]);
 
-            // Primeiro verificar se o pacote é TCD - se sim, buscar o pacote original para entregas
-            // MAS manter o pacote informado para buscar a PLACA (igual Progress compraRota.p linha 242)
-            $sqlVerificaTCD = "SELECT pcd.codpac as pacote_original FROM PUB.paccd pcd WHERE pcd.codpaccd = $codPac";
-            $resultTCD = $this->executeJavaConnector('query', $sqlVerificaTCD);
+            // Buscar pedidos/entregas seguindo a estrutura: pacote -> carga -> pedido (como no itinerario.p)
+            // IMPORTANTE: Incluir mun.cdibge para pontosParada do NDD Cargo
+            $sqlEntregas = fn($pacote) => "SELECT ped.numseqped as seqent, cli.codcli, cli.descnt as razcli, est.sigest as uf, mun.desmun, mun.cdibge, bai.desbai, cli.desend, ped.valtotateped as valnot, ped.pesped as peso, ped.volped as volume, ard.latitute as latitude, ard.longitude FROM PUB.carga car INNER JOIN PUB.pedido ped ON ped.codcar = car.codcar INNER JOIN PUB.cliente cli ON cli.codcli = ped.codcli INNER JOIN PUB.estado est ON est.codest = cli.codest INNER JOIN PUB.municipio mun ON mun.codest = cli.codest AND mun.codmun = cli.codmun INNER JOIN PUB.bairro bai ON bai.codest = cli.codest AND bai.codmun = cli.codmun AND bai.codbai = cli.codbai LEFT JOIN PUB.arqrdnt ard ON ard.asdped = ped.asdped WHERE car.codpac = $pacote AND ped.valtotateped > 0 AND ped.tipped != 'RAS' ORDER BY ped.numseqped";
+
+            // Verificação TCD, carga e entregas em uma única chamada ao conector (em paralelo no
+            // modo residente). As entregas já vêm do pacote informado, que é o caso comum (não TCD).
+            $itinerario = $this->executeMultiQuery([
+                'tcd' => "SELECT pcd.codpac as pacote_original FROM PUB.paccd pcd WHERE pcd.codpaccd = $codPac",
+                // Dados principais da carga + PLACA DO VEÍCULO
+                // CORREÇÃO: Para TCD, buscar placa do pacote INFORMADO (TCD), não do original
+                // Progress compraRota.p linha 242: assign vPlaca:screen-value = pacote.NumPla
+                'carga' => "SELECT p.codpac, p.codrot as rota, p.codmot as motorista, p.codtrn, p.numpla as placa, p.pespac as peso, p.volpac as volume, p.valpac as valor, t.nomtrn as transportador, COALESCE(cf.valfre, 0) as frete FROM PUB.pacote p LEFT JOIN PUB.cxapacote cp ON cp.codpac = p.codpac LEFT JOIN PUB.caixafech cf ON cf.codcxa = cp.codcxa LEFT JOIN PUB.transporte t ON t.codtrn = p.codtrn WHERE p.codpac = $codPac",
+                'entregas' => $sqlEntregas($codPac)
+            ]);
 
-            $pacoteParaEntregas = $codPac;  // Pacote para buscar entregas
-            $pacoteParaPlaca = $codPac;      // Pacote para buscar placa (SEMPRE o informado!)
-            $isTCD = false;
+            $resultTCD = $itinerario['data']['results']['tcd'] ?? ['success' => false];
+            $resultCarga = $itinerario['data']['results']['carga'] ?? ['success' => false, 'error' => $itinerario['error'] ?? null];
+            $resultEntregas = $itinerario['data']['results']['entregas'] ?? ['success' => false, 'error' => $itinerario['error'] ?? null];
 
             if ($resultTCD['success'] && !empty($resultTCD['data']['results'])) {
                 // É um pacote TCD:
                 // - Entregas vêm do pacote ORIGINAL (para ter o roteiro completo)
                 // - Placa vem do pacote TCD INFORMADO (igual Progress: pacote.NumPla)
                 $pacoteOriginal = $resultTCD['data']['results'][0]['pacote_original'];
-                $pacoteParaEntregas = $pacoteOriginal;
-                // $pacoteParaPlaca permanece = $codPac (o TCD informado)
-                $isTCD = true;
                 Log::info('Pacote TCD detectado', ['tcd' => $codPac, 'original' => $pacoteOriginal, 'placa_de' => $codPac]);
-            }
-
-            // Buscar dados principais da carga + PLACA DO VEÍCULO
-            // CORREÇÃO: Para TCD, buscar placa do pacote INFORMADO (TCD), não do original
-            // Progress compraRota.p linha 242: assign vPlaca:screen-value = pacote.NumPla
-            $sqlCarga = "SELECT p.codpac, p.codrot as rota, p.codmot as motorista, p.codtrn, p.numpla as placa, p.pespac as peso, p.volpac as volume, p.valpac as valor, t.nomtrn as transportador, COALESCE(cf.valfre, 0) as frete FROM PUB.pacote p LEFT JOIN PUB.cxapacote cp ON cp.codpac = p.codpac LEFT JOIN PUB.caixafech cf ON cf.codcxa = cp.codcxa LEFT JOIN PUB.transporte t ON t.codtrn = p.codtrn WHERE p.codpac = $pacoteParaPlaca";
 
-            $resultCarga = $this->executeJavaConnector('query', $sqlCarga);
+                // Para TCD: entregas do pacote ORIGINAL (não do TCD) para ter o roteiro completo
+                $resultEntregas = $this->executeJavaConnector('query', $sqlEntregas($pacoteOriginal));
+            }
 
             if (!$resultCarga['success']) {
                 return [
@@ -606,15 +572,8 @@ public function getItinerarioPacote($codPac): array
 
             $carga = $cargas[0];
 
-            // Buscar pedidos/entregas seguindo a estrutura: pacote -> carga -> pedido (como no itinerario.p)
-            // IMPORTANTE: Incluir mun.cdibge para pontosParada do NDD Cargo
-            // Para TCD: buscar entregas do pacote ORIGINAL (não do TCD) para ter o roteiro completo
-            $sqlEntregas = "SELECT ped.numseqped as seqent, cli.codcli, cli.descnt as razcli, est.sigest as uf, mun.desmun, mun.cdibge, bai.desbai, cli.desend, ped.valtotateped as valnot, ped.pesped as peso, ped.volped as volume, ard.latitute as latitude, ard.longitude FROM PUB.carga car INNER JOIN PUB.pedido ped ON ped.codcar = car.codcar INNER JOIN PUB.cliente cli ON cli.codcli = ped.codcli INNER JOIN PUB.estado est ON est.codest = cli.codest INNER JOIN PUB.municipio mun ON mun.codest = cli.codest AND mun.codmun = cli.codmun INNER JOIN PUB.bairro bai ON bai.codest = cli.codest AND bai.codmun = cli.codmun AND bai.codbai = cli.codbai LEFT JOIN PUB.arqrdnt ard ON ard.asdped = ped.asdped WHERE car.codpac = $pacoteParaEntregas AND ped.valtotateped > 0 AND ped.tipped != 'RAS' ORDER BY ped.numseqped";
-
-            $resultEntregas = $this->executeJavaConnector('query', $sqlEntregas);
-            
             if (!$resultEntregas['success']) {
-                Log::warning('Erro ao buscar entregas, continuando sem elas', ['error' => $resultEntregas['error']]);
+                Log::warning('Erro ao buscar entregas, continuando sem elas', ['error' => $resultEntregas['error'] ?? null]);
                 $entregas = [];
             } else {
                 $entregas = $resultEntregas['data']['results'] ?? [];
@@ -719,26 +678,8 @@ public function executeCustomQuery(string $sql): array
                 'sql' => substr($sanitizedSql, 0, 200) . (strlen($sanitizedSql) > 200 ? '...' : '')
             ]);
 
-            // Validação 3: Limitar a apenas SELECT por segurança
-            $sql_upper = strtoupper($sql);
-            if (!str_starts_with($sql_upper, 'SELECT')) {
-                throw new Exception('Apenas consultas SELECT são permitidas');
-            }
-
-            // Validação 4: Prevenir comandos perigosos embutidos
-            // Usar regex com word boundaries para não bloquear nomes de colunas como "codRotCreateSP"
-            $dangerous_keywords = ['DROP', 'TRUNCATE', 'ALTER', 'CREATE', 'GRANT', 'REVOKE', 'EXEC'];
-            foreach ($dangerous_keywords as $keyword) {
-                // Buscar keyword como palavra completa (word boundary) para não pegar substrings
-                if (preg_match('/\b' . $keyword . '\b/', $sql_upper)) {
-                    throw new Exception("Palavra-chave não permitida detectada: {$keyword}");
-                }
-            }
-
-            // Validação 5: Prevenir comentários SQL que podem esconder código malicioso
-            if (str_contains($sql, '--') || str_contains($sql, '/*') || str_contains($sql, '*/')) {
-                throw new Exception('Comentários SQL não são permitidos em consultas customizadas');
-            }
+            // Validações 3 a 5: apenas SELECT, sem comandos perigosos nem comentários
+            $this->assertReadOnlySql($sql);
 
             $result = $this->executeJavaConnector('query', $sql);  // Executa SQL original (não sanitizado)
 
@@ -763,11 +704,328 @@ public function executeCustomQuery(string $sql): array
         }
     }
 
+    /**
+     * Valida SQL de leitura enviado ao conector: consultas inteiras ou trechos (from,
+     * columns, where) montados pelo conector
+     *
+     * @param string $label Identifica a consulta ou o campo na mensagem de erro
+     * @param bool $fragment Trecho de consulta: sem exigir SELECT no início, mas sem ";"
+     * @throws Exception Se o SQL não for permitido
+     */
+    private function assertReadOnlySql(string $sql, string $label = '', bool $fragment = false): void
+    {
+        $suffix = $label !== '' ? " ({$label})" : '';
+        $sqlUpper = strtoupper(trim($sql));
+
+        // Limitar a apenas SELECT por segurança
+        if (!$fragment && !str_starts_with($sqlUpper, 'SELECT')) {
+            throw new Exception("Apenas consultas SELECT são permitidas{$suffix}");
+        }
+
+        // Prevenir comandos perigosos embutidos
+        // Usar regex com word boundaries para não bloquear nomes de colunas como "codRotCreateSP"
+        $dangerous_keywords = ['DROP', 'TRUNCATE', 'ALTER', 'CREATE', 'GRANT', 'REVOKE', 'EXEC'];
+        foreach ($dangerous_keywords as $keyword) {
+            if (preg_match('/\b' . $keyword . '\b/', $sqlUpper)) {
+                throw new Exception("Palavra-chave não permitida detectada: {$keyword}{$suffix}");
+            }
+        }
+
+        // Prevenir comentários SQL que podem esconder código malicioso
+        if (str_contains($sql, '--') || str_contains($sql, '/*') || str_contains($sql, '*/')) {
+            throw new Exception("Comentários SQL não são permitidos{$suffix}");
+        }
+
+        // Um trecho não pode encerrar a consulta montada pelo conector e começar outra
+        if ($fragment && str_contains($sql, ';')) {
+            throw new Exception("Trecho SQL não permitido{$suffix}");
+        }
+    }
+
+    /**
+     * Executa SELECT parametrizado (placeholders ?) via PreparedStatement no conector
+     *
+     * Os valores vão separados do SQL, sem concatenação nem escape manual. No conector
+     * residente o PreparedStatement fica em cache por conexão, então o Progress não
+     * refaz o parse da consulta a cada chamada.
+     *
+     * @param string $sql SELECT com um "?" por valor
+     * @param array $bindings Valores na ordem dos "?" (int, float, string, bool, null) ou
+     *                        ['type' => 'date', 'value' => '2025-01-31'] para tipo explícito
+     */
+    public function executePreparedQuery(string $sql, array $bindings = []): array
+    {
+        try {
+            $sql = trim($sql);
+            $this->assertReadOnlySql($sql);
+
+            return $this->executeJavaConnector('query-prepared', $sql, json_encode(array_values($bindings)));
+
+        } catch (Exception $e) {
+            Log::error('Erro na execução da consulta SQL parametrizada', [
+                'sql' => substr($this->sanitizeSqlForLogging($sql), 0, 200),
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro na consulta SQL: ' . $e->getMessage()
+            ];
+        }
+    }
+
+    /**
+     * Busca por igualdade em uma tabela pequena conhecida pelo conector (ação lookup):
+     * transporte, paccd ou spararviagem
+     *
+     * No conector residente, transporte e paccd ficam copiados em memória e a busca
+     * responde sem ir ao Progress; a cópia recebe as linhas novas a cada poucos segundos
+     * e é relida por inteiro periodicamente ou logo após uma gravação feita pelo conector.
+     * Use 'consistency' => 'live' quando a leitura não pode estar atrasada (ex: evitar
+     * compra duplicada). data.source indica se veio da cópia (mirror) ou do Progress (live).
+     *
+     * @param array $where ['coluna' => valor], combinados com AND
+     * @param array $options columns (lista de colunas), limit e consistency (mirror ou live)
+     */
+    public function lookupTable(string $table, array $where, array $options = []): array
+    {
+        $spec = array_filter($options, fn($value) => $value !== null && $value !== []);
+        $spec['table'] = $table;
+        $spec['where'] = $where;
+
+        return $this->executeJavaConnector('lookup', json_encode($spec));
+    }
+
+    /**
+     * Executa várias consultas SELECT nomeadas em uma única chamada ao conector
+     *
+     * No conector residente as consultas rodam em paralelo, cada uma em uma conexão
+     * do pool, então a chamada demora o tempo da consulta mais lenta e não a soma.
+     *
+     * @param array $queries ['nome' => 'SELECT ...'] ou ['nome' => ['sql' => 'SELECT ... ?', 'params' => [...]]]
+     * @return array data.results traz, para cada nome, o mesmo resultado de executeCustomQuery()
+     */
+    public function executeMultiQuery(array $queries): array
+    {
+        try {
+            if (empty($queries)) {
+                throw new Exception('Nenhuma consulta informada');
+            }
+
+            $spec = [];
+            foreach ($queries as $name => $query) {
+                $sql = trim(is_array($query) ? ($query['sql'] ?? '') : (string)$query);
+                $this->assertReadOnlySql($sql, "consulta {$name}");
+
+                $spec[(string)$name] = is_array($query) && array_key_exists('params', $query)
+                    ? ['sql' => $sql, 'params' => array_values($query['params'])]
+                    : $sql;
+            }
+
+            return $this->executeJavaConnector('multi', json_encode((object)$spec));
+
+        } catch (Exception $e) {
+            Log::error('Erro na execução de múltiplas consultas SQL', [
+                'consultas' => array_keys($queries),
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro nas consultas SQL: ' . $e->getMessage()
+            ];
+        }
+    }
+
+    /**
+     * Busca uma página de qualquer tabela com paginação keyset (ação page do conector)
+     *
+     * Cada página continua a partir das colunas chave da última linha entregue, então
+     * uma página profunda custa o mesmo que a primeira. Os cursores devolvidos são opacos:
+     * repasse next_cursor/prev_cursor do cliente sem alterar.
+     *
+     * @param array $spec from, columns, keys (ex: ['p.codpac DESC']), where, params, limit,
+     *                    cursor, direction (next|prev), skip (navegação por número de página)
+     *                    e count (incluir COUNT(*) em data.total)
+     */
+    public function executeKeysetPage(array $spec): array
+    {
+        try {
+            $spec = array_filter($spec, fn($value) => $value !== null && $value !== '');
+
+            foreach (['from', 'columns', 'where'] as $field) {
+                $this->assertReadOnlySql((string) ($spec[$field] ?? ''), $field, true);
+            }
+
+            return $this->executeJavaConnector('page', json_encode($spec));
+
+        } catch (Exception $e) {
+            Log::error('Erro na consulta paginada keyset', [
+                'from' => $spec['from'] ?? null,
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro na consulta paginada: ' . $e->getMessage()
+            ];
+        }
+    }
+
+    /**
+     * Lê uma tabela grande em partições da faixa de uma chave inteira (ação scan)
+     *
+     * O conector lê MIN/MAX da chave para o filtro, divide a faixa em partições e, no
+     * conector residente, lê cada uma em uma conexão do pool ao mesmo tempo. As linhas
+     * chegam em data.results como em executeCustomQuery().
+     *
+     * @param array $spec table (ex: 'PUB.pacote'), key (coluna inteira, ex: 'codpac'),
+     *                    columns, where e params (filtro com "?"), partitions (padrão 4),
+     *                    order ('key' = ordem da chave, 'none' = qualquer ordem), min e max
+     */
+    public function executePartitionedScan(array $spec): array
+    {
+        try {
+            $spec = array_filter($spec, fn($value) => $value !== null && $value !== '');
+
+            foreach (['table', 'columns', 'where'] as $field) {
+                $this->assertReadOnlySql((string) ($spec[$field] ?? ''), $field, true);
+            }
+            if (isset($spec['params'])) {
+                $spec['params'] = array_values($spec['params']);
+            }
+
+            return $this->executeJavaConnector('scan', json_encode($spec));
+
+        } catch (Exception $e) {
+            Log::error('Erro na varredura particionada', [
+                'table' => $spec['table'] ?? null,
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro na varredura particionada: ' . $e->getMessage()
+            ];
+        }
+    }
+
+    /**
+     * Envia um SELECT longo para rodar em segundo plano no conector residente (ação job-submit)
+     *
+     * Responde na hora com data.id; a consulta roda no conector sem prender este worker.
+     * Acompanhe com getQueryJobStatus() e leia as linhas em trechos com fetchQueryJob(),
+     * inclusive enquanto o job ainda roda. Exige o conector residente.
+     *
+     * @param array $bindings Valores dos "?" (mesmo formato de executePreparedQuery())
+     * @param array $options timeout (segundos da consulta, padrão sem limite), max_rows e fetch_size
+     */
+    public function submitQueryJob(string $sql, array $bindings = [], array $options = []): array
+    {
+        try {
+            $sql = trim($sql);
+            $this->assertReadOnlySql($sql);
+
+            $spec = array_filter($options, fn($value) => $value !== null && $value !== '');
+            $spec['sql'] = $sql;
+            if (!empty($bindings)) {
+                $spec['params'] = array_values($bindings);
+            }
+
+            return $this->executeJavaConnector('job-submit', json_encode($spec));
+
+        } catch (Exception $e) {
+            Log::error('Erro ao enviar job de consulta', [
+                'sql' => substr($this->sanitizeSqlForLogging($sql), 0, 200),
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro ao enviar job: ' . $e->getMessage()
+            ];
+        }
+    }
+
+    /**
+     * Estado de um job: data.state (queued, running, done, failed, cancelled), rows lidas
+     * até agora, available_rows (já disponíveis para fetch) e elapsed_ms
+     */
+    public function getQueryJobStatus(string $jobId): array
+    {
+        return $this->executeJavaConnector('job-status', $jobId);
+    }
+
+    /**
+     * Trecho das linhas de um job: data.results com até $limit linhas a partir de $offset.
+     * Repita com data.next_offset enquanto data.has_more for true.
+     */
+    public function fetchQueryJob(string $jobId, int $offset = 0, int $limit = 500): array
+    {
+        return $this->executeJavaConnector('job-fetch', $jobId, (string) $offset, (string) $limit);
+    }
+
+    /**
+     * Cancela um job (interrompe a consulta no Progress) e descarta suas linhas
+     */
+    public function cancelQueryJob(string $jobId): array
+    {
+        return $this->executeJavaConnector('job-cancel', $jobId);
+    }
+
+    /**
+     * Exporta o resultado de um SELECT para um arquivo CSV ou NDJSON no servidor (ação export)
+     *
+     * O conector grava as linhas direto em disco (opcionalmente com gzip) e devolve só
+     * data.file, data.rows, data.bytes e data.checksum (sha256 do arquivo gravado). As
+     * linhas não passam pelo PHP, então extrações de centenas de MB não estouram memória.
+     * O progresso fica em <arquivo>.progress enquanto a exportação roda.
+     *
+     * @param string $sql SELECT a exportar (com "?" quando houver $bindings)
+     * @param array $options format (csv|ndjson), gzip (bool), file (só o nome, gravado em
+     *                       storage/app/java/exports), delimiter (CSV) e params (valores dos "?")
+     */
+    public function exportQuery(string $sql, array $options = []): array
+    {
+        try {
+            $sql = trim($sql);
+            $this->assertReadOnlySql($sql);
+
+            $spec = array_filter($options, fn($value) => $value !== null && $value !== '');
+            if (isset($spec['params'])) {
+                $spec['params'] = array_values($spec['params']);
+            }
+
+            $result = $this->executeJavaConnector('export', $sql, json_encode((object)$spec));
+
+            if ($result['success'] ?? false) {
+                Log::info('Exportação concluída', [
+                    'arquivo' => $result['data']['file'] ?? null,
+                    'linhas' => $result['data']['rows'] ?? 0,
+                    'bytes' => $result['data']['bytes'] ?? 0
+                ]);
+            }
+
+            return $result;
+
+        } catch (Exception $e) {
+            Log::error('Erro na exportação', [
+                'sql' => substr($this->sanitizeSqlForLogging($sql), 0, 200),
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro na exportação: ' . $e->getMessage()
+            ];
+        }
+    }
+
     /**
      * Executa UPDATE, INSERT ou DELETE no banco Progress
      *
-     * IMPORTANTE: Progress JDBC NÃO suporta transações!
-     * Cada comando é executado imediatamente e não pode ser revertido.
+     * IMPORTANTE: cada comando é executado imediatamente e não pode ser revertido.
+     * Para vários comandos que devem ser aplicados juntos, use executeBatchUpdate().
      */
     public function executeUpdate(string $sql): array
     {
@@ -803,20 +1061,101 @@ public function executeUpdate(string $sql): array
                 }
             }
 
-            // Validação 5: Prevenir comentários SQL
-            if (str_contains($sql, '--') || str_contains($sql, '/*') || str_contains($sql, '*/')) {
-                throw new Exception('Comentários SQL não são permitidos');
-            }
-
-            // Validação 6: DELETE sem WHERE é perigoso
-            if (str_starts_with($sql_upper, 'DELETE') && !str_contains($sql_upper, 'WHERE')) {
-                throw new Exception('DELETE sem cláusula WHERE não é permitido (prevenir exclusão em massa acidental)');
-            }
+            // Validação 5: Prevenir comentários SQL
+            if (str_contains($sql, '--') || str_contains($sql, '/*') || str_contains($sql, '*/')) {
+                throw new Exception('Comentários SQL não são permitidos');
+            }
+
+            // Validação 6: DELETE sem WHERE é perigoso
+            if (str_starts_with($sql_upper, 'DELETE') && !str_contains($sql_upper, 'WHERE')) {
+                throw new Exception('DELETE sem cláusula WHERE não é permitido (prevenir exclusão em massa acidental)');
+            }
+
+            $result = $this->executeJavaConnector('update', $sql);
+
+            if ($result['success']) {
+                Log::info('Comando executado com sucesso', [
+                    'affected_rows' => $result['data']['affected_rows'] ?? 0
+                ]);
+            }
+
+            return $result;
+
+        } catch (Exception $e) {
+            Log::error('Erro na execução do comando SQL', [
+                'sql' => substr($sql ?? 'null', 0, 200),
+                'error' => $e->getMessage()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro ao executar comando: ' . $e->getMessage()
+            ];
+        }
+    }
+
+    /**
+     * Executa vários UPDATE, INSERT ou DELETE em uma única transação no conector
+     *
+     * Todos os comandos rodam na mesma conexão com addBatch/executeBatch: ou todos são
+     * aplicados (commit) ou nenhum (rollback). Uma única chamada ao conector no lugar
+     * de uma por comando.
+     *
+     * @param array $statements Lista de comandos, cada um sendo um SQL simples ou
+     *                          ['sql' => 'UPDATE ... = ?', 'params' => [[...], [...]]]
+     *                          com um conjunto de valores por execução
+     * @return array data.statements traz affected_rows e counts de cada comando
+     */
+    public function executeBatchUpdate(array $statements): array
+    {
+        try {
+            if (empty($statements)) {
+                throw new Exception('Lote de comandos não pode ser vazio');
+            }
+
+            $batch = [];
+            foreach (array_values($statements) as $index => $statement) {
+                $sql = trim(is_array($statement) ? ($statement['sql'] ?? '') : (string)$statement);
+                $sqlUpper = strtoupper($sql);
+                $position = $index + 1;
+
+                if (!str_starts_with($sqlUpper, 'UPDATE') &&
+                    !str_starts_with($sqlUpper, 'INSERT') &&
+                    !str_starts_with($sqlUpper, 'DELETE')) {
+                    throw new Exception("Apenas comandos UPDATE, INSERT e DELETE são permitidos (comando {$position})");
+                }
+
+                $dangerous_keywords = ['DROP', 'TRUNCATE', 'ALTER', 'CREATE', 'GRANT', 'REVOKE', 'EXEC'];
+                foreach ($dangerous_keywords as $keyword) {
+                    if (preg_match('/\b' . $keyword . '\b/', $sqlUpper)) {
+                        throw new Exception("Palavra-chave não permitida detectada: {$keyword} (comando {$position})");
+                    }
+                }
+
+                if (str_contains($sql, '--') || str_contains($sql, '/*') || str_contains($sql, '*/')) {
+                    throw new Exception("Comentários SQL não são permitidos (comando {$position})");
+                }
+
+                if (str_starts_with($sqlUpper, 'DELETE') && !str_contains($sqlUpper, 'WHERE')) {
+                    throw new Exception("DELETE sem cláusula WHERE não é permitido (comando {$position})");
+                }
+
+                if (is_array($statement) && array_key_exists('params', $statement)) {
+                    $batch[] = [
+                        'sql' => $sql,
+                        'params' => array_map('array_values', array_values($statement['params']))
+                    ];
+                } else {
+                    $batch[] = $sql;
+                }
+            }
+
+            Log::info('Executando lote UPDATE/INSERT/DELETE', ['total_comandos' => count($batch)]);
 
-            $result = $this->executeJavaConnector('update', $sql);
+            $result = $this->executeJavaConnector('batch-update', json_encode($batch));
 
             if ($result['success']) {
-                Log::info('Comando executado com sucesso', [
+                Log::info('Lote executado com sucesso', [
                     'affected_rows' => $result['data']['affected_rows'] ?? 0
                 ]);
             }
@@ -824,24 +1163,71 @@ public function executeUpdate(string $sql): array
             return $result;
 
         } catch (Exception $e) {
-            Log::error('Erro na execução do comando SQL', [
-                'sql' => substr($sql ?? 'null', 0, 200),
+            Log::error('Erro na execução do lote SQL', [
+                'total_comandos' => count($statements),
                 'error' => $e->getMessage()
             ]);
 
             return [
                 'success' => false,
-                'error' => 'Erro ao executar comando: ' . $e->getMessage()
+                'error' => 'Erro ao executar lote: ' . $e->getMessage()
             ];
         }
     }
 
+    /**
+     * Executa $callback com as consultas ao conector residente usando o cache de
+     * resultados do conector (dados de referência que quase nunca mudam)
+     *
+     * Updates e lotes enviados pelo conector invalidam as entradas das tabelas alteradas;
+     * alterações feitas fora do conector aparecem em no máximo $ttl segundos.
+     * Sem conector residente (JVM por chamada) não há cache.
+     */
+    protected function withConnectorCache(callable $callback, ?int $ttl = null)
+    {
+        $previous = $this->connectorCacheTtl;
+        $this->connectorCacheTtl = $ttl ?? (int) config('progress.connector.cache_ttl', 300);
+
+        try {
+            return $callback();
+        } finally {
+            $this->connectorCacheTtl = $previous;
+        }
+    }
+
+    /**
+     * Executa $callback com as chamadas ao conector residente na classe de prioridade
+     * $priority: 'interactive' (telas e validações da compra de viagem) ou 'batch'
+     * (relatórios e exportações)
+     *
+     * Chamadas batch têm limite e fila próprios no conector e não tomam as conexões das
+     * interativas. Se a espera na fila passar do limite da classe, a resposta volta na hora
+     * com success=false e 'overloaded' => true. Sem conector residente não há efeito.
+     */
+    protected function withConnectorPriority(string $priority, callable $callback)
+    {
+        $previous = $this->connectorPriority;
+        $this->connectorPriority = $priority;
+
+        try {
+            return $callback();
+        } finally {
+            $this->connectorPriority = $previous;
+        }
+    }
+
     /**
      * Executa o conector JDBC Java
      */
     public function executeJavaConnector(string $action, ...$params): array
     {
         try {
+            // Preferir o conector residente (JVM já aquecida) quando configurado
+            $residentResult = $this->executeViaResidentConnector($action, $params);
+            if ($residentResult !== null) {
+                return $residentResult;
+            }
+
             $javaPath = storage_path('app/java');
             // CORREÇÃO BUG #74: Usar config() em vez de env() no runtime
             // Valores obrigatórios - devem estar definidos no .env
@@ -860,22 +1246,21 @@ public function executeJavaConnector(string $action, ...$params): array
                 throw new Exception("Driver JDBC Progress não encontrado em: {$driverPath}");
             }
 
-            if (!file_exists($javaPath . '/ProgressJDBCConnector.class')) {
-                // Tentar compilar o arquivo Java se a classe não existir
+            if ($this->javaConnectorNeedsCompile($javaPath)) {
+                // Compilar se a classe não existir ou se algum fonte for mais novo
                 $this->compileJavaConnector();
             }
 
             // Construir comando Java com classpath correto para o sistema operacional
             $isWindows = strtoupper(substr(PHP_OS, 0, 3)) === 'WIN';
-            $separator = $isWindows ? ';' : ':';
-            // GSON está em storage/app/java junto com o conector Java
-            $gsonPath = $javaPath . '/gson-2.10.1.jar';
-            $classpath = ".{$separator}{$gsonPath}{$separator}{$driverPath}";
+            $classpath = $this->javaConnectorClasspath($javaPath, $driverPath);
             $cmdParts = [
                 'java',
+                ...$this->javaCliOptions($javaPath),
+                '-Dconnector.format=' . $this->connectorFormat(),
                 '-cp',
                 '"' . $classpath . '"',
-                'ProgressJDBCConnector',
+                self::JAVA_CONNECTOR_MAIN,
                 escapeshellarg($action),
                 escapeshellarg($jdbcUrl),
                 escapeshellarg($username),
@@ -883,9 +1268,17 @@ public function executeJavaConnector(string $action, ...$params): array
             ];
 
             // Adicionar parâmetros extras se fornecidos
-            foreach ($params as $param) {
+            $isPrepared = str_ends_with($action, '-prepared');
+            foreach (array_values($params) as $index => $param) {
+                if ((($isPrepared || $action === 'export') && $index === 1) || (in_array($action, ['batch-update', 'multi', 'page', 'scan', 'job-submit', 'lookup'], true) && $index === 0)) {
+                    // JSON (parâmetros, lote ou consultas) em base64: aspas e % sobrevivem ao shell (cmd.exe inclusive)
+                    $cmdParts[] = escapeshellarg('b64:' . base64_encode((string)$param));
+                    continue;
+                }
+
                 // Para SQL queries/updates, não usar escapeshellarg que remove % e outros caracteres
-                if (($action === 'query' && str_contains(strtoupper($param), 'SELECT')) ||
+                if ((($isPrepared || $action === 'export') && $index === 0) ||
+                    ($action === 'query' && str_contains(strtoupper($param), 'SELECT')) ||
                     ($action === 'update' && (str_contains(strtoupper($param), 'UPDATE') ||
                                              str_contains(strtoupper($param), 'INSERT') ||
                                              str_contains(strtoupper($param), 'DELETE')))) {
@@ -912,27 +1305,7 @@ public function executeJavaConnector(string $action, ...$params): array
                 throw new Exception('Falha na execução do comando Java');
             }
 
-            // Converter para UTF-8 e limpar caracteres especiais
-            $output = mb_convert_encoding($output, 'UTF-8', 'auto');
-            $output = preg_replace('/[^\x20-\x7E\x0A\x0D]/', '', $output);
-            $cleanOutput = trim($output);
-
-            // Tentar decodificar JSON da saída
-            $result = json_decode($cleanOutput, true);
-            
-            if (json_last_error() !== JSON_ERROR_NONE) {
-                Log::error('Erro na decodificação JSON da saída Java', [
-                    'output' => $cleanOutput,
-                    'json_error' => json_last_error_msg()
-                ]);
-                
-                return [
-                    'success' => false,
-                    'error' => 'Erro na decodificação da resposta Java: ' . $cleanOutput
-                ];
-            }
-
-            return $result;
+            return $this->decodeConnectorOutput($output, $action);
 
         } catch (Exception $e) {
             Log::error('Erro na execução do conector JDBC Java', [
@@ -949,18 +1322,336 @@ public function executeJavaConnector(string $action, ...$params): array
     }
 
     /**
-     * Compila o arquivo Java ProgressJDBCConnector
+     * Envia a ação ao conector JDBC residente (java ProgressJDBCConnector serve)
+     *
+     * Protocolo: uma linha JSON {"action","params"} por requisição e uma linha
+     * JSON de resposta, idêntica à saída do modo CLI.
+     *
+     * @return array|null Resultado decodificado, ou null se o conector residente
+     *                    não estiver configurado/acessível (usar JVM por chamada)
+     */
+    protected function executeViaResidentConnector(string $action, array $params): ?array
+    {
+        $port = config('progress.connector.port');
+        if (empty($port)) {
+            return null;
+        }
+
+        $host = config('progress.connector.host', '127.0.0.1');
+        $socket = @stream_socket_client("tcp://{$host}:{$port}", $errno, $errstr, 2);
+
+        if ($socket === false) {
+            // Falha antes de enviar a requisição: seguro cair para o modo CLI
+            Log::warning('Conector JDBC residente indisponível, usando JVM por chamada', [
+                'host' => $host,
+                'port' => $port,
+                'error' => $errstr
+            ]);
+            return null;
+        }
+
+        try {
+            // Exportações gravam o arquivo inteiro antes de responder: timeout próprio, maior
+            $timeout = $action === 'export'
+                ? (int) config('progress.connector.export_timeout', 1800)
+                : (int) config('progress.connector.timeout', 60);
+            stream_set_timeout($socket, $timeout);
+
+            // O mesmo timeout vira Statement.setQueryTimeout no conector; se o PHP
+            // desistir antes e fechar o socket, o conector cancela a consulta
+            $request = [
+                'action' => $action,
+                'params' => array_map('strval', $params),
+                'timeout' => $timeout,
+                'format' => $this->connectorFormat()
+            ];
+            if ($this->connectorCacheTtl !== null) {
+                $request['cache'] = $this->connectorCacheTtl;
+            }
+            if ($this->connectorPriority !== null) {
+                $request['priority'] = $this->connectorPriority;
+            }
+            $request = json_encode($request);
+            fwrite($socket, $request . "\n");
+
+            // Após o envio não há fallback: a ação (ex: update) pode já ter sido executada
+            $output = fgets($socket);
+            if ($output === false) {
+                $meta = stream_get_meta_data($socket);
+                throw new Exception($meta['timed_out']
+                    ? 'Tempo esgotado aguardando o conector JDBC residente'
+                    : 'Conector JDBC residente encerrou a conexão sem resposta');
+            }
+
+            $result = $this->decodeConnectorOutput($output, $action);
+            if (!empty($result['overloaded'])) {
+                Log::warning('Conector JDBC residente sobrecarregado, requisição recusada', [
+                    'action' => $action,
+                    'priority' => $result['priority'] ?? null,
+                    'retry_after_ms' => $result['retry_after_ms'] ?? null
+                ]);
+            }
+
+            return $result;
+        } finally {
+            fclose($socket);
+        }
+    }
+
+    /**
+     * Formato das linhas pedido ao conector: objects ou columns
+     */
+    private function connectorFormat(): string
+    {
+        return config('progress.connector.format') === 'columns' ? 'columns' : 'objects';
+    }
+
+    /**
+     * Decodifica a saída JSON do conector (CLI ou residente)
+     */
+    private function decodeConnectorOutput(string $output, string $action): array
+    {
+        if ($this->connectorFormat() === 'columns') {
+            // Resposta compacta sai só com ASCII: decodificar direto, sem conversão nem limpeza
+            $result = json_decode($output, true);
+            if (is_array($result)) {
+                return $this->expandColumnarResults($result, $action);
+            }
+        }
+
+        // Converter para UTF-8 e limpar caracteres especiais
+        $output = mb_convert_encoding($output, 'UTF-8', 'auto');
+        $output = preg_replace('/[^\x20-\x7E\x0A\x0D]/', '', $output);
+        $cleanOutput = trim($output);
+
+        // Tentar decodificar JSON da saída
+        $result = json_decode($cleanOutput, true);
+
+        if (json_last_error() !== JSON_ERROR_NONE) {
+            Log::error('Erro na decodificação JSON da saída Java', [
+                'output' => $cleanOutput,
+                'json_error' => json_last_error_msg()
+            ]);
+
+            return [
+                'success' => false,
+                'error' => 'Erro na decodificação da resposta Java: ' . $cleanOutput
+            ];
+        }
+
+        return $this->expandColumnarResults($result, $action);
+    }
+
+    /**
+     * Converte resultados no formato columns ({"columns","types","rows"}) de volta em
+     * linhas associativas, para os chamadores receberem o mesmo array nos dois formatos
+     */
+    private function expandColumnarResults(array $result, string $action): array
+    {
+        if (!isset($result['data']) || !is_array($result['data'])) {
+            return $result;
+        }
+
+        if ($action === 'multi') {
+            // Um resultado completo (data/success/message) por consulta nomeada
+            foreach ($result['data']['results'] ?? [] as $name => $query) {
+                if (is_array($query)) {
+                    $result['data']['results'][$name] = $this->expandColumnarResults($query, 'query');
+                }
+            }
+            return $result;
+        }
+
+        foreach (['results', 'transportes'] as $field) {
+            $block = $result['data'][$field] ?? null;
+            if (is_array($block) && isset($block['columns'], $block['rows'])) {
+                $columns = $block['columns'];
+                $result['data'][$field] = array_map(fn(array $row) => array_combine($columns, $row), $block['rows']);
+            }
+        }
+
+        return $result;
+    }
+
+    /**
+     * Inicia o conector JDBC residente em primeiro plano (bloqueia até a JVM encerrar)
+     *
+     * @return int Código de saída do processo Java
+     */
+    public function serveJavaConnector(?int $port = null): int
+    {
+        $javaPath = storage_path('app/java');
+        $driverPath = config('progress.driver_path');
+        $jdbcUrl = config('progress.jdbc_url');
+        $username = config('progress.username');
+        $password = config('progress.password');
+
+        if (empty($driverPath) || empty($jdbcUrl) || empty($username) || empty($password)) {
+            throw new Exception("Configurações Progress incompletas. Verifique PROGRESS_* no .env");
+        }
+
+        if ($this->javaConnectorNeedsCompile($javaPath)) {
+            $this->compileJavaConnector();
+        }
+
+        $port = $port ?? (int) (config('progress.connector.port') ?: 17600);
+        $isWindows = strtoupper(substr(PHP_OS, 0, 3)) === 'WIN';
+        $cdCmd = $isWindows ? "cd /d \"{$javaPath}\"" : "cd \"{$javaPath}\"";
+        $cmd = implode(' ', [
+            'java',
+            '-cp',
+            '"' . $this->javaConnectorClasspath($javaPath, $driverPath) . '"',
+            self::JAVA_CONNECTOR_MAIN,
+            'serve',
+            escapeshellarg($jdbcUrl),
+            escapeshellarg($username),
+            escapeshellarg($password),
+            (string) $port
+        ]);
+
+        Log::info('Iniciando conector JDBC residente', ['port' => $port]);
+
+        passthru("{$cdCmd} && {$cmd}", $exitCode);
+
+        return $exitCode;
+    }
+
+    /**
+     * Gera o arquivo AppCDS do modo CLI: roda todas as ações uma vez contra o banco
+     * (ação cds-train, só leituras e updates com WHERE 1 = 0) numa JVM com
+     * -XX:ArchiveClassesAtExit. As chamadas CLI seguintes carregam as classes do
+     * conector, do GSON e do driver já verificadas a partir do arquivo
+     *
+     * Recompilar o conector invalida o arquivo; rode de novo após cada deploy
+     * (php artisan progress:connector-cds).
+     *
+     * @return array Resumo do treino por ação, com 'archive' (caminho) e 'archive_bytes'
+     */
+    public function trainJavaConnectorArchive(): array
+    {
+        $javaPath = storage_path('app/java');
+        $driverPath = config('progress.driver_path');
+        $jdbcUrl = config('progress.jdbc_url');
+        $username = config('progress.username');
+        $password = config('progress.password');
+
+        if (empty($driverPath) || empty($jdbcUrl) || empty($username) || empty($password)) {
+            throw new Exception("Configurações Progress incompletas. Verifique PROGRESS_* no .env");
+        }
+
+        if ($this->javaConnectorNeedsCompile($javaPath)) {
+            $this->compileJavaConnector();
+        }
+
+        // O arquivo anterior não pode ser lido e gravado pela mesma JVM
+        $archive = $javaPath . '/' . self::JAVA_CDS_ARCHIVE;
+        if (file_exists($archive)) {
+            unlink($archive);
+        }
+
+        $isWindows = strtoupper(substr(PHP_OS, 0, 3)) === 'WIN';
+        $cdCmd = $isWindows ? "cd /d \"{$javaPath}\"" : "cd \"{$javaPath}\"";
+        $cmd = implode(' ', [
+            'java',
+            '@' . self::JAVA_CLI_OPTIONS_FILE,
+            '-XX:ArchiveClassesAtExit=' . self::JAVA_CDS_ARCHIVE,
+            '-cp',
+            '"' . $this->javaConnectorClasspath($javaPath, $driverPath) . '"',
+            self::JAVA_CONNECTOR_MAIN,
+            'cds-train',
+            escapeshellarg($jdbcUrl),
+            escapeshellarg($username),
+            escapeshellarg($password)
+        ]);
+
+        Log::info('Gerando arquivo CDS do conector JDBC', ['archive' => $archive]);
+
+        $output = shell_exec("{$cdCmd} && {$cmd} 2>&1");
+        $result = json_decode(trim((string) $output), true);
+        if (!is_array($result) || !file_exists($archive)) {
+            throw new Exception('Falha ao gerar o arquivo CDS do conector: ' . trim((string) $output));
+        }
+
+        $result['data']['archive'] = $archive;
+        $result['data']['archive_bytes'] = filesize($archive);
+
+        return $result;
+    }
+
+    /**
+     * Opções da JVM do modo CLI: o contrato de partida em connector-cli.jvmopts
+     * (compilação em camadas, GC e heap) e o arquivo AppCDS quando já gerado
+     *
+     * Caminhos relativos: o comando roda a partir de storage/app/java.
+     */
+    private function javaCliOptions(string $javaPath): array
+    {
+        $options = [];
+        if (file_exists($javaPath . '/' . self::JAVA_CLI_OPTIONS_FILE)) {
+            $options[] = '@' . self::JAVA_CLI_OPTIONS_FILE;
+        }
+        if (file_exists($javaPath . '/' . self::JAVA_CDS_ARCHIVE)) {
+            $options[] = '-XX:SharedArchiveFile=' . self::JAVA_CDS_ARCHIVE;
+        }
+
+        return $options;
+    }
+
+    /**
+     * Classpath de execução do conector: jar do conector + GSON + driver OpenEdge
+     */
+    private function javaConnectorClasspath(string $javaPath, string $driverPath): string
+    {
+        $separator = strtoupper(substr(PHP_OS, 0, 3)) === 'WIN' ? ';' : ':';
+        // GSON está em storage/app/java junto com o conector Java
+        $gsonPath = $javaPath . '/gson-2.10.1.jar';
+        $connectorJar = $javaPath . '/' . self::JAVA_CONNECTOR_JAR;
+
+        return "{$connectorJar}{$separator}{$gsonPath}{$separator}{$driverPath}";
+    }
+
+    /**
+     * Verifica se o conector precisa ser (re)compilado
+     * O conector é dividido em vários arquivos .java; qualquer fonte mais novo
+     * que o jar do conector força a recompilação de todos
+     */
+    private function javaConnectorNeedsCompile(string $javaPath): bool
+    {
+        $jarFile = $javaPath . '/' . self::JAVA_CONNECTOR_JAR;
+        if (!file_exists($jarFile)) {
+            return true;
+        }
+
+        $jarTime = filemtime($jarFile);
+        foreach (glob($javaPath . '/src/main/java/' . self::JAVA_CONNECTOR_PACKAGE_DIR . '/*.java') ?: [] as $source) {
+            if (filemtime($source) > $jarTime) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compila os fontes Java do ProgressJDBCConnector
      */
     private function compileJavaConnector(): void
     {
         $javaPath = storage_path('app/java');
         $driverPath = config('progress.driver_path');
 
+        $sourcePath = 'src/main/java/' . self::JAVA_CONNECTOR_PACKAGE_DIR;
+        $classesPath = $javaPath . '/target/classes';
+
         // Verificar se o arquivo Java existe
-        if (!file_exists($javaPath . '/ProgressJDBCConnector.java')) {
+        if (!file_exists("{$javaPath}/{$sourcePath}/ProgressJDBCConnector.java")) {
             throw new Exception('Arquivo ProgressJDBCConnector.java não encontrado');
         }
 
+        if (!is_dir($classesPath)) {
+            mkdir($classesPath, 0755, true);
+        }
+
         // Construir comando de compilação - compatível com Windows e Linux
         $isWindows = strtoupper(substr(PHP_OS, 0, 3)) === 'WIN';
         $separator = $isWindows ? ';' : ':';
@@ -968,16 +1659,32 @@ private function compileJavaConnector(): void
         $gsonPath = $javaPath . '/gson-2.10.1.jar';
         $classpath = "{$gsonPath}{$separator}{$driverPath}";
         $cdCmd = $isWindows ? "cd /d \"{$javaPath}\"" : "cd \"{$javaPath}\"";
-        $compileCmd = "{$cdCmd} && javac -cp \"{$classpath}\" ProgressJDBCConnector.java 2>&1";
+        // Compilar todos os fontes: o conector residente e componentes ficam em arquivos separados.
+        // Mesma saída do build Maven (pom.xml), sem exigir Maven no servidor
+        $compileCmd = "{$cdCmd} && javac -encoding UTF-8 -d target/classes -cp \"{$classpath}\" {$sourcePath}/*.java 2>&1";
         
         Log::info('Compilando ProgressJDBCConnector.java', ['command' => $compileCmd]);
         
         $output = shell_exec($compileCmd);
         
-        if (!file_exists($javaPath . '/ProgressJDBCConnector.class')) {
+        if (!file_exists($classesPath . '/' . self::JAVA_CONNECTOR_PACKAGE_DIR . '/ProgressJDBCConnector.class')) {
             throw new Exception('Falha na compilação do ProgressJDBCConnector: ' . $output);
         }
 
+        // Jar com as classes: o classpath de execução e o arquivo CDS usam o jar.
+        // O arquivo CDS gerado para o jar anterior deixa de valer
+        $jarFile = $javaPath . '/' . self::JAVA_CONNECTOR_JAR;
+        if (file_exists($jarFile)) {
+            unlink($jarFile);
+        }
+        $output = shell_exec("{$cdCmd} && jar --create --file " . self::JAVA_CONNECTOR_JAR . " -C target/classes . 2>&1");
+        if (!file_exists($jarFile)) {
+            throw new Exception('Falha ao gerar o jar do ProgressJDBCConnector: ' . $output);
+        }
+        if (file_exists($javaPath . '/' . self::JAVA_CDS_ARCHIVE)) {
+            unlink($javaPath . '/' . self::JAVA_CDS_ARCHIVE);
+        }
+
         Log::info('ProgressJDBCConnector compilado com sucesso');
     }
 
@@ -989,7 +1696,7 @@ public function getTransporteTableSchema(): array
         try {
             Log::info('Obtendo schema da tabela transporte via JDBC');
 
-            $result = $this->executeJavaConnector('schema', 'transporte');
+            $result = $this->withConnectorCache(fn() => $this->executeJavaConnector('schema', 'transporte'));
 
             if ($result['success']) {
                 Log::info('Schema da tabela transporte obtido com sucesso', [
@@ -1011,6 +1718,29 @@ public function getTransporteTableSchema(): array
         }
     }
 
+    /**
+     * Atualiza o snapshot de schema do conector (várias tabelas PUB lidas em paralelo)
+     *
+     * Só tabelas cujas colunas mudaram são lidas por completo; depois disso a ação
+     * schema dessas tabelas é respondida do snapshot, sem ir ao Progress.
+     *
+     * @param array $tables Tabelas (sem PUB.); vazio = todas as tabelas PUB
+     * @param bool $refresh Lê todas de novo, mesmo sem mudança nas colunas
+     */
+    public function refreshSchemaSnapshot(array $tables = [], bool $refresh = false): array
+    {
+        $result = $this->executeJavaConnector('schema-snapshot', implode(',', $tables), $refresh ? 'refresh' : '');
+
+        if ($result['success'] ?? false) {
+            Log::info('Snapshot de schema atualizado', [
+                'tabelas' => $result['data']['table_count'] ?? 0,
+                'relidas' => $result['data']['refreshed'] ?? []
+            ]);
+        }
+
+        return $result;
+    }
+
     /**
      * Constrói cláusula WHERE baseada nos filtros
      */
@@ -1120,7 +1850,7 @@ public function getRotas($search = ''): array
 
             $sql .= " ORDER BY codrot";
             
-            $result = $this->executeCustomQuery($sql);
+            $result = $this->withConnectorCache(fn() => $this->executeCustomQuery($sql));
             
             if ($result['success']) {
                 return [
@@ -1253,71 +1983,70 @@ public function getSemPararRotas(array $filters = []): array
             $tempoMaximo = $filters['tempo_maximo'] ?? '';
 
             $offset = ($page - 1) * $perPage;
+            $cursor = $filters['cursor'] ?? null;
 
-            // Query simples para buscar dados
-            // Query com subquery correlacionada para evitar N+1 - uma única query busca tudo
-            $sql = "SELECT r.*, (SELECT COUNT(*) FROM PUB.semPararRotMu m WHERE m.sPararRotID = r.sPararRotID) as totalmunicipios FROM PUB.semPararRot r WHERE 1=1";
+            $where = "1=1";
 
             // Aplicar filtros
             if (!empty($search)) {
                 $searchUpper = strtoupper($search);
                 $searchEscaped = $this->escapeSqlString('%' . $searchUpper . '%');
-                $sql .= " AND (UPPER(r.desSPararRot) LIKE " . $searchEscaped . " OR r.sPararRotID = " . intval($search) . ")";
+                $where .= " AND (UPPER(r.desSPararRot) LIKE " . $searchEscaped . " OR r.sPararRotID = " . intval($search) . ")";
             }
 
             if (!empty($codigo)) {
-                $sql .= " AND r.sPararRotID = " . intval($codigo);
+                $where .= " AND r.sPararRotID = " . intval($codigo);
             }
 
             if (!empty($descricao)) {
                 $descricaoUpper = strtoupper($descricao);
-                $sql .= " AND UPPER(r.desSPararRot) LIKE " . $this->escapeSqlString('%' . $descricaoUpper . '%');
+                $where .= " AND UPPER(r.desSPararRot) LIKE " . $this->escapeSqlString('%' . $descricaoUpper . '%');
             }
 
             // Filtro flgCD - suporta true (apenas CD) e false (apenas não-CD)
             if ($flgCD === 'true' || $flgCD === true || $flgCD === '1') {
-                $sql .= " AND r.flgCD = 1";
+                $where .= " AND r.flgCD = 1";
             } elseif ($flgCD === 'false' || $flgCD === false || $flgCD === '0') {
-                $sql .= " AND r.flgCD = 0";
+                $where .= " AND r.flgCD = 0";
             }
 
             // Filtro retorno
             if ($flgRetorno === 'true') {
-                $sql .= " AND r.flgRetorno = 1";
+                $where .= " AND r.flgRetorno = 1";
             } elseif ($flgRetorno === 'false') {
-                $sql .= " AND r.flgRetorno = 0";
+                $where .= " AND r.flgRetorno = 0";
             }
 
             // Filtros de tempo
             if (!empty($tempoMinimo)) {
-                $sql .= " AND r.tempoViagem >= " . intval($tempoMinimo);
+                $where .= " AND r.tempoViagem >= " . intval($tempoMinimo);
             }
 
             if (!empty($tempoMaximo)) {
-                $sql .= " AND r.tempoViagem <= " . intval($tempoMaximo);
+                $where .= " AND r.tempoViagem <= " . intval($tempoMaximo);
             }
 
-            // Contar total antes da paginação (substituir a subquery por COUNT)
-            $countSql = str_replace("r.*, (SELECT COUNT(*) FROM PUB.semPararRotMu m WHERE m.sPararRotID = r.sPararRotID) as totalmunicipios", "COUNT(*) as total", $sql);
-            $countResult = $this->executeCustomQuery($countSql);
-            $total = $countResult['success'] ? ($countResult['data']['results'][0]['total'] ?? 0) : 0;
-
-            // Aplicar ordenação
-            $sql .= " ORDER BY r.sPararRotID DESC";
-
-            Log::info('Query SemPararRot:', ['sql' => $sql]);
-
-            $result = $this->executeCustomQuery($sql);
+            // Página keyset com subquery correlacionada para evitar N+1 e COUNT(*) com os
+            // mesmos filtros, em uma única chamada ao conector (antes a tabela inteira era
+            // lida e paginada no PHP). Em cache no conector: criar, alterar ou remover rotas
+            // pelo conector invalida a listagem
+            $result = $this->withConnectorCache(fn() => $this->executeKeysetPage([
+                'from' => 'PUB.semPararRot r',
+                'columns' => 'r.*, (SELECT COUNT(*) FROM PUB.semPararRotMu m WHERE m.sPararRotID = r.sPararRotID) as totalmunicipios',
+                'keys' => ['r.sPararRotID DESC'],
+                'where' => $where,
+                'limit' => (int) $perPage,
+                'cursor' => $cursor,
+                'direction' => ($filters['direction'] ?? 'next') === 'prev' ? 'prev' : 'next',
+                'skip' => $cursor === null ? max(0, (int) $offset) : 0,
+                'count' => true
+            ]));
+
+            Log::info('Query SemPararRot:', ['sql' => $result['data']['sql'] ?? null]);
 
             if ($result['success']) {
-                // Simular paginação no lado PHP se necessário
-                $allResults = $result['data']['results'] ?? [];
-                $results = array_slice($allResults, $offset, $perPage);
-
-                Log::info('Resultados SemPararRot:', [
-                    'total_results' => count($allResults),
-                    'paginated_results' => count($results)
-                ]);
+                $results = $result['data']['results'] ?? [];
+                $total = $result['data']['total'] ?? 0;
 
                 return [
                     'success' => true,
@@ -1330,7 +2059,9 @@ public function getSemPararRotas(array $filters = []): array
                             'last_page' => ceil($total / $perPage),
                             'from' => $offset + 1,
                             'to' => min($offset + $perPage, $total),
-                            'has_more_pages' => $page < ceil($total / $perPage)
+                            'has_more_pages' => $cursor === null ? $page < ceil($total / $perPage) : $result['data']['has_next'],
+                            'next_cursor' => $result['data']['next_cursor'],
+                            'prev_cursor' => $result['data']['prev_cursor']
                         ]
                     ]
                 ];
@@ -1418,7 +2149,8 @@ public function getViagensCompradas(
 
             Log::info('Query viagens:', ['sql' => $sql]);
 
-            $result = $this->executeCustomQuery($sql);
+            // Relatório: classe batch, para não atrasar as validações da compra de viagem
+            $result = $this->withConnectorPriority('batch', fn() => $this->executeCustomQuery($sql));
 
             if (!$result['success']) {
                 return $result;
@@ -1771,26 +2503,50 @@ public function deleteSemPararRota($rotaId): array
 
     /**
      * Busca municípios para autocomplete
+     *
+     * Usa o índice em memória do conector (ação autocomplete-municipio): busca sem
+     * diferenciar acentos, nomes que começam com o texto primeiro, sem consulta ao
+     * Progress a cada tecla. O índice é recarregado a cada hora e quando municipio ou
+     * estado são alterados pelo conector. Sem conector residente, ou se ele estiver fora
+     * do ar ou falhar, a consulta LIKE continua sendo usada: numa JVM por chamada o índice
+     * seria montado a cada busca.
      */
     public function getMunicipiosForAutocomplete($search = '', $estadoId = null): array
     {
         try {
             Log::info('Buscando municípios para autocomplete', ['search' => $search, 'estado_id' => $estadoId]);
 
-            $sql = "SELECT TOP 20 m.codmun, m.codest, m.desmun, m.cdibge, e.sigest as desest FROM PUB.municipio m INNER JOIN PUB.estado e ON m.codest = e.codest WHERE 1=1";
-
-            if (!empty($search)) {
-                $searchUpper = strtoupper($search);
-                $sql .= " AND UPPER(m.desmun) LIKE " . $this->escapeSqlString('%' . $searchUpper . '%');
+            // Só pelo conector residente: no fallback para JVM por chamada o índice seria
+            // montado e descartado a cada tecla, bem mais lento que a consulta LIKE
+            $result = null;
+            try {
+                $result = $this->executeViaResidentConnector('autocomplete-municipio', [
+                    trim((string) $search),
+                    $estadoId !== null ? (string) intval($estadoId) : '',
+                    20
+                ]);
+            } catch (Exception $e) {
+                Log::warning('Autocomplete de municípios pelo conector residente falhou, usando consulta LIKE', [
+                    'error' => $e->getMessage()
+                ]);
             }
 
-            if ($estadoId !== null) {
-                $sql .= " AND m.codest = " . intval($estadoId);
-            }
+            if ($result === null || !$result['success']) {
+                $sql = "SELECT TOP 20 m.codmun, m.codest, m.desmun, m.cdibge, e.sigest as desest FROM PUB.municipio m INNER JOIN PUB.estado e ON m.codest = e.codest WHERE 1=1";
 
-            $sql .= " ORDER BY m.desmun";
+                if (!empty($search)) {
+                    $searchUpper = strtoupper($search);
+                    $sql .= " AND UPPER(m.desmun) LIKE " . $this->escapeSqlString('%' . $searchUpper . '%');
+                }
 
-            $result = $this->executeCustomQuery($sql);
+                if ($estadoId !== null) {
+                    $sql .= " AND m.codest = " . intval($estadoId);
+                }
+
+                $sql .= " ORDER BY m.desmun";
+
+                $result = $this->executeCustomQuery($sql);
+            }
 
             if ($result['success']) {
                 return [
@@ -1830,7 +2586,7 @@ public function getEstadosForAutocomplete(): array
                     FROM PUB.estado
                     ORDER BY nomest";
 
-            $result = $this->executeCustomQuery($sql);
+            $result = $this->withConnectorCache(fn() => $this->executeCustomQuery($sql));
 
             if ($result['success']) {
                 return [
@@ -2066,8 +2822,7 @@ public function updateSemPararRotaMunicipios($rotaId, $municipios): array
                 'total_municipios' => count($municipios)
             ]);
 
-            // FASE 1: VALIDAR TODOS OS DADOS ANTES DE DELETAR QUALQUER COISA
-            // (Progress JDBC não tem transações - se falhar após DELETE, dados são perdidos!)
+            // FASE 1: VALIDAR TODOS OS DADOS ANTES DE MONTAR O LOTE
             foreach ($municipios as $index => $municipio) {
                 // Validar campos obrigatórios
                 if (!isset($municipio['sequencia']) || !isset($municipio['cod_est']) ||
@@ -2111,83 +2866,76 @@ public function updateSemPararRotaMunicipios($rotaId, $municipios): array
                 'sequencias' => $seqsExistentes
             ]);
 
-            // 2. Processar cada município (UPDATE se existir, INSERT se novo)
+            // 2. Montar um único lote transacional: UPDATE dos existentes, INSERT dos novos,
+            //    DELETE dos removidos e data de modificação da rota. Se qualquer comando
+            //    falhar, o conector desfaz o lote inteiro e a rota fica como estava.
+            $rotaIdInt = intval($rotaId);
             $seqsNovos = [];
+            $updates = [];
+            $inserts = [];
             foreach ($municipios as $municipio) {
                 $seq = intval($municipio['sequencia']);
                 $seqsNovos[] = $seq;
                 $codEst = intval($municipio['cod_est']);
                 $codMun = intval($municipio['cod_mun']);
-                $desEst = $this->escapeSqlString($municipio['des_est']);
-                $desMun = $this->escapeSqlString($municipio['des_mun']);
+                $desEst = (string) $municipio['des_est'];
+                $desMun = (string) $municipio['des_mun'];
                 $cdibge = intval($municipio['cdibge']);
 
                 if (in_array($seq, $seqsExistentes)) {
-                    // UPDATE existente
-                    $sqlUpdate = "UPDATE PUB.semPararRotMu SET CodEst = {$codEst}, CodMun = {$codMun}, DesEst = {$desEst}, DesMun = {$desMun}, cdibge = {$cdibge} WHERE sPararRotID = " . intval($rotaId) . " AND sPararMuSeq = {$seq}";
-                    $result = $this->executeUpdate($sqlUpdate);
-
-                    if (!$result['success']) {
-                        Log::error('Erro ao atualizar município', [
-                            'municipio' => $municipio['des_mun'],
-                            'sequencia' => $seq,
-                            'error' => $result['error']
-                        ]);
-                        throw new Exception('Erro ao atualizar município: ' . $municipio['des_mun'] . ' - ' . ($result['error'] ?? 'Erro desconhecido'));
-                    }
-
-                    Log::debug('Município atualizado', ['sequencia' => $seq, 'municipio' => $municipio['des_mun']]);
+                    $updates[] = [$codEst, $codMun, $desEst, $desMun, $cdibge, $rotaIdInt, $seq];
                 } else {
-                    // INSERT novo
-                    $sqlInsert = "INSERT INTO PUB.semPararRotMu (sPararRotID, sPararMuSeq, CodEst, CodMun, DesEst, DesMun, cdibge) VALUES (" . intval($rotaId) . ", {$seq}, {$codEst}, {$codMun}, {$desEst}, {$desMun}, {$cdibge})";
-                    $result = $this->executeUpdate($sqlInsert);
-
-                    if (!$result['success']) {
-                        Log::error('Erro ao inserir município', [
-                            'municipio' => $municipio['des_mun'],
-                            'sequencia' => $seq,
-                            'error' => $result['error']
-                        ]);
-                        throw new Exception('Erro ao inserir município: ' . $municipio['des_mun'] . ' - ' . ($result['error'] ?? 'Erro desconhecido'));
-                    }
-
-                    Log::debug('Município inserido', ['sequencia' => $seq, 'municipio' => $municipio['des_mun']]);
+                    $inserts[] = [$rotaIdInt, $seq, $codEst, $codMun, $desEst, $desMun, $cdibge];
                 }
             }
 
             // 3. DELETE apenas os que foram removidos (não existem em $seqsNovos)
             $seqsRemovidos = array_diff($seqsExistentes, $seqsNovos);
-            foreach ($seqsRemovidos as $seqRemovida) {
-                $sqlDelete = "DELETE FROM PUB.semPararRotMu WHERE sPararRotID = " . intval($rotaId) . " AND sPararMuSeq = " . intval($seqRemovida);
-                $result = $this->executeUpdate($sqlDelete);
-
-                if (!$result['success']) {
-                    Log::warning('Erro ao deletar município removido (não crítico)', [
-                        'sequencia' => $seqRemovida,
-                        'error' => $result['error']
-                    ]);
-                    // Não lançar exceção aqui, apenas log de warning
-                } else {
-                    Log::debug('Município removido', ['sequencia' => $seqRemovida]);
-                }
-            }
+            $deletes = array_map(fn($seqRemovida) => [$rotaIdInt, intval($seqRemovida)], array_values($seqsRemovidos));
 
-            Log::info('Municípios processados com sucesso', [
-                'atualizados_ou_mantidos' => count(array_intersect($seqsExistentes, $seqsNovos)),
-                'inseridos' => count(array_diff($seqsNovos, $seqsExistentes)),
-                'removidos' => count($seqsRemovidos)
-            ]);
+            $batch = [];
+            if (!empty($updates)) {
+                $batch[] = [
+                    'sql' => 'UPDATE PUB.semPararRotMu SET CodEst = ?, CodMun = ?, DesEst = ?, DesMun = ?, cdibge = ? WHERE sPararRotID = ? AND sPararMuSeq = ?',
+                    'params' => $updates
+                ];
+            }
+            if (!empty($inserts)) {
+                $batch[] = [
+                    'sql' => 'INSERT INTO PUB.semPararRotMu (sPararRotID, sPararMuSeq, CodEst, CodMun, DesEst, DesMun, cdibge) VALUES (?, ?, ?, ?, ?, ?, ?)',
+                    'params' => $inserts
+                ];
+            }
+            if (!empty($deletes)) {
+                $batch[] = [
+                    'sql' => 'DELETE FROM PUB.semPararRotMu WHERE sPararRotID = ? AND sPararMuSeq = ?',
+                    'params' => $deletes
+                ];
+            }
 
-            // FASE 5: Atualizar data de modificação da rota
-            $sqlUpdate = "UPDATE PUB.semPararRot SET datAtu = '" . date('Y-m-d') . "', resAtu = 'web' WHERE sPararRotID = " . intval($rotaId);
+            // 4. Atualizar data de modificação da rota (no mesmo lote)
+            $batch[] = [
+                'sql' => 'UPDATE PUB.semPararRot SET datAtu = ?, resAtu = ? WHERE sPararRotID = ?',
+                'params' => [[['type' => 'date', 'value' => date('Y-m-d')], 'web', $rotaIdInt]]
+            ];
 
-            $updateResult = $this->executeUpdate($sqlUpdate);
+            $result = $this->executeBatchUpdate($batch);
 
-            if (!$updateResult['success']) {
-                // Não é crítico, apenas log
-                Log::warning('Erro ao atualizar data da rota (não crítico)', ['error' => $updateResult['error']]);
+            if (!$result['success']) {
+                Log::error('Erro ao gravar municípios da rota (nenhuma alteração aplicada)', [
+                    'rota_id' => $rotaId,
+                    'error' => $result['error'] ?? null
+                ]);
+                throw new Exception($result['error'] ?? 'Erro desconhecido');
             }
 
+            Log::info('Municípios processados com sucesso', [
+                'atualizados_ou_mantidos' => count($updates),
+                'inseridos' => count($inserts),
+                'removidos' => count($deletes),
+                'affected_rows' => $result['data']['affected_rows'] ?? 0
+            ]);
+
             return [
                 'success' => true,
                 'message' => 'Municípios atualizados com sucesso'
@@ -2777,9 +3525,8 @@ public function validatePackageForCompraViagem(int $codpac, bool $flgcd): array
     public function isPacoteTCD(int $codpac): bool
     {
         try {
-            $sql = "SELECT TOP 1 codpaccd FROM PUB.paccd WHERE codpaccd = {$codpac}";
-            $result = $this->executeCustomQuery($sql);
-            return !empty($result['data']);
+            $result = $this->lookupTable('paccd', ['codpaccd' => $codpac], ['columns' => ['codpaccd'], 'limit' => 1]);
+            return !empty($result['data']['results']);
         } catch (Exception $e) {
             Log::error('Erro ao verificar pacote TCD', ['codpac' => $codpac, 'error' => $e->getMessage()]);
             return false;
@@ -2793,18 +3540,21 @@ public function isPacoteTCD(int $codpac): bool
     public function viagemJaComprada(int $codpac, int $rotaId): array
     {
         try {
-            $sql = "SELECT TOP 1 codViagem, NumPla, valViagem, dataCompra " .
-                   "FROM PUB.sPararViagem " .
-                   "WHERE CodPac = {$codpac} " .
-                   "AND sPararRotID = {$rotaId} " .
-                   "AND flgCancelado = false";
-
-            $result = $this->executeCustomQuery($sql);
+            // Guarda contra compra duplicada: sempre no Progress, nunca da cópia local
+            $result = $this->lookupTable('spararviagem', [
+                'codpac' => $codpac,
+                'spararrotid' => $rotaId,
+                'flgcancelado' => false
+            ], [
+                'columns' => ['codviagem', 'numpla', 'valviagem', 'datacompra'],
+                'limit' => 1,
+                'consistency' => 'live'
+            ]);
 
-            if (!empty($result['data'])) {
+            if (!empty($result['data']['results'])) {
                 return [
                     'duplicada' => true,
-                    'viagem' => $result['data'][0]
+                    'viagem' => $result['data']['results'][0]
                 ];
             }
 
@@ -2949,19 +3699,13 @@ public function getRotaSugeridaPorIntrot(int $codpac, bool $flgRetorno = false):
     public function getDDDTransportador(int $codtrn): ?string
     {
         try {
-            $sql = "SELECT TOP 1 " .
-                   "t.dddcel, m.codddd " .
-                   "FROM PUB.transporte t " .
-                   "LEFT JOIN PUB.municipio m ON m.codmun = t.codmun AND m.codest = t.codest " .
-                   "WHERE t.codtrn = {$codtrn}";
-
-            $result = $this->executeCustomQuery($sql);
+            $result = $this->lookupTable('transporte', ['codtrn' => $codtrn], ['columns' => ['dddcel', 'codddd'], 'limit' => 1]);
 
-            if (empty($result['data'])) {
+            if (empty($result['data']['results'])) {
                 return null;
             }
 
-            $row = $result['data'][0];
+            $row = $result['data']['results'][0];
             return $row['dddcel'] ?: $row['codddd'];
         } catch (Exception $e) {
             Log::error('Erro ao buscar DDD transportador', ['codtrn' => $codtrn, 'error' => $e->getMessage()]);
@@ -3023,14 +3767,13 @@ public function getTelefoneFormatadoTransportador(int $codtrn): ?string
     public function getEmailTransportador(int $codtrn): ?string
     {
         try {
-            $sql = "SELECT TOP 1 \"e-mail\" as email FROM PUB.transporte WHERE codtrn = {$codtrn}";
-            $result = $this->executeCustomQuery($sql);
+            $result = $this->lookupTable('transporte', ['codtrn' => $codtrn], ['columns' => ['e-mail'], 'limit' => 1]);
 
-            if (empty($result['data'])) {
+            if (empty($result['data']['results'])) {
                 return null;
             }
 
-            return trim($result['data'][0]['email'] ?? '') ?: null;
+            return trim($result['data']['results'][0]['e-mail'] ?? '') ?: null;
 
         } catch (Exception $e) {
             Log::error('Erro ao buscar email transportador', ['codtrn' => $codtrn, 'error' => $e->getMessage()]);
@@ -22,4 +22,21 @@
     'jdbc_url' => env('PROGRESS_JDBC_URL'),
     'driver_path' => env('PROGRESS_DRIVER_PATH'),
 
+    // Conector JDBC residente (java ProgressJDBCConnector serve ...)
+    // Quando a porta estiver definida, as consultas usam o socket local e só
+    // caem para uma JVM por chamada se o conector residente não responder
+    'connector' => [
+        'host' => env('PROGRESS_CONNECTOR_HOST', '127.0.0.1'),
+        'port' => env('PROGRESS_CONNECTOR_PORT'),
+        'timeout' => (int) env('PROGRESS_CONNECTOR_TIMEOUT', 60),
+        // Timeout (segundos) da ação export, que só responde depois de gravar o arquivo
+        'export_timeout' => (int) env('PROGRESS_CONNECTOR_EXPORT_TIMEOUT', 1800),
+        // Segundos que o conector residente guarda em cache as consultas de dados de
+        // referência (estados, rotas, schema). 0 = sem cache
+        'cache_ttl' => (int) env('PROGRESS_CONNECTOR_CACHE_TTL', 300),
+        // Formato das linhas nas respostas do conector: objects (nome da coluna em cada
+        // linha) ou columns (nomes uma vez + linhas posicionais, resposta só com ASCII)
+        'format' => env('PROGRESS_CONNECTOR_FORMAT', 'objects'),
+    ],
+
 ];
@@ -0,0 +1,495 @@
+package br.com.tambasa.connector;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+import com.google.gson.JsonObject;
+
+/**
+ * Classes de prioridade das requisicoes do conector residente.
+ *
+ * Cada requisicao entra em uma classe (campo "priority" ou, sem ele, pela acao:
+ * export, scan e schema-snapshot sao batch, o resto interactive). Jobs (QueryJobs) e a
+ * sincronizacao das copias (TableMirror) tambem sao batch. Cada classe tem seu
+ * limite de requisicoes em execucao e sua fila; depois dela a requisicao ainda precisa de
+ * uma vaga do servidor (uma por conexao do pool). Uma requisicao batch nao comeca
+ * enquanto houver interactive na fila, e o limite batch fica abaixo do pool, entao
+ * relatorios e exportacoes nao tomam as conexoes da compra de viagem e do autocomplete.
+ *
+ * Quem espera mais que -Dconnector.priority.&lt;classe&gt;.maxWaitMs (ou encontra a fila
+ * cheia) recebe na hora uma resposta "overloaded", em vez de esperar ate o timeout do PHP.
+ *
+ * Os limites se ajustam a latencia do broker (execute + fetch) a cada intervalo. Cada
+ * consulta e comparada com a referencia da propria consulta normalizada (fingerprint do
+ * ConnectorMetrics): o percentil 25 das ultimas execucoes dela, depois de um minimo de
+ * amostras. Assim um intervalo com um relatorio pesado nao parece um broker lento so por
+ * ter consultas mais caras que o autocomplete. O atraso da classe e a mediana dessas
+ * razoes: passando de latencyTolerance, o limite batch cai pela metade e, se nenhuma batch
+ * estiver ocupando vagas, o interactive cai na proporcao do atraso; com o broker normal
+ * cada limite sobe um por intervalo ate o maximo configurado.
+ *
+ * Leituras paralelas extras de uma requisicao (tryAdmitExtra) contam como requisicoes em
+ * execucao da classe: "running" inclui essas leituras.
+ */
+final class AdmissionControl {
+
+    enum Priority {
+        INTERACTIVE, BATCH;
+
+        final String id = name().toLowerCase(Locale.ROOT);
+
+        static Priority parse(String name) {
+            for (Priority priority : values()) {
+                if (priority.id.equals(name)) {
+                    return priority;
+                }
+            }
+            throw new IllegalArgumentException("priority invalida: " + name + ". Use interactive ou batch");
+        }
+    }
+
+    /**
+     * Acoes batch quando a requisicao nao informa priority
+     */
+    static final Set<String> BATCH_ACTIONS = Set.of("export", "scan", "schema-snapshot");
+
+    /**
+     * Configuracao das classes, lida de propriedades de sistema (-Dconnector.priority.*)
+     */
+    static final class Config {
+        final int[] maxLimit = new int[2];
+        final int[] minLimit = new int[2];
+        final int[] maxQueue = new int[2];
+        final long[] maxWaitMillis = new long[2];
+        long adjustIntervalMillis = 1000;
+        double latencyTolerance = 2.0;
+        int baselineSamples = 200;
+        int minBaselineSamples = 20;
+
+        static Config fromSystemProperties(int poolSize) {
+            Config config = new Config();
+            int interactive = Priority.INTERACTIVE.ordinal();
+            int batch = Priority.BATCH.ordinal();
+            config.maxLimit[interactive] = Integer.getInteger("connector.priority.interactive.limit", poolSize);
+            config.minLimit[interactive] = Integer.getInteger("connector.priority.interactive.minLimit", Math.max(1, poolSize / 4));
+            config.maxQueue[interactive] = Integer.getInteger("connector.priority.interactive.queue", 200);
+            config.maxWaitMillis[interactive] = Long.getLong("connector.priority.interactive.maxWaitMs", 2000);
+            // Batch nunca ocupa o pool inteiro: por padrao metade
+            config.maxLimit[batch] = Integer.getInteger("connector.priority.batch.limit", Math.max(1, poolSize / 2));
+            config.minLimit[batch] = Integer.getInteger("connector.priority.batch.minLimit", 1);
+            config.maxQueue[batch] = Integer.getInteger("connector.priority.batch.queue", 50);
+            config.maxWaitMillis[batch] = Long.getLong("connector.priority.batch.maxWaitMs", 60_000);
+            config.adjustIntervalMillis = Long.getLong("connector.priority.adjustIntervalMs", config.adjustIntervalMillis);
+            config.latencyTolerance = Double.parseDouble(System.getProperty("connector.priority.latencyTolerance", "2.0"));
+            config.baselineSamples = Integer.getInteger("connector.priority.baselineSamples", config.baselineSamples);
+            config.minBaselineSamples = Integer.getInteger("connector.priority.minBaselineSamples", config.minBaselineSamples);
+            if (config.minBaselineSamples < 1 || config.minBaselineSamples > config.baselineSamples) {
+                throw new IllegalArgumentException("connector.priority.minBaselineSamples deve estar entre 1 e baselineSamples");
+            }
+            for (Priority priority : Priority.values()) {
+                int i = priority.ordinal();
+                if (config.minLimit[i] < 1 || config.minLimit[i] > config.maxLimit[i]) {
+                    throw new IllegalArgumentException("connector.priority." + priority.id + ": minLimit deve estar entre 1 e limit");
+                }
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Resultado da admissao de uma requisicao
+     */
+    enum Admission {
+        ADMITTED, OVERLOADED, CANCELLED
+    }
+
+    private static final long POLL_MS = 50;
+    // Consultas normalizadas com referencia propria; as usadas ha mais tempo saem primeiro
+    private static final int MAX_BASELINES = 500;
+
+    private final Semaphore slots;
+    private final Config config;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private final ScheduledExecutorService adjuster;
+    // Referencia de latencia por fingerprint; so a thread de ajuste usa
+    private final Map<String, QueryBaseline> baselines = new LinkedHashMap<String, QueryBaseline>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryBaseline> eldest) {
+            return size() > MAX_BASELINES;
+        }
+    };
+
+    /**
+     * @param slots Vagas de execucao do servidor (uma por conexao do pool)
+     */
+    AdmissionControl(Semaphore slots, Config config) {
+        this.slots = slots;
+        this.config = config;
+        for (Priority priority : Priority.values()) {
+            lanes[priority.ordinal()] = new Lane(priority, config);
+        }
+        this.adjuster = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connector-priority-adjust");
+            thread.setDaemon(true);
+            return thread;
+        });
+        adjuster.scheduleWithFixedDelay(this::adjust, config.adjustIntervalMillis, config.adjustIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        adjuster.shutdownNow();
+    }
+
+    static Priority priorityOf(String action, String requested) {
+        if (requested != null) {
+            return Priority.parse(requested);
+        }
+        return BATCH_ACTIONS.contains(action) ? Priority.BATCH : Priority.INTERACTIVE;
+    }
+
+    long maxWaitMillis(Priority priority) {
+        return config.maxWaitMillis[priority.ordinal()];
+    }
+
+    /**
+     * Espera a vez da classe e uma vaga do servidor. Com ADMITTED, quem chamou deve
+     * chamar release() ao terminar.
+     */
+    Admission admit(Priority priority, RequestContext context) throws InterruptedException {
+        return admit(priority, context, true);
+    }
+
+    /**
+     * Como admit(), sem maxWaitMs nem limite de fila: espera ate ser admitida (ADMITTED) ou
+     * cancelada (CANCELLED). Para jobs, que ninguem espera na conexao e ja tem fila propria
+     * limitada por -Dconnector.jobs.maxRunning.
+     */
+    Admission awaitAdmission(Priority priority, RequestContext context) throws InterruptedException {
+        return admit(priority, context, false);
+    }
+
+    private Admission admit(Priority priority, RequestContext context, boolean bounded) throws InterruptedException {
+        Lane lane = lanes[priority.ordinal()];
+        Lane interactive = lanes[Priority.INTERACTIVE.ordinal()];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lane.maxWaitMillis);
+
+        lock.lock();
+        try {
+            if (bounded && lane.waiting >= lane.maxQueue) {
+                lane.rejected++;
+                return Admission.OVERLOADED;
+            }
+            lane.waiting++;
+            try {
+                while (lane.running >= lane.limit || (priority == Priority.BATCH && interactive.waiting > 0)) {
+                    long remaining = bounded ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                    if (remaining <= 0) {
+                        lane.rejected++;
+                        return Admission.OVERLOADED;
+                    }
+                    if (context.isCancelled()) {
+                        return Admission.CANCELLED;
+                    }
+                    changed.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MS)), TimeUnit.NANOSECONDS);
+                }
+                lane.running++;
+            } finally {
+                lane.waiting--;
+                // Uma interactive a menos na fila pode liberar uma batch
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        while (!slots.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS)) {
+            boolean expired = bounded && System.nanoTime() - deadline >= 0;
+            if (context.isCancelled() || expired) {
+                leave(lane, expired);
+                return expired ? Admission.OVERLOADED : Admission.CANCELLED;
+            }
+        }
+        if (context.isCancelled()) {
+            slots.release();
+            leave(lane, false);
+            return Admission.CANCELLED;
+        }
+        return Admission.ADMITTED;
+    }
+
+    /**
+     * Reserva, sem esperar, uma vaga para uma leitura paralela extra de uma requisicao ja
+     * admitida (scan particionado, schema-snapshot, multi). A leitura extra conta no limite
+     * da classe como uma requisicao: uma batch com muitas particoes nao passa do limite batch
+     * nem toma vagas enquanto houver interactive na fila. Com true, devolver com releaseExtra().
+     */
+    boolean tryAdmitExtra(Priority priority) {
+        Lane lane = lanes[priority.ordinal()];
+        Lane interactive = lanes[Priority.INTERACTIVE.ordinal()];
+        lock.lock();
+        try {
+            if (lane.running >= lane.limit || (priority == Priority.BATCH && interactive.waiting > 0)) {
+                return false;
+            }
+            lane.running++;
+        } finally {
+            lock.unlock();
+        }
+
+        boolean acquired;
+        try {
+            // Com timeout (mesmo zero) o semaforo justo respeita quem ja aguarda na fila
+            acquired = slots.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            leave(lane, false);
+        }
+        return acquired;
+    }
+
+    /**
+     * Fim de uma leitura extra reservada em tryAdmitExtra()
+     */
+    void releaseExtra(Priority priority) {
+        slots.release();
+        leave(lanes[priority.ordinal()], false);
+    }
+
+    /**
+     * Fim de uma requisicao admitida
+     *
+     * @param timings Tempos da requisicao: execute + fetch entram na latencia da classe
+     */
+    void release(Priority priority, ConnectorMetrics.Timings timings) {
+        slots.release();
+        Lane lane = lanes[priority.ordinal()];
+        // Fingerprint e comparacao ficam para a thread de ajuste, fora da resposta
+        lane.finished.add(timings);
+        lock.lock();
+        try {
+            lane.completed++;
+        } finally {
+            lock.unlock();
+        }
+        leave(lane, false);
+    }
+
+    private void leave(Lane lane, boolean rejected) {
+        lock.lock();
+        try {
+            lane.running--;
+            if (rejected) {
+                lane.rejected++;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ajusta os limites pela latencia do broker no ultimo intervalo
+     */
+    private void adjust() {
+        Lane interactive = lanes[Priority.INTERACTIVE.ordinal()];
+        Lane batch = lanes[Priority.BATCH.ordinal()];
+        Interval interactiveInterval = closeInterval(interactive);
+        Interval batchInterval = closeInterval(batch);
+
+        lock.lock();
+        try {
+            interactive.last = interactiveInterval;
+            batch.last = batchInterval;
+            if (interactiveInterval.slowdown > config.latencyTolerance) {
+                // Broker mais lento que o normal para as interativas: menos carga batch primeiro
+                batch.limit = Math.max(batch.minLimit, batch.limit / 2);
+                // Enquanto houver batch ocupando vagas, o atraso pode ser dela: o interactive so
+                // cai quando nao ha mais batch para cortar
+                if (batch.running == 0) {
+                    interactive.limit = Math.max(interactive.minLimit,
+                            (int) (interactive.limit * config.latencyTolerance / interactiveInterval.slowdown));
+                }
+            } else {
+                interactive.limit = Math.min(interactive.maxLimit, interactive.limit + 1);
+                if (batchInterval.slowdown > config.latencyTolerance) {
+                    batch.limit = Math.max(batch.minLimit, batch.limit / 2);
+                } else {
+                    batch.limit = Math.min(batch.maxLimit, batch.limit + 1);
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Interval closeInterval(Lane lane) {
+        Comparison comparison = new Comparison();
+        ConnectorMetrics.Timings timings;
+        while ((timings = lane.finished.poll()) != null) {
+            timings.succeededQueries(comparison);
+        }
+        return comparison.interval();
+    }
+
+    /**
+     * Compara cada consulta terminada no intervalo com a referencia do fingerprint dela e
+     * so depois a inclui na referencia
+     */
+    private final class Comparison implements ObjLongConsumer<String> {
+        double[] ratios = new double[16];
+        int compared;
+        long totalNanos;
+        int queries;
+
+        @Override
+        public void accept(String sql, long nanos) {
+            totalNanos += nanos;
+            queries++;
+            QueryBaseline baseline = baselines.computeIfAbsent(ConnectorMetrics.fingerprint(sql),
+                    fingerprint -> new QueryBaseline(config.baselineSamples));
+            long reference = baseline.reference(config.minBaselineSamples);
+            if (reference > 0) {
+                if (compared == ratios.length) {
+                    ratios = Arrays.copyOf(ratios, compared * 2);
+                }
+                ratios[compared++] = (double) nanos / reference;
+            }
+            baseline.add(nanos);
+        }
+
+        Interval interval() {
+            double slowdown = 0;
+            if (compared > 0) {
+                Arrays.sort(ratios, 0, compared);
+                slowdown = compared % 2 == 1
+                        ? ratios[compared / 2]
+                        : (ratios[compared / 2 - 1] + ratios[compared / 2]) / 2;
+            }
+            return new Interval(queries == 0 ? 0 : totalNanos / queries, slowdown, compared);
+        }
+    }
+
+    JsonObject stats() {
+        lock.lock();
+        try {
+            JsonObject stats = new JsonObject();
+            for (Lane lane : lanes) {
+                JsonObject json = new JsonObject();
+                json.addProperty("limit", lane.limit);
+                json.addProperty("max_limit", lane.maxLimit);
+                json.addProperty("running", lane.running);
+                json.addProperty("waiting", lane.waiting);
+                json.addProperty("completed", lane.completed);
+                json.addProperty("rejected", lane.rejected);
+                json.addProperty("latency_ms", lane.last.averageNanos / 1_000_000.0);
+                json.addProperty("slowdown", lane.last.slowdown);
+                json.addProperty("compared", lane.last.compared);
+                stats.add(lane.priority.id, json);
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estado de uma classe; protegido pelo lock do AdmissionControl
+     */
+    private static final class Lane {
+        final Priority priority;
+        final int maxLimit;
+        final int minLimit;
+        final int maxQueue;
+        final long maxWaitMillis;
+        int limit;
+        int running;
+        int waiting;
+        long completed;
+        long rejected;
+        // Requisicoes terminadas desde o ultimo ajuste
+        final Queue<ConnectorMetrics.Timings> finished = new ConcurrentLinkedQueue<>();
+        Interval last = Interval.EMPTY;
+
+        Lane(Priority priority, Config config) {
+            this.priority = priority;
+            int i = priority.ordinal();
+            this.maxLimit = config.maxLimit[i];
+            this.minLimit = config.minLimit[i];
+            this.maxQueue = config.maxQueue[i];
+            this.maxWaitMillis = config.maxWaitMillis[i];
+            this.limit = maxLimit;
+        }
+    }
+
+    /**
+     * Latencia de uma classe em um intervalo de ajuste
+     */
+    private static final class Interval {
+        static final Interval EMPTY = new Interval(0, 0, 0);
+
+        // Media de execute + fetch das consultas do intervalo
+        final long averageNanos;
+        // Mediana de (tempo da consulta / referencia do fingerprint); 0 sem consultas comparaveis
+        final double slowdown;
+        // Consultas comparadas (fingerprints que ja tinham o minimo de amostras)
+        final int compared;
+
+        Interval(long averageNanos, double slowdown, int compared) {
+            this.averageNanos = averageNanos;
+            this.slowdown = slowdown;
+            this.compared = compared;
+        }
+    }
+
+    /**
+     * Ultimas execucoes de uma consulta normalizada. A referencia e o percentil 25: uma
+     * execucao rapida fora do comum (dados em cache no broker) nao vira o normal, e uma
+     * lentidao do broker so entra na referencia depois de dominar a janela.
+     */
+    private static final class QueryBaseline {
+        final long[] samples;
+        int count;
+        int next;
+
+        QueryBaseline(int size) {
+            this.samples = new long[size];
+        }
+
+        void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * @return Percentil 25 das amostras; 0 com menos de minSamples
+         */
+        long reference(int minSamples) {
+            if (count < minSamples) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[(count - 1) / 4];
+        }
+    }
+}
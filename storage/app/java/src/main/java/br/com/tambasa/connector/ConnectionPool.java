@@ -0,0 +1,375 @@
+package br.com.tambasa.connector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.JsonObject;
+
+/**
+ * Pool de conexoes OpenEdge para o conector residente.
+ *
+ * Evita um login no broker Progress por requisicao: as conexoes sao validadas
+ * ao serem emprestadas, descartadas apos ficarem ociosas ou atingirem o tempo
+ * maximo de vida, e o emprestimo falha com SQLException quando o pool fica
+ * esgotado alem do tempo de espera configurado.
+ *
+ * Cada conexao mantem um cache LRU de PreparedStatements (prepare/releaseStatement),
+ * entao consultas parametrizadas frequentes nao sao reprocessadas pelo broker.
+ */
+public class ConnectionPool implements ConnectionSource, AutoCloseable {
+
+    /**
+     * Configuracao do pool, lida de propriedades de sistema (-Dconnector.pool.*)
+     */
+    public static final class Config {
+        int minSize = 2;
+        int maxSize = 10;
+        long borrowTimeoutMs = 5_000;
+        long idleTimeoutMs = 300_000;
+        long maxLifetimeMs = 1_800_000;
+        long validationIntervalMs = 500;
+        int validationTimeoutSeconds = 3;
+        long maintenanceIntervalMs = 30_000;
+        int statementCacheSize = 64;
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.minSize = Integer.getInteger("connector.pool.min", config.minSize);
+            config.maxSize = Integer.getInteger("connector.pool.max", config.maxSize);
+            config.borrowTimeoutMs = Long.getLong("connector.pool.borrowTimeoutMs", config.borrowTimeoutMs);
+            config.idleTimeoutMs = Long.getLong("connector.pool.idleTimeoutMs", config.idleTimeoutMs);
+            config.maxLifetimeMs = Long.getLong("connector.pool.maxLifetimeMs", config.maxLifetimeMs);
+            config.validationIntervalMs = Long.getLong("connector.pool.validationIntervalMs", config.validationIntervalMs);
+            config.validationTimeoutSeconds = Integer.getInteger("connector.pool.validationTimeoutSeconds", config.validationTimeoutSeconds);
+            config.maintenanceIntervalMs = Long.getLong("connector.pool.maintenanceIntervalMs", config.maintenanceIntervalMs);
+            config.statementCacheSize = Integer.getInteger("connector.pool.statementCacheSize", config.statementCacheSize);
+
+            if (config.maxSize < 1) {
+                config.maxSize = 1;
+            }
+            config.minSize = Math.max(0, Math.min(config.minSize, config.maxSize));
+            return config;
+        }
+    }
+
+    private static final class PooledConnection {
+        final Connection connection;
+        final long createdAt;
+        volatile long lastReturnedAt;
+        // Cache LRU de PreparedStatements por SQL. So e acessado por quem tem a conexao emprestada.
+        final Map<String, PreparedStatement> statements;
+
+        PooledConnection(Connection connection, int statementCacheSize) {
+            this.connection = connection;
+            this.createdAt = System.currentTimeMillis();
+            this.lastReturnedAt = createdAt;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+    }
+
+    private final DirectConnectionSource factory;
+    private final Config config;
+    // Uma permissao por conexao que pode estar emprestada ao mesmo tempo
+    private final Semaphore permits;
+    // LIFO: a conexao devolvida mais recentemente e a primeira a ser reutilizada
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final ConcurrentHashMap<Connection, PooledConnection> borrowed = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    public ConnectionPool(DirectConnectionSource factory, Config config) {
+        this.factory = factory;
+        this.config = config;
+        this.permits = new Semaphore(config.maxSize, true);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connector-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintenance.scheduleWithFixedDelay(this::maintain,
+                config.maintenanceIntervalMs, config.maintenanceIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int getMaxSize() {
+        return config.maxSize;
+    }
+
+    /**
+     * Abre as conexoes minimas antecipadamente para que a primeira requisicao ja encontre o pool aquecido
+     */
+    public void warmUp() {
+        fillToMinimum();
+    }
+
+    @Override
+    public Connection acquire() throws SQLException, ClassNotFoundException {
+        if (closed) {
+            throw new SQLException("Pool de conexoes encerrado");
+        }
+
+        try {
+            if (!permits.tryAcquire(config.borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.incrementAndGet();
+                throw new SQLException("Pool de conexoes esgotado: nenhuma conexao livre em "
+                        + config.borrowTimeoutMs + " ms (maximo " + config.maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Espera por conexao interrompida");
+        }
+
+        boolean acquired = false;
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    break;
+                }
+                destroy(pooled);
+            }
+
+            if (pooled == null) {
+                pooled = create();
+            }
+
+            borrowed.put(pooled.connection, pooled);
+            acquired = true;
+            return pooled.connection;
+        } finally {
+            if (!acquired) {
+                permits.release();
+            }
+        }
+    }
+
+    @Override
+    public void release(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) {
+            // Conexao que nao pertence ao pool
+            factory.release(connection);
+            return;
+        }
+
+        try {
+            if (closed || connection.isClosed() || isExpired(pooled, System.currentTimeMillis())) {
+                destroy(pooled);
+                return;
+            }
+
+            // Devolver a conexao no estado padrao para o proximo emprestimo
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            connection.clearWarnings();
+
+            pooled.lastReturnedAt = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            System.err.println("Descartando conexao com erro ao devolver ao pool: " + e.getMessage());
+            destroy(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PooledConnection pooled = borrowed.get(connection);
+        if (pooled == null || config.statementCacheSize <= 0) {
+            return factory.prepare(connection, sql);
+        }
+
+        PreparedStatement statement = pooled.statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            statementCacheHits.incrementAndGet();
+            return statement;
+        }
+
+        // Primeiro uso deste SQL na conexao: o broker faz o parse e o plano uma unica vez
+        statementCacheMisses.incrementAndGet();
+        statement = connection.prepareStatement(sql);
+        pooled.statements.put(sql, statement);
+        return statement;
+    }
+
+    @Override
+    public void releaseStatement(Connection connection, PreparedStatement statement) {
+        if (statement == null) {
+            return;
+        }
+
+        PooledConnection pooled = borrowed.get(connection);
+        if (pooled == null || !pooled.statements.containsValue(statement)) {
+            factory.releaseStatement(connection, statement);
+            return;
+        }
+
+        try {
+            if (statement.isClosed()) {
+                // Fechado por cancelamento ou erro: sai do cache e sera preparado de novo
+                pooled.statements.values().remove(statement);
+            } else {
+                statement.clearParameters();
+            }
+        } catch (SQLException e) {
+            pooled.statements.values().remove(statement);
+            closeStatement(statement);
+        }
+    }
+
+    /**
+     * Estatisticas do pool para diagnostico
+     */
+    public JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("total", total.get());
+        stats.addProperty("idle", idle.size());
+        stats.addProperty("in_use", borrowed.size());
+        stats.addProperty("waiting", permits.getQueueLength());
+        stats.addProperty("min", config.minSize);
+        stats.addProperty("max", config.maxSize);
+        stats.addProperty("created", created.get());
+        stats.addProperty("destroyed", destroyed.get());
+        stats.addProperty("validation_failures", validationFailures.get());
+        stats.addProperty("borrow_timeouts", borrowTimeouts.get());
+        stats.addProperty("statement_cache_hits", statementCacheHits.get());
+        stats.addProperty("statement_cache_misses", statementCacheMisses.get());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+        // Conexoes emprestadas sao fechadas quando forem devolvidas
+    }
+
+    private PooledConnection create() throws SQLException, ClassNotFoundException {
+        PooledConnection pooled = new PooledConnection(factory.acquire(), config.statementCacheSize);
+        total.incrementAndGet();
+        created.incrementAndGet();
+        return pooled;
+    }
+
+    private void destroy(PooledConnection pooled) {
+        factory.release(pooled.connection);
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            System.err.println("Erro ao fechar statement do cache: " + e.getMessage());
+        }
+    }
+
+    private boolean isExpired(PooledConnection pooled, long now) {
+        return config.maxLifetimeMs > 0 && now - pooled.createdAt >= config.maxLifetimeMs;
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        long now = System.currentTimeMillis();
+        if (isExpired(pooled, now)) {
+            return false;
+        }
+
+        // Conexoes devolvidas ha pouco tempo nao precisam de ida ao broker para validar
+        if (now - pooled.lastReturnedAt < config.validationIntervalMs) {
+            return true;
+        }
+
+        try {
+            if (pooled.connection.isValid(config.validationTimeoutSeconds)) {
+                return true;
+            }
+        } catch (SQLException e) {
+            // Tratada como conexao invalida
+        }
+        validationFailures.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Remove conexoes ociosas demais ou antigas e repoe o minimo configurado
+     */
+    private void maintain() {
+        try {
+            long now = System.currentTimeMillis();
+            List<PooledConnection> candidates = new ArrayList<>(idle);
+
+            for (PooledConnection pooled : candidates) {
+                boolean idleTooLong = config.idleTimeoutMs > 0
+                        && now - pooled.lastReturnedAt >= config.idleTimeoutMs
+                        && total.get() > config.minSize;
+
+                if ((isExpired(pooled, now) || idleTooLong) && idle.remove(pooled)) {
+                    destroy(pooled);
+                }
+            }
+
+            fillToMinimum();
+        } catch (RuntimeException e) {
+            System.err.println("Erro na manutencao do pool de conexoes: " + e.getMessage());
+        }
+    }
+
+    private void fillToMinimum() {
+        while (!closed && total.get() < config.minSize) {
+            // A permissao garante que a reposicao nunca ultrapasse o maximo do pool
+            if (!permits.tryAcquire()) {
+                return;
+            }
+            try {
+                PooledConnection pooled = create();
+                idle.offerLast(pooled);
+            } catch (SQLException | ClassNotFoundException e) {
+                System.err.println("Nao foi possivel abrir conexao para o pool: " + e.getMessage());
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+}
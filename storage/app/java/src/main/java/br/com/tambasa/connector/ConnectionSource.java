@@ -0,0 +1,36 @@
+package br.com.tambasa.connector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Origem das conexoes usadas pelo ProgressJDBCConnector.
+ *
+ * No modo CLI cada chamada abre e fecha sua propria conexao (DirectConnectionSource);
+ * no modo residente as conexoes sao emprestadas de um pool (ConnectionPool).
+ */
+public interface ConnectionSource {
+
+    /**
+     * Obtem uma conexao pronta para uso
+     */
+    Connection acquire() throws SQLException, ClassNotFoundException;
+
+    /**
+     * Devolve a conexao obtida em acquire(). Aceita null para simplificar blocos finally.
+     */
+    void release(Connection connection);
+
+    /**
+     * Prepara o SQL na conexao obtida em acquire(). O pool reaproveita o
+     * PreparedStatement entre requisicoes; por isso ele deve ser devolvido com
+     * releaseStatement() em vez de fechado diretamente.
+     */
+    PreparedStatement prepare(Connection connection, String sql) throws SQLException;
+
+    /**
+     * Devolve o PreparedStatement obtido em prepare(). Aceita null.
+     */
+    void releaseStatement(Connection connection, PreparedStatement statement);
+}
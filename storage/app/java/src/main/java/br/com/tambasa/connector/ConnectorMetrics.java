@@ -0,0 +1,531 @@
+package br.com.tambasa.connector;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Metricas do conector residente: latencia por acao (total e por fase), latencia por
+ * consulta normalizada (fingerprint), linhas, bytes de resposta, erros, acertos de cache e
+ * requisicoes juntadas a uma execucao identica em andamento.
+ *
+ * Fases de uma requisicao:
+ *   queue     espera por uma vaga de execucao no servidor
+ *   acquire   obter a conexao (pool; login no broker quando o pool cria uma conexao)
+ *   execute   executeQuery/executeUpdate/executeBatch ate a primeira resposta do broker
+ *   fetch     rs.next(): buscas seguintes no broker
+ *   serialize escrita do JSON, incluindo a espera pelo socket do cliente
+ *
+ * Cada requisicao acumula seus tempos em um Timings (RequestContext) e so no fim eles
+ * entram nos histogramas, fora do caminho da resposta. Os histogramas usam baldes fixos
+ * com LongAdder; p50/p95/p99 sao interpolados dentro do balde.
+ *
+ * Exposto pela acao metrics (JSON) e em formato texto do Prometheus (-Dconnector.metrics.port).
+ */
+final class ConnectorMetrics {
+
+    enum Phase {
+        QUEUE, ACQUIRE, EXECUTE, FETCH, SERIALIZE;
+
+        final String id = name().toLowerCase(Locale.ROOT);
+    }
+
+    // Limites superiores dos baldes, em segundos (o ultimo balde e +Inf)
+    private static final double[] BOUNDS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1_000_000_000L);
+        }
+    }
+
+    // Consultas alem do limite de fingerprints distintos caem nesta entrada
+    static final String OTHER_QUERIES = "other";
+    private static final int MAX_SQL_LABEL = 200;
+
+    private final int maxQueries;
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, ActionStats> actions = new ConcurrentHashMap<>();
+    private final Map<String, QueryStats> queries = new ConcurrentHashMap<>();
+
+    ConnectorMetrics(int maxQueries) {
+        this.maxQueries = maxQueries;
+    }
+
+    /**
+     * -Dconnector.metrics.maxQueries: fingerprints distintos acompanhados (padrao 500)
+     */
+    static ConnectorMetrics fromSystemProperties() {
+        return new ConnectorMetrics(Integer.getInteger("connector.metrics.maxQueries", 500));
+    }
+
+    /**
+     * Tempos, linhas e consultas de uma requisicao. Seguro para as consultas paralelas da acao multi.
+     */
+    static final class Timings {
+        private final AtomicLongArray phases = new AtomicLongArray(Phase.values().length);
+        private final LongAdder rows = new LongAdder();
+        private final Queue<QueryTiming> queries = new ConcurrentLinkedQueue<>();
+        private volatile long bytes;
+        private volatile boolean failed;
+
+        void add(Phase phase, long nanos) {
+            phases.addAndGet(phase.ordinal(), nanos);
+        }
+
+        /**
+         * Uma consulta concluida: nanos e o tempo de execute + fetch da consulta
+         */
+        void query(String sql, long nanos, long rowCount, boolean succeeded) {
+            rows.add(rowCount);
+            queries.add(new QueryTiming(sql, nanos, rowCount, succeeded));
+        }
+
+        void response(long bytes, boolean succeeded) {
+            this.bytes = bytes;
+            this.failed = !succeeded;
+        }
+
+        long nanos(Phase phase) {
+            return phases.get(phase.ordinal());
+        }
+
+        /**
+         * SQL e tempo (execute + fetch) de cada consulta bem sucedida da requisicao
+         */
+        void succeededQueries(ObjLongConsumer<String> consumer) {
+            for (QueryTiming query : queries) {
+                if (query.succeeded) {
+                    consumer.accept(query.sql, query.nanos);
+                }
+            }
+        }
+    }
+
+    private static final class QueryTiming {
+        final String sql;
+        final long nanos;
+        final long rows;
+        final boolean succeeded;
+
+        QueryTiming(String sql, long nanos, long rows, boolean succeeded) {
+            this.sql = sql;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.succeeded = succeeded;
+        }
+    }
+
+    /**
+     * Registra uma requisicao executada
+     *
+     * @param totalNanos Do recebimento da requisicao ate o fim da resposta
+     */
+    void record(String action, Timings timings, long totalNanos) {
+        ActionStats stats = action(action);
+        stats.requests.increment();
+        stats.total.record(totalNanos);
+        for (Phase phase : Phase.values()) {
+            long nanos = timings.phases.get(phase.ordinal());
+            if (nanos > 0 || phase == Phase.QUEUE) {
+                stats.phases[phase.ordinal()].record(nanos);
+            }
+        }
+        stats.rows.add(timings.rows.sum());
+        stats.bytes.add(timings.bytes);
+        if (timings.failed) {
+            stats.errors.increment();
+        }
+
+        QueryTiming query;
+        while ((query = timings.queries.poll()) != null) {
+            QueryStats queryStats = query(query.sql);
+            queryStats.latency.record(query.nanos);
+            queryStats.rows.add(query.rows);
+            if (!query.succeeded) {
+                queryStats.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Registra uma requisicao respondida pelo ResultCache
+     */
+    void recordCacheHit(String action, long totalNanos, long bytes) {
+        ActionStats stats = action(action);
+        stats.requests.increment();
+        stats.cacheHits.increment();
+        stats.total.record(totalNanos);
+        stats.bytes.add(bytes);
+    }
+
+    /**
+     * Registra uma requisicao respondida com a resposta de outra identica em andamento
+     * (RequestCoalescer): uma execucao a menos no broker
+     */
+    void recordCoalesced(String action, long totalNanos, long bytes) {
+        ActionStats stats = action(action);
+        stats.requests.increment();
+        stats.coalesced.increment();
+        stats.total.record(totalNanos);
+        stats.bytes.add(bytes);
+    }
+
+    /**
+     * Registra uma requisicao recusada por sobrecarga (AdmissionControl), sem execucao
+     */
+    void recordOverloaded(String action, Timings timings, long totalNanos) {
+        action(action).overloaded.increment();
+        record(action, timings, totalNanos);
+    }
+
+    private ActionStats action(String action) {
+        ActionStats stats = actions.get(action);
+        return stats != null ? stats : actions.computeIfAbsent(action, name -> new ActionStats());
+    }
+
+    private QueryStats query(String sql) {
+        String fingerprint = fingerprint(sql);
+        QueryStats stats = queries.get(fingerprint);
+        if (stats != null) {
+            return stats;
+        }
+        if (queries.size() >= maxQueries) {
+            fingerprint = OTHER_QUERIES;
+        }
+        return queries.computeIfAbsent(fingerprint, QueryStats::new);
+    }
+
+    /**
+     * SQL normalizado: literais '...' e numeros viram ?, espacos sao colapsados e o texto
+     * fica em maiusculas. Consultas que so mudam nos valores tem o mesmo fingerprint.
+     */
+    static String fingerprint(String sql) {
+        StringBuilder normalized = new StringBuilder(Math.min(sql.length(), 1024));
+        int i = 0;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // Literal ate o apostrofo de fechamento ('' e um apostrofo escapado)
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                normalized.append('?');
+                i++;
+            } else if (Character.isDigit(c) && !endsWithIdentifier(normalized)) {
+                while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                normalized.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+            } else {
+                normalized.append(Character.toUpperCase(c));
+                i++;
+            }
+        }
+        return normalized.toString().trim();
+    }
+
+    private static boolean endsWithIdentifier(StringBuilder sql) {
+        if (sql.length() == 0) {
+            return false;
+        }
+        char last = sql.charAt(sql.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '"';
+    }
+
+    /**
+     * Metricas em JSON para a acao metrics
+     */
+    JsonObject snapshot() {
+        JsonObject snapshot = new JsonObject();
+        snapshot.addProperty("started_at", startedAt);
+        snapshot.addProperty("uptime_seconds", (System.currentTimeMillis() - startedAt) / 1000);
+
+        JsonObject actionsJson = new JsonObject();
+        for (Map.Entry<String, ActionStats> entry : new TreeMap<>(actions).entrySet()) {
+            ActionStats stats = entry.getValue();
+            JsonObject action = new JsonObject();
+            action.addProperty("requests", stats.requests.sum());
+            action.addProperty("errors", stats.errors.sum());
+            action.addProperty("cache_hits", stats.cacheHits.sum());
+            action.addProperty("coalesced", stats.coalesced.sum());
+            action.addProperty("overloaded", stats.overloaded.sum());
+            action.addProperty("rows", stats.rows.sum());
+            action.addProperty("bytes", stats.bytes.sum());
+            action.add("latency_ms", stats.total.summary());
+            JsonObject phases = new JsonObject();
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = stats.phases[phase.ordinal()];
+                if (histogram.count() > 0) {
+                    phases.add(phase.id, histogram.summary());
+                }
+            }
+            action.add("phases_ms", phases);
+            actionsJson.add(entry.getKey(), action);
+        }
+        snapshot.add("actions", actionsJson);
+
+        JsonObject queriesJson = new JsonObject();
+        for (QueryStats stats : queries.values()) {
+            JsonObject query = new JsonObject();
+            query.addProperty("sql", stats.sql);
+            query.addProperty("executions", stats.latency.count());
+            query.addProperty("errors", stats.errors.sum());
+            query.addProperty("rows", stats.rows.sum());
+            query.add("latency_ms", stats.latency.summary());
+            queriesJson.add(stats.id, query);
+        }
+        snapshot.add("queries", queriesJson);
+        return snapshot;
+    }
+
+    /**
+     * Metricas no formato texto do Prometheus, com as estatisticas do pool e do cache como gauges
+     */
+    String prometheus(JsonObject poolStats, JsonObject cacheStats) {
+        StringBuilder text = new StringBuilder(16 * 1024);
+        Map<String, ActionStats> sorted = new TreeMap<>(actions);
+
+        text.append("# HELP connector_uptime_seconds Tempo desde o inicio do conector residente\n");
+        text.append("# TYPE connector_uptime_seconds gauge\n");
+        text.append("connector_uptime_seconds ").append((System.currentTimeMillis() - startedAt) / 1000).append('\n');
+
+        counter(text, sorted, "connector_requests_total", "Requisicoes por acao", stats -> stats.requests.sum());
+        counter(text, sorted, "connector_request_errors_total", "Requisicoes com success=false", stats -> stats.errors.sum());
+        counter(text, sorted, "connector_cache_hits_total", "Requisicoes respondidas pelo cache", stats -> stats.cacheHits.sum());
+        counter(text, sorted, "connector_coalesced_total",
+                "Requisicoes respondidas por uma execucao identica em andamento (execucoes evitadas)", stats -> stats.coalesced.sum());
+        counter(text, sorted, "connector_overloaded_total",
+                "Requisicoes recusadas por espera acima do limite da classe de prioridade", stats -> stats.overloaded.sum());
+        counter(text, sorted, "connector_rows_total", "Linhas lidas do broker", stats -> stats.rows.sum());
+        counter(text, sorted, "connector_response_bytes_total", "Bytes de resposta enviados", stats -> stats.bytes.sum());
+
+        text.append("# HELP connector_request_duration_seconds Latencia total da requisicao\n");
+        text.append("# TYPE connector_request_duration_seconds histogram\n");
+        for (Map.Entry<String, ActionStats> entry : sorted.entrySet()) {
+            entry.getValue().total.prometheus(text, "connector_request_duration_seconds",
+                    "action=\"" + escape(entry.getKey()) + "\"");
+        }
+
+        text.append("# HELP connector_phase_duration_seconds Tempo da requisicao em cada fase\n");
+        text.append("# TYPE connector_phase_duration_seconds histogram\n");
+        for (Map.Entry<String, ActionStats> entry : sorted.entrySet()) {
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = entry.getValue().phases[phase.ordinal()];
+                if (histogram.count() > 0) {
+                    histogram.prometheus(text, "connector_phase_duration_seconds",
+                            "action=\"" + escape(entry.getKey()) + "\",phase=\"" + phase.id + "\"");
+                }
+            }
+        }
+
+        text.append("# HELP connector_query_duration_seconds Execucao + leitura por consulta normalizada\n");
+        text.append("# TYPE connector_query_duration_seconds histogram\n");
+        for (QueryStats stats : queries.values()) {
+            stats.latency.prometheus(text, "connector_query_duration_seconds", "fingerprint=\"" + stats.id + "\"");
+        }
+        text.append("# HELP connector_query_rows_total Linhas por consulta normalizada\n");
+        text.append("# TYPE connector_query_rows_total counter\n");
+        for (QueryStats stats : queries.values()) {
+            text.append("connector_query_rows_total{fingerprint=\"").append(stats.id).append("\"} ")
+                .append(stats.rows.sum()).append('\n');
+        }
+        text.append("# HELP connector_query_errors_total Falhas por consulta normalizada\n");
+        text.append("# TYPE connector_query_errors_total counter\n");
+        for (QueryStats stats : queries.values()) {
+            text.append("connector_query_errors_total{fingerprint=\"").append(stats.id).append("\"} ")
+                .append(stats.errors.sum()).append('\n');
+        }
+        text.append("# HELP connector_query_info SQL normalizado de cada fingerprint\n");
+        text.append("# TYPE connector_query_info gauge\n");
+        for (QueryStats stats : queries.values()) {
+            String sql = stats.sql.length() > MAX_SQL_LABEL ? stats.sql.substring(0, MAX_SQL_LABEL) + "..." : stats.sql;
+            text.append("connector_query_info{fingerprint=\"").append(stats.id).append("\",sql=\"")
+                .append(escape(sql)).append("\"} 1\n");
+        }
+
+        gauges(text, "connector_pool_", poolStats);
+        gauges(text, "connector_cache_", cacheStats);
+        return text.toString();
+    }
+
+    private interface Counter {
+        long value(ActionStats stats);
+    }
+
+    private static void counter(StringBuilder text, Map<String, ActionStats> actions, String name, String help, Counter counter) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, ActionStats> entry : actions.entrySet()) {
+            text.append(name).append("{action=\"").append(escape(entry.getKey())).append("\"} ")
+                .append(counter.value(entry.getValue())).append('\n');
+        }
+    }
+
+    private static void gauges(StringBuilder text, String prefix, JsonObject stats) {
+        for (Map.Entry<String, JsonElement> entry : stats.entrySet()) {
+            if (!entry.getValue().isJsonPrimitive() || !entry.getValue().getAsJsonPrimitive().isNumber()) {
+                continue;
+            }
+            String name = prefix + entry.getKey();
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            text.append(name).append(' ').append(entry.getValue().getAsNumber()).append('\n');
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class ActionStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder cacheHits = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder overloaded = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Histogram total = new Histogram();
+        final Histogram[] phases = new Histogram[Phase.values().length];
+
+        ActionStats() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+    }
+
+    private static final class QueryStats {
+        final String sql;
+        final String id;
+        final Histogram latency = new Histogram();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        QueryStats(String sql) {
+            this.sql = sql;
+            this.id = String.format("%08x", sql.hashCode());
+        }
+    }
+
+    /**
+     * Histograma de duracoes com baldes fixos (BOUNDS) e contadores sem lock
+     */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Percentil aproximado em segundos: interpolacao linear dentro do balde, com o
+         * maior valor registrado como teto (inclusive no balde +Inf)
+         */
+        double percentile(long[] counts, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            double max = maxNanos.get() / 1e9;
+            double rank = quantile * total;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0 && seen + counts[i] >= rank) {
+                    double lower = i == 0 ? 0 : BOUNDS[i - 1];
+                    double upper = i == BOUNDS.length ? max : Math.min(BOUNDS[i], max);
+                    return lower + (Math.max(upper, lower) - lower) * ((rank - seen) / counts[i]);
+                }
+                seen += counts[i];
+            }
+            return max;
+        }
+
+        /**
+         * count, media, p50/p95/p99 e maximo em milissegundos
+         */
+        JsonObject summary() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+
+            JsonObject summary = new JsonObject();
+            summary.addProperty("count", total);
+            summary.addProperty("avg", total == 0 ? 0 : round(sumNanos.sum() / 1e6 / total));
+            summary.addProperty("p50", round(percentile(counts, total, 0.50) * 1000));
+            summary.addProperty("p95", round(percentile(counts, total, 0.95) * 1000));
+            summary.addProperty("p99", round(percentile(counts, total, 0.99) * 1000));
+            summary.addProperty("max", round(maxNanos.get() / 1e6));
+            return summary;
+        }
+
+        void prometheus(StringBuilder text, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                text.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(i < BOUNDS.length ? BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString() : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 1000) / 1000.0;
+        }
+    }
+}
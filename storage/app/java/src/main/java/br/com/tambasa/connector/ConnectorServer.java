@@ -0,0 +1,691 @@
+package br.com.tambasa.connector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Modo residente do ProgressJDBCConnector.
+ *
+ * Escuta apenas em localhost e recebe uma requisicao JSON por linha:
+ *   {"action":"query","params":["SELECT ..."]}
+ * Cada requisicao recebe como resposta uma unica linha com o mesmo JSON
+ * que o modo CLI imprime no stdout. A conexao do cliente pode ser reaproveitada
+ * para varias requisicoes em sequencia.
+ *
+ * As conexoes com o Progress vem de um ConnectionPool compartilhado
+ * (configurado por -Dconnector.pool.*), entao nenhuma requisicao paga o login no broker.
+ *
+ * Cada requisicao roda em sua propria virtual thread, com no maximo uma
+ * requisicao em execucao por conexao do pool. Campos opcionais da requisicao:
+ *   "id"      devolvido na resposta, para varias requisicoes em paralelo na mesma conexao
+ *   "timeout" segundos aplicados via Statement.setQueryTimeout
+ *   "format"  formato das linhas de resultado: objects (padrao) ou columns (ver ResultFormat)
+ *   "max_rows"   maximo de linhas por consulta, aplicado no driver (Statement.setMaxRows)
+ *   "fetch_size" linhas por ida ao broker (padrao adaptativo pela largura da linha)
+ * Se o cliente desconectar, as consultas dele ainda em execucao sao canceladas.
+ * A acao multi usa as vagas livres no momento para rodar suas consultas em paralelo.
+ *
+ * Respostas de acoes de leitura podem ficar em um ResultCache (campo "cache" com o TTL
+ * em segundos, ou -Dconnector.cache.ttl.*); um acerto no cache responde sem ocupar vaga
+ * nem conexao do pool.
+ *
+ * A acao lookup responde buscas por chave em tabelas pequenas (transporte, paccd) pela
+ * copia em memoria mantida por um TableMirror, sincronizada em segundo plano.
+ *
+ * Leituras identicas que chegam enquanto a mesma ja executa esperam por ela e recebem a
+ * mesma resposta, sem nova consulta no broker (ver RequestCoalescer).
+ *
+ * Cada requisicao tem uma classe de prioridade (campo "priority": "interactive" ou
+ * "batch"; sem ele export, scan e schema-snapshot sao batch), com limite e fila proprios
+ * ajustados pela latencia do broker (ver AdmissionControl). Quem espera demais recebe
+ * success=false com "overloaded": true e "retry_after_ms".
+ *
+ * Consultas longas podem rodar em segundo plano como jobs (job-submit, job-status,
+ * job-fetch, job-cancel; ver QueryJobs), sem prender o cliente durante a execucao.
+ *
+ * Cada requisicao tem seus tempos por fase, linhas e bytes registrados em um
+ * ConnectorMetrics, consultado pela acao metrics ou, com -Dconnector.metrics.port,
+ * em GET /metrics no formato texto do Prometheus.
+ */
+public class ConnectorServer {
+
+    public static final int DEFAULT_PORT = 17600;
+
+    // Sugestao de espera enviada ao cliente em uma recusa por sobrecarga
+    private static final long OVERLOADED_RETRY_AFTER_MS = 1000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final ConnectionPool pool;
+    private final ProgressJDBCConnector connector;
+    private final ExecutorService requests;
+    // Limita as requisicoes em execucao ao tamanho do pool; as demais aguardam na fila
+    private final Semaphore slots;
+    private final int defaultQueryTimeoutSeconds;
+    private final ResultFormat defaultResultFormat;
+    private final int defaultMaxRows;
+    private final int defaultFetchSize;
+    private final ResultCache cache;
+    private final ConnectorMetrics metrics;
+    private final QueryJobs jobs;
+    private final TableMirror mirror;
+    private final RequestCoalescer coalescer;
+    private final AdmissionControl admission;
+
+    public ConnectorServer(String jdbcUrl, String username, String password, int port) {
+        this.port = port;
+        this.pool = new ConnectionPool(new DirectConnectionSource(jdbcUrl, username, password),
+                ConnectionPool.Config.fromSystemProperties());
+        // O conector nao guarda estado por requisicao, entao uma instancia atende todos os clientes
+        this.connector = new ProgressJDBCConnector(jdbcUrl, pool);
+        this.requests = newRequestExecutor();
+        this.slots = new Semaphore(pool.getMaxSize(), true);
+        RequestContext defaults = RequestContext.defaults();
+        this.defaultQueryTimeoutSeconds = defaults.getQueryTimeoutSeconds();
+        this.defaultResultFormat = defaults.getResultFormat();
+        this.defaultMaxRows = defaults.getMaxRows();
+        this.defaultFetchSize = defaults.getFetchSize();
+        this.cache = new ResultCache(ResultCache.Config.fromSystemProperties());
+        this.metrics = ConnectorMetrics.fromSystemProperties();
+        this.admission = new AdmissionControl(slots, AdmissionControl.Config.fromSystemProperties(pool.getMaxSize()));
+        this.jobs = new QueryJobs(connector, requests, admission, metrics, QueryJobs.Config.fromSystemProperties(pool.getMaxSize()));
+        this.mirror = new TableMirror(connector, admission, metrics, TableMirror.Config.fromSystemProperties());
+        connector.useMirror(mirror);
+        this.coalescer = RequestCoalescer.fromSystemProperties();
+    }
+
+    /**
+     * Inicia o servidor e bloqueia atendendo clientes ate a JVM ser encerrada
+     */
+    public void start() throws IOException {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            jobs.close();
+            mirror.close();
+            admission.close();
+            pool.close();
+        }, "connector-pool-shutdown"));
+        pool.warmUp();
+        mirror.start();
+        startMetricsEndpoint();
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("ProgressJDBCConnector escutando em " + server.getLocalSocketAddress());
+
+            while (!server.isClosed()) {
+                Socket client = server.accept();
+                // Respostas curtas (ex: autocomplete) saem na hora, sem esperar o ACK do pacote anterior
+                client.setTcpNoDelay(true);
+                requests.execute(() -> serve(client));
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        Set<RequestContext> inFlight = ConcurrentHashMap.newKeySet();
+
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE)) {
+
+            // Respostas de requisicoes concorrentes do mesmo cliente nao podem se misturar na linha
+            Lock writeLock = new ReentrantLock();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                String requestLine = line;
+                requests.execute(() -> execute(requestLine, inFlight, out, writeLock));
+            }
+        } catch (IOException e) {
+            System.err.println("Conexao com cliente encerrada: " + e.getMessage());
+        } finally {
+            // Cliente desconectou: interromper no broker o que ainda estiver executando para ele
+            for (RequestContext context : inFlight) {
+                context.cancel();
+            }
+        }
+    }
+
+    /**
+     * Decodifica e executa uma linha de requisicao, escrevendo a resposta no cliente
+     */
+    private void execute(String requestLine, Set<RequestContext> inFlight, BufferedWriter out, Lock writeLock) {
+        long receivedAt = System.nanoTime();
+        JsonObject request;
+        try {
+            request = JsonParser.parseString(requestLine).getAsJsonObject();
+        } catch (RuntimeException e) {
+            respond(out, writeLock, null, json -> ProgressJDBCConnector.writeError(json, "Requisicao invalida: " + e.getMessage()));
+            return;
+        }
+
+        JsonElement id = request.get("id");
+        RequestContext context;
+        ResultFormat format;
+        String action;
+        String[] params;
+        int cacheTtl;
+        AdmissionControl.Priority priority;
+        try {
+            format = request.has("format") ? ResultFormat.parse(request.get("format").getAsString()) : defaultResultFormat;
+            context = new RequestContext(request.has("timeout")
+                    ? request.get("timeout").getAsInt()
+                    : defaultQueryTimeoutSeconds, requests, slots, format)
+                    .withRowLimits(request.has("max_rows") ? request.get("max_rows").getAsInt() : defaultMaxRows,
+                            request.has("fetch_size") ? request.get("fetch_size").getAsInt() : defaultFetchSize);
+            action = request.has("action") ? request.get("action").getAsString() : "";
+            params = toParams(request.getAsJsonArray("params"));
+            cacheTtl = cache.ttlSeconds(action, request.get("cache"));
+            priority = AdmissionControl.priorityOf(action, request.has("priority") ? request.get("priority").getAsString() : null);
+            context.withAdmission(admission, priority);
+        } catch (RuntimeException e) {
+            respond(out, writeLock, id, json -> ProgressJDBCConnector.writeError(json, "Requisicao invalida: " + e.getMessage()));
+            return;
+        }
+
+        if (action.equals("ping")) {
+            respond(out, writeLock, id, json -> {
+                json.name("success").value(true);
+                json.name("message").value("pong");
+                json.name("data").beginObject();
+                json.name("pool");
+                ProgressJDBCConnector.writeJson(pool.stats(), json);
+                json.name("cache");
+                ProgressJDBCConnector.writeJson(cache.stats(), json);
+                json.name("mirror");
+                ProgressJDBCConnector.writeJson(mirror.stats(), json);
+                json.name("coalescing");
+                ProgressJDBCConnector.writeJson(coalescer.stats(), json);
+                json.name("priority");
+                ProgressJDBCConnector.writeJson(admission.stats(), json);
+                json.endObject();
+            });
+            return;
+        }
+
+        if (action.equals("metrics")) {
+            respond(out, writeLock, id, json -> {
+                json.name("success").value(true);
+                JsonObject data = metrics.snapshot();
+                data.add("pool", pool.stats());
+                data.add("cache", cache.stats());
+                data.add("mirror", mirror.stats());
+                data.add("coalescing", coalescer.stats());
+                data.add("priority", admission.stats());
+                json.name("data");
+                ProgressJDBCConnector.writeJson(data, json);
+            });
+            return;
+        }
+
+        if (action.startsWith("job-")) {
+            // So registro e arquivo do job: nao ocupa vaga; a consulta do job espera a sua
+            ResultFormat jobFormat = jobs.responseFormat(action, params, format);
+            respond(out, writeLock, id, jobFormat, context.timings(), json -> {
+                try {
+                    jobs.dispatch(action, params, format, json);
+                } catch (RuntimeException e) {
+                    // job-fetch pode falhar no meio das linhas do arquivo do job
+                    json.writeFailure("Erro ao executar acao " + action + ": " + e.getMessage());
+                }
+            });
+            metrics.record(action, context.timings(), System.nanoTime() - receivedAt);
+            return;
+        }
+
+        if (action.equals("lookup") && lookupInMirror(params, context, out, writeLock, id)) {
+            // Respondida pela copia local: sem vaga nem conexao do pool
+            metrics.record(action, context.timings(), System.nanoTime() - receivedAt);
+            return;
+        }
+
+        // O mesmo resultado em outro formato ou com outro max_rows e outra entrada do cache
+        boolean coalesce = coalescer.applies(action);
+        String cacheKey = cacheTtl > 0
+                ? ResultCache.key(format.id + ":" + context.getMaxRows() + ":" + action, params)
+                : null;
+        // Para juntar, tambem a classe e o timeout: uma interactive nao espera um lider na fila
+        // batch, e um lider com timeout mais curto nao decide o resultado de quem espera
+        String coalesceKey = coalesce
+                ? ResultCache.key(format.id + ":" + context.getMaxRows() + ":" + priority.id + ":"
+                        + context.getQueryTimeoutSeconds() + ":" + action, params)
+                : null;
+        if (cacheKey != null) {
+            String cached = cache.get(cacheKey);
+            if (cached != null) {
+                String response = withId(id, cached);
+                send(out, writeLock, response);
+                metrics.recordCacheHit(action, System.nanoTime() - receivedAt, utf8Length(response) + 1);
+                return;
+            }
+        }
+
+        inFlight.add(context);
+        RequestCoalescer.Flight flight = null;
+        RequestCoalescer.Capture capture = null;
+        try {
+            if (coalesce) {
+                flight = coalescer.join(coalesceKey);
+                if (!flight.leader) {
+                    // Mesma leitura ja em execucao: esperar a resposta dela em vez de executar de novo
+                    long waitStart = System.nanoTime();
+                    String shared = coalescer.await(flight, context);
+                    flight = null;
+                    if (shared != null) {
+                        String response = withId(id, shared);
+                        send(out, writeLock, response);
+                        metrics.recordCoalesced(action, System.nanoTime() - receivedAt, utf8Length(response) + 1);
+                        return;
+                    }
+                    if (context.isCancelled()) {
+                        return;
+                    }
+                    // Lider sem resposta para repassar: executar sozinho; a espera conta como fila
+                    context.timings().add(ConnectorMetrics.Phase.QUEUE, System.nanoTime() - waitStart);
+                } else {
+                    capture = coalescer.capture(id);
+                }
+            }
+
+            long queuedAt = System.nanoTime();
+            AdmissionControl.Admission admitted = admission.admit(priority, context);
+            context.timings().add(ConnectorMetrics.Phase.QUEUE, System.nanoTime() - queuedAt);
+            if (admitted == AdmissionControl.Admission.CANCELLED) {
+                // Cliente desconectou enquanto a requisicao aguardava na fila
+                return;
+            }
+            if (admitted == AdmissionControl.Admission.OVERLOADED) {
+                // Recusa imediata: o cliente pode tentar de novo ou avisar o usuario, em vez de
+                // esperar o proprio timeout com a fila crescendo
+                respond(out, writeLock, id, ResultFormat.OBJECTS, context.timings(), json -> {
+                    ProgressJDBCConnector.writeError(json, "Conector sobrecarregado: requisicao " + priority.id
+                            + " aguardou mais que " + admission.maxWaitMillis(priority) + " ms ou encontrou a fila cheia");
+                    json.name("overloaded").value(true);
+                    json.name("priority").value(priority.id);
+                    json.name("retry_after_ms").value(OVERLOADED_RETRY_AFTER_MS);
+                });
+                metrics.recordOverloaded(action, context.timings(), System.nanoTime() - receivedAt);
+                return;
+            }
+
+            try {
+                if (cacheKey != null) {
+                    executeCached(action, params, context, cacheKey, cacheTtl, out, writeLock, id, capture);
+                } else {
+                    respond(out, writeLock, id, format, context.timings(), capture, json -> {
+                        dispatch(action, params, context, json);
+                        if (ResultCache.WRITE_ACTIONS.contains(action)) {
+                            // Antes do fim da resposta: uma leitura enviada pelo cliente logo apos
+                            // receber a confirmacao ja nao encontra o dado antigo no cache nem
+                            // entra em uma leitura iniciada antes da gravacao
+                            coalescer.detachAll();
+                            connector.tablesChanged(cache.invalidate(action, params));
+                        }
+                    });
+                }
+            } finally {
+                admission.release(priority, context.timings());
+            }
+            metrics.record(action, context.timings(), System.nanoTime() - receivedAt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (flight != null) {
+                // Cliente lider desconectado: a resposta dele (cancelada) nao serve a quem espera
+                coalescer.complete(flight, context.isCancelled() ? null : capture.response());
+            }
+            inFlight.remove(context);
+        }
+    }
+
+    private void dispatch(String action, String[] params, RequestContext context, ResponseWriter json) throws IOException {
+        try {
+            connector.dispatch(action, params, context, json);
+        } catch (RuntimeException e) {
+            // Parametros invalidos falham antes de qualquer campo; uma leitura em streaming
+            // pode falhar com "data"/"results" abertos: writeFailure fecha antes do erro
+            json.writeFailure("Erro ao executar acao " + action + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executa uma acao cacheavel montando a resposta em memoria, guarda no cache
+     * se ela foi bem sucedida e entao envia ao cliente
+     */
+    private void executeCached(String action, String[] params, RequestContext context, String cacheKey, int cacheTtl,
+                               BufferedWriter out, Lock writeLock, JsonElement id, RequestCoalescer.Capture capture) {
+        long generation = cache.generation();
+        StringWriter buffer = new StringWriter();
+        try {
+            ResponseWriter json = new ResponseWriter(context.getResultFormat().wrap(buffer));
+            json.beginObject();
+            dispatch(action, params, context, json);
+            json.endObject();
+            json.flush();
+        } catch (IOException | RuntimeException e) {
+            respond(out, writeLock, id, ResultFormat.OBJECTS, context.timings(),
+                    json -> ProgressJDBCConnector.writeError(json, "Erro ao executar acao " + action + ": " + e.getMessage()));
+            return;
+        }
+
+        String response = buffer.toString();
+        boolean succeeded = ResultCache.succeeded(response);
+        if (succeeded) {
+            try {
+                cache.put(cacheKey, ResultCache.readTables(action, params), response, cacheTtl, generation);
+            } catch (RuntimeException e) {
+                System.err.println("Aviso: resposta de " + action + " nao foi para o cache: " + e.getMessage());
+            }
+        }
+        response = withId(id, response);
+        if (send(out, writeLock, response) && capture != null) {
+            capture.set(response);
+            capture.completed();
+        }
+        context.timings().response(utf8Length(response) + 1, succeeded);
+    }
+
+    /**
+     * Responde uma acao lookup pela copia local (TableMirror), se ela estiver em dia
+     *
+     * @return false se a busca deve seguir o caminho normal (Progress, ou erro de parametros)
+     */
+    private boolean lookupInMirror(String[] params, RequestContext context, BufferedWriter out, Lock writeLock, JsonElement id) {
+        StringWriter buffer = new StringWriter();
+        try {
+            TableMirror.Lookup lookup = TableMirror.Lookup.parse(
+                    SqlParameters.parseJson(params.length > 0 && !params[0].isEmpty() ? params[0] : "{}").getAsJsonObject());
+            if (!lookup.mirrorAllowed) {
+                return false;
+            }
+            JsonWriter json = new JsonWriter(context.getResultFormat().wrap(buffer));
+            json.beginObject();
+            if (!mirror.lookup(lookup, context.getResultFormat(), context.getMaxRows(), json)) {
+                return false;
+            }
+            json.endObject();
+            json.flush();
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+
+        String response = withId(id, buffer.toString());
+        send(out, writeLock, response);
+        context.timings().response(utf8Length(response) + 1, true);
+        return true;
+    }
+
+    /**
+     * Acrescenta o "id" da requisicao como primeiro campo de uma resposta ja serializada
+     */
+    private static String withId(JsonElement id, String response) {
+        if (id == null || id.isJsonNull()) {
+            return response;
+        }
+        return "{\"id\":" + id + "," + response.substring(1);
+    }
+
+    /**
+     * Escreve uma resposta completa em uma linha: {"id":..., <campos da acao>}.
+     *
+     * Com a conexao do cliente livre, a resposta vai direto para o socket enquanto
+     * o ResultSet e lido. Se outra resposta do mesmo cliente estiver sendo enviada,
+     * esta e montada em buffer para que a consulta nao espere pela outra terminar.
+     */
+    private void respond(BufferedWriter out, Lock writeLock, JsonElement id, ResponseBody body) {
+        respond(out, writeLock, id, ResultFormat.OBJECTS, null, body);
+    }
+
+    /**
+     * @param timings Recebe os bytes enviados e o campo success da resposta (null = nao registrar)
+     */
+    private void respond(BufferedWriter out, Lock writeLock, JsonElement id, ResultFormat format,
+                         ConnectorMetrics.Timings timings, ResponseBody body) {
+        respond(out, writeLock, id, format, timings, null, body);
+    }
+
+    /**
+     * @param capture Guarda uma copia da resposta enviada, para requisicoes identicas
+     *                que esperam por esta (null = sem copia)
+     */
+    private void respond(BufferedWriter out, Lock writeLock, JsonElement id, ResultFormat format,
+                         ConnectorMetrics.Timings timings, RequestCoalescer.Capture capture, ResponseBody body) {
+        try {
+            if (writeLock.tryLock()) {
+                try {
+                    ByteCountingWriter counter = new ByteCountingWriter(capture == null ? out : capture.tee(out));
+                    boolean succeeded = writeResponse(format.wrap(counter), id, body);
+                    if (capture != null) {
+                        capture.completed();
+                    }
+                    if (timings != null) {
+                        timings.response(counter.bytes, succeeded);
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                return;
+            }
+
+            StringWriter buffer = new StringWriter();
+            boolean succeeded = writeResponse(format.wrap(buffer), id, body);
+            String response = buffer.toString();
+            if (send(out, writeLock, response) && capture != null) {
+                capture.set(response);
+                capture.completed();
+            }
+            if (timings != null) {
+                timings.response(utf8Length(response), succeeded);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (timings != null) {
+                timings.response(0, false);
+            }
+            abort(out, e);
+        }
+    }
+
+    /**
+     * Envia uma resposta ja montada, terminando a linha se necessario
+     *
+     * @return false se o envio falhou (a conexao com o cliente e fechada)
+     */
+    private boolean send(BufferedWriter out, Lock writeLock, String response) {
+        writeLock.lock();
+        try {
+            out.write(response);
+            if (!response.endsWith("\n")) {
+                out.write('\n');
+            }
+            out.flush();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            abort(out, e);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Resposta incompleta: fechar a conexao para o cliente nao ficar esperando uma linha que nao vira
+     */
+    private static void abort(BufferedWriter out, Exception e) {
+        System.err.println("Falha ao enviar resposta ao cliente: " + e.getMessage());
+        try {
+            out.close();
+        } catch (IOException closeError) {
+            // Conexao ja encerrada
+        }
+    }
+
+    /**
+     * @return Valor do campo success escrito pela acao (true se ela nao escreveu o campo)
+     */
+    private static boolean writeResponse(Writer out, JsonElement id, ResponseBody body) throws IOException {
+        ResponseWriter json = new ResponseWriter(out);
+        json.beginObject();
+        if (id != null && !id.isJsonNull()) {
+            json.name("id");
+            ProgressJDBCConnector.writeJson(id, json);
+        }
+        body.write(json);
+        json.endObject();
+        json.flush();
+        out.write('\n');
+        out.flush();
+        return json.succeeded;
+    }
+
+    /**
+     * Conta os bytes UTF-8 que passam para o socket do cliente
+     */
+    private static final class ByteCountingWriter extends FilterWriter {
+        long bytes;
+
+        ByteCountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            bytes += utf8Length((char) c);
+            out.write(c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                bytes += utf8Length(chars[i]);
+            }
+            out.write(chars, offset, length);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                bytes += utf8Length(text.charAt(i));
+            }
+            out.write(text, offset, length);
+        }
+    }
+
+    static long utf8Length(String text) {
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            bytes += utf8Length(text.charAt(i));
+        }
+        return bytes;
+    }
+
+    // Um par de surrogates (4 bytes em UTF-8) conta 2 + 2
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Campos de uma resposta, escritos dentro do objeto JSON ja aberto
+     */
+    private interface ResponseBody {
+        void write(ResponseWriter json) throws IOException;
+    }
+
+    /**
+     * Servidor HTTP de GET /metrics (formato texto do Prometheus), se -Dconnector.metrics.port
+     * for maior que zero. Escuta em -Dconnector.metrics.host (padrao 127.0.0.1).
+     */
+    private void startMetricsEndpoint() throws IOException {
+        int metricsPort = Integer.getInteger("connector.metrics.port", 0);
+        if (metricsPort <= 0) {
+            return;
+        }
+
+        HttpServer http = HttpServer.create(
+                new InetSocketAddress(System.getProperty("connector.metrics.host", "127.0.0.1"), metricsPort), 0);
+        http.createContext("/metrics", this::serveMetrics);
+        http.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> http.stop(0), "connector-metrics-shutdown"));
+        System.err.println("Metricas do conector em http://" + http.getAddress().getHostString() + ":"
+                + http.getAddress().getPort() + "/metrics");
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.prometheus(pool.stats(), cache.stats()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Executor das requisicoes: uma virtual thread por requisicao quando a JVM
+     * suporta (Java 21+); em JVMs anteriores, threads de plataforma sob demanda
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "connector-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static String[] toParams(JsonArray array) {
+        if (array == null) {
+            return new String[0];
+        }
+
+        String[] params = new String[array.size()];
+        for (int i = 0; i < params.length; i++) {
+            JsonElement element = array.get(i);
+            params[i] = element.isJsonNull() ? "" : element.getAsString();
+        }
+        return params;
+    }
+}
@@ -0,0 +1,87 @@
+package br.com.tambasa.connector;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Abre uma conexao nova a cada acquire() e fecha no release().
+ * Comportamento original do conector no modo uma JVM por chamada.
+ */
+public class DirectConnectionSource implements ConnectionSource {
+
+    // Driver OpenEdge; -Dconnector.driverClass permite outro banco JDBC (ex: H2 nos benchmarks)
+    static final String DRIVER_CLASS = System.getProperty("connector.driverClass", "com.ddtek.jdbc.openedge.OpenEdgeDriver");
+
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    // Instancia do driver, criada no primeiro acquire()
+    private volatile Driver driver;
+
+    public DirectConnectionSource(String jdbcUrl, String username, String password) {
+        this.jdbcUrl = jdbcUrl;
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    public Connection acquire() throws SQLException, ClassNotFoundException {
+        Properties props = new Properties();
+        props.setProperty("user", username);
+        props.setProperty("password", password);
+        Connection connection = driver().connect(jdbcUrl, props);
+        if (connection == null) {
+            throw new SQLException("URL JDBC nao aceita pelo driver " + DRIVER_CLASS + ": " + jdbcUrl);
+        }
+        return connection;
+    }
+
+    /**
+     * Driver chamado direto, sem DriverManager: o DriverManager procura drivers em todos os
+     * jars do classpath (ServiceLoader) na primeira conexao, custo que o modo CLI pagava
+     * em toda chamada
+     */
+    private Driver driver() throws SQLException, ClassNotFoundException {
+        Driver current = driver;
+        if (current == null) {
+            Class<?> driverClass = Class.forName(DRIVER_CLASS);
+            try {
+                current = (Driver) driverClass.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new SQLException("Falha ao instanciar o driver " + DRIVER_CLASS + ": " + e.getMessage(), e);
+            }
+            driver = current;
+        }
+        return current;
+    }
+
+    @Override
+    public void release(Connection connection) {
+        try {
+            if (connection != null && !connection.isClosed()) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            System.err.println("Erro ao fechar conexao: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        return connection.prepareStatement(sql);
+    }
+
+    @Override
+    public void releaseStatement(Connection connection, PreparedStatement statement) {
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            System.err.println("Erro ao fechar statement: " + e.getMessage());
+        }
+    }
+}
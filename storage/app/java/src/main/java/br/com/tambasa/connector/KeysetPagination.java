@@ -0,0 +1,320 @@
+package br.com.tambasa.connector;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Base64;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Paginacao por chave (keyset) da acao page.
+ *
+ * Em vez de simular OFFSET com subconsultas TOP/MAX, cada pagina continua a partir dos
+ * valores das colunas chave da ultima linha entregue (o cursor):
+ *   WHERE k1 >= ? AND (k1 > ? OR (k1 = ? AND k2 > ?)) ORDER BY k1, k2
+ * O Progress nao compara tuplas ((k1, k2) > (?, ?)), por isso a forma com OR; o limite
+ * na primeira coluna permite ao broker posicionar direto no indice. Uma pagina profunda
+ * custa o mesmo que a primeira.
+ *
+ * Especificacao (JSON):
+ *   {"from": "PUB.pacote p LEFT JOIN PUB.transporte t ON ...", "columns": "p.codpac, t.nomtrn",
+ *    "keys": ["p.codpac DESC"], "where": "p.codtrn > ?", "params": [0], "limit": 50,
+ *    "cursor": "...", "direction": "next", "skip": 0, "count": true}
+ * As colunas chave devem identificar a linha (ex: chave primaria), nao podem ser nulas
+ * e precisam estar na lista de colunas.
+ */
+final class KeysetPagination {
+
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = 1000;
+
+    /**
+     * Coluna de ordenacao da pagina
+     */
+    static final class Key {
+        final String column;
+        final String label;
+        final boolean descending;
+
+        Key(String column, boolean descending) {
+            this.column = column;
+            this.descending = descending;
+            // Nome da coluna no ResultSet: ultimo segmento, sem alias de tabela nem aspas
+            String name = column.substring(column.lastIndexOf('.') + 1);
+            this.label = name.replace("\"", "").toLowerCase();
+        }
+    }
+
+    final String from;
+    final String columns;
+    final String where;
+    final JsonArray whereParameters;
+    final Key[] keys;
+    final int limit;
+    final int skip;
+    final boolean backward;
+    final boolean count;
+    final JsonArray cursor;
+
+    private KeysetPagination(JsonObject spec) {
+        from = requireText(spec, "from");
+        columns = spec.has("columns") ? requireText(spec, "columns") : "*";
+        where = spec.has("where") && !spec.get("where").isJsonNull() ? spec.get("where").getAsString().trim() : "";
+        whereParameters = spec.has("params") ? spec.getAsJsonArray("params") : new JsonArray();
+        keys = parseKeys(spec.get("keys"));
+        limit = spec.has("limit") ? spec.get("limit").getAsInt() : DEFAULT_LIMIT;
+        skip = spec.has("skip") ? spec.get("skip").getAsInt() : 0;
+        count = spec.has("count") && spec.get("count").getAsBoolean();
+
+        String direction = spec.has("direction") ? spec.get("direction").getAsString() : "next";
+        if (!direction.equals("next") && !direction.equals("prev")) {
+            throw new IllegalArgumentException("direction deve ser next ou prev");
+        }
+        backward = direction.equals("prev");
+
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit deve estar entre 1 e " + MAX_LIMIT);
+        }
+        if (skip < 0) {
+            throw new IllegalArgumentException("skip nao pode ser negativo");
+        }
+
+        String token = spec.has("cursor") && !spec.get("cursor").isJsonNull() ? spec.get("cursor").getAsString() : "";
+        cursor = token.isEmpty() ? null : decodeCursor(token);
+    }
+
+    static KeysetPagination parse(JsonObject spec) {
+        return new KeysetPagination(spec);
+    }
+
+    /**
+     * SELECT da pagina: uma linha alem do limite para saber se ha mais paginas
+     * na direcao pedida. Sem posicao inicial, direction=prev devolve a ultima pagina.
+     *
+     * @param seek Continuar a partir de uma posicao (cursor ou linhas puladas com skip)
+     */
+    String pageSql(boolean seek) {
+        StringBuilder sql = new StringBuilder("SELECT TOP ").append(limit + 1).append(" ")
+                .append(columns).append(" FROM ").append(from);
+        appendConditions(sql, seek);
+        appendOrderBy(sql, backward);
+        return sql.toString();
+    }
+
+    /**
+     * @param position Valores tipados das chaves da posicao inicial, ou null
+     */
+    JsonArray pageParameters(JsonArray position) {
+        JsonArray parameters = new JsonArray();
+        parameters.addAll(whereParameters);
+        if (position != null) {
+            parameters.addAll(seekParameters(position));
+        }
+        return parameters;
+    }
+
+    /**
+     * Le apenas as colunas chave das primeiras "skip" linhas, para posicionar a pagina
+     * quando o cliente navega por numero de pagina em vez de cursor
+     */
+    String skipSql() {
+        StringBuilder sql = new StringBuilder("SELECT TOP ").append(skip).append(" ");
+        for (int i = 0; i < keys.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(keys[i].column);
+        }
+        sql.append(" FROM ").append(from);
+        appendConditions(sql, false);
+        appendOrderBy(sql, false);
+        return sql.toString();
+    }
+
+    String countSql() {
+        StringBuilder sql = new StringBuilder("SELECT COUNT(*) AS total FROM ").append(from);
+        appendConditions(sql, false);
+        return sql.toString();
+    }
+
+    private void appendConditions(StringBuilder sql, boolean seek) {
+        boolean hasWhere = !where.isEmpty();
+        if (hasWhere) {
+            sql.append(" WHERE (").append(where).append(")");
+        }
+        if (seek) {
+            sql.append(hasWhere ? " AND " : " WHERE ").append(seekCondition());
+        }
+    }
+
+    private void appendOrderBy(StringBuilder sql, boolean reverse) {
+        sql.append(" ORDER BY ");
+        for (int i = 0; i < keys.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(keys[i].column);
+            if (keys[i].descending != reverse) {
+                sql.append(" DESC");
+            }
+        }
+    }
+
+    /**
+     * k1 >= ? AND (k1 > ? OR (k1 = ? AND k2 > ?) OR ...), com os operadores invertidos
+     * para colunas DESC e para direction=prev
+     */
+    private String seekCondition() {
+        StringBuilder condition = new StringBuilder();
+        if (keys.length > 1) {
+            condition.append(keys[0].column).append(' ').append(operator(keys[0])).append("= ? AND ");
+        }
+
+        condition.append('(');
+        for (int i = 0; i < keys.length; i++) {
+            condition.append(i == 0 ? "" : " OR ").append('(');
+            for (int j = 0; j < i; j++) {
+                condition.append(keys[j].column).append(" = ? AND ");
+            }
+            condition.append(keys[i].column).append(' ').append(operator(keys[i])).append(" ?)");
+        }
+        return condition.append(')').toString();
+    }
+
+    private JsonArray seekParameters(JsonArray values) {
+        JsonArray parameters = new JsonArray();
+        if (keys.length > 1) {
+            parameters.add(values.get(0));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                parameters.add(values.get(j));
+            }
+        }
+        return parameters;
+    }
+
+    private String operator(Key key) {
+        return key.descending != backward ? "<" : ">";
+    }
+
+    /**
+     * Posicao (1..n) de cada coluna chave no ResultSet
+     */
+    int[] keyIndexes(ResultSetMetaData metaData) throws SQLException {
+        int[] indexes = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            for (int i = 1; i <= metaData.getColumnCount() && indexes[k] == 0; i++) {
+                if (metaData.getColumnLabel(i).equalsIgnoreCase(keys[k].label)
+                        || metaData.getColumnName(i).equalsIgnoreCase(keys[k].label)) {
+                    indexes[k] = i;
+                }
+            }
+            if (indexes[k] == 0) {
+                throw new IllegalArgumentException("coluna chave " + keys[k].column + " precisa estar em columns");
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Cursor opaco (base64 url-safe) com os valores das chaves tipados no formato de
+     * SqlParameters e uma assinatura da consulta, para recusar cursor de outra listagem
+     */
+    String encodeCursor(Object[] keyValues) {
+        JsonObject token = new JsonObject();
+        token.add("v", position(keyValues));
+        token.addProperty("s", signature());
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(token.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    JsonArray decodeCursor(String token) {
+        JsonObject decoded;
+        try {
+            decoded = JsonParser.parseString(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("cursor invalido");
+        }
+
+        JsonArray values = decoded.getAsJsonArray("v");
+        if (!signature().equals(decoded.has("s") ? decoded.get("s").getAsString() : "")
+                || values == null || values.size() != keys.length) {
+            throw new IllegalArgumentException("cursor nao pertence a esta consulta");
+        }
+        return values;
+    }
+
+    /**
+     * Valores das chaves de uma linha no formato de parametros tipados de SqlParameters
+     */
+    JsonArray position(Object[] keyValues) {
+        JsonArray values = new JsonArray();
+        for (int i = 0; i < keyValues.length; i++) {
+            values.add(typedValue(keys[i], keyValues[i]));
+        }
+        return values;
+    }
+
+    private String signature() {
+        StringBuilder text = new StringBuilder(from).append('|').append(where);
+        for (Key key : keys) {
+            text.append('|').append(key.column).append(key.descending ? " DESC" : "");
+        }
+        return Integer.toHexString(text.toString().hashCode());
+    }
+
+    private static JsonObject typedValue(Key key, Object value) {
+        JsonObject typed = new JsonObject();
+        if (value == null) {
+            throw new IllegalArgumentException("coluna chave " + key.column + " nula: use colunas que identifiquem a linha");
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            typed.addProperty("type", "int");
+            typed.addProperty("value", (Number) value);
+        } else if (value instanceof Long) {
+            typed.addProperty("type", "long");
+            typed.addProperty("value", (Long) value);
+        } else if (value instanceof BigDecimal || value instanceof Number) {
+            typed.addProperty("type", "decimal");
+            typed.addProperty("value", value.toString());
+        } else if (value instanceof java.sql.Timestamp) {
+            typed.addProperty("type", "timestamp");
+            typed.addProperty("value", value.toString());
+        } else if (value instanceof java.sql.Date) {
+            typed.addProperty("type", "date");
+            typed.addProperty("value", value.toString());
+        } else if (value instanceof Boolean) {
+            typed.addProperty("type", "bool");
+            typed.addProperty("value", (Boolean) value);
+        } else {
+            typed.addProperty("type", "string");
+            typed.addProperty("value", value.toString());
+        }
+        return typed;
+    }
+
+    private static Key[] parseKeys(JsonElement element) {
+        if (element == null || !element.isJsonArray() || element.getAsJsonArray().size() == 0) {
+            throw new IllegalArgumentException("keys deve ter ao menos uma coluna");
+        }
+
+        JsonArray array = element.getAsJsonArray();
+        Key[] keys = new Key[array.size()];
+        for (int i = 0; i < keys.length; i++) {
+            String[] parts = array.get(i).getAsString().trim().split("\\s+");
+            boolean descending = parts.length == 2 && parts[1].equalsIgnoreCase("DESC");
+            if (parts.length > 2 || (parts.length == 2 && !descending && !parts[1].equalsIgnoreCase("ASC"))
+                    || !parts[0].matches("([A-Za-z_][A-Za-z0-9_$#-]*|\"[^\"]+\")(\\.([A-Za-z_][A-Za-z0-9_$#-]*|\"[^\"]+\"))*")) {
+                throw new IllegalArgumentException("coluna chave invalida: " + array.get(i).getAsString());
+            }
+            keys[i] = new Key(parts[0], descending);
+        }
+        return keys;
+    }
+
+    private static String requireText(JsonObject spec, String field) {
+        String value = spec.has(field) && !spec.get(field).isJsonNull() ? spec.get(field).getAsString().trim() : "";
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException(field + " e obrigatorio");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,273 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Indice em memoria dos municipios (PUB.municipio + PUB.estado) para a acao
+ * autocomplete-municipio.
+ *
+ * Os nomes ficam sem acento e em maiusculas em um unico char[], ordenados por nome,
+ * com um indice de trigramas em arrays primitivos (chave -> linhas). Uma busca le
+ * apenas as linhas do trigrama mais raro do texto digitado e confere o trecho no
+ * nome, sem ir ao Progress. Municipios que comecam com o texto vem primeiro.
+ *
+ * A instancia e imutavel: a recarga monta um indice novo e troca a referencia.
+ */
+final class MunicipioIndex {
+
+    static final String SQL = "SELECT m.codmun, m.codest, m.desmun, m.cdibge, e.sigest"
+            + " FROM PUB.municipio m INNER JOIN PUB.estado e ON m.codest = e.codest";
+
+    private static final int NO_IBGE = Integer.MIN_VALUE;
+
+    private final int[] codmun;
+    private final int[] codest;
+    private final int[] cdibge;
+    private final String[] desmun;
+    private final String[] sigest;
+
+    // Nomes sem acento concatenados; o nome da linha i ocupa [nameStart[i], nameStart[i + 1])
+    private final char[] names;
+    private final int[] nameStart;
+
+    // Trigramas ordenados; as linhas do trigrama k sao gramRows[gramStart[k] .. gramStart[k + 1])
+    private final long[] gramKeys;
+    private final int[] gramStart;
+    private final int[] gramRows;
+
+    final long loadedAt = System.currentTimeMillis();
+
+    private MunicipioIndex(List<Object[]> rows) {
+        int size = rows.size();
+        codmun = new int[size];
+        codest = new int[size];
+        cdibge = new int[size];
+        desmun = new String[size];
+        sigest = new String[size];
+        nameStart = new int[size + 1];
+
+        String[] folded = new String[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            Object[] row = rows.get(i);
+            codmun[i] = (Integer) row[0];
+            codest[i] = (Integer) row[1];
+            desmun[i] = (String) row[2];
+            cdibge[i] = row[3] == null ? NO_IBGE : (Integer) row[3];
+            sigest[i] = (String) row[4];
+            folded[i] = (String) row[5];
+            length += folded[i].length();
+        }
+
+        names = new char[length];
+        TreeMap<Long, List<Integer>> grams = new TreeMap<>();
+        for (int i = 0, offset = 0; i < size; i++) {
+            nameStart[i] = offset;
+            folded[i].getChars(0, folded[i].length(), names, offset);
+            offset += folded[i].length();
+
+            for (int j = 0; j + 3 <= folded[i].length(); j++) {
+                List<Integer> postings = grams.computeIfAbsent(gram(folded[i], j), key -> new ArrayList<>());
+                // Linhas em ordem crescente: so comparar com a ultima para nao repetir
+                if (postings.isEmpty() || postings.get(postings.size() - 1) != i) {
+                    postings.add(i);
+                }
+            }
+        }
+        nameStart[size] = length;
+
+        gramKeys = new long[grams.size()];
+        gramStart = new int[grams.size() + 1];
+        int total = 0;
+        for (List<Integer> postings : grams.values()) {
+            total += postings.size();
+        }
+        gramRows = new int[total];
+
+        int k = 0;
+        int position = 0;
+        for (Map.Entry<Long, List<Integer>> entry : grams.entrySet()) {
+            gramKeys[k] = entry.getKey();
+            gramStart[k] = position;
+            for (int row : entry.getValue()) {
+                gramRows[position++] = row;
+            }
+            k++;
+        }
+        gramStart[k] = position;
+    }
+
+    /**
+     * Le todos os municipios e monta o indice
+     */
+    static MunicipioIndex load(Connection connection, RequestContext context) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        try (Statement stmt = context.track(connection.createStatement());
+             ResultSet rs = executeQuery(stmt, context)) {
+            while (rs.next()) {
+                int ibge = rs.getInt(4);
+                Integer cdibge = rs.wasNull() ? null : ibge;
+                String name = rs.getString(3);
+                rows.add(new Object[] {rs.getInt(1), rs.getInt(2), name, cdibge, rs.getString(5), fold(name)});
+            }
+        }
+
+        // Mesma ordem de ORDER BY desmun, mas pelo nome sem acento
+        rows.sort(Comparator.comparing((Object[] row) -> (String) row[5]).thenComparing(row -> (Integer) row[0]));
+        return new MunicipioIndex(rows);
+    }
+
+    /**
+     * Tabela inteira, sem max_rows da requisicao, em lotes pelo tamanho (estreito) da linha
+     */
+    private static ResultSet executeQuery(Statement stmt, RequestContext context) throws SQLException {
+        context.limitRows(stmt, 0);
+        ResultSet rs = stmt.executeQuery(SQL);
+        context.adaptFetchSize(rs, 0);
+        return rs;
+    }
+
+    int size() {
+        return codmun.length;
+    }
+
+    /**
+     * Linhas cujo nome contem o texto (sem diferenciar acentos e maiusculas),
+     * primeiro as que comecam com ele, cada grupo em ordem de nome
+     *
+     * @param codestFilter Codigo do estado, ou null para todos
+     */
+    int[] search(String text, Integer codestFilter, int limit) {
+        char[] query = fold(text).toCharArray();
+
+        int[] candidates = null;
+        int from = 0;
+        int to = size();
+        if (query.length >= 3) {
+            // Trigrama com menos linhas; um trigrama ausente significa nenhum resultado
+            int best = -1;
+            for (int j = 0; j + 3 <= query.length; j++) {
+                int k = Arrays.binarySearch(gramKeys, gram(query, j));
+                if (k < 0) {
+                    return new int[0];
+                }
+                if (best < 0 || gramStart[k + 1] - gramStart[k] < gramStart[best + 1] - gramStart[best]) {
+                    best = k;
+                }
+            }
+            candidates = gramRows;
+            from = gramStart[best];
+            to = gramStart[best + 1];
+        }
+
+        int[] prefixed = new int[limit];
+        int[] containing = new int[limit];
+        int prefixCount = 0;
+        int containCount = 0;
+        for (int c = from; c < to && prefixCount < limit; c++) {
+            int row = candidates == null ? c : candidates[c];
+            if (codestFilter != null && codest[row] != codestFilter) {
+                continue;
+            }
+
+            int position = indexOf(row, query);
+            if (position == 0) {
+                prefixed[prefixCount++] = row;
+            } else if (position > 0 && containCount < limit) {
+                containing[containCount++] = row;
+            }
+        }
+
+        int count = Math.min(limit, prefixCount + containCount);
+        int[] result = Arrays.copyOf(prefixed, count);
+        System.arraycopy(containing, 0, result, prefixCount, count - prefixCount);
+        return result;
+    }
+
+    /**
+     * Escreve as linhas no formato da consulta SQL que o indice substitui
+     * (codmun, codest, desmun, cdibge, desest)
+     */
+    void writeRows(JsonWriter out, int[] rows) throws IOException {
+        out.beginArray();
+        for (int row : rows) {
+            out.beginObject();
+            out.name("codmun").value(codmun[row]);
+            out.name("codest").value(codest[row]);
+            out.name("desmun").value(desmun[row]);
+            out.name("cdibge");
+            if (cdibge[row] == NO_IBGE) {
+                out.nullValue();
+            } else {
+                out.value(cdibge[row]);
+            }
+            out.name("desest").value(sigest[row]);
+            out.endObject();
+        }
+        out.endArray();
+    }
+
+    private int indexOf(int row, char[] query) {
+        int start = nameStart[row];
+        int last = nameStart[row + 1] - query.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < query.length && names[i + j] == query[j]) {
+                j++;
+            }
+            if (j == query.length) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Maiusculas sem acentos (NFD sem as marcas) e com espacos simples: "Sao  Joao" vira "SAO JOAO"
+     */
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = folded.length() > 0;
+                continue;
+            }
+            if (space) {
+                folded.append(' ');
+                space = false;
+            }
+            folded.append(c);
+        }
+        return folded.toString().toUpperCase(Locale.ROOT);
+    }
+
+    private static long gram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    private static long gram(char[] text, int start) {
+        return ((long) text[start] << 32) | ((long) text[start + 1] << 16) | text[start + 2];
+    }
+}
@@ -0,0 +1,341 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Varredura particionada da acao scan.
+ *
+ * A faixa de uma coluna chave inteira (codpac, codtrn, sPararRotID) e lida com
+ * MIN/MAX para o filtro e dividida em N faixas contiguas:
+ *   SELECT colunas FROM tabela WHERE (filtro) AND chave >= ? AND chave <= ? [ORDER BY chave]
+ * No modo residente cada faixa e lida em sua propria conexao do pool, enquanto houver
+ * vagas livres no servidor; a thread da requisicao so junta as linhas e escreve a resposta.
+ *
+ * Especificacao (JSON):
+ *   {"table": "PUB.pacote", "key": "codpac", "columns": "codpac, codtrn, valpac",
+ *    "where": "codtrn = ?", "params": [10], "partitions": 8, "order": "key",
+ *    "min": 1, "max": 800000}
+ * Com order=key as linhas saem na ordem da chave (as faixas sao entregues uma apos a
+ * outra); com order=none cada lote sai assim que lido, em qualquer ordem.
+ */
+final class PartitionedScan {
+
+    static final int DEFAULT_PARTITIONS = 4;
+    static final int MAX_PARTITIONS = Integer.getInteger("connector.scan.maxPartitions", 16);
+    // Linhas por lote entregue pela faixa e lotes em espera por faixa: limita a memoria da juncao
+    static final int CHUNK_ROWS = 500;
+    static final int QUEUE_CHUNKS = Integer.getInteger("connector.scan.queueChunks", 16);
+    private static final long POLL_MS = 50;
+
+    private static final String IDENTIFIER = "([A-Za-z_][A-Za-z0-9_$#-]*|\"[^\"]+\")";
+
+    final String table;
+    final String key;
+    final String columns;
+    final String where;
+    final JsonArray whereParameters;
+    final int partitions;
+    final boolean ordered;
+    final Long min;
+    final Long max;
+
+    private PartitionedScan(JsonObject spec) {
+        table = requireText(spec, "table");
+        key = requireText(spec, "key");
+        columns = spec.has("columns") ? requireText(spec, "columns") : "*";
+        where = spec.has("where") && !spec.get("where").isJsonNull() ? spec.get("where").getAsString().trim() : "";
+        whereParameters = spec.has("params") ? spec.getAsJsonArray("params") : new JsonArray();
+        partitions = spec.has("partitions") ? spec.get("partitions").getAsInt() : DEFAULT_PARTITIONS;
+        min = spec.has("min") && !spec.get("min").isJsonNull() ? spec.get("min").getAsLong() : null;
+        max = spec.has("max") && !spec.get("max").isJsonNull() ? spec.get("max").getAsLong() : null;
+
+        String order = spec.has("order") ? spec.get("order").getAsString() : "key";
+        if (!order.equals("key") && !order.equals("none")) {
+            throw new IllegalArgumentException("order deve ser key ou none");
+        }
+        ordered = order.equals("key");
+
+        if (!table.matches(IDENTIFIER + "(\\." + IDENTIFIER + ")?")) {
+            throw new IllegalArgumentException("tabela invalida: " + table);
+        }
+        if (!key.matches(IDENTIFIER)) {
+            throw new IllegalArgumentException("coluna chave invalida: " + key);
+        }
+        if (partitions < 1 || partitions > MAX_PARTITIONS) {
+            throw new IllegalArgumentException("partitions deve estar entre 1 e " + MAX_PARTITIONS);
+        }
+        if (min != null && max != null && min > max) {
+            throw new IllegalArgumentException("min maior que max");
+        }
+    }
+
+    static PartitionedScan parse(JsonObject spec) {
+        return new PartitionedScan(spec);
+    }
+
+    /**
+     * MIN e MAX da chave para o filtro (e os limites min/max informados)
+     */
+    String boundsSql() {
+        StringBuilder sql = new StringBuilder("SELECT MIN(").append(key).append("), MAX(").append(key)
+                .append(") FROM ").append(table);
+        appendConditions(sql, min != null, max != null);
+        return sql.toString();
+    }
+
+    JsonArray boundsParameters() {
+        JsonArray parameters = new JsonArray();
+        parameters.addAll(whereParameters);
+        if (min != null) {
+            parameters.add(typed(min));
+        }
+        if (max != null) {
+            parameters.add(typed(max));
+        }
+        return parameters;
+    }
+
+    /**
+     * SELECT de uma faixa; o mesmo texto para todas, entao fica uma vez no cache de statements
+     */
+    String partitionSql() {
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns).append(" FROM ").append(table);
+        appendConditions(sql, true, true);
+        if (ordered) {
+            sql.append(" ORDER BY ").append(key);
+        }
+        return sql.toString();
+    }
+
+    JsonArray partitionParameters(long[] range) {
+        JsonArray parameters = new JsonArray();
+        parameters.addAll(whereParameters);
+        parameters.add(typed(range[0]));
+        parameters.add(typed(range[1]));
+        return parameters;
+    }
+
+    /**
+     * Divide [lowest, highest] em ate "partitions" faixas contiguas de tamanho quase igual,
+     * na ordem da chave. Nunca mais faixas que valores na faixa.
+     */
+    long[][] split(long lowest, long highest) {
+        long span;
+        try {
+            span = Math.addExact(Math.subtractExact(highest, lowest), 1);
+        } catch (ArithmeticException e) {
+            // Faixa maior que um long: sem divisao
+            return new long[][] { { lowest, highest } };
+        }
+
+        int count = (int) Math.min(partitions, span);
+        long size = span / count;
+        long remainder = span % count;
+        long[][] ranges = new long[count][];
+        long start = lowest;
+        for (int i = 0; i < count; i++) {
+            long end = start + size - 1 + (i < remainder ? 1 : 0);
+            ranges[i] = new long[] { start, end };
+            start = end + 1;
+        }
+        return ranges;
+    }
+
+    private void appendConditions(StringBuilder sql, boolean lower, boolean upper) {
+        boolean hasWhere = !where.isEmpty();
+        if (hasWhere) {
+            sql.append(" WHERE (").append(where).append(")");
+        }
+        if (lower) {
+            sql.append(hasWhere ? " AND " : " WHERE ").append(key).append(" >= ?");
+            hasWhere = true;
+        }
+        if (upper) {
+            sql.append(hasWhere ? " AND " : " WHERE ").append(key).append(" <= ?");
+        }
+    }
+
+    private static JsonObject typed(long value) {
+        JsonObject typed = new JsonObject();
+        typed.addProperty("type", "long");
+        typed.addProperty("value", value);
+        return typed;
+    }
+
+    private static String requireText(JsonObject spec, String field) {
+        String value = spec.has(field) && !spec.get(field).isJsonNull() ? spec.get(field).getAsString().trim() : "";
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException(field + " e obrigatorio");
+        }
+        return value;
+    }
+
+    /**
+     * Lote de linhas de uma faixa, ja em JSON no formato da resposta. O ultimo lote da
+     * faixa tem last=true e, se a leitura falhou, a falha.
+     */
+    static final class Chunk {
+        final int partition;
+        final RowEncoder encoder;
+        final List<String> rows;
+        final boolean last;
+        final Exception failure;
+
+        Chunk(int partition, RowEncoder encoder, List<String> rows, boolean last, Exception failure) {
+            this.partition = partition;
+            this.encoder = encoder;
+            this.rows = rows;
+            this.last = last;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Recebe os lotes lidos de uma faixa
+     */
+    interface ChunkSink {
+        /**
+         * @return false se a leitura deve parar (limite atingido, falha ou cancelamento)
+         */
+        boolean accept(Chunk chunk) throws IOException;
+    }
+
+    /**
+     * Escreve os lotes em "results" e conta as linhas ate o max_rows da requisicao
+     */
+    static final class RowsWriter implements ChunkSink {
+        private final JsonWriter out;
+        private final ResultFormat format;
+        private final int maxRows;
+        private boolean begun;
+        long count;
+        Exception failure;
+
+        RowsWriter(JsonWriter out, ResultFormat format, int maxRows) {
+            this.out = out;
+            this.format = format;
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        public boolean accept(Chunk chunk) throws IOException {
+            if (!begun) {
+                // Nomes e tipos (formato columns) do primeiro lote: todas as faixas tem as mesmas colunas
+                format.beginRows(out, chunk.encoder);
+                begun = true;
+            }
+            for (String row : chunk.rows) {
+                if (maxRows > 0 && count == maxRows) {
+                    return false;
+                }
+                out.jsonValue(row);
+                count++;
+            }
+            if (chunk.failure != null && failure == null) {
+                failure = chunk.failure;
+            }
+            return failure == null && (maxRows <= 0 || count < maxRows);
+        }
+
+        void finish() throws IOException {
+            if (!begun) {
+                format.beginRows(out, null);
+                begun = true;
+            }
+            format.endRows(out);
+        }
+    }
+
+    /**
+     * Juncao dos lotes lidos em paralelo. Ordenada: uma fila por faixa, esvaziadas na
+     * ordem da chave; sem ordem: uma fila unica. As filas tem QUEUE_CHUNKS lotes, entao
+     * uma faixa que le mais rapido que a resposta e escrita espera, sem acumular memoria.
+     */
+    static final class Merge implements ChunkSink {
+        private final List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+        private volatile boolean stopped;
+        // Falha que interrompeu drain, ou null; lida pela thread da requisicao
+        Exception failure;
+
+        Merge(int partitions, boolean ordered) {
+            for (int i = 0; i < (ordered ? partitions : 1); i++) {
+                queues.add(new ArrayBlockingQueue<>(QUEUE_CHUNKS));
+            }
+        }
+
+        /**
+         * Chamado pelas threads de leitura
+         */
+        @Override
+        public boolean accept(Chunk chunk) {
+            BlockingQueue<Chunk> queue = queues.get(queues.size() == 1 ? 0 : chunk.partition);
+            try {
+                while (!queue.offer(chunk, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !stopped;
+        }
+
+        /**
+         * Entrega os lotes a target na thread da requisicao ate todas as faixas terminarem,
+         * target recusar mais linhas ou a requisicao ser cancelada
+         *
+         * @param readersDone true quando nenhuma thread de leitura esta mais rodando
+         */
+        void drain(int partitions, RowsWriter target, RequestContext context, BooleanSupplier readersDone)
+                throws IOException, InterruptedException {
+            failure = join(partitions, target, context, readersDone);
+        }
+
+        /**
+         * @return Falha que interrompeu a juncao, ou null
+         */
+        private Exception join(int partitions, RowsWriter target, RequestContext context, BooleanSupplier readersDone)
+                throws IOException, InterruptedException {
+            try {
+                int finished = 0;
+                int current = 0;
+                while (finished < partitions) {
+                    BlockingQueue<Chunk> queue = queues.get(queues.size() == 1 ? 0 : current);
+                    Chunk chunk = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        if (context.isCancelled()) {
+                            return new IllegalStateException("Requisicao cancelada: cliente desconectado");
+                        }
+                        if (readersDone.getAsBoolean() && queue.isEmpty()) {
+                            // Executor recusou as leituras ou uma delas terminou sem o ultimo lote
+                            return new IllegalStateException("Particao nao executada");
+                        }
+                        continue;
+                    }
+
+                    if (!target.accept(chunk)) {
+                        return target.failure;
+                    }
+                    if (chunk.last) {
+                        finished++;
+                        current++;
+                    }
+                }
+                return null;
+            } finally {
+                stopped = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,2258 @@
+package br.com.tambasa.connector;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.sql.*;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ProgressJDBCConnector {
+
+    private String jdbcUrl;
+    private ConnectionSource connections;
+
+    // Indice de municipios da acao autocomplete-municipio, carregado no primeiro uso.
+    // municipiosChanges conta as alteracoes de municipio/estado feitas pelo conector;
+    // municipiosSynced, quantas ja estavam no banco quando o indice atual comecou a ser lido
+    private volatile MunicipioIndex municipios;
+    private final ReentrantLock municipiosLock = new ReentrantLock();
+    private final AtomicBoolean municipiosRefreshing = new AtomicBoolean();
+    private final AtomicLong municipiosChanges = new AtomicLong();
+    private volatile long municipiosSynced;
+    private final long municipiosRefreshMs = Long.getLong("connector.municipios.refreshMinutes", 60) * 60_000;
+
+    // Schema das tabelas gravado pela acao schema-snapshot, lido do arquivo no primeiro uso
+    private volatile SchemaSnapshot schemaSnapshot;
+    private final Object schemaSnapshotLock = new Object();
+    private final Path schemaSnapshotFile = SchemaSnapshot.fileFromSystemProperties();
+
+    // Copia local das tabelas da acao lookup; so no modo residente (ver TableMirror)
+    private volatile TableMirror mirror;
+
+    public ProgressJDBCConnector(String jdbcUrl, String username, String password) {
+        this(jdbcUrl, new DirectConnectionSource(jdbcUrl, username, password));
+    }
+
+    /**
+     * @param connections Origem das conexoes. Como nenhuma conexao fica guardada na
+     *                    instancia, o mesmo conector pode atender varias threads
+     *                    quando a origem for um pool
+     */
+    public ProgressJDBCConnector(String jdbcUrl, ConnectionSource connections) {
+        this.jdbcUrl = jdbcUrl;
+        this.connections = connections;
+    }
+
+    /**
+     * Testa a conexao com o banco Progress
+     */
+    public JsonObject testConnection() {
+        JsonObject result = new JsonObject();
+        Connection connection = null;
+
+        try {
+            // Estabelecer conexao (nova no modo CLI, do pool no modo residente)
+            connection = connections.acquire();
+
+            // Testar conexao - sem consulta complexa
+            String timestamp = new java.util.Date().toString();
+
+            result.addProperty("success", true);
+            result.addProperty("message", "Conexao Progress JDBC estabelecida com sucesso");
+
+            JsonObject data = new JsonObject();
+            data.addProperty("host", extractHost(jdbcUrl));
+            data.addProperty("database", extractDatabase(jdbcUrl));
+            data.addProperty("timestamp", timestamp);
+            data.addProperty("jdbc_url", jdbcUrl);
+            result.add("data", data);
+
+        } catch (ClassNotFoundException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Erro na conexao Progress JDBC: " + e.getMessage());
+        } finally {
+            connections.release(connection);
+        }
+
+        return result;
+    }
+
+    /**
+     * Executa SELECT na tabela transporte
+     */
+    public void getTransportes(String whereClause, int limit, RequestContext context, JsonWriter out) throws IOException {
+        Connection connection = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            connection = acquire(context);
+
+            // Construir query simples para Progress
+            StringBuilder sql = new StringBuilder("SELECT nomtrn, codtrn FROM PUB.transporte");
+
+            // Adicionar filtros se fornecidos
+            if (whereClause != null && !whereClause.trim().isEmpty()) {
+                sql.append(" WHERE ").append(whereClause);
+            }
+
+            // Progress pode ter sintaxe especifica para ORDER BY, removendo por enquanto
+
+            // O limite vai para o driver: o broker nao envia linhas alem dele
+            int maxRows = context.maxRows(Math.max(limit, 0));
+            stmt = context.track(connection.createStatement());
+            context.limitRows(stmt, maxRows);
+            long executeStart = System.nanoTime();
+            rs = stmt.executeQuery(sql.toString());
+            long executeNanos = System.nanoTime() - executeStart;
+            context.adaptFetchSize(rs, maxRows);
+
+            // Converter ResultSet para JSON com limitacao, escrevendo cada linha assim que lida
+            out.name("data").beginObject();
+            out.name("transportes");
+            RowStream rows = writeRows(rs, out, limit, context.getResultFormat());
+            recordQuery(context, sql.toString(), executeNanos, rows);
+            out.name("total").value(rows.count);
+            out.name("sql_executed").value(sql.toString());
+            out.endObject();
+
+            writeStatus(out, rows, "Dados da tabela transporte obtidos com sucesso", "Erro na consulta Progress JDBC: ");
+
+        } catch (ClassNotFoundException e) {
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            writeError(out, "Erro na consulta Progress JDBC: " + e.getMessage());
+        } finally {
+            closeQuietly(rs);
+            closeQuietly(stmt);
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Executa SELECT paginado na tabela transporte
+     */
+    public void getTransportesPaginated(String whereClause, int limit, int offset, RequestContext context, JsonWriter out) throws IOException {
+        Connection connection = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            connection = acquire(context);
+
+            // Construir query paginada usando Progress TOP syntax
+            StringBuilder sql = new StringBuilder();
+            sql.append("SELECT TOP ").append(limit).append(" codtrn, nomtrn FROM PUB.transporte");
+
+            // Adicionar filtros se fornecidos
+            boolean hasWhere = whereClause != null && !whereClause.trim().isEmpty();
+            if (hasWhere) {
+                sql.append(" ").append(whereClause);
+            }
+
+            // Progress nao suporte OFFSET diretamente, simulamos com condicoes WHERE.
+            // O custo cresce com o offset: para listagens grandes use a acao page (keyset)
+            if (offset > 0) {
+                String offsetCondition = hasWhere ? " AND " : " WHERE ";
+                sql.append(offsetCondition).append("codtrn > (SELECT MAX(codtrn) FROM (SELECT TOP ")
+                   .append(offset).append(" codtrn FROM PUB.transporte");
+
+                if (hasWhere) {
+                    sql.append(" ").append(whereClause);
+                }
+
+                sql.append(" ORDER BY codtrn) sub)");
+            }
+
+            // Ordenar resultados
+            sql.append(" ORDER BY codtrn");
+
+            int maxRows = context.maxRows(Math.max(limit, 0));
+            stmt = context.track(connection.createStatement());
+            context.limitRows(stmt, maxRows);
+            long executeStart = System.nanoTime();
+            rs = stmt.executeQuery(sql.toString());
+            long executeNanos = System.nanoTime() - executeStart;
+            context.adaptFetchSize(rs, maxRows);
+
+            // Converter ResultSet para JSON, escrevendo cada linha assim que lida
+            out.name("data").beginObject();
+            out.name("results");
+            RowStream rows = writeRows(rs, out, Integer.MAX_VALUE, context.getResultFormat());
+            recordQuery(context, sql.toString(), executeNanos, rows);
+            out.name("count").value(rows.count);
+            out.name("sql_executed").value(sql.toString());
+            out.name("limit").value(limit);
+            out.name("offset").value(offset);
+            out.endObject();
+
+            writeStatus(out, rows, "Dados paginados da tabela transporte obtidos com sucesso", "Erro na consulta paginada Progress JDBC: ");
+
+        } catch (ClassNotFoundException e) {
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            writeError(out, "Erro na consulta paginada Progress JDBC: " + e.getMessage());
+        } finally {
+            closeQuietly(rs);
+            closeQuietly(stmt);
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Executa consulta SQL customizada
+     */
+    public void executeCustomQuery(String sql, RequestContext context, JsonWriter out) throws IOException {
+        executeQuery(sql, null, context, out);
+    }
+
+    /**
+     * Executa SELECT parametrizado (placeholders ?) com PreparedStatement
+     */
+    public void executePreparedQuery(String sql, JsonArray parameters, RequestContext context, JsonWriter out) throws IOException {
+        executeQuery(sql, parameters, context, out);
+    }
+
+    private void executeQuery(String sql, JsonArray parameters, RequestContext context, JsonWriter out) throws IOException {
+        // Validacao basica de seguranca
+        String sqlUpper = sql.toUpperCase().trim();
+        if (!sqlUpper.startsWith("SELECT")) {
+            writeError(out, "Apenas consultas SELECT sao permitidas");
+            return;
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = acquire(context);
+            writeQuery(connection, sql, parameters, context, out);
+
+        } catch (ClassNotFoundException e) {
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            writeError(out, "Erro na execucao da consulta: " + e.getMessage());
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Executa um SELECT na conexao informada e escreve data/success/message em out.
+     * Sem parametros usa Statement; com parametros (mesmo vazio) usa PreparedStatement.
+     *
+     * @return true se a consulta foi lida por completo
+     */
+    private boolean writeQuery(Connection connection, String sql, JsonArray parameters, RequestContext context, JsonWriter out) throws IOException {
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        long executeStart = System.nanoTime();
+        try {
+            int maxRows = context.maxRows(0);
+            if (parameters == null) {
+                stmt = context.track(connection.createStatement());
+                context.limitRows(stmt, maxRows);
+                executeStart = System.nanoTime();
+                rs = stmt.executeQuery(sql);
+            } else {
+                // No modo residente o statement vem do cache da conexao, sem novo parse no broker
+                PreparedStatement prepared = context.track(connections.prepare(connection, sql));
+                stmt = prepared;
+                context.limitRows(prepared, maxRows);
+                SqlParameters.bind(prepared, parameters);
+                executeStart = System.nanoTime();
+                rs = prepared.executeQuery();
+            }
+            long executeNanos = System.nanoTime() - executeStart;
+            context.adaptFetchSize(rs, maxRows);
+
+            // Converter ResultSet para JSON, escrevendo cada linha assim que lida
+            out.name("data").beginObject();
+            out.name("results");
+            RowStream rows = writeRows(rs, out, Integer.MAX_VALUE, context.getResultFormat());
+            recordQuery(context, sql, executeNanos, rows);
+            out.name("total").value(rows.count);
+            if (maxRows > 0) {
+                // total == max_rows: pode haver mais linhas alem do limite
+                out.name("max_rows").value(maxRows);
+            }
+            out.name("sql").value(sql);
+            out.endObject();
+
+            writeStatus(out, rows, "Consulta executada com sucesso", "Erro na execucao da consulta: ");
+            return rows.failure == null;
+
+        } catch (SQLException e) {
+            context.timings().query(sql, System.nanoTime() - executeStart, 0, false);
+            writeError(out, "Erro na execucao da consulta: " + e.getMessage());
+            return false;
+        } catch (IllegalArgumentException e) {
+            writeError(out, "Parametros invalidos: " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(rs);
+            if (parameters == null) {
+                closeQuietly(stmt);
+            } else {
+                connections.releaseStatement(connection, (PreparedStatement) stmt);
+            }
+        }
+    }
+
+    /**
+     * Le o ResultSet de um SELECT completo com reader, fora do JSON da resposta
+     */
+    interface RowReader {
+        RowStream read(ResultSet rs) throws SQLException, IOException;
+    }
+
+    /**
+     * Executa um SELECT em uma conexao propria e entrega o ResultSet a reader (exportacao,
+     * jobs). Sem parametros usa Statement; com parametros, PreparedStatement. O max_rows e o
+     * fetch size da requisicao sao aplicados e os tempos vao para o ConnectorMetrics.
+     */
+    RowStream readQuery(String sql, JsonArray parameters, RequestContext context, RowReader reader)
+            throws SQLException, ClassNotFoundException, IOException {
+        Connection connection = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        long executeStart = System.nanoTime();
+        try {
+            connection = acquire(context);
+
+            int maxRows = context.maxRows(0);
+            if (parameters == null) {
+                stmt = context.track(connection.createStatement());
+                context.limitRows(stmt, maxRows);
+                executeStart = System.nanoTime();
+                rs = stmt.executeQuery(sql);
+            } else {
+                PreparedStatement prepared = context.track(connections.prepare(connection, sql));
+                stmt = prepared;
+                context.limitRows(prepared, maxRows);
+                SqlParameters.bind(prepared, parameters);
+                executeStart = System.nanoTime();
+                rs = prepared.executeQuery();
+            }
+            long executeNanos = System.nanoTime() - executeStart;
+            context.adaptFetchSize(rs, maxRows);
+
+            RowStream rows = reader.read(rs);
+            recordQuery(context, sql, executeNanos, rows);
+            return rows;
+
+        } catch (SQLException e) {
+            context.timings().query(sql, System.nanoTime() - executeStart, 0, false);
+            throw e;
+        } finally {
+            closeQuietly(rs);
+            if (parameters == null) {
+                closeQuietly(stmt);
+            } else {
+                connections.releaseStatement(connection, (PreparedStatement) stmt);
+            }
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Grava o resultado de um SELECT em um arquivo local (ver TableExport) e devolve so
+     * o caminho, o numero de linhas e o checksum: as linhas nao passam pelo PHP.
+     *
+     * Formato: {"format": "csv" | "ndjson", "gzip": true, "file": "nome.csv.gz",
+     * "delimiter": ";", "params": [...]}. Com "params" o SQL usa placeholders ? e
+     * roda com PreparedStatement.
+     */
+    public void exportQuery(String sql, JsonObject spec, RequestContext context, JsonWriter out) throws IOException {
+        if (!sql.toUpperCase().trim().startsWith("SELECT")) {
+            writeError(out, "Apenas consultas SELECT sao permitidas");
+            return;
+        }
+
+        JsonArray parameters;
+        TableExport export;
+        try {
+            parameters = spec.has("params") ? spec.getAsJsonArray("params") : null;
+            export = TableExport.open(spec);
+        } catch (IllegalArgumentException | IllegalStateException | ClassCastException | UnsupportedOperationException e) {
+            writeError(out, "Exportacao invalida: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            writeError(out, "Erro ao criar arquivo de exportacao: " + e.getMessage());
+            return;
+        }
+
+        int maxRows = context.maxRows(0);
+        String error = null;
+        try {
+            readQuery(sql, parameters, context, rs -> export.write(rs, context));
+            export.finish();
+        } catch (ClassNotFoundException e) {
+            error = "Driver JDBC Progress nao encontrado: " + e.getMessage();
+        } catch (SQLException e) {
+            error = "Erro na exportacao: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            error = "Parametros invalidos: " + e.getMessage();
+        } catch (IOException e) {
+            // Falha ao gravar o arquivo (disco cheio, permissao), nao na resposta ao cliente
+            error = "Erro ao gravar arquivo de exportacao: " + e.getMessage();
+        }
+
+        if (error != null) {
+            export.abort(error);
+            writeError(out, error);
+            return;
+        }
+
+        out.name("data").beginObject();
+        out.name("file").value(export.file.toString());
+        out.name("format").value(export.format.extension);
+        out.name("gzip").value(export.gzip);
+        out.name("rows").value(export.rows());
+        out.name("bytes").value(export.bytes());
+        out.name("checksum").value(export.checksum());
+        out.name("elapsed_ms").value(export.elapsedMillis());
+        if (maxRows > 0) {
+            // rows == max_rows: pode haver mais linhas alem do limite
+            out.name("max_rows").value(maxRows);
+        }
+        out.name("sql").value(sql);
+        out.endObject();
+
+        out.name("success").value(true);
+        out.name("message").value("Exportacao concluida com sucesso");
+    }
+
+    /**
+     * Executa varias consultas SELECT nomeadas e devolve um objeto com um resultado por nome,
+     * no mesmo formato da acao query.
+     *
+     * Formato: {"nome": "SELECT ...", "outro": {"sql": "SELECT ... ?", "params": [...]}}
+     *
+     * No modo residente as consultas rodam em paralelo, cada uma em sua conexao do pool,
+     * enquanto houver vagas livres no servidor; as demais rodam em sequencia. No modo CLI
+     * todas rodam em sequencia na mesma conexao.
+     */
+    public void executeMultiQuery(JsonObject queries, RequestContext context, JsonWriter out) throws IOException {
+        if (queries.size() == 0) {
+            writeError(out, "Nenhuma consulta informada");
+            return;
+        }
+
+        String[] names = new String[queries.size()];
+        String[] sqls = new String[names.length];
+        JsonArray[] parameters = new JsonArray[names.length];
+        int index = 0;
+        for (Map.Entry<String, JsonElement> query : queries.entrySet()) {
+            names[index] = query.getKey();
+            if (query.getValue().isJsonObject()) {
+                JsonObject spec = query.getValue().getAsJsonObject();
+                sqls[index] = spec.has("sql") ? spec.get("sql").getAsString() : "";
+                parameters[index] = spec.has("params") ? spec.getAsJsonArray("params") : null;
+            } else {
+                sqls[index] = query.getValue().getAsString();
+            }
+
+            if (!sqls[index].toUpperCase().trim().startsWith("SELECT")) {
+                writeError(out, "Apenas consultas SELECT sao permitidas (consulta " + names[index] + ")");
+                return;
+            }
+            index++;
+        }
+
+        // Cada resultado e montado em buffer: as consultas terminam em qualquer ordem
+        String[] results = new String[names.length];
+        boolean[] succeeded = new boolean[names.length];
+        AtomicInteger nextQuery = new AtomicInteger();
+
+        int parallelism;
+        try {
+            parallelism = runParallel(names.length, null, context,
+                    connection -> runQueries(sqls, parameters, results, succeeded, nextQuery, context));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            context.cancel();
+            writeError(out, "Requisicao interrompida");
+            return;
+        }
+
+        StringBuilder failed = new StringBuilder();
+        out.name("data").beginObject();
+        out.name("results").beginObject();
+        for (int i = 0; i < names.length; i++) {
+            out.name(names[i]);
+            if (results[i] != null) {
+                out.jsonValue(results[i]);
+            } else {
+                out.beginObject();
+                writeError(out, "Consulta nao executada");
+                out.endObject();
+            }
+            if (!succeeded[i]) {
+                failed.append(failed.length() == 0 ? "" : ", ").append(names[i]);
+            }
+        }
+        out.endObject();
+        out.name("count").value(names.length);
+        out.name("parallelism").value(parallelism);
+        out.endObject();
+
+        if (failed.length() == 0) {
+            out.name("success").value(true);
+            out.name("message").value("Consultas executadas com sucesso");
+        } else {
+            writeError(out, "Erro nas consultas: " + failed);
+        }
+    }
+
+    /**
+     * Tarefa de runParallel: recebe a conexao ja aberta pela thread da requisicao, ou null
+     */
+    private interface ParallelWork {
+        void run(Connection connection);
+    }
+
+    /**
+     * Juncao de runParallelDrained, na thread da requisicao
+     */
+    private interface ParallelDrain {
+        /**
+         * @param workersDone true quando nenhuma execucao de work esta mais rodando
+         */
+        void drain(BooleanSupplier workersDone) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Roda work na thread da requisicao e em ate (tasks - 1) threads extras, enquanto
+     * houver vagas livres no servidor (modo residente). Cada execucao consome itens de uma
+     * fila compartilhada ate ela acabar e libera a propria conexao (ver LazyConnection).
+     * No modo CLI roda so na thread da requisicao.
+     *
+     * @param connection Conexao ja aberta, entregue a execucao da thread da requisicao (ou null)
+     * @return Numero de threads que executaram work
+     */
+    private static int runParallel(int tasks, Connection connection, RequestContext context, ParallelWork work)
+            throws InterruptedException {
+        int extraWorkers = acquireWorkers(tasks - 1, context);
+        CountDownLatch finished = new CountDownLatch(extraWorkers);
+        for (int i = 0; i < extraWorkers; i++) {
+            // Se o executor recusar a tarefa, os itens ficam para a thread da requisicao
+            startWorker(context, true, () -> work.run(null), finished);
+        }
+
+        work.run(connection);
+        finished.await();
+        return extraWorkers + 1;
+    }
+
+    /**
+     * Variante de runParallel em que a thread da requisicao nao executa work: ela so junta
+     * os resultados com drain, enquanto ate tasks execucoes rodam em threads do servidor, a
+     * primeira com a vaga e a conexao da propria requisicao.
+     *
+     * Sem nenhuma vaga extra (ou no modo CLI) nada e executado: o retorno e 0 e quem chamou
+     * faz o trabalho em sequencia com a conexao, que continua sendo sua.
+     *
+     * @return Numero de threads que executaram work, ou 0
+     */
+    private int runParallelDrained(int tasks, Connection connection, RequestContext context, ParallelWork work,
+                                   ParallelDrain drain) throws IOException, InterruptedException {
+        int extraWorkers = acquireWorkers(tasks - 1, context);
+        if (extraWorkers == 0) {
+            return 0;
+        }
+
+        CountDownLatch finished = new CountDownLatch(extraWorkers + 1);
+        if (!startWorker(context, false, () -> work.run(connection), finished)) {
+            // Executor recusou a tarefa: os itens ficam para as demais
+            connections.release(connection);
+        }
+        for (int i = 0; i < extraWorkers; i++) {
+            startWorker(context, true, () -> work.run(null), finished);
+        }
+
+        drain.drain(() -> finished.getCount() == 0);
+        finished.await();
+        return extraWorkers + 1;
+    }
+
+    /**
+     * Reserva, sem esperar, ate max vagas para execucoes extras (ver RequestContext.tryAcquireWorker)
+     */
+    private static int acquireWorkers(int max, RequestContext context) {
+        int acquired = 0;
+        while (acquired < max && context.tryAcquireWorker()) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    /**
+     * Roda task em uma thread do servidor e conta finished ao terminar
+     *
+     * @param extra Devolver ao fim a vaga reservada em acquireWorkers
+     * @return false se o executor recusou a tarefa (finished ja contado e vaga devolvida)
+     */
+    private static boolean startWorker(RequestContext context, boolean extra, Runnable task, CountDownLatch finished) {
+        try {
+            context.getWorkers().execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    if (extra) {
+                        context.releaseWorker();
+                    }
+                    finished.countDown();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            if (extra) {
+                context.releaseWorker();
+            }
+            finished.countDown();
+            return false;
+        }
+    }
+
+    /**
+     * Conexao de uma execucao de runParallel: obtida so quando ainda ha item da fila para
+     * executar, e devolvida ao fechar
+     */
+    private final class LazyConnection implements AutoCloseable {
+        private final RequestContext context;
+        private Connection connection;
+
+        /**
+         * @param connection Conexao ja aberta, ou null
+         */
+        LazyConnection(Connection connection, RequestContext context) {
+            this.connection = connection;
+            this.context = context;
+        }
+
+        Connection get() throws SQLException, ClassNotFoundException {
+            if (connection == null) {
+                connection = acquire(context);
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Executa as consultas ainda nao iniciadas de executeMultiQuery, uma por vez, em uma unica conexao
+     */
+    private void runQueries(String[] sqls, JsonArray[] parameters, String[] results, boolean[] succeeded,
+                            AtomicInteger nextQuery, RequestContext context) {
+        try (LazyConnection connection = new LazyConnection(null, context)) {
+            int index;
+            while ((index = nextQuery.getAndIncrement()) < sqls.length) {
+                StringWriter buffer = new StringWriter();
+                JsonWriter json = new JsonWriter(buffer);
+                json.beginObject();
+                try {
+                    succeeded[index] = writeQuery(connection.get(), sqls[index], parameters[index], context, json);
+                } catch (ClassNotFoundException e) {
+                    writeError(json, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+                } catch (SQLException e) {
+                    writeError(json, "Erro na execucao da consulta: " + e.getMessage());
+                }
+                json.endObject();
+                json.flush();
+                results[index] = buffer.toString();
+            }
+        } catch (IOException e) {
+            // StringWriter nao lanca IOException
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Devolve uma pagina de qualquer tabela por paginacao keyset (ver KeysetPagination),
+     * com os cursores opacos para a pagina seguinte e a anterior
+     */
+    public void getPage(JsonObject spec, RequestContext context, JsonWriter out) throws IOException {
+        KeysetPagination page;
+        try {
+            page = KeysetPagination.parse(spec);
+        } catch (IllegalArgumentException | IllegalStateException | ClassCastException | UnsupportedOperationException e) {
+            writeError(out, "Paginacao invalida: " + e.getMessage());
+            return;
+        }
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        String sql = null;
+
+        try {
+            connection = acquire(context);
+
+            JsonArray position = page.cursor;
+            boolean skippedPastEnd = false;
+            if (position == null && page.skip > 0 && !page.backward) {
+                // Navegacao por numero de pagina: le so as chaves das linhas puladas
+                position = skipTo(connection, page, context);
+                skippedPastEnd = position == null;
+            }
+
+            // Os poucos formatos de SQL de cada listagem ficam no cache de statements do pool
+            sql = skippedPastEnd ? null : page.pageSql(position != null);
+            // Linhas ja em JSON: direction=prev precisa inverter a ordem antes de escrever
+            List<String> rows = new ArrayList<>();
+            Object[] firstKey = null;
+            Object[] lastKey = null;
+            boolean more = false;
+            ResultFormat format = context.getResultFormat();
+            RowEncoder encoder = null;
+
+            if (sql != null) {
+                stmt = context.track(connections.prepare(connection, sql));
+                // A pagina (mais a linha extra) vem em uma unica busca
+                context.limitRows(stmt, page.limit + 1);
+                SqlParameters.bind(stmt, page.pageParameters(position));
+                long executeStart = System.nanoTime();
+                rs = stmt.executeQuery();
+                long executeNanos = System.nanoTime() - executeStart;
+
+                ResultSetMetaData metaData = rs.getMetaData();
+                encoder = RowEncoder.of(metaData);
+                int[] keyIndexes = page.keyIndexes(metaData);
+                StringWriter buffer = new StringWriter();
+
+                List<Object[]> keys = new ArrayList<>();
+                RowStream read = new RowStream();
+                long fetchStart = System.nanoTime();
+                while (rs.next()) {
+                    long fetched = System.nanoTime();
+                    read.fetchNanos += fetched - fetchStart;
+                    if (rows.size() == page.limit) {
+                        // Linha extra: existe outra pagina na direcao pedida
+                        more = true;
+                        break;
+                    }
+
+                    buffer.getBuffer().setLength(0);
+                    format.writeRow(encoder, rs, new JsonWriter(buffer));
+                    // Valores das chaves como objetos, so para montar os cursores
+                    Object[] key = new Object[keyIndexes.length];
+                    for (int k = 0; k < keyIndexes.length; k++) {
+                        key[k] = rs.getObject(keyIndexes[k]);
+                    }
+                    rows.add(buffer.toString());
+                    keys.add(key);
+                    fetchStart = System.nanoTime();
+                    read.serializeNanos += fetchStart - fetched;
+                }
+                if (!more) {
+                    // Ultimo rs.next() (fim do resultado)
+                    read.fetchNanos += System.nanoTime() - fetchStart;
+                }
+                read.count = rows.size();
+                recordQuery(context, sql, executeNanos, read);
+
+                if (page.backward) {
+                    // Lida em ordem inversa a partir do cursor: devolver na ordem da listagem
+                    Collections.reverse(rows);
+                    Collections.reverse(keys);
+                }
+                if (!rows.isEmpty()) {
+                    firstKey = keys.get(0);
+                    lastKey = keys.get(keys.size() - 1);
+                }
+            }
+
+            boolean seeked = position != null;
+            boolean hasNext = page.backward ? seeked : more;
+            boolean hasPrev = page.backward ? more : seeked || skippedPastEnd;
+
+            long total = page.count ? countRows(connection, page, context) : -1;
+
+            out.name("data").beginObject();
+            out.name("results");
+            format.beginRows(out, encoder);
+            for (String row : rows) {
+                out.jsonValue(row);
+            }
+            format.endRows(out);
+            out.name("count").value(rows.size());
+            out.name("limit").value(page.limit);
+            out.name("has_next").value(hasNext);
+            out.name("has_prev").value(hasPrev);
+            out.name("next_cursor").value(hasNext && lastKey != null ? page.encodeCursor(lastKey) : null);
+            out.name("prev_cursor").value(hasPrev && firstKey != null ? page.encodeCursor(firstKey) : null);
+            if (page.count) {
+                out.name("total").value(total);
+            }
+            out.name("sql").value(sql);
+            out.endObject();
+
+            out.name("success").value(true);
+            out.name("message").value("Pagina obtida com sucesso");
+
+        } catch (ClassNotFoundException e) {
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            writeError(out, "Erro na consulta paginada Progress JDBC: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            writeError(out, "Paginacao invalida: " + e.getMessage());
+        } finally {
+            closeQuietly(rs);
+            connections.releaseStatement(connection, stmt);
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Posicao (chaves tipadas) da ultima das "skip" primeiras linhas, ou null se a
+     * listagem tem menos linhas que isso
+     */
+    private JsonArray skipTo(Connection connection, KeysetPagination page, RequestContext context) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = context.track(connections.prepare(connection, page.skipSql()));
+            context.limitRows(stmt, page.skip);
+            SqlParameters.bind(stmt, page.pageParameters(null));
+            rs = stmt.executeQuery();
+            // So as colunas da chave: linhas estreitas, lotes grandes
+            context.adaptFetchSize(rs, page.skip);
+
+            Object[] key = new Object[page.keys.length];
+            int skipped = 0;
+            while (rs.next()) {
+                for (int k = 0; k < key.length; k++) {
+                    key[k] = rs.getObject(k + 1);
+                }
+                skipped++;
+            }
+            return skipped < page.skip ? null : page.position(key);
+        } finally {
+            closeQuietly(rs);
+            connections.releaseStatement(connection, stmt);
+        }
+    }
+
+    private long countRows(Connection connection, KeysetPagination page, RequestContext context) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = context.track(connections.prepare(connection, page.countSql()));
+            SqlParameters.bind(stmt, page.pageParameters(null));
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            closeQuietly(rs);
+            connections.releaseStatement(connection, stmt);
+        }
+    }
+
+    /**
+     * Le uma tabela grande dividindo a faixa de uma chave inteira em particoes (ver
+     * PartitionedScan) e devolve as linhas no mesmo formato da acao query.
+     *
+     * No modo residente as particoes sao lidas em paralelo, cada thread com sua conexao do
+     * pool, enquanto houver vagas livres no servidor (como em multi); a thread da requisicao
+     * junta os lotes e escreve a resposta. No modo CLI, ou sem vagas, as particoes sao lidas
+     * em sequencia na conexao da requisicao.
+     */
+    public void scanPartitioned(JsonObject spec, RequestContext context, JsonWriter out) throws IOException {
+        PartitionedScan scan;
+        try {
+            scan = PartitionedScan.parse(spec);
+        } catch (IllegalArgumentException | IllegalStateException | ClassCastException | UnsupportedOperationException e) {
+            writeError(out, "Varredura invalida: " + e.getMessage());
+            return;
+        }
+
+        Connection connection = null;
+        long[][] ranges;
+        try {
+            connection = acquire(context);
+            ranges = readRanges(connection, scan, context);
+        } catch (ClassNotFoundException e) {
+            connections.release(connection);
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+            return;
+        } catch (SQLException e) {
+            connections.release(connection);
+            writeError(out, "Erro na varredura particionada: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            connections.release(connection);
+            writeError(out, "Parametros invalidos: " + e.getMessage());
+            return;
+        }
+
+        int maxRows = context.maxRows(0);
+        out.name("data").beginObject();
+        out.name("results");
+        PartitionedScan.RowsWriter rows = new PartitionedScan.RowsWriter(out, context.getResultFormat(), maxRows);
+        long[] partitionRows = new long[ranges.length];
+
+        PartitionedScan.Merge merge = new PartitionedScan.Merge(ranges.length, scan.ordered);
+        AtomicInteger nextPartition = new AtomicInteger();
+        int parallelism;
+        Exception failure;
+        try {
+            parallelism = runParallelDrained(ranges.length, connection, context,
+                    readerConnection -> readPartitions(readerConnection, scan, ranges, nextPartition, partitionRows,
+                            maxRows, context, merge),
+                    readersDone -> merge.drain(ranges.length, rows, context, readersDone));
+            failure = merge.failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            context.cancel();
+            parallelism = 1;
+            failure = e;
+        }
+
+        if (parallelism == 0) {
+            // Sem vaga extra: leitura em sequencia, direto na resposta
+            try {
+                int index = 0;
+                while (index < ranges.length
+                        && readPartition(connection, scan, index, ranges[index], partitionRows, maxRows, context, rows)) {
+                    index++;
+                }
+            } finally {
+                connections.release(connection);
+            }
+            failure = rows.failure;
+            parallelism = 1;
+        }
+
+        rows.finish();
+        out.name("total").value(rows.count);
+        if (maxRows > 0) {
+            // total == max_rows: pode haver mais linhas alem do limite
+            out.name("max_rows").value(maxRows);
+        }
+        out.name("partitions").beginArray();
+        for (int i = 0; i < ranges.length; i++) {
+            out.beginObject();
+            out.name("from").value(ranges[i][0]);
+            out.name("to").value(ranges[i][1]);
+            out.name("rows").value(partitionRows[i]);
+            out.endObject();
+        }
+        out.endArray();
+        out.name("parallelism").value(parallelism);
+        out.name("ordered").value(scan.ordered);
+        out.name("sql").value(scan.partitionSql());
+        out.endObject();
+
+        if (failure == null) {
+            out.name("success").value(true);
+            out.name("message").value("Varredura executada com sucesso");
+        } else {
+            writeError(out, "Erro na varredura particionada: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Faixas de chave das particoes, pelo MIN/MAX da chave para o filtro (vazio sem linhas)
+     */
+    private long[][] readRanges(Connection connection, PartitionedScan scan, RequestContext context) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = context.track(connections.prepare(connection, scan.boundsSql()));
+            context.limitRows(stmt, 1);
+            SqlParameters.bind(stmt, scan.boundsParameters());
+            long executeStart = System.nanoTime();
+            rs = stmt.executeQuery();
+            context.timings().add(ConnectorMetrics.Phase.EXECUTE, System.nanoTime() - executeStart);
+
+            if (!rs.next()) {
+                return new long[0][];
+            }
+            long lowest = rs.getLong(1);
+            if (rs.wasNull()) {
+                return new long[0][];
+            }
+            return scan.split(lowest, rs.getLong(2));
+        } finally {
+            closeQuietly(rs);
+            connections.releaseStatement(connection, stmt);
+        }
+    }
+
+    /**
+     * Le as particoes ainda nao iniciadas de scanPartitioned, uma por vez, em uma unica conexao
+     */
+    private void readPartitions(Connection opened, PartitionedScan scan, long[][] ranges, AtomicInteger nextPartition,
+                                long[] partitionRows, int maxRows, RequestContext context, PartitionedScan.Merge merge) {
+        try (LazyConnection connection = new LazyConnection(opened, context)) {
+            int index;
+            while ((index = nextPartition.getAndIncrement()) < ranges.length) {
+                Connection partitionConnection;
+                try {
+                    partitionConnection = connection.get();
+                } catch (ClassNotFoundException | SQLException e) {
+                    merge.accept(new PartitionedScan.Chunk(index, null, Collections.emptyList(), true, e));
+                    return;
+                }
+                if (!readPartition(partitionConnection, scan, index, ranges[index], partitionRows, maxRows, context, merge)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Merge nao lanca IOException
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Le uma particao e entrega as linhas, ja em JSON, a sink em lotes de CHUNK_ROWS.
+     * O ultimo lote (last) sempre e entregue, com a falha da leitura se houver.
+     *
+     * @return false se sink recusou as linhas ou a leitura falhou
+     */
+    private boolean readPartition(Connection connection, PartitionedScan scan, int index, long[] range, long[] partitionRows,
+                                  int maxRows, RequestContext context, PartitionedScan.ChunkSink sink) throws IOException {
+        String sql = scan.partitionSql();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        RowEncoder encoder = null;
+        List<String> chunk = new ArrayList<>();
+        RowStream read = new RowStream();
+        long executeStart = System.nanoTime();
+        long executeNanos = 0;
+        Exception failure = null;
+
+        try {
+            // Todas as particoes usam o mesmo SQL: um unico statement no cache de cada conexao
+            stmt = context.track(connections.prepare(connection, sql));
+            context.limitRows(stmt, maxRows);
+            SqlParameters.bind(stmt, scan.partitionParameters(range));
+            executeStart = System.nanoTime();
+            rs = stmt.executeQuery();
+            executeNanos = System.nanoTime() - executeStart;
+            context.adaptFetchSize(rs, maxRows);
+
+            encoder = RowEncoder.of(rs.getMetaData());
+            ResultFormat format = context.getResultFormat();
+            StringWriter buffer = new StringWriter();
+            long fetchStart = System.nanoTime();
+            while (rs.next()) {
+                long fetched = System.nanoTime();
+                read.fetchNanos += fetched - fetchStart;
+                buffer.getBuffer().setLength(0);
+                format.writeRow(encoder, rs, new JsonWriter(buffer));
+                chunk.add(buffer.toString());
+                read.count++;
+                fetchStart = System.nanoTime();
+                read.serializeNanos += fetchStart - fetched;
+
+                if (chunk.size() == PartitionedScan.CHUNK_ROWS) {
+                    if (!sink.accept(new PartitionedScan.Chunk(index, encoder, chunk, false, null))) {
+                        return false;
+                    }
+                    chunk = new ArrayList<>();
+                    fetchStart = System.nanoTime();
+                }
+            }
+            read.fetchNanos += System.nanoTime() - fetchStart;
+        } catch (SQLException e) {
+            failure = e;
+            read.failure = e;
+        } catch (IllegalArgumentException e) {
+            failure = e;
+        } finally {
+            closeQuietly(rs);
+            connections.releaseStatement(connection, stmt);
+            partitionRows[index] = read.count;
+            if (encoder != null || failure != null) {
+                recordQuery(context, sql, executeNanos != 0 ? executeNanos : System.nanoTime() - executeStart, read);
+            }
+        }
+
+        return sink.accept(new PartitionedScan.Chunk(index, encoder, chunk, true, failure)) && failure == null;
+    }
+
+    /**
+     * Busca municipios pelo nome no indice em memoria (ver MunicipioIndex), sem
+     * diferenciar acentos e maiusculas. Mesmo formato de resultado da consulta
+     * SELECT TOP n ... FROM PUB.municipio m INNER JOIN PUB.estado e.
+     *
+     * O indice e carregado no primeiro uso e recarregado apos
+     * -Dconnector.municipios.refreshMinutes (padrao 60), quando o conector altera
+     * municipio/estado ou quando refresh for true. So o primeiro uso e o refresh esperam
+     * a carga; nos demais casos a busca usa o indice atual e, no modo residente, a
+     * recarga roda em segundo plano (uma por vez).
+     *
+     * @param codest Codigo do estado para filtrar, ou null para todos
+     */
+    public void autocompleteMunicipio(String search, Integer codest, int limit, boolean refresh,
+                                      RequestContext context, JsonWriter out) throws IOException {
+        MunicipioIndex index;
+        try {
+            index = municipioIndex(refresh, context);
+        } catch (ClassNotFoundException e) {
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+            return;
+        } catch (SQLException e) {
+            writeError(out, "Erro ao carregar indice de municipios: " + e.getMessage());
+            return;
+        }
+
+        int[] rows = index.search(search, codest, Math.max(1, Math.min(limit, 100)));
+
+        out.name("data").beginObject();
+        out.name("results");
+        index.writeRows(out, rows);
+        out.name("total").value(rows.length);
+        out.name("indexed").value(index.size());
+        out.name("loaded_at").value(new Timestamp(index.loadedAt).toString());
+        out.endObject();
+
+        out.name("success").value(true);
+        out.name("message").value("Municipios obtidos com sucesso");
+    }
+
+    private MunicipioIndex municipioIndex(boolean refresh, RequestContext context) throws SQLException, ClassNotFoundException {
+        long requestedAt = System.currentTimeMillis();
+        MunicipioIndex index = municipios;
+        if (!refresh && index != null) {
+            if (requestedAt - index.loadedAt >= municipiosRefreshMs || municipiosSynced != municipiosChanges.get()) {
+                refreshMunicipiosInBackground(context);
+            }
+            return index;
+        }
+
+        // Primeiro uso ou refresh pedido: esperar a carga. ReentrantLock em vez de synchronized:
+        // quem espera durante a consulta nao prende a thread de plataforma de uma virtual thread
+        municipiosLock.lock();
+        try {
+            // Outra requisicao pode ter carregado enquanto esta aguardava
+            index = municipios;
+            if (index != null && (!refresh || index.loadedAt >= requestedAt)) {
+                return index;
+            }
+            return loadMunicipios(context);
+        } finally {
+            municipiosLock.unlock();
+        }
+    }
+
+    /**
+     * Recarrega o indice em uma thread do servidor, se houver vaga livre e nenhuma recarga
+     * em andamento. Sem vaga (ou no modo CLI) o indice atual continua valendo e a proxima
+     * busca tenta de novo.
+     */
+    private void refreshMunicipiosInBackground(RequestContext context) {
+        if (!municipiosRefreshing.compareAndSet(false, true)) {
+            return;
+        }
+        if (!context.tryAcquireWorker()) {
+            municipiosRefreshing.set(false);
+            return;
+        }
+        // Contexto proprio: a recarga nao e cancelada se o cliente desta busca desconectar
+        RequestContext refreshContext = new RequestContext(context.getQueryTimeoutSeconds());
+        try {
+            context.getWorkers().execute(() -> {
+                try {
+                    if (municipiosLock.tryLock()) {
+                        try {
+                            loadMunicipios(refreshContext);
+                        } finally {
+                            municipiosLock.unlock();
+                        }
+                    }
+                } catch (SQLException | ClassNotFoundException | RuntimeException e) {
+                    System.err.println("Aviso: falha ao recarregar indice de municipios: " + e.getMessage());
+                } finally {
+                    context.releaseWorker();
+                    municipiosRefreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Executor recusou a tarefa: fica para a proxima busca
+            context.releaseWorker();
+            municipiosRefreshing.set(false);
+        }
+    }
+
+    /**
+     * Le o indice e troca o atual; chamar com municipiosLock
+     */
+    private MunicipioIndex loadMunicipios(RequestContext context) throws SQLException, ClassNotFoundException {
+        long changes = municipiosChanges.get();
+        Connection connection = null;
+        MunicipioIndex index;
+        try {
+            connection = acquire(context);
+            index = MunicipioIndex.load(connection, context);
+        } finally {
+            connections.release(connection);
+        }
+        municipios = index;
+        // Alteracoes ate o inicio desta leitura ja estao no indice
+        municipiosSynced = changes;
+        return index;
+    }
+
+    /**
+     * Avisa o conector de tabelas alteradas por ele mesmo (modo residente), para
+     * descartar dados derivados delas
+     *
+     * @param tables Tabelas sem schema, em minusculas; null se nao identificadas
+     */
+    public void tablesChanged(Set<String> tables) {
+        if (tables == null || tables.contains("municipio") || tables.contains("estado")) {
+            // O indice atual segue atendendo as buscas ate a recarga terminar
+            municipiosChanges.incrementAndGet();
+        }
+        TableMirror current = mirror;
+        if (current != null) {
+            current.tablesChanged(tables);
+        }
+    }
+
+    /**
+     * Passa a responder a acao lookup pela copia local das tabelas (modo residente)
+     */
+    void useMirror(TableMirror mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * Busca por chave em uma tabela conhecida por TableMirror (transporte, paccd,
+     * spararviagem). Com a copia local em dia e consistency=mirror (padrao) responde
+     * sem ir ao Progress; senao executa o mesmo SELECT no Progress. data.source
+     * indica a origem: mirror ou live.
+     *
+     * Especificacao: {"table": "transporte", "where": {"codtrn": 10},
+     * "columns": ["codtrn", "nomtrn"], "limit": 1, "consistency": "mirror" | "live"}
+     */
+    public void lookup(JsonObject spec, RequestContext context, JsonWriter out) throws IOException {
+        TableMirror.Lookup lookup = TableMirror.Lookup.parse(spec);
+        TableMirror current = mirror;
+        if (lookup.mirrorAllowed && current != null
+                && current.lookup(lookup, context.getResultFormat(), context.getMaxRows(), out)) {
+            return;
+        }
+
+        String sql = lookup.liveSql();
+        try {
+            RowStream rows = readQuery(sql, lookup.liveParameters(), context, rs -> {
+                out.name("data").beginObject();
+                out.name("results");
+                return writeRows(rs, out, Integer.MAX_VALUE, context.getResultFormat());
+            });
+            out.name("total").value(rows.count);
+            out.name("source").value("live");
+            out.endObject();
+
+            writeStatus(out, rows, "Consulta executada com sucesso", "Erro na execucao da consulta: ");
+        } catch (ClassNotFoundException e) {
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            writeError(out, "Erro na execucao da consulta: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executa UPDATE, INSERT ou DELETE
+     */
+    public JsonObject executeUpdate(String sql, RequestContext context) {
+        JsonObject result = new JsonObject();
+        Connection connection = null;
+
+        try {
+            // Validacao basica de seguranca - permitir apenas UPDATE, INSERT, DELETE
+            String sqlUpper = sql.toUpperCase().trim();
+            if (!sqlUpper.startsWith("UPDATE") && !sqlUpper.startsWith("INSERT") && !sqlUpper.startsWith("DELETE")) {
+                result.addProperty("success", false);
+                result.addProperty("error", "Apenas comandos UPDATE, INSERT e DELETE sao permitidos");
+                return result;
+            }
+
+            connection = acquire(context);
+
+            int affectedRows;
+            try (Statement stmt = context.track(connection.createStatement())) {
+                long executeStart = System.nanoTime();
+                affectedRows = stmt.executeUpdate(sql);
+                recordUpdate(context, sql, System.nanoTime() - executeStart);
+            }
+
+            result.addProperty("success", true);
+            result.addProperty("message", "Comando executado com sucesso");
+
+            JsonObject data = new JsonObject();
+            data.addProperty("affected_rows", affectedRows);
+            data.addProperty("sql", sql);
+            result.add("data", data);
+
+        } catch (ClassNotFoundException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Erro na execucao do comando: " + e.getMessage());
+        } finally {
+            connections.release(connection);
+        }
+
+        return result;
+    }
+
+    /**
+     * Executa UPDATE, INSERT ou DELETE parametrizado (placeholders ?) com PreparedStatement
+     */
+    public JsonObject executePreparedUpdate(String sql, JsonArray parameters, RequestContext context) {
+        JsonObject result = new JsonObject();
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            // Validacao basica de seguranca - permitir apenas UPDATE, INSERT, DELETE
+            String sqlUpper = sql.toUpperCase().trim();
+            if (!sqlUpper.startsWith("UPDATE") && !sqlUpper.startsWith("INSERT") && !sqlUpper.startsWith("DELETE")) {
+                result.addProperty("success", false);
+                result.addProperty("error", "Apenas comandos UPDATE, INSERT e DELETE sao permitidos");
+                return result;
+            }
+
+            connection = acquire(context);
+
+            stmt = context.track(connections.prepare(connection, sql));
+            SqlParameters.bind(stmt, parameters);
+            long executeStart = System.nanoTime();
+            int affectedRows = stmt.executeUpdate();
+            recordUpdate(context, sql, System.nanoTime() - executeStart);
+
+            result.addProperty("success", true);
+            result.addProperty("message", "Comando executado com sucesso");
+
+            JsonObject data = new JsonObject();
+            data.addProperty("affected_rows", affectedRows);
+            data.addProperty("sql", sql);
+            result.add("data", data);
+
+        } catch (ClassNotFoundException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Erro na execucao do comando: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Parametros invalidos: " + e.getMessage());
+        } finally {
+            connections.releaseStatement(connection, stmt);
+            connections.release(connection);
+        }
+
+        return result;
+    }
+
+    /**
+     * Executa varios UPDATE, INSERT ou DELETE em uma unica transacao (addBatch/executeBatch).
+     *
+     * Cada item do lote e um SQL simples ou {"sql": "... ?", "params": [[...], [...]]},
+     * com um conjunto de valores por execucao do PreparedStatement. Os itens rodam na
+     * ordem recebida, na mesma conexao; qualquer falha desfaz o lote inteiro (rollback).
+     */
+    public JsonObject executeBatchUpdate(JsonArray batch, RequestContext context) {
+        JsonObject result = new JsonObject();
+        Connection connection = null;
+        int current = 0;
+
+        try {
+            if (batch.size() == 0) {
+                throw new IllegalArgumentException("lote vazio");
+            }
+
+            // Validar o lote inteiro antes de abrir a transacao
+            String[] sqls = new String[batch.size()];
+            JsonArray[] parameterSets = new JsonArray[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                JsonElement item = batch.get(i);
+                if (item.isJsonObject()) {
+                    JsonObject statement = item.getAsJsonObject();
+                    sqls[i] = statement.has("sql") ? statement.get("sql").getAsString() : "";
+                    parameterSets[i] = statement.has("params") ? statement.getAsJsonArray("params") : null;
+                } else {
+                    sqls[i] = item.getAsString();
+                }
+
+                String sqlUpper = sqls[i].toUpperCase().trim();
+                if (!sqlUpper.startsWith("UPDATE") && !sqlUpper.startsWith("INSERT") && !sqlUpper.startsWith("DELETE")) {
+                    result.addProperty("success", false);
+                    result.addProperty("error", "Apenas comandos UPDATE, INSERT e DELETE sao permitidos (comando " + (i + 1) + ")");
+                    return result;
+                }
+            }
+
+            connection = acquire(context);
+            connection.setAutoCommit(false);
+
+            JsonArray statementsArray = new JsonArray();
+            long totalAffected = 0;
+
+            while (current < sqls.length) {
+                if (parameterSets[current] != null) {
+                    int[] counts = executePreparedBatch(connection, sqls[current], parameterSets[current], context);
+                    totalAffected += addBatchResult(statementsArray, sqls[current], counts);
+                    current++;
+                    continue;
+                }
+
+                // Comandos SQL simples consecutivos vao juntos em um unico executeBatch
+                int end = current;
+                while (end < sqls.length && parameterSets[end] == null) {
+                    end++;
+                }
+
+                int[] counts;
+                try (Statement stmt = context.track(connection.createStatement())) {
+                    for (int i = current; i < end; i++) {
+                        stmt.addBatch(sqls[i]);
+                    }
+                    long executeStart = System.nanoTime();
+                    counts = stmt.executeBatch();
+                    context.timings().add(ConnectorMetrics.Phase.EXECUTE, System.nanoTime() - executeStart);
+                } catch (BatchUpdateException e) {
+                    // Drivers que param no primeiro erro devolvem as contagens dos comandos anteriores
+                    current += Math.min(e.getUpdateCounts() == null ? 0 : e.getUpdateCounts().length, end - current - 1);
+                    throw e;
+                }
+
+                for (int i = 0; i < counts.length; i++) {
+                    totalAffected += addBatchResult(statementsArray, sqls[current + i], new int[] { counts[i] });
+                }
+                current = end;
+            }
+
+            context.checkCancelled();
+            connection.commit();
+
+            result.addProperty("success", true);
+            result.addProperty("message", "Lote executado com sucesso");
+
+            JsonObject data = new JsonObject();
+            data.add("statements", statementsArray);
+            data.addProperty("statement_count", sqls.length);
+            data.addProperty("affected_rows", totalAffected);
+            result.add("data", data);
+
+        } catch (ClassNotFoundException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            rollbackQuietly(connection);
+            result.addProperty("success", false);
+            result.addProperty("error", "Erro na execucao do lote (comando " + (current + 1) + "), nenhuma alteracao aplicada: " + e.getMessage());
+        } catch (IllegalArgumentException | IllegalStateException | ClassCastException e) {
+            rollbackQuietly(connection);
+            result.addProperty("success", false);
+            result.addProperty("error", "Lote invalido: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    System.err.println("Aviso: erro ao restaurar autocommit: " + e.getMessage());
+                }
+            }
+            connections.release(connection);
+        }
+
+        return result;
+    }
+
+    /**
+     * Adiciona o resultado de um comando do lote e devolve o total de linhas afetadas por ele
+     */
+    private static int addBatchResult(JsonArray statements, String sql, int[] counts) {
+        JsonArray countsArray = new JsonArray();
+        int affectedRows = 0;
+        for (int count : counts) {
+            countsArray.add(count);
+            // SUCCESS_NO_INFO (-2): o driver executou mas nao informou a contagem
+            if (count > 0) {
+                affectedRows += count;
+            }
+        }
+
+        JsonObject statement = new JsonObject();
+        statement.addProperty("sql", sql);
+        statement.addProperty("affected_rows", affectedRows);
+        statement.add("counts", countsArray);
+        statements.add(statement);
+        return affectedRows;
+    }
+
+    private int[] executePreparedBatch(Connection connection, String sql, JsonArray parameterSets, RequestContext context) throws SQLException {
+        if (parameterSets.size() == 0) {
+            return new int[0];
+        }
+
+        PreparedStatement stmt = null;
+        try {
+            // No modo residente o statement vem do cache da conexao, sem novo parse no broker
+            stmt = context.track(connections.prepare(connection, sql));
+            for (JsonElement parameters : parameterSets) {
+                SqlParameters.bind(stmt, parameters.getAsJsonArray());
+                stmt.addBatch();
+            }
+            long executeStart = System.nanoTime();
+            int[] counts = stmt.executeBatch();
+            context.timings().add(ConnectorMetrics.Phase.EXECUTE, System.nanoTime() - executeStart);
+            return counts;
+        } finally {
+            if (stmt != null) {
+                try {
+                    // Statement do cache volta sem lote pendente se a execucao falhou
+                    stmt.clearBatch();
+                } catch (SQLException e) {
+                    // Statement ja encerrado
+                }
+            }
+            connections.releaseStatement(connection, stmt);
+        }
+    }
+
+    /**
+     * Obtem o schema/estrutura de uma tabela especifica
+     */
+    public JsonObject getTableSchema(String tableName, RequestContext context) {
+        return getTableSchema(tableName, false, context);
+    }
+
+    /**
+     * Obtem o schema/estrutura de uma tabela especifica. Tabelas presentes no
+     * SchemaSnapshot sao respondidas dele, sem ir ao broker.
+     *
+     * @param refresh Ignora o snapshot e le o schema no banco
+     */
+    public JsonObject getTableSchema(String tableName, boolean refresh, RequestContext context) {
+        JsonObject result = new JsonObject();
+
+        JsonObject stored = refresh ? null : schemaSnapshot().table(tableName);
+        if (stored != null) {
+            result.addProperty("success", true);
+            result.addProperty("message", "Schema da tabela obtido do snapshot");
+            result.add("data", stored);
+            return result;
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = acquire(context);
+
+            // Usar DatabaseMetaData para obter informacoes da tabela
+            JsonArray columnsArray = readColumns(connection.getMetaData(), tableName);
+
+            result.addProperty("success", true);
+            result.addProperty("message", "Schema da tabela obtido com sucesso");
+            result.add("data", describeTable(connection, tableName, columnsArray, context));
+
+        } catch (ClassNotFoundException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Driver JDBC Progress nao encontrado: " + e.getMessage());
+        } catch (SQLException e) {
+            result.addProperty("success", false);
+            result.addProperty("error", "Erro ao obter schema da tabela: " + e.getMessage());
+        } finally {
+            connections.release(connection);
+        }
+
+        return result;
+    }
+
+    /**
+     * Colunas de uma tabela PUB pelo DatabaseMetaData (vazio se a tabela nao existir)
+     */
+    private static JsonArray readColumns(DatabaseMetaData metaData, String tableName) throws SQLException {
+        JsonArray columnsArray = new JsonArray();
+
+        try (ResultSet columns = metaData.getColumns(null, "PUB", tableName.toUpperCase(), null)) {
+            while (columns.next()) {
+                JsonObject column = new JsonObject();
+
+                String columnName = columns.getString("COLUMN_NAME");
+                String dataType = columns.getString("TYPE_NAME");
+                int columnSize = columns.getInt("COLUMN_SIZE");
+                int decimalDigits = columns.getInt("DECIMAL_DIGITS");
+                boolean nullable = columns.getBoolean("NULLABLE");
+                String defaultValue = columns.getString("COLUMN_DEF");
+
+                column.addProperty("name", columnName.toLowerCase());
+                column.addProperty("type", dataType);
+                column.addProperty("size", columnSize);
+                column.addProperty("decimal_digits", decimalDigits);
+                column.addProperty("nullable", nullable);
+                column.addProperty("default_value", defaultValue);
+
+                columnsArray.add(column);
+            }
+        }
+
+        return columnsArray;
+    }
+
+    /**
+     * Chaves primarias, indices e amostra de dados de uma tabela cujas colunas ja foram
+     * lidas; devolve o "data" da acao schema
+     */
+    private JsonObject describeTable(Connection connection, String tableName, JsonArray columnsArray,
+                                     RequestContext context) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+
+        // Obter informacoes das chaves primarias
+        ResultSet primaryKeys = metaData.getPrimaryKeys(null, "PUB", tableName.toUpperCase());
+        JsonArray primaryKeysArray = new JsonArray();
+
+        while (primaryKeys.next()) {
+            JsonObject pk = new JsonObject();
+            pk.addProperty("column_name", primaryKeys.getString("COLUMN_NAME").toLowerCase());
+            pk.addProperty("key_seq", primaryKeys.getInt("KEY_SEQ"));
+            pk.addProperty("pk_name", primaryKeys.getString("PK_NAME"));
+            primaryKeysArray.add(pk);
+        }
+        primaryKeys.close();
+
+        // Obter informacoes dos indices
+        ResultSet indexes = metaData.getIndexInfo(null, "PUB", tableName.toUpperCase(), false, false);
+        JsonArray indexesArray = new JsonArray();
+        Map<String, JsonObject> indexMap = new HashMap<>();
+
+        while (indexes.next()) {
+            String indexName = indexes.getString("INDEX_NAME");
+            if (indexName != null) {
+                JsonObject index = indexMap.get(indexName);
+                if (index == null) {
+                    index = new JsonObject();
+                    index.addProperty("name", indexName);
+                    index.addProperty("unique", !indexes.getBoolean("NON_UNIQUE"));
+                    index.add("columns", new JsonArray());
+                    indexMap.put(indexName, index);
+                }
+
+                JsonObject indexColumn = new JsonObject();
+                indexColumn.addProperty("column_name", indexes.getString("COLUMN_NAME").toLowerCase());
+                indexColumn.addProperty("ordinal_position", indexes.getInt("ORDINAL_POSITION"));
+                indexColumn.addProperty("asc_or_desc", indexes.getString("ASC_OR_DESC"));
+
+                index.getAsJsonArray("columns").add(indexColumn);
+            }
+        }
+
+        for (JsonObject index : indexMap.values()) {
+            indexesArray.add(index);
+        }
+        indexes.close();
+
+        // Tentar obter uma amostra dos dados para analise adicional
+        JsonArray sampleData = new JsonArray();
+        try (Statement stmt = context.track(connection.createStatement());
+             ResultSet rs = executeLimited(stmt, "SELECT TOP 3 * FROM PUB." + tableName, 3, context)) {
+            // Limitar tamanho dos textos para evitar dados muito grandes
+            RowEncoder encoder = RowEncoder.of(rs.getMetaData(), 100);
+            StringWriter buffer = new StringWriter();
+            JsonWriter sample = new JsonWriter(buffer);
+            sample.beginArray();
+            while (rs.next()) {
+                encoder.write(rs, sample);
+            }
+            sample.endArray();
+            sampleData = JsonParser.parseString(buffer.toString()).getAsJsonArray();
+        } catch (SQLException | IOException e) {
+            // Se falhar ao obter dados de amostra, continuar sem eles
+            System.err.println("Aviso: Nao foi possivel obter dados de amostra: " + e.getMessage());
+        }
+
+        JsonObject data = new JsonObject();
+        data.addProperty("table_name", tableName.toLowerCase());
+        data.add("columns", columnsArray);
+        data.add("primary_keys", primaryKeysArray);
+        data.add("indexes", indexesArray);
+        data.add("sample_data", sampleData);
+        data.addProperty("column_count", columnsArray.size());
+        data.addProperty("primary_key_count", primaryKeysArray.size());
+        data.addProperty("index_count", indexesArray.size());
+        return data;
+    }
+
+    /**
+     * Le o schema de varias tabelas PUB, atualiza o SchemaSnapshot e o grava em disco.
+     *
+     * As tabelas sao lidas em paralelo, cada thread com sua conexao do pool (como em multi).
+     * De cada tabela le primeiro so as colunas: iguais as do snapshot, o schema guardado e
+     * mantido; senao (ou com refresh) chaves, indices e amostra sao lidos de novo.
+     *
+     * @param tableList Tabelas separadas por virgula; vazio = todas as tabelas PUB, e as que
+     *                  nao existem mais saem do snapshot
+     * @param refresh   Le tudo de novo mesmo sem mudanca nas colunas
+     */
+    public void snapshotSchema(String tableList, boolean refresh, RequestContext context, JsonWriter out) throws IOException {
+        SchemaSnapshot previous = schemaSnapshot();
+        boolean allTables = tableList.trim().isEmpty();
+        Connection connection = null;
+        String[] names;
+
+        try {
+            connection = acquire(context);
+            names = allTables ? listTables(connection) : splitTables(tableList);
+        } catch (ClassNotFoundException e) {
+            connections.release(connection);
+            writeError(out, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+            return;
+        } catch (SQLException e) {
+            connections.release(connection);
+            writeError(out, "Erro ao listar tabelas: " + e.getMessage());
+            return;
+        }
+
+        JsonObject[] schemas = new JsonObject[names.length];
+        boolean[] changed = new boolean[names.length];
+        String[] errors = new String[names.length];
+        AtomicInteger nextTable = new AtomicInteger();
+
+        int parallelism;
+        try {
+            parallelism = runParallel(names.length, connection, context, tableConnection ->
+                    describeTables(tableConnection, names, previous, refresh, schemas, changed, errors, nextTable, context));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            context.cancel();
+            writeError(out, "Requisicao interrompida");
+            return;
+        }
+
+        Map<String, JsonObject> updated = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (changed[i]) {
+                updated.put(names[i], schemas[i]);
+            }
+        }
+
+        SchemaSnapshot snapshot;
+        List<String> removed = new ArrayList<>();
+        String fileError = null;
+        synchronized (schemaSnapshotLock) {
+            // Parte do snapshot atual, nao do lido no inicio: outra atualizacao pode ter terminado antes
+            SchemaSnapshot current = schemaSnapshot();
+            snapshot = current.with(jdbcUrl, updated, allTables ? new HashSet<>(Arrays.asList(names)) : null);
+            for (String table : current.tables().keySet()) {
+                if (snapshot.table(table) == null) {
+                    removed.add(table);
+                }
+            }
+
+            if (updated.isEmpty() && removed.isEmpty() && jdbcUrl.equals(current.jdbcUrl)) {
+                snapshot = current;
+            } else {
+                try {
+                    snapshot.save(schemaSnapshotFile);
+                } catch (IOException | RuntimeException e) {
+                    // Sem o arquivo o snapshot ainda vale para este processo
+                    fileError = e.getMessage();
+                    System.err.println("Aviso: snapshot de schema nao foi gravado em " + schemaSnapshotFile + ": " + fileError);
+                }
+                schemaSnapshot = snapshot;
+            }
+        }
+
+        StringBuilder failed = new StringBuilder();
+        int unchanged = 0;
+        out.name("data").beginObject();
+        out.name("tables").beginObject();
+        for (int i = 0; i < names.length; i++) {
+            if (schemas[i] != null) {
+                out.name(names[i]);
+                writeJson(schemas[i], out);
+            }
+        }
+        out.endObject();
+        out.name("refreshed").beginArray();
+        for (int i = 0; i < names.length; i++) {
+            if (changed[i]) {
+                out.value(names[i]);
+            } else if (errors[i] == null) {
+                unchanged++;
+            }
+        }
+        out.endArray();
+        out.name("unchanged").value(unchanged);
+        out.name("removed").beginArray();
+        for (String table : removed) {
+            out.value(table);
+        }
+        out.endArray();
+        out.name("failed").beginObject();
+        for (int i = 0; i < names.length; i++) {
+            if (errors[i] != null) {
+                out.name(names[i]).value(errors[i]);
+                failed.append(failed.length() == 0 ? "" : ", ").append(names[i]);
+            }
+        }
+        out.endObject();
+        out.name("table_count").value(names.length);
+        out.name("parallelism").value(parallelism);
+        out.name("snapshot_at").value(snapshot.createdAt);
+        out.name("file").value(schemaSnapshotFile.toAbsolutePath().toString());
+        if (fileError != null) {
+            out.name("file_error").value(fileError);
+        }
+        out.endObject();
+
+        if (failed.length() == 0) {
+            out.name("success").value(true);
+            out.name("message").value("Snapshot de schema atualizado com sucesso");
+        } else {
+            writeError(out, "Erro ao ler schema das tabelas: " + failed);
+        }
+    }
+
+    /**
+     * Le as tabelas ainda nao iniciadas de snapshotSchema, uma por vez, em uma unica conexao
+     */
+    private void describeTables(Connection opened, String[] names, SchemaSnapshot previous, boolean refresh,
+                                JsonObject[] schemas, boolean[] changed, String[] errors, AtomicInteger nextTable,
+                                RequestContext context) {
+        try (LazyConnection tableConnection = new LazyConnection(opened, context)) {
+            int index;
+            while ((index = nextTable.getAndIncrement()) < names.length) {
+                try {
+                    Connection connection = tableConnection.get();
+                    context.checkCancelled();
+
+                    JsonArray columns = readColumns(connection.getMetaData(), names[index]);
+                    JsonObject stored = previous.table(names[index]);
+                    if (columns.size() == 0) {
+                        errors[index] = "Tabela nao encontrada";
+                    } else if (!refresh && stored != null && columns.equals(stored.get("columns"))) {
+                        schemas[index] = stored;
+                    } else {
+                        JsonObject schema = describeTable(connection, names[index], columns, context);
+                        schema.addProperty("introspected_at", System.currentTimeMillis());
+                        schemas[index] = schema;
+                        changed[index] = true;
+                    }
+                } catch (ClassNotFoundException e) {
+                    errors[index] = "Driver JDBC Progress nao encontrado: " + e.getMessage();
+                } catch (SQLException e) {
+                    errors[index] = e.getMessage();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tabelas do schema PUB, em minusculas
+     */
+    private static String[] listTables(Connection connection) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (ResultSet rs = connection.getMetaData().getTables(null, "PUB", "%", null)) {
+            while (rs.next()) {
+                // Progress informa TABLE; outros drivers, BASE TABLE. Views e tabelas de sistema ficam de fora
+                String type = rs.getString("TABLE_TYPE");
+                if ("TABLE".equals(type) || "BASE TABLE".equals(type)) {
+                    tables.add(rs.getString("TABLE_NAME").toLowerCase());
+                }
+            }
+        }
+        return tables.toArray(new String[0]);
+    }
+
+    private static String[] splitTables(String tableList) {
+        Set<String> tables = new LinkedHashSet<>();
+        for (String table : tableList.split(",")) {
+            String name = table.trim().toLowerCase();
+            if (name.startsWith("pub.")) {
+                name = name.substring(4);
+            }
+            if (!name.isEmpty()) {
+                tables.add(name);
+            }
+        }
+        return tables.toArray(new String[0]);
+    }
+
+    /**
+     * Snapshot de schema atual, lido de -Dconnector.schema.snapshotFile no primeiro uso
+     */
+    private SchemaSnapshot schemaSnapshot() {
+        SchemaSnapshot snapshot = schemaSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        synchronized (schemaSnapshotLock) {
+            if (schemaSnapshot == null) {
+                schemaSnapshot = SchemaSnapshot.load(schemaSnapshotFile, jdbcUrl);
+            }
+            return schemaSnapshot;
+        }
+    }
+
+    /**
+     * Linhas escritas por writeRows, o tempo gasto em rs.next() (fetch) e na escrita
+     * do JSON (serialize) e, se houver, a falha que interrompeu a leitura
+     */
+    static final class RowStream {
+        int count;
+        long fetchNanos;
+        long serializeNanos;
+        SQLException failure;
+    }
+
+    /**
+     * Escreve o ResultSet como array JSON enquanto rs.next() avanca, sem montar
+     * o resultado em memoria. Uma falha no meio da leitura (ex: timeout) fecha o
+     * array com as linhas ja enviadas e fica em RowStream.failure.
+     */
+    static RowStream writeRows(ResultSet rs, JsonWriter out, int limit) throws IOException {
+        return writeRows(rs, out, limit, ResultFormat.OBJECTS);
+    }
+
+    static RowStream writeRows(ResultSet rs, JsonWriter out, int limit, ResultFormat format) throws IOException {
+        RowStream rows = new RowStream();
+        RowEncoder encoder = null;
+        try {
+            // Nomes e extratores por tipo resolvidos uma vez por ResultSet
+            encoder = RowEncoder.of(rs.getMetaData());
+        } catch (SQLException e) {
+            rows.failure = e;
+        }
+
+        format.beginRows(out, encoder);
+        if (encoder != null) {
+            try {
+                long fetchStart = System.nanoTime();
+                while (rows.count < limit && rs.next()) {
+                    long fetched = System.nanoTime();
+                    rows.fetchNanos += fetched - fetchStart;
+                    format.writeRow(encoder, rs, out);
+                    rows.count++;
+                    fetchStart = System.nanoTime();
+                    rows.serializeNanos += fetchStart - fetched;
+                }
+                // Ultimo rs.next() (fim do resultado)
+                rows.fetchNanos += System.nanoTime() - fetchStart;
+            } catch (SQLException e) {
+                rows.failure = e;
+            }
+        }
+        format.endRows(out);
+        return rows;
+    }
+
+    /**
+     * Tempos e linhas de uma consulta lida por writeRows, para o ConnectorMetrics
+     */
+    private static void recordQuery(RequestContext context, String sql, long executeNanos, RowStream rows) {
+        ConnectorMetrics.Timings timings = context.timings();
+        timings.add(ConnectorMetrics.Phase.EXECUTE, executeNanos);
+        timings.add(ConnectorMetrics.Phase.FETCH, rows.fetchNanos);
+        timings.add(ConnectorMetrics.Phase.SERIALIZE, rows.serializeNanos);
+        timings.query(sql, executeNanos + rows.fetchNanos, rows.count, rows.failure == null);
+    }
+
+    private static void recordUpdate(RequestContext context, String sql, long executeNanos) {
+        context.timings().add(ConnectorMetrics.Phase.EXECUTE, executeNanos);
+        context.timings().query(sql, executeNanos, 0, true);
+    }
+
+    /**
+     * Conexao da requisicao: nova no modo CLI, do pool no modo residente. A espera no pool
+     * (ou o login no modo CLI) entra na fase acquire
+     */
+    private Connection acquire(RequestContext context) throws SQLException, ClassNotFoundException {
+        long start = System.nanoTime();
+        try {
+            return connections.acquire();
+        } finally {
+            context.timings().add(ConnectorMetrics.Phase.ACQUIRE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Fecha o envelope de uma resposta em streaming: success/message quando todas as
+     * linhas foram lidas, ou success=false com o erro que interrompeu a leitura
+     */
+    static void writeStatus(JsonWriter out, RowStream rows, String message, String errorPrefix) throws IOException {
+        if (rows.failure == null) {
+            out.name("success").value(true);
+            out.name("message").value(message);
+        } else {
+            writeError(out, errorPrefix + rows.failure.getMessage());
+        }
+    }
+
+    static void writeError(JsonWriter out, String error) throws IOException {
+        out.name("success").value(false);
+        out.name("error").value(error);
+    }
+
+    /**
+     * Escreve os campos de um JsonObject ja montado dentro do objeto aberto em out
+     */
+    static void writeMembers(JsonWriter out, JsonObject object) throws IOException {
+        for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+            out.name(member.getKey());
+            writeJson(member.getValue(), out);
+        }
+    }
+
+    /**
+     * Escreve um JsonElement ja montado em out, com a mesma saida de JsonElement.toString()
+     * (nulos mantidos e sem escape de HTML). So usa o JsonWriter: criar um Gson carrega
+     * dezenas de classes de adapters, custo relevante na partida de cada JVM do modo CLI
+     */
+    static void writeJson(JsonElement element, JsonWriter out) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            out.nullValue();
+        } else if (element.isJsonObject()) {
+            out.beginObject();
+            writeMembers(out, element.getAsJsonObject());
+            out.endObject();
+        } else if (element.isJsonArray()) {
+            out.beginArray();
+            for (JsonElement item : element.getAsJsonArray()) {
+                writeJson(item, out);
+            }
+            out.endArray();
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                out.value(primitive.getAsNumber());
+            } else if (primitive.isBoolean()) {
+                out.value(primitive.getAsBoolean());
+            } else {
+                out.value(primitive.getAsString());
+            }
+        }
+    }
+
+    private static ResultSet executeLimited(Statement stmt, String sql, int maxRows, RequestContext context) throws SQLException {
+        context.limitRows(stmt, maxRows);
+        return stmt.executeQuery(sql);
+    }
+
+    private static void rollbackQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.err.println("Aviso: erro ao desfazer transacao: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable resource) {
+        if (resource == null) {
+            return;
+        }
+        try {
+            resource.close();
+        } catch (Exception e) {
+            System.err.println("Aviso: erro ao fechar recurso JDBC: " + e.getMessage());
+        }
+    }
+
+    private String extractHost(String jdbcUrl) {
+        try {
+            return jdbcUrl.split("://")[1].split(":")[0];
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    private String extractDatabase(String jdbcUrl) {
+        try {
+            String[] parts = jdbcUrl.split("databaseName=");
+            if (parts.length > 1) {
+                return parts[1].split(";")[0];
+            }
+            return "unknown";
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Executa uma acao do conector escrevendo os campos da resposta JSON em out.
+     * O objeto externo ({ ... }) e aberto e fechado por quem chama, o que permite ao
+     * modo servidor acrescentar o "id" da requisicao. Usado tanto pelo modo CLI
+     * (uma JVM por chamada) quanto pelo modo servidor.
+     *
+     * @param action Acao solicitada (test, transportes, query-paginated, query, update, schema,
+     *               schema-snapshot, query-prepared, update-prepared, batch-update, multi, page,
+     *               autocomplete-municipio, export, scan, lookup)
+     * @param params Parametros posicionais da acao (mesma ordem dos argumentos da linha de comando)
+     * @param context Timeout e cancelamento da requisicao (modo residente)
+     */
+    public void dispatch(String action, String[] params, RequestContext context, JsonWriter out) throws IOException {
+        switch (action) {
+            case "test":
+                writeMembers(out, testConnection());
+                break;
+            case "transportes":
+                String whereClause = param(params, 0, "");
+                int limit = params.length > 1 ? Integer.parseInt(params[1]) : 100;
+                getTransportes(whereClause, limit, context, out);
+                break;
+            case "query-paginated":
+                String whereClausePag = param(params, 0, "");
+                int limitPag = params.length > 1 ? Integer.parseInt(params[1]) : 10;
+                int offsetPag = params.length > 2 ? Integer.parseInt(params[2]) : 0;
+                getTransportesPaginated(whereClausePag, limitPag, offsetPag, context, out);
+                break;
+            case "query":
+                executeCustomQuery(params.length > 0 ? params[0] : "", context, out);
+                break;
+            case "update":
+                writeMembers(out, executeUpdate(params.length > 0 ? params[0] : "", context));
+                break;
+            case "schema":
+                writeMembers(out, getTableSchema(param(params, 0, "transporte"), param(params, 1, "").equals("refresh"), context));
+                break;
+            case "schema-snapshot":
+                snapshotSchema(param(params, 0, ""), param(params, 1, "").equals("refresh"), context, out);
+                break;
+            case "query-prepared":
+                executePreparedQuery(param(params, 0, ""), SqlParameters.parse(param(params, 1, "")), context, out);
+                break;
+            case "update-prepared":
+                writeMembers(out, executePreparedUpdate(param(params, 0, ""), SqlParameters.parse(param(params, 1, "")), context));
+                break;
+            case "batch-update":
+                writeMembers(out, executeBatchUpdate(SqlParameters.parse(param(params, 0, "")), context));
+                break;
+            case "multi":
+                executeMultiQuery(SqlParameters.parseJson(param(params, 0, "{}")).getAsJsonObject(), context, out);
+                break;
+            case "page":
+                getPage(SqlParameters.parseJson(param(params, 0, "{}")).getAsJsonObject(), context, out);
+                break;
+            case "autocomplete-municipio":
+                String codest = param(params, 1, "");
+                autocompleteMunicipio(param(params, 0, ""), codest.isEmpty() ? null : Integer.valueOf(codest),
+                        Integer.parseInt(param(params, 2, "20")), param(params, 3, "").equals("refresh"), context, out);
+                break;
+            case "lookup":
+                lookup(SqlParameters.parseJson(param(params, 0, "{}")).getAsJsonObject(), context, out);
+                break;
+            case "scan":
+                scanPartitioned(SqlParameters.parseJson(param(params, 0, "{}")).getAsJsonObject(), context, out);
+                break;
+            case "job-submit":
+            case "job-status":
+            case "job-fetch":
+            case "job-cancel":
+                // O job precisa sobreviver a requisicao: no modo CLI a JVM termina com ela
+                writeError(out, "Jobs exigem o conector residente (acao serve)");
+                break;
+            case "export":
+                exportQuery(param(params, 0, ""), SqlParameters.parseJson(param(params, 1, "{}")).getAsJsonObject(), context, out);
+                break;
+            default:
+                writeError(out, "Acao invalida. Use: test, transportes, query-paginated, query, update, schema, schema-snapshot, query-prepared, update-prepared, batch-update, multi, page, scan, lookup, autocomplete-municipio ou export");
+        }
+    }
+
+    private static String param(String[] params, int index, String defaultValue) {
+        return params.length > index && params[index] != null && !params[index].isEmpty() ? params[index] : defaultValue;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("{\"success\":false,\"error\":\"Argumentos insuficientes. Uso: java br.com.tambasa.connector.ProgressJDBCConnector <action> <jdbcUrl> <username> <password> [params...]\"}");
+            return;
+        }
+
+        String action = args[0];
+        String jdbcUrl = args[1];
+        String username = args[2];
+        String password = args[3];
+
+        // Modo residente: uma unica JVM atende todas as requisicoes via socket local
+        if (action.equals("serve")) {
+            int port = args.length > 4 ? Integer.parseInt(args[4]) : ConnectorServer.DEFAULT_PORT;
+            try {
+                new ConnectorServer(jdbcUrl, username, password, port).start();
+            } catch (IOException e) {
+                System.out.println("{\"success\":false,\"error\":\"Falha ao iniciar servidor do conector: " + e.getMessage().replace("\"", "'") + "\"}");
+            }
+            return;
+        }
+
+        ProgressJDBCConnector connector = new ProgressJDBCConnector(jdbcUrl, username, password);
+
+        // Treino do arquivo AppCDS: roda todas as acoes sob -XX:ArchiveClassesAtExit
+        if (action.equals("cds-train")) {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+                StartupTraining.run(connector, out);
+                out.flush();
+                System.out.println();
+            } catch (IOException e) {
+                System.err.println("Erro ao escrever resposta: " + e.getMessage());
+            }
+            return;
+        }
+
+        String[] params = Arrays.copyOfRange(args, 4, args.length);
+
+        // Resposta escrita direto no stdout, sem montar o JSON inteiro em memoria
+        try {
+            RequestContext context = RequestContext.defaults();
+            ResponseWriter out = new ResponseWriter(context.getResultFormat().wrap(new BufferedWriter(new OutputStreamWriter(System.out))));
+            out.beginObject();
+            try {
+                connector.dispatch(action, params, context, out);
+            } catch (RuntimeException e) {
+                // Parametros invalidos falham antes de qualquer campo; uma leitura em streaming
+                // pode falhar com "data"/"results" abertos: writeFailure fecha antes do erro
+                out.writeFailure("Erro ao executar acao " + action + ": " + e.getMessage());
+            }
+            out.endObject();
+            out.flush();
+            System.out.println();
+        } catch (IOException e) {
+            System.err.println("Erro ao escrever resposta: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package br.com.tambasa.connector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Consultas em segundo plano do conector residente (acoes job-*).
+ *
+ * job-submit devolve um id na hora e a consulta roda depois, na classe batch e em uma vaga
+ * de execucao do servidor como qualquer requisicao batch (AdmissionControl). As linhas vao para um arquivo temporario (uma linha
+ * JSON por linha do resultado, no formato pedido no submit); job-fetch le um trecho desse
+ * arquivo enquanto a consulta ainda roda ou depois dela. Assim o PHP nao fica preso ao
+ * tempo da consulta e pode mostrar o progresso (job-status).
+ *
+ * Jobs terminados (e seus arquivos) sao removidos depois de -Dconnector.jobs.ttlMinutes;
+ * job-cancel interrompe a consulta no broker e remove o arquivo na hora.
+ */
+final class QueryJobs {
+
+    enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+        String id() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Configuracao dos jobs, lida de propriedades de sistema (-Dconnector.jobs.*)
+     */
+    static final class Config {
+        int maxJobs = 100;
+        int maxRunning = 2;
+        long ttlMillis = 60 * 60_000L;
+        int queryTimeoutSeconds;
+        int maxFetchRows = 5000;
+        Path directory;
+
+        static Config fromSystemProperties(int poolSize) {
+            Config config = new Config();
+            config.maxJobs = Integer.getInteger("connector.jobs.max", config.maxJobs);
+            // Por padrao metade do pool: jobs nao ocupam todas as vagas das requisicoes interativas
+            config.maxRunning = Integer.getInteger("connector.jobs.maxRunning", Math.max(1, poolSize / 2));
+            config.ttlMillis = Long.getLong("connector.jobs.ttlMinutes", 60) * 60_000L;
+            config.queryTimeoutSeconds = Integer.getInteger("connector.jobs.queryTimeoutSeconds", 0);
+            config.maxFetchRows = Integer.getInteger("connector.jobs.maxFetchRows", config.maxFetchRows);
+            String directory = System.getProperty("connector.jobs.dir");
+            config.directory = directory == null ? null : Paths.get(directory);
+            return config;
+        }
+    }
+
+    // Posicao em bytes no arquivo a cada tantas linhas: job-fetch comeca perto do offset pedido
+    static final int CHECKPOINT_ROWS = 1000;
+    private static final int DEFAULT_FETCH_ROWS = 500;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final long SLOT_POLL_MS = 50;
+    private static final long CLEANUP_INTERVAL_MS = 60_000;
+
+    private final ProgressJDBCConnector connector;
+    private final Executor executor;
+    private final AdmissionControl admission;
+    private final Semaphore running;
+    private final ConnectorMetrics metrics;
+    private final Config config;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cleaner;
+    private Path directory;
+
+    /**
+     * @param executor Threads que executam os jobs (as mesmas das requisicoes)
+     * @param admission Classes de prioridade das requisicoes: o job entra na classe batch
+     */
+    QueryJobs(ProgressJDBCConnector connector, Executor executor, AdmissionControl admission, ConnectorMetrics metrics, Config config) {
+        this.connector = connector;
+        this.executor = executor;
+        this.admission = admission;
+        this.running = new Semaphore(Math.max(1, config.maxRunning), true);
+        this.metrics = metrics;
+        this.config = config;
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connector-jobs-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::removeExpired, CLEANUP_INTERVAL_MS, CLEANUP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancela os jobs em execucao e remove os arquivos (encerramento do servidor)
+     */
+    void close() {
+        cleaner.shutdownNow();
+        for (Job job : jobs.values()) {
+            job.cancel();
+            job.deleteSpool();
+        }
+        jobs.clear();
+    }
+
+    /**
+     * Formato das linhas da resposta de uma acao job-*: job-fetch responde no formato do submit
+     */
+    ResultFormat responseFormat(String action, String[] params, ResultFormat requested) {
+        Job job = action.equals("job-fetch") ? jobs.get(param(params, 0)) : null;
+        return job != null ? job.format : requested;
+    }
+
+    /**
+     * Executa uma acao job-* escrevendo os campos da resposta em out
+     *
+     * @param format Formato das linhas pedido pela requisicao (usado no job-submit)
+     */
+    void dispatch(String action, String[] params, ResultFormat format, JsonWriter out) throws IOException {
+        switch (action) {
+            case "job-submit":
+                String spec = param(params, 0);
+                submit(SqlParameters.parseJson(spec.isEmpty() ? "{}" : spec).getAsJsonObject(), format, out);
+                break;
+            case "job-status":
+                status(param(params, 0), out);
+                break;
+            case "job-fetch":
+                String offset = param(params, 1);
+                String limit = param(params, 2);
+                fetch(param(params, 0), offset.isEmpty() ? 0 : Long.parseLong(offset),
+                        limit.isEmpty() ? DEFAULT_FETCH_ROWS : Integer.parseInt(limit), out);
+                break;
+            case "job-cancel":
+                cancel(param(params, 0), out);
+                break;
+            default:
+                ProgressJDBCConnector.writeError(out, "Acao invalida. Use: job-submit, job-status, job-fetch ou job-cancel");
+        }
+    }
+
+    /**
+     * Formato: {"sql": "SELECT ...", "params": [...], "timeout": 600, "max_rows": 0, "fetch_size": 0}
+     */
+    private void submit(JsonObject spec, ResultFormat format, JsonWriter out) throws IOException {
+        String sql = spec.has("sql") ? spec.get("sql").getAsString() : "";
+        if (!sql.toUpperCase().trim().startsWith("SELECT")) {
+            ProgressJDBCConnector.writeError(out, "Apenas consultas SELECT sao permitidas");
+            return;
+        }
+
+        JsonArray parameters = spec.has("params") ? spec.getAsJsonArray("params") : null;
+        int timeout = spec.has("timeout") ? spec.get("timeout").getAsInt() : config.queryTimeoutSeconds;
+        RequestContext context = new RequestContext(timeout, null, null, format)
+                .withRowLimits(spec.has("max_rows") ? spec.get("max_rows").getAsInt() : 0,
+                        spec.has("fetch_size") ? spec.get("fetch_size").getAsInt() : 0);
+
+        removeExpired();
+        if (jobs.size() >= config.maxJobs) {
+            ProgressJDBCConnector.writeError(out, "Limite de jobs atingido (" + config.maxJobs + "): aguarde ou cancele jobs terminados");
+            return;
+        }
+
+        Job job;
+        try {
+            job = new Job(UUID.randomUUID().toString().replace("-", ""), sql, parameters, format, context, spoolDirectory());
+        } catch (IOException e) {
+            ProgressJDBCConnector.writeError(out, "Erro ao criar arquivo do job: " + e.getMessage());
+            return;
+        }
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> run(job));
+        } catch (RuntimeException e) {
+            jobs.remove(job.id);
+            job.deleteSpool();
+            ProgressJDBCConnector.writeError(out, "Job recusado: " + e.getMessage());
+            return;
+        }
+
+        out.name("data").beginObject();
+        writeStatus(out, job);
+        out.endObject();
+        out.name("success").value(true);
+        out.name("message").value("Job enviado");
+    }
+
+    private void status(String id, JsonWriter out) throws IOException {
+        Job job = jobs.get(id);
+        if (job == null) {
+            ProgressJDBCConnector.writeError(out, "Job nao encontrado (expirado ou cancelado): " + id);
+            return;
+        }
+
+        out.name("data").beginObject();
+        writeStatus(out, job);
+        out.endObject();
+        out.name("success").value(true);
+        out.name("message").value("Status do job obtido com sucesso");
+    }
+
+    /**
+     * Linhas [offset, offset + limit) ja gravadas no arquivo do job. Com o job ainda em
+     * execucao devolve o que ja foi lido; has_more diz se vale pedir o proximo trecho.
+     */
+    private void fetch(String id, long offset, int limit, JsonWriter out) throws IOException {
+        Job job = jobs.get(id);
+        if (job == null) {
+            ProgressJDBCConnector.writeError(out, "Job nao encontrado (expirado ou cancelado): " + id);
+            return;
+        }
+        if (offset < 0 || limit < 1 || limit > config.maxFetchRows) {
+            ProgressJDBCConnector.writeError(out, "offset deve ser >= 0 e limit entre 1 e " + config.maxFetchRows);
+            return;
+        }
+
+        State state = job.state;
+        long available = job.visibleRows;
+        long end = Math.min(available, offset + limit);
+
+        out.name("data").beginObject();
+        out.name("results");
+        job.format.beginRows(out, job.encoder);
+        long count = 0;
+        if (offset < end) {
+            try {
+                count = job.readSpool(offset, end, out);
+            } catch (IOException e) {
+                // Arquivo removido por job-cancel ou expiracao durante a leitura
+                job.format.endRows(out);
+                out.endObject();
+                ProgressJDBCConnector.writeError(out, "Erro ao ler resultado do job: " + e.getMessage());
+                return;
+            }
+        }
+        job.format.endRows(out);
+        out.name("offset").value(offset);
+        out.name("count").value(count);
+        out.name("next_offset").value(offset + count);
+        boolean finished = state != State.QUEUED && state != State.RUNNING;
+        out.name("has_more").value(offset + count < available || !finished);
+        writeStatus(out, job);
+        out.endObject();
+
+        out.name("success").value(true);
+        out.name("message").value("Resultado do job obtido com sucesso");
+    }
+
+    private void cancel(String id, JsonWriter out) throws IOException {
+        Job job = jobs.remove(id);
+        if (job == null) {
+            ProgressJDBCConnector.writeError(out, "Job nao encontrado (expirado ou cancelado): " + id);
+            return;
+        }
+        job.cancel();
+        job.deleteSpool();
+
+        out.name("data").beginObject();
+        writeStatus(out, job);
+        out.endObject();
+        out.name("success").value(true);
+        out.name("message").value("Job cancelado");
+    }
+
+    private static void writeStatus(JsonWriter out, Job job) throws IOException {
+        long now = System.currentTimeMillis();
+        long finishedAt = job.finishedAt;
+        long startedAt = job.startedAt;
+        out.name("id").value(job.id);
+        out.name("state").value(job.state.id());
+        out.name("rows").value(job.rows);
+        out.name("available_rows").value(job.visibleRows);
+        out.name("elapsed_ms").value(startedAt == 0 ? 0 : (finishedAt == 0 ? now : finishedAt) - startedAt);
+        out.name("queued_ms").value((startedAt == 0 ? (finishedAt == 0 ? now : finishedAt) : startedAt) - job.createdAt);
+        out.name("created_at").value(job.createdAt);
+        if (finishedAt != 0) {
+            out.name("finished_at").value(finishedAt);
+        }
+        if (job.error != null) {
+            out.name("error").value(job.error);
+        }
+        out.name("sql").value(job.sql);
+    }
+
+    /**
+     * Executa o job: espera uma vaga de job e a vez na classe batch e grava as linhas no arquivo
+     */
+    private void run(Job job) {
+        long receivedAt = System.nanoTime();
+        try {
+            if (!acquire(running, job)) {
+                return;
+            }
+            try {
+                // Ninguem espera a resposta do job na conexao: sem recusa por sobrecarga, so cancelamento
+                if (admission.awaitAdmission(AdmissionControl.Priority.BATCH, job.context) != AdmissionControl.Admission.ADMITTED) {
+                    return;
+                }
+                try {
+                    job.context.timings().add(ConnectorMetrics.Phase.QUEUE, System.nanoTime() - receivedAt);
+                    job.start();
+                    connector.readQuery(job.sql, job.parameters, job.context, job::spool);
+                    job.finish(State.DONE, null);
+                } catch (ClassNotFoundException e) {
+                    job.finish(State.FAILED, "Driver JDBC Progress nao encontrado: " + e.getMessage());
+                } catch (SQLException e) {
+                    job.finish(job.context.isCancelled() ? State.CANCELLED : State.FAILED, "Erro na execucao da consulta: " + e.getMessage());
+                } catch (IOException e) {
+                    job.finish(State.FAILED, "Erro ao gravar resultado do job: " + e.getMessage());
+                } catch (IllegalArgumentException e) {
+                    job.finish(State.FAILED, "Parametros invalidos: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    job.finish(State.FAILED, "Erro ao executar job: " + e.getMessage());
+                } finally {
+                    admission.release(AdmissionControl.Priority.BATCH, job.context.timings());
+                }
+            } finally {
+                running.release();
+            }
+            job.context.timings().response(0, job.state == State.DONE);
+            metrics.record("job", job.context.timings(), System.nanoTime() - receivedAt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.finish(State.CANCELLED, "Job interrompido");
+        }
+    }
+
+    /**
+     * Espera uma vaga em fatias curtas, desistindo se o job for cancelado
+     */
+    private static boolean acquire(Semaphore semaphore, Job job) throws InterruptedException {
+        while (!semaphore.tryAcquire(SLOT_POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (job.context.isCancelled()) {
+                return false;
+            }
+        }
+        if (job.context.isCancelled()) {
+            semaphore.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove os jobs terminados ha mais de ttl, com seus arquivos
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Job job : jobs.values()) {
+            long finishedAt = job.finishedAt;
+            if (finishedAt != 0 && now - finishedAt >= config.ttlMillis && jobs.remove(job.id, job)) {
+                job.deleteSpool();
+            }
+        }
+    }
+
+    private synchronized Path spoolDirectory() throws IOException {
+        if (directory == null) {
+            directory = config.directory != null
+                    ? Files.createDirectories(config.directory)
+                    : Files.createTempDirectory("connector-jobs");
+        }
+        return directory;
+    }
+
+    private static String param(String[] params, int index) {
+        return params.length > index && params[index] != null ? params[index].trim() : "";
+    }
+
+    /**
+     * Um job e o arquivo com suas linhas. Escrito so pela thread do job; lido por job-status
+     * e job-fetch, que enxergam as linhas ate visibleRows (ja gravadas no arquivo).
+     */
+    private static final class Job {
+        final String id;
+        final String sql;
+        final JsonArray parameters;
+        final ResultFormat format;
+        final RequestContext context;
+        final Path spool;
+        final long createdAt = System.currentTimeMillis();
+
+        volatile State state = State.QUEUED;
+        volatile long startedAt;
+        volatile long finishedAt;
+        volatile String error;
+        // Linhas lidas do ResultSet e linhas ja no arquivo (visiveis para job-fetch)
+        volatile long rows;
+        volatile long visibleRows;
+        volatile RowEncoder encoder;
+        // checkpoints[i] = posicao em bytes da linha i * CHECKPOINT_ROWS
+        private long[] checkpoints = new long[16];
+
+        Job(String id, String sql, JsonArray parameters, ResultFormat format, RequestContext context, Path directory)
+                throws IOException {
+            this.id = id;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.format = format;
+            this.context = context;
+            this.spool = Files.createFile(directory.resolve("job-" + id + ".ndjson"));
+        }
+
+        void start() {
+            startedAt = System.currentTimeMillis();
+            state = State.RUNNING;
+        }
+
+        synchronized void finish(State finalState, String message) {
+            if (state == State.CANCELLED) {
+                return;
+            }
+            if (startedAt == 0) {
+                startedAt = System.currentTimeMillis();
+            }
+            error = message;
+            finishedAt = System.currentTimeMillis();
+            state = finalState;
+        }
+
+        void cancel() {
+            synchronized (this) {
+                if (state == State.QUEUED || state == State.RUNNING) {
+                    error = "Job cancelado";
+                    finishedAt = System.currentTimeMillis();
+                    state = State.CANCELLED;
+                }
+            }
+            context.cancel();
+        }
+
+        /**
+         * Grava as linhas do ResultSet no arquivo, uma linha JSON (no formato do job) por linha.
+         * O arquivo e descarregado a cada CHECKPOINT_ROWS linhas, que passam a ser visiveis.
+         */
+        ProgressJDBCConnector.RowStream spool(ResultSet rs) throws SQLException, IOException {
+            ProgressJDBCConnector.RowStream stream = new ProgressJDBCConnector.RowStream();
+            RowEncoder rowEncoder = RowEncoder.of(rs.getMetaData());
+            encoder = rowEncoder;
+
+            try (FileChannel channel = FileChannel.open(spool, StandardOpenOption.WRITE);
+                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                         StandardCharsets.UTF_8), WRITE_BUFFER_SIZE)) {
+                StringWriter buffer = new StringWriter();
+                long position = 0;
+                long count = 0;
+                long mark = System.nanoTime();
+                while (rs.next()) {
+                    long fetched = System.nanoTime();
+                    stream.fetchNanos += fetched - mark;
+
+                    if (count % CHECKPOINT_ROWS == 0) {
+                        addCheckpoint(count / CHECKPOINT_ROWS, position);
+                    }
+                    buffer.getBuffer().setLength(0);
+                    format.writeRow(rowEncoder, rs, new JsonWriter(buffer));
+                    buffer.write('\n');
+                    String line = buffer.toString();
+                    out.write(line);
+                    position += ConnectorServer.utf8Length(line);
+                    rows = ++count;
+
+                    if (count % CHECKPOINT_ROWS == 0) {
+                        out.flush();
+                        visibleRows = count;
+                        context.checkCancelled();
+                    }
+                    mark = System.nanoTime();
+                    stream.serializeNanos += mark - fetched;
+                }
+                stream.fetchNanos += System.nanoTime() - mark;
+                out.flush();
+                visibleRows = count;
+                stream.count = (int) Math.min(count, Integer.MAX_VALUE);
+            }
+            return stream;
+        }
+
+        private synchronized void addCheckpoint(long index, long position) {
+            if (index >= checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+            }
+            checkpoints[(int) index] = position;
+        }
+
+        private synchronized long checkpoint(long index) {
+            return checkpoints[(int) index];
+        }
+
+        /**
+         * Escreve as linhas [from, to) do arquivo como itens de "results"
+         */
+        long readSpool(long from, long to, JsonWriter out) throws IOException {
+            long checkpoint = from / CHECKPOINT_ROWS;
+            try (FileChannel channel = FileChannel.open(spool, StandardOpenOption.READ)) {
+                channel.position(checkpoint(checkpoint));
+                BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                // Do checkpoint ate a linha pedida: no maximo CHECKPOINT_ROWS - 1 linhas lidas e descartadas
+                for (long row = checkpoint * CHECKPOINT_ROWS; row < from; row++) {
+                    if (in.readLine() == null) {
+                        return 0;
+                    }
+                }
+
+                long count = 0;
+                String line;
+                while (from + count < to && (line = in.readLine()) != null) {
+                    out.jsonValue(line);
+                    count++;
+                }
+                return count;
+            }
+        }
+
+        void deleteSpool() {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                System.err.println("Aviso: arquivo do job nao removido: " + spool);
+            }
+        }
+    }
+}
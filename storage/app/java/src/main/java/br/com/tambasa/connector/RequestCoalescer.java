@@ -0,0 +1,239 @@
+package br.com.tambasa.connector;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Junta requisicoes de leitura identicas em andamento (single-flight) no conector residente.
+ *
+ * A primeira requisicao com uma chave (acao, parametros com espacos fora de literais
+ * normalizados, formato, max_rows, classe de prioridade e timeout) executa normalmente e
+ * guarda uma copia da resposta enquanto a envia. As que chegam com a mesma chave antes de
+ * ela terminar nao executam nada: esperam e recebem a mesma resposta, com o proprio "id".
+ * Ex: varias abas do painel pedindo a mesma pagina e o mesmo COUNT ao mesmo tempo viram
+ * uma consulta so no broker.
+ *
+ * A resposta nunca e mais antiga que a requisicao que a recebe exceto pela execucao ja em
+ * andamento: ao terminar, a chave sai do registro, e uma gravacao pelo conector tira todas
+ * as execucoes em andamento do registro (leituras seguintes executam de novo).
+ *
+ * Se a execucao que lidera nao produzir uma resposta bem sucedida e completa para repassar
+ * (erro ou timeout do lider, cliente dele desconectou, resposta maior que
+ * -Dconnector.coalesce.maxChars, falha de envio), quem esperava executa por conta propria.
+ */
+final class RequestCoalescer {
+
+    /**
+     * Acoes somente leitura que podem ser juntadas
+     */
+    static final Set<String> COALESCIBLE_ACTIONS = Set.of("query", "query-prepared", "multi", "page", "schema",
+            "transportes", "query-paginated", "lookup", "autocomplete-municipio", "scan");
+
+    private static final long WAIT_POLL_MS = 50;
+
+    private final boolean enabled;
+    private final int maxChars;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    RequestCoalescer(boolean enabled, int maxChars) {
+        this.enabled = enabled;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * -Dconnector.coalesce.enabled (padrao true) e -Dconnector.coalesce.maxChars
+     * (maior resposta repassada, padrao 8.000.000 caracteres)
+     */
+    static RequestCoalescer fromSystemProperties() {
+        return new RequestCoalescer(!"false".equals(System.getProperty("connector.coalesce.enabled")),
+                Integer.getInteger("connector.coalesce.maxChars", 8_000_000));
+    }
+
+    boolean applies(String action) {
+        return enabled && COALESCIBLE_ACTIONS.contains(action);
+    }
+
+    /**
+     * Execucao em andamento para a chave, ou uma nova liderada por quem chamou (Flight.leader)
+     */
+    Flight join(String key) {
+        Flight flight = new Flight(key, true, new Outcome());
+        Flight running = flights.putIfAbsent(key, flight);
+        if (running == null) {
+            return flight;
+        }
+        return new Flight(key, false, running.outcome);
+    }
+
+    /**
+     * Fim da execucao lider: libera quem espera com a resposta (sem o "id" do lider) ou
+     * com null, para que executem por conta propria
+     */
+    void complete(Flight flight, String response) {
+        flights.remove(flight.key, flight);
+        flight.outcome.response = response;
+        flight.outcome.done.countDown();
+    }
+
+    /**
+     * Gravacao pelo conector: leituras que chegarem depois nao entram em execucoes ja iniciadas
+     */
+    void detachAll() {
+        flights.clear();
+    }
+
+    /**
+     * Espera a resposta do lider, em fatias curtas para desistir se o cliente desconectar
+     *
+     * @return Resposta do lider, ou null se o seguidor deve executar sozinho
+     */
+    String await(Flight flight, RequestContext context) throws InterruptedException {
+        while (!flight.outcome.done.await(WAIT_POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (context.isCancelled()) {
+                return null;
+            }
+        }
+        String response = flight.outcome.response;
+        if (response == null) {
+            fallbacks.increment();
+        } else {
+            saved.increment();
+        }
+        return response;
+    }
+
+    /**
+     * Copia da resposta do lider enquanto ela e enviada
+     *
+     * @param id "id" da requisicao lider, retirado da copia
+     */
+    Capture capture(JsonElement id) {
+        return new Capture(id, maxChars);
+    }
+
+    JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("enabled", enabled);
+        stats.addProperty("in_flight", flights.size());
+        stats.addProperty("saved_executions", saved.sum());
+        stats.addProperty("fallbacks", fallbacks.sum());
+        return stats;
+    }
+
+    /**
+     * Uma execucao em andamento, vista pelo lider (leader=true) ou por quem espera por ela
+     */
+    static final class Flight {
+        final String key;
+        final boolean leader;
+        private final Outcome outcome;
+
+        private Flight(String key, boolean leader, Outcome outcome) {
+            this.key = key;
+            this.leader = leader;
+            this.outcome = outcome;
+        }
+    }
+
+    private static final class Outcome {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String response;
+    }
+
+    /**
+     * Guarda os caracteres da resposta do lider ate maxChars
+     */
+    static final class Capture {
+        private final String idPrefix;
+        private final int maxChars;
+        private StringBuilder text = new StringBuilder();
+        private boolean complete;
+
+        Capture(JsonElement id, int maxChars) {
+            this.idPrefix = id == null || id.isJsonNull() ? null : "{\"id\":" + id + ",";
+            this.maxChars = maxChars;
+        }
+
+        /**
+         * Writer que repassa tudo a out e guarda uma copia
+         */
+        Writer tee(Writer out) {
+            return new FilterWriter(out) {
+                @Override
+                public void write(int c) throws IOException {
+                    out.write(c);
+                    if (fits(1)) {
+                        text.append((char) c);
+                    }
+                }
+
+                @Override
+                public void write(char[] chars, int offset, int length) throws IOException {
+                    out.write(chars, offset, length);
+                    if (fits(length)) {
+                        text.append(chars, offset, length);
+                    }
+                }
+
+                @Override
+                public void write(String value, int offset, int length) throws IOException {
+                    out.write(value, offset, length);
+                    if (fits(length)) {
+                        text.append(value, offset, offset + length);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Resposta montada em buffer (o lider nao escreveu direto no socket)
+         */
+        void set(String response) {
+            text = response.length() <= maxChars ? new StringBuilder(response) : null;
+        }
+
+        /**
+         * A resposta foi enviada por inteiro ao cliente lider
+         */
+        void completed() {
+            complete = true;
+        }
+
+        /**
+         * @return Resposta sem o "id" do lider, ou null se incompleta, grande demais ou com
+         *         success=false (o erro do lider pode nao se repetir para quem espera)
+         */
+        String response() {
+            if (!complete || text == null) {
+                return null;
+            }
+            String response = text.toString();
+            if (idPrefix != null) {
+                if (!response.startsWith(idPrefix)) {
+                    return null;
+                }
+                response = "{" + response.substring(idPrefix.length());
+            }
+            return ResultCache.succeeded(response) ? response : null;
+        }
+
+        private boolean fits(int length) {
+            if (text != null && text.length() + length > maxChars) {
+                // Grande demais para repassar: quem espera executa por conta propria
+                text = null;
+            }
+            return text != null;
+        }
+    }
+}
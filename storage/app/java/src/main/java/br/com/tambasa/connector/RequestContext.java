@@ -0,0 +1,246 @@
+package br.com.tambasa.connector;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estado de uma requisicao em execucao no conector.
+ *
+ * Aplica o timeout da requisicao em cada Statement (setQueryTimeout) e guarda
+ * os Statements abertos para que possam ser cancelados quando o cliente do
+ * conector residente desconectar antes da resposta.
+ *
+ * No modo residente tambem da acesso as threads e vagas livres do servidor, para
+ * que acoes com varias consultas (multi) usem mais de uma conexao do pool ao mesmo tempo.
+ *
+ * Tambem carrega o formato das linhas de resultado pedido pelo cliente (ResultFormat)
+ * e os limites de linhas (max_rows) e de fetch size aplicados no driver, e acumula os
+ * tempos de cada fase da requisicao para o ConnectorMetrics.
+ */
+public class RequestContext {
+
+    // Fetch size adaptativo: linhas por ida ao broker para trazer cerca de FETCH_TARGET_BYTES
+    static final int FETCH_TARGET_BYTES = 256 * 1024;
+    static final int MIN_FETCH_SIZE = 50;
+    static final int MAX_FETCH_SIZE = 5000;
+    // Largura estimada de colunas sem tamanho nos metadados e teto para textos longos
+    private static final int UNKNOWN_COLUMN_WIDTH = 32;
+    private static final int MAX_COLUMN_WIDTH = 1024;
+
+    private final int queryTimeoutSeconds;
+    private final Executor workers;
+    private final Semaphore workerSlots;
+    private final ResultFormat resultFormat;
+    private AdmissionControl admission;
+    private AdmissionControl.Priority priority;
+    private int maxRows;
+    private int fetchSize;
+    private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+    private final ConnectorMetrics.Timings timings = new ConnectorMetrics.Timings();
+    private volatile boolean cancelled;
+
+    public RequestContext(int queryTimeoutSeconds) {
+        this(queryTimeoutSeconds, null, null);
+    }
+
+    /**
+     * @param workers     Threads para consultas em paralelo dentro da requisicao
+     * @param workerSlots Vagas de execucao do servidor (uma por conexao do pool); cada
+     *                    consulta paralela extra so roda se houver vaga livre
+     */
+    public RequestContext(int queryTimeoutSeconds, Executor workers, Semaphore workerSlots) {
+        this(queryTimeoutSeconds, workers, workerSlots, ResultFormat.OBJECTS);
+    }
+
+    RequestContext(int queryTimeoutSeconds, Executor workers, Semaphore workerSlots, ResultFormat resultFormat) {
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.workers = workers;
+        this.workerSlots = workerSlots;
+        this.resultFormat = resultFormat;
+    }
+
+    /**
+     * Contexto padrao: timeout de -Dconnector.queryTimeoutSeconds (0 = sem limite),
+     * formato de -Dconnector.format (objects) e limites de -Dconnector.maxRows e
+     * -Dconnector.fetchSize (0 = sem limite / fetch size adaptativo)
+     */
+    public static RequestContext defaults() {
+        return new RequestContext(Integer.getInteger("connector.queryTimeoutSeconds", 0), null, null,
+                ResultFormat.parse(System.getProperty("connector.format")))
+                .withRowLimits(Integer.getInteger("connector.maxRows", 0), Integer.getInteger("connector.fetchSize", 0));
+    }
+
+    /**
+     * Define os limites antes de a requisicao comecar a executar
+     *
+     * @param maxRows   Maximo de linhas por consulta da resposta (0 = sem limite)
+     * @param fetchSize Linhas por ida ao broker (0 = adaptativo pela largura da linha)
+     */
+    RequestContext withRowLimits(int maxRows, int fetchSize) {
+        if (maxRows < 0 || fetchSize < 0) {
+            throw new IllegalArgumentException("max_rows e fetch_size devem ser maiores ou iguais a zero");
+        }
+        this.maxRows = maxRows;
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Faz as consultas paralelas extras passarem pela classe de prioridade da requisicao,
+     * em vez de pegar direto as vagas livres do servidor
+     */
+    RequestContext withAdmission(AdmissionControl admission, AdmissionControl.Priority priority) {
+        this.admission = admission;
+        this.priority = priority;
+        return this;
+    }
+
+    public int getQueryTimeoutSeconds() {
+        return queryTimeoutSeconds;
+    }
+
+    int getMaxRows() {
+        return maxRows;
+    }
+
+    int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Limite efetivo de uma consulta: o menor entre o limite da propria acao e o max_rows
+     * da requisicao (0 = sem limite em ambos)
+     */
+    int maxRows(int actionLimit) {
+        if (actionLimit <= 0) {
+            return maxRows;
+        }
+        return maxRows > 0 ? Math.min(actionLimit, maxRows) : actionLimit;
+    }
+
+    /**
+     * Empurra o limite de linhas para o driver (Statement.setMaxRows: o broker para de
+     * enviar linhas ao atingir o limite) e define o fetch size da primeira busca.
+     * Sempre aplicado (0 = sem limite): PreparedStatements do cache podem ter os valores de outra requisicao.
+     */
+    void limitRows(Statement statement, int maxRows) throws SQLException {
+        statement.setMaxRows(maxRows);
+        int rows = fetchSize > 0 ? fetchSize : maxRows > 0 ? Math.min(maxRows, MAX_FETCH_SIZE) : 0;
+        statement.setFetchSize(maxRows > 0 ? Math.min(rows, maxRows) : rows);
+    }
+
+    /**
+     * Sem fetch_size explicito, ajusta o fetch size das proximas buscas pela largura
+     * estimada da linha: resultados estreitos vem em lotes grandes, largos em lotes menores
+     */
+    void adaptFetchSize(ResultSet rs, int maxRows) throws SQLException {
+        if (fetchSize > 0) {
+            return;
+        }
+        int rows = adaptiveFetchSize(rs.getMetaData());
+        rs.setFetchSize(maxRows > 0 ? Math.min(rows, maxRows) : rows);
+    }
+
+    static int adaptiveFetchSize(ResultSetMetaData metaData) throws SQLException {
+        long rowBytes = 0;
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            int width = metaData.getColumnDisplaySize(i);
+            rowBytes += width <= 0 ? UNKNOWN_COLUMN_WIDTH : Math.min(width, MAX_COLUMN_WIDTH);
+        }
+        long rows = FETCH_TARGET_BYTES / Math.max(rowBytes, 1);
+        return (int) Math.max(MIN_FETCH_SIZE, Math.min(rows, MAX_FETCH_SIZE));
+    }
+
+    ResultFormat getResultFormat() {
+        return resultFormat;
+    }
+
+    ConnectorMetrics.Timings timings() {
+        return timings;
+    }
+
+    public Executor getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Reserva, sem esperar, uma vaga para uma consulta paralela extra. Requisicoes
+     * aguardando na fila do servidor tem prioridade (semaforo justo). Com classe de
+     * prioridade (withAdmission), a consulta extra tambem precisa caber no limite da classe.
+     * Sempre false no modo CLI.
+     */
+    public boolean tryAcquireWorker() {
+        if (workers == null || workerSlots == null || cancelled) {
+            return false;
+        }
+        if (admission != null) {
+            return admission.tryAdmitExtra(priority);
+        }
+        try {
+            return workerSlots.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Devolve uma vaga obtida em tryAcquireWorker()
+     */
+    public void releaseWorker() {
+        if (admission != null) {
+            admission.releaseExtra(priority);
+            return;
+        }
+        workerSlots.release();
+    }
+
+    /**
+     * Registra um Statement recem-criado: aplica o timeout e permite cancelamento.
+     * Se a requisicao ja foi cancelada, o Statement e fechado e uma SQLException e lancada.
+     */
+    public <T extends Statement> T track(T statement) throws SQLException {
+        try {
+            // Sempre aplicado (0 = sem limite): PreparedStatements do cache podem ter o valor de outra requisicao
+            statement.setQueryTimeout(queryTimeoutSeconds);
+            statements.add(statement);
+            checkCancelled();
+            return statement;
+        } catch (SQLException e) {
+            statements.remove(statement);
+            statement.close();
+            throw e;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() throws SQLException {
+        if (cancelled) {
+            throw new SQLException("Requisicao cancelada: cliente desconectado");
+        }
+    }
+
+    /**
+     * Cancela a requisicao e todos os Statements em execucao no broker
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Statement statement : statements) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // Statement ja encerrado ou driver sem suporte a cancelamento
+            }
+        }
+    }
+}
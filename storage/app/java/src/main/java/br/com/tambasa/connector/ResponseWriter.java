@@ -0,0 +1,97 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.Writer;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * JsonWriter do objeto de uma resposta (CLI, conector residente e treino CDS).
+ *
+ * Guarda os escopos abertos e o valor do campo success, para que uma acao em streaming
+ * que falha no meio das linhas (ex: UncheckedIOException depois de "data"/"results"
+ * abertos) ainda termine com um JSON valido: writeFailure fecha o que ficou aberto e
+ * escreve success=false com o erro.
+ */
+final class ResponseWriter extends JsonWriter {
+
+    // '{' ou '[' por escopo aberto; o primeiro e o objeto da resposta
+    private final StringBuilder scopes = new StringBuilder();
+    private boolean successField;
+    private boolean statusWritten;
+    boolean succeeded = true;
+
+    ResponseWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        super.beginObject();
+        scopes.append('{');
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        super.endObject();
+        scopes.setLength(scopes.length() - 1);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        super.beginArray();
+        scopes.append('[');
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        super.endArray();
+        scopes.setLength(scopes.length() - 1);
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        super.name(name);
+        successField = scopes.length() == 1 && name.equals("success");
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+        if (successField) {
+            succeeded = value;
+            statusWritten = true;
+            successField = false;
+        }
+        return super.value(value);
+    }
+
+    /**
+     * Erro de uma acao que pode ter parado com escopos abertos: fecha os arrays e objetos
+     * abertos pela acao e escreve success=false. Se a acao ja tinha escrito o status, o erro
+     * so vai para o stderr, para nao repetir o campo success.
+     */
+    void writeFailure(String error) throws IOException {
+        while (scopes.length() > 1) {
+            if (scopes.charAt(scopes.length() - 1) == '[') {
+                endArray();
+                continue;
+            }
+            try {
+                endObject();
+            } catch (IllegalStateException e) {
+                // Campo com nome e sem valor: completar com null e fechar de novo
+                nullValue();
+                endObject();
+            }
+        }
+        if (statusWritten) {
+            System.err.println("Erro apos o status da resposta: " + error);
+            return;
+        }
+        ProgressJDBCConnector.writeError(this, error);
+    }
+}
@@ -0,0 +1,346 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Cache de respostas do conector residente, para dados de referencia que quase nunca
+ * mudam (municipios, estados, rotas, schema de tabelas).
+ *
+ * A chave e a acao + parametros com o SQL normalizado (espacos fora de literais
+ * colapsados). Cada entrada guarda as tabelas lidas; update, update-prepared e
+ * batch-update feitos pelo conector invalidam as entradas que leem a tabela alterada.
+ * Alteracoes feitas fora do conector so aparecem depois do TTL da entrada.
+ *
+ * O tamanho e limitado por numero de entradas e por caracteres somados, descartando
+ * as menos usadas (LRU). O TTL vem do campo "cache" da requisicao ou, sem ele, de
+ * -Dconnector.cache.ttl.&lt;acao&gt; (segundos, 0 = sem cache).
+ */
+public class ResultCache {
+
+    /**
+     * Acoes somente leitura cujas respostas podem ir para o cache
+     */
+    static final Set<String> CACHEABLE_ACTIONS = Set.of("query", "query-prepared", "multi", "page", "schema", "transportes");
+
+    /**
+     * Acoes que alteram dados e invalidam o cache
+     */
+    static final Set<String> WRITE_ACTIONS = Set.of("update", "update-prepared", "batch-update");
+
+    /**
+     * Configuracao do cache, lida de propriedades de sistema (-Dconnector.cache.*)
+     */
+    public static final class Config {
+        int maxEntries = 1000;
+        long maxChars = 16_000_000;
+        int maxEntryChars = 1_000_000;
+        Map<String, Integer> ttlSeconds = new HashMap<>();
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.maxEntries = Integer.getInteger("connector.cache.maxEntries", config.maxEntries);
+            config.maxChars = Long.getLong("connector.cache.maxChars", config.maxChars);
+            config.maxEntryChars = Integer.getInteger("connector.cache.maxEntryChars", config.maxEntryChars);
+            for (String action : CACHEABLE_ACTIONS) {
+                config.ttlSeconds.put(action, Integer.getInteger("connector.cache.ttl." + action, 0));
+            }
+            return config;
+        }
+    }
+
+    private static final class Entry {
+        final String response;
+        final Set<String> tables;
+        final long expiresAt;
+
+        Entry(String response, Set<String> tables, long expiresAt) {
+            this.response = response;
+            this.tables = tables;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // FROM/JOIN seguido de uma ou mais tabelas separadas por virgula, com alias opcional
+    private static final String TABLE_NAME = "(?:\"[^\"]+\"|[A-Za-z_][A-Za-z0-9_$#-]*)(?:\\.(?:\"[^\"]+\"|[A-Za-z_][A-Za-z0-9_$#-]*))?";
+    private static final Pattern READ_TABLES = Pattern.compile(
+            "\\b(?:FROM|JOIN)\\s+(" + TABLE_NAME + "(?:\\s+(?:AS\\s+)?[A-Za-z_][A-Za-z0-9_]*)?"
+                    + "(?:\\s*,\\s*" + TABLE_NAME + "(?:\\s+(?:AS\\s+)?[A-Za-z_][A-Za-z0-9_]*)?)*)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern WRITTEN_TABLE = Pattern.compile(
+            "^\\s*(?:UPDATE|INSERT\\s+INTO|DELETE\\s+FROM)\\s+(" + TABLE_NAME + ")", Pattern.CASE_INSENSITIVE);
+
+    private final Config config;
+    // Ordem de acesso: a primeira entrada e a menos usada recentemente
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long chars;
+    // Incrementado a cada invalidacao: respostas lidas antes dela nao entram no cache
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+
+    public ResultCache(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * TTL em segundos para a acao: o campo "cache" da requisicao ou o padrao da acao.
+     * 0 para acoes que alteram dados ou nao sao cacheaveis.
+     */
+    public int ttlSeconds(String action, JsonElement requested) {
+        if (!CACHEABLE_ACTIONS.contains(action)) {
+            return 0;
+        }
+        if (requested != null && !requested.isJsonNull()) {
+            return Math.max(0, requested.getAsInt());
+        }
+        return config.ttlSeconds.getOrDefault(action, 0);
+    }
+
+    /**
+     * Chave da requisicao: acao e parametros, com espacos fora de literais normalizados
+     */
+    public static String key(String action, String[] params) {
+        StringBuilder key = new StringBuilder(action);
+        for (String param : params) {
+            key.append('\u0000').append(normalize(param));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Resposta em cache ainda valida para a chave, ou null
+     */
+    public synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            remove(key);
+            expirations++;
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Geracao atual, a ser lida antes de executar a consulta e passada para put()
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Guarda uma resposta bem sucedida. Descartada se houve invalidacao desde
+     * generation(), pois a consulta pode ter lido dados ja alterados.
+     */
+    public synchronized void put(String key, Set<String> tables, String response, int ttlSeconds, long readGeneration) {
+        if (readGeneration != generation || response.length() > config.maxEntryChars || config.maxEntries < 1) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, new Entry(response, tables, System.currentTimeMillis() + ttlSeconds * 1000L));
+        chars += response.length();
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > config.maxEntries || chars > config.maxChars) && eldest.hasNext()) {
+            chars -= eldest.next().getValue().response.length();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Invalida as entradas que leem as tabelas alteradas pela acao de escrita.
+     * Se alguma tabela alterada nao for reconhecida, limpa o cache inteiro.
+     *
+     * @return Tabelas alteradas, ou null se nao identificadas
+     */
+    public Set<String> invalidate(String action, String[] params) {
+        Set<String> tables;
+        try {
+            tables = writtenTables(action, params);
+        } catch (RuntimeException e) {
+            // Lote invalido: a acao falhou sem alterar nada, mas limpar e o caminho seguro
+            tables = null;
+        }
+        invalidate(tables);
+        return tables;
+    }
+
+    synchronized void invalidate(Set<String> tables) {
+        generation++;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (tables == null || !Collections.disjoint(entry.tables, tables)) {
+                chars -= entry.response.length();
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    public synchronized JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("entries", entries.size());
+        stats.addProperty("chars", chars);
+        stats.addProperty("max_entries", config.maxEntries);
+        stats.addProperty("max_chars", config.maxChars);
+        stats.addProperty("hits", hits);
+        stats.addProperty("misses", misses);
+        stats.addProperty("evictions", evictions);
+        stats.addProperty("expirations", expirations);
+        stats.addProperty("invalidations", invalidations);
+        return stats;
+    }
+
+    private void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            chars -= previous.response.length();
+        }
+    }
+
+    /**
+     * Tabelas lidas por uma acao cacheavel (nomes sem schema, em minusculas)
+     */
+    static Set<String> readTables(String action, String[] params) {
+        Set<String> tables = new HashSet<>();
+        switch (action) {
+            case "schema":
+                tables.add(tableName(params.length > 0 && !params[0].isEmpty() ? params[0] : "transporte"));
+                break;
+            case "transportes":
+                tables.add("transporte");
+                break;
+            case "page":
+                JsonObject spec = SqlParameters.parseJson(params[0]).getAsJsonObject();
+                addReadTables(tables, "FROM " + spec.get("from").getAsString());
+                if (spec.has("columns")) {
+                    // Subconsultas na lista de colunas tambem leem tabelas
+                    addReadTables(tables, spec.get("columns").getAsString());
+                }
+                if (spec.has("where") && !spec.get("where").isJsonNull()) {
+                    addReadTables(tables, spec.get("where").getAsString());
+                }
+                break;
+            default:
+                // query, query-prepared e multi (o JSON de multi traz os SQLs em texto)
+                addReadTables(tables, params.length > 0 ? params[0] : "");
+        }
+        return tables;
+    }
+
+    private static void addReadTables(Set<String> tables, String sql) {
+        Matcher matcher = READ_TABLES.matcher(sql);
+        while (matcher.find()) {
+            for (String reference : matcher.group(1).split(",")) {
+                tables.add(tableName(reference.trim().split("\\s+")[0]));
+            }
+        }
+    }
+
+    /**
+     * Tabelas alteradas por update, update-prepared ou batch-update; null se alguma
+     * nao puder ser identificada
+     */
+    static Set<String> writtenTables(String action, String[] params) {
+        Set<String> tables = new HashSet<>();
+        String sql = params.length > 0 ? params[0] : "";
+        if (!action.equals("batch-update")) {
+            return addWrittenTable(tables, sql) ? tables : null;
+        }
+
+        JsonArray batch = SqlParameters.parse(sql);
+        for (JsonElement item : batch) {
+            String statement = item.isJsonObject() ? item.getAsJsonObject().get("sql").getAsString() : item.getAsString();
+            if (!addWrittenTable(tables, statement)) {
+                return null;
+            }
+        }
+        return tables;
+    }
+
+    private static boolean addWrittenTable(Set<String> tables, String sql) {
+        Matcher matcher = WRITTEN_TABLE.matcher(sql);
+        if (!matcher.find()) {
+            return false;
+        }
+        tables.add(tableName(matcher.group(1)));
+        return true;
+    }
+
+    private static String tableName(String reference) {
+        String name = reference.substring(reference.lastIndexOf('.') + 1);
+        return name.replace("\"", "").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Colapsa espacos em branco fora de literais entre aspas simples
+     */
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        boolean inLiteral = false;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (!inLiteral && Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Verifica o campo success de uma resposta completa ({...}) sem montar o JSON em memoria
+     */
+    static boolean succeeded(String response) {
+        try (JsonReader reader = new JsonReader(new StringReader(response))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("success") && reader.peek() == JsonToken.BOOLEAN) {
+                    return reader.nextBoolean();
+                }
+                reader.skipValue();
+            }
+            return false;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+}
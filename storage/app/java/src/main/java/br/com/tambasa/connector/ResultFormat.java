@@ -0,0 +1,219 @@
+package br.com.tambasa.connector;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Formato das linhas de resultado nas respostas do conector.
+ *
+ * OBJECTS (padrao): "results" e um array de objetos, com o nome de cada coluna repetido em toda linha.
+ * COLUMNS: "results" e {"columns":[...],"types":[...],"rows":[[...],...]}, com nomes e tipos
+ * enviados uma vez e as linhas como arrays posicionais. A resposta inteira sai so com ASCII
+ * (demais caracteres como escape unicode do JSON), entao o cliente pode decodifica-la direto, sem
+ * conversao de encoding, em qualquer charset do console.
+ *
+ * Escolhido pelo campo "format" da requisicao no modo residente ou por -Dconnector.format.
+ */
+enum ResultFormat {
+
+    OBJECTS("objects") {
+        @Override
+        void beginRows(JsonWriter out, RowEncoder encoder) throws IOException {
+            out.beginArray();
+        }
+
+        @Override
+        void beginRows(JsonWriter out, String[] names, String[] types) throws IOException {
+            out.beginArray();
+        }
+
+        @Override
+        void writeRow(RowEncoder encoder, ResultSet rs, JsonWriter out) throws SQLException, IOException {
+            encoder.write(rs, out);
+        }
+
+        @Override
+        void writeRow(String[] names, Object[] values, JsonWriter out) throws IOException {
+            out.beginObject();
+            for (int i = 0; i < names.length; i++) {
+                out.name(names[i]);
+                RowEncoder.writeValue(out, values[i]);
+            }
+            out.endObject();
+        }
+
+        @Override
+        void endRows(JsonWriter out) throws IOException {
+            out.endArray();
+        }
+
+        @Override
+        Writer wrap(Writer out) {
+            return out;
+        }
+    },
+
+    COLUMNS("columns") {
+        @Override
+        void beginRows(JsonWriter out, RowEncoder encoder) throws IOException {
+            // Sem encoder (consulta nao executada ou sem metadados) o cabecalho sai vazio
+            beginRows(out, encoder == null ? new String[0] : encoder.columnNames(),
+                    encoder == null ? new String[0] : encoder.columnTypes());
+        }
+
+        @Override
+        void beginRows(JsonWriter out, String[] names, String[] types) throws IOException {
+            out.beginObject();
+            out.name("columns").beginArray();
+            for (String name : names) {
+                out.value(name);
+            }
+            out.endArray();
+            out.name("types").beginArray();
+            for (String type : types) {
+                out.value(type);
+            }
+            out.endArray();
+            out.name("rows").beginArray();
+        }
+
+        @Override
+        void writeRow(RowEncoder encoder, ResultSet rs, JsonWriter out) throws SQLException, IOException {
+            encoder.writeValues(rs, out);
+        }
+
+        @Override
+        void writeRow(String[] names, Object[] values, JsonWriter out) throws IOException {
+            out.beginArray();
+            for (Object value : values) {
+                RowEncoder.writeValue(out, value);
+            }
+            out.endArray();
+        }
+
+        @Override
+        void endRows(JsonWriter out) throws IOException {
+            out.endArray();
+            out.endObject();
+        }
+
+        @Override
+        Writer wrap(Writer out) {
+            return new AsciiWriter(out);
+        }
+    };
+
+    final String id;
+
+    ResultFormat(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @param name "objects", "columns" ou vazio/null (objects)
+     */
+    static ResultFormat parse(String name) {
+        if (name == null || name.isEmpty()) {
+            return OBJECTS;
+        }
+        for (ResultFormat format : values()) {
+            if (format.id.equals(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Formato de resultado invalido: " + name + ". Use objects ou columns");
+    }
+
+    /**
+     * Abre o valor de "results" (ja com o nome escrito)
+     */
+    abstract void beginRows(JsonWriter out, RowEncoder encoder) throws IOException;
+
+    /**
+     * Abre "results" para linhas que nao vem de um ResultSet (ex: TableMirror), com os
+     * nomes e tipos (ver RowEncoder.columnTypes) ja conhecidos
+     */
+    abstract void beginRows(JsonWriter out, String[] names, String[] types) throws IOException;
+
+    /**
+     * Escreve a linha atual do ResultSet como um item de "results"
+     */
+    abstract void writeRow(RowEncoder encoder, ResultSet rs, JsonWriter out) throws SQLException, IOException;
+
+    /**
+     * Escreve uma linha ja lida, com os valores na ordem de names, como um item de "results"
+     */
+    abstract void writeRow(String[] names, Object[] values, JsonWriter out) throws IOException;
+
+    abstract void endRows(JsonWriter out) throws IOException;
+
+    /**
+     * Writer da resposta inteira neste formato
+     */
+    abstract Writer wrap(Writer out);
+
+    /**
+     * Escreve caracteres fora do ASCII como escape unicode do JSON. O JsonWriter so produz esses
+     * caracteres dentro de strings, onde o escape e equivalente ao caractere.
+     */
+    private static final class AsciiWriter extends FilterWriter {
+
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final char[] escape = {'\\', 'u', '0', '0', '0', '0'};
+
+        AsciiWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (c < 0x80) {
+                out.write(c);
+            } else {
+                writeEscaped((char) c);
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            int end = offset + length;
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                if (chars[i] >= 0x80) {
+                    out.write(chars, start, i - start);
+                    writeEscaped(chars[i]);
+                    start = i + 1;
+                }
+            }
+            out.write(chars, start, end - start);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            int end = offset + length;
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    out.write(text, start, i - start);
+                    writeEscaped(c);
+                    start = i + 1;
+                }
+            }
+            out.write(text, start, end - start);
+        }
+
+        private void writeEscaped(char c) throws IOException {
+            escape[2] = HEX[(c >> 12) & 0xF];
+            escape[3] = HEX[(c >> 8) & 0xF];
+            escape[4] = HEX[(c >> 4) & 0xF];
+            escape[5] = HEX[c & 0xF];
+            out.write(escape, 0, escape.length);
+        }
+    }
+}
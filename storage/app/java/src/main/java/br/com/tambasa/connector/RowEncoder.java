@@ -0,0 +1,259 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Locale;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Converte linhas de um ResultSet em objetos JSON (ou arrays posicionais, ver ResultFormat).
+ *
+ * Montado uma vez por ResultSet a partir do ResultSetMetaData: os nomes das colunas
+ * ja ficam em minusculas e cada coluna recebe um extrator do seu tipo SQL
+ * (getInt, getLong, getBigDecimal, getDate...), sem getObject, boxing ou cadeia de
+ * instanceof por celula. O JSON gerado e o mesmo da conversao por getObject:
+ * numeros como numeros, datas e horas pelo toString() do tipo java.sql.
+ */
+final class RowEncoder {
+
+    /**
+     * Le uma coluna da linha atual e escreve o valor em out
+     */
+    private interface Column {
+        void write(ResultSet rs, int index, JsonWriter out) throws SQLException, IOException;
+    }
+
+    private static final Column INT = (rs, i, out) -> {
+        int value = rs.getInt(i);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+
+    private static final Column LONG = (rs, i, out) -> {
+        long value = rs.getLong(i);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+
+    private static final Column FLOAT = (rs, i, out) -> {
+        float value = rs.getFloat(i);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+
+    private static final Column DOUBLE = (rs, i, out) -> {
+        double value = rs.getDouble(i);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+
+    private static final Column BOOLEAN = (rs, i, out) -> {
+        boolean value = rs.getBoolean(i);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+
+    private static final Column DECIMAL = (rs, i, out) -> {
+        BigDecimal value = rs.getBigDecimal(i);
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+
+    private static final Column STRING = (rs, i, out) -> out.value(rs.getString(i));
+
+    private static final Column DATE = (rs, i, out) -> {
+        Date value = rs.getDate(i);
+        out.value(value == null ? null : value.toString());
+    };
+
+    private static final Column TIMESTAMP = (rs, i, out) -> {
+        Timestamp value = rs.getTimestamp(i);
+        out.value(value == null ? null : value.toString());
+    };
+
+    private static final Column TIME = (rs, i, out) -> {
+        Time value = rs.getTime(i);
+        out.value(value == null ? null : value.toString());
+    };
+
+    // Tipos sem extrator proprio (arrays Progress, binarios...): conversao generica
+    private static final Column OBJECT = (rs, i, out) -> writeValue(out, rs.getObject(i));
+
+    private final String[] names;
+    private final String[] types;
+    private final Column[] columns;
+
+    private RowEncoder(String[] names, String[] types, Column[] columns) {
+        this.names = names;
+        this.types = types;
+        this.columns = columns;
+    }
+
+    static RowEncoder of(ResultSetMetaData metaData) throws SQLException {
+        return of(metaData, 0);
+    }
+
+    /**
+     * @param maxTextLength Trunca textos maiores que isso com "..." (0 = sem limite),
+     *                      para amostras de dados
+     */
+    static RowEncoder of(ResultSetMetaData metaData, int maxTextLength) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        String[] names = new String[columnCount];
+        String[] types = new String[columnCount];
+        Column[] columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = metaData.getColumnName(i + 1).toLowerCase(Locale.ROOT).intern();
+            columns[i] = column(metaData.getColumnType(i + 1));
+            types[i] = typeName(columns[i]);
+            if (maxTextLength > 0 && columns[i] == STRING) {
+                columns[i] = truncated(maxTextLength);
+            }
+        }
+        return new RowEncoder(names, types, columns);
+    }
+
+    String[] columnNames() {
+        return names.clone();
+    }
+
+    /**
+     * Tipo JSON de cada coluna, pelo extrator usado: int, long, float, double, decimal,
+     * boolean, string, date, timestamp, time ou object (conversao generica)
+     */
+    String[] columnTypes() {
+        return types.clone();
+    }
+
+    /**
+     * Escreve a linha atual do ResultSet como objeto JSON
+     */
+    void write(ResultSet rs, JsonWriter out) throws SQLException, IOException {
+        out.beginObject();
+        for (int i = 0; i < columns.length; i++) {
+            out.name(names[i]);
+            columns[i].write(rs, i + 1, out);
+        }
+        out.endObject();
+    }
+
+    /**
+     * Escreve a linha atual do ResultSet como array JSON, na ordem de columnNames()
+     */
+    void writeValues(ResultSet rs, JsonWriter out) throws SQLException, IOException {
+        out.beginArray();
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].write(rs, i + 1, out);
+        }
+        out.endArray();
+    }
+
+    private static Column column(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.REAL:
+                return FLOAT;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return DECIMAL;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+                return STRING;
+            case Types.DATE:
+                return DATE;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.TIME:
+                return TIME;
+            default:
+                return OBJECT;
+        }
+    }
+
+    private static String typeName(Column column) {
+        if (column == INT) {
+            return "int";
+        } else if (column == LONG) {
+            return "long";
+        } else if (column == FLOAT) {
+            return "float";
+        } else if (column == DOUBLE) {
+            return "double";
+        } else if (column == DECIMAL) {
+            return "decimal";
+        } else if (column == BOOLEAN) {
+            return "boolean";
+        } else if (column == STRING) {
+            return "string";
+        } else if (column == DATE) {
+            return "date";
+        } else if (column == TIMESTAMP) {
+            return "timestamp";
+        } else if (column == TIME) {
+            return "time";
+        }
+        return "object";
+    }
+
+    private static Column truncated(int maxLength) {
+        return (rs, i, out) -> {
+            String value = rs.getString(i);
+            out.value(value == null || value.length() <= maxLength ? value : value.substring(0, maxLength) + "...");
+        };
+    }
+
+    static void writeValue(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else if (value instanceof Boolean) {
+            out.value((Boolean) value);
+        } else {
+            out.value(value.toString());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Schema das tabelas PUB (o mesmo "data" da acao schema) guardado em arquivo local,
+ * para que a acao schema responda sem ir ao broker.
+ *
+ * Montado pela acao schema-snapshot e gravado em -Dconnector.schema.snapshotFile
+ * (padrao schema-snapshot.json no diretorio do conector). O arquivo tem a versao do
+ * formato e a URL JDBC de origem; um arquivo de outra versao ou de outro banco e ignorado.
+ *
+ * A instancia e imutavel: uma atualizacao monta um snapshot novo e troca a referencia.
+ */
+final class SchemaSnapshot {
+
+    // Incrementar quando o formato de "data" da acao schema mudar
+    static final int VERSION = 1;
+
+    static final SchemaSnapshot EMPTY = new SchemaSnapshot(null, 0, Collections.emptyMap());
+
+    final String jdbcUrl;
+    final long createdAt;
+    private final Map<String, JsonObject> tables;
+
+    private SchemaSnapshot(String jdbcUrl, long createdAt, Map<String, JsonObject> tables) {
+        this.jdbcUrl = jdbcUrl;
+        this.createdAt = createdAt;
+        this.tables = tables;
+    }
+
+    static Path fileFromSystemProperties() {
+        return Paths.get(System.getProperty("connector.schema.snapshotFile", "schema-snapshot.json"));
+    }
+
+    /**
+     * Le o snapshot do arquivo; vazio se ele nao existir, for de outra versao ou de outro banco
+     */
+    static SchemaSnapshot load(Path file, String jdbcUrl) {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if (json.get("version").getAsInt() != VERSION || !jdbcUrl.equals(json.get("jdbc_url").getAsString())) {
+                System.err.println("Aviso: snapshot de schema ignorado (versao ou banco diferente): " + file);
+                return EMPTY;
+            }
+
+            Map<String, JsonObject> tables = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> table : json.getAsJsonObject("tables").entrySet()) {
+                tables.put(table.getKey(), table.getValue().getAsJsonObject());
+            }
+            return new SchemaSnapshot(jdbcUrl, json.get("created_at").getAsLong(), Collections.unmodifiableMap(tables));
+        } catch (NoSuchFileException e) {
+            return EMPTY;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Aviso: snapshot de schema invalido ignorado (" + file + "): " + e.getMessage());
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Schema de uma tabela (nome sem PUB., em qualquer caixa); null se nao estiver no snapshot.
+     * O objeto e compartilhado: quem for altera-lo deve usar deepCopy().
+     */
+    JsonObject table(String name) {
+        return tables.get(name.toLowerCase());
+    }
+
+    Map<String, JsonObject> tables() {
+        return tables;
+    }
+
+    /**
+     * Novo snapshot com as tabelas atualizadas
+     *
+     * @param updated  Schemas novos ou alterados, por nome em minusculas
+     * @param keepOnly Se informado, tabelas fora deste conjunto saem do snapshot (tabelas removidas do banco)
+     */
+    SchemaSnapshot with(String jdbcUrl, Map<String, JsonObject> updated, Set<String> keepOnly) {
+        Map<String, JsonObject> merged = new TreeMap<>(jdbcUrl.equals(this.jdbcUrl) ? tables : Collections.emptyMap());
+        if (keepOnly != null) {
+            merged.keySet().retainAll(keepOnly);
+        }
+        merged.putAll(updated);
+        return new SchemaSnapshot(jdbcUrl, System.currentTimeMillis(), Collections.unmodifiableMap(merged));
+    }
+
+    /**
+     * Grava em um arquivo temporario e troca pelo atual, para que um processo lendo
+     * ao mesmo tempo nunca veja o arquivo pela metade
+     */
+    void save(Path file) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.addProperty("jdbc_url", jdbcUrl);
+        json.addProperty("created_at", createdAt);
+        JsonObject tablesJson = new JsonObject();
+        for (Map.Entry<String, JsonObject> table : tables.entrySet()) {
+            tablesJson.add(table.getKey(), table.getValue());
+        }
+        json.add("tables", tablesJson);
+
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+                ProgressJDBCConnector.writeJson(json, writer);
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
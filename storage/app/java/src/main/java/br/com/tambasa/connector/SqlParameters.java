@@ -0,0 +1,168 @@
+package br.com.tambasa.connector;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Base64;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Parametros das acoes *-prepared: um array JSON com um valor por placeholder "?".
+ *
+ * Cada item pode ser um valor JSON simples (string, numero, booleano, null), com o tipo
+ * JDBC deduzido do valor, ou um objeto com tipo explicito:
+ *   {"type":"date","value":"2025-01-31"}
+ * Tipos aceitos: int, long, decimal, double, string, bool, date, timestamp.
+ */
+final class SqlParameters {
+
+    /**
+     * Prefixo para o array enviado em base64 pela linha de comando, evitando que
+     * aspas e % do JSON sejam alterados pelo shell (principalmente no cmd.exe)
+     */
+    static final String BASE64_PREFIX = "b64:";
+
+    private SqlParameters() {
+    }
+
+    static JsonArray parse(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return new JsonArray();
+        }
+
+        JsonElement parsed = parseJson(text);
+        if (!parsed.isJsonArray()) {
+            throw new IllegalArgumentException("Parametros devem ser um array JSON");
+        }
+        return parsed.getAsJsonArray();
+    }
+
+    /**
+     * Le um argumento JSON da linha de comando ou do conector residente, aceitando o prefixo b64:
+     */
+    static JsonElement parseJson(String text) {
+        if (text.startsWith(BASE64_PREFIX)) {
+            text = new String(Base64.getDecoder().decode(text.substring(BASE64_PREFIX.length())), StandardCharsets.UTF_8);
+        }
+        return JsonParser.parseString(text);
+    }
+
+    static void bind(PreparedStatement stmt, JsonArray parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            bind(stmt, i + 1, parameters.get(i));
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, int index, JsonElement parameter) throws SQLException {
+        if (parameter == null || parameter.isJsonNull()) {
+            stmt.setNull(index, Types.VARCHAR);
+        } else if (parameter.isJsonObject()) {
+            bindTyped(stmt, index, parameter.getAsJsonObject());
+        } else if (parameter.isJsonPrimitive()) {
+            JsonPrimitive value = parameter.getAsJsonPrimitive();
+            if (value.isBoolean()) {
+                stmt.setBoolean(index, value.getAsBoolean());
+            } else if (value.isNumber()) {
+                bindNumber(stmt, index, value.getAsBigDecimal());
+            } else {
+                stmt.setString(index, value.getAsString());
+            }
+        } else {
+            throw new IllegalArgumentException("Parametro " + index + " invalido: arrays nao sao suportados");
+        }
+    }
+
+    private static void bindNumber(PreparedStatement stmt, int index, BigDecimal number) throws SQLException {
+        BigDecimal normalized = number.stripTrailingZeros();
+        if (normalized.scale() <= 0) {
+            // Inteiros usam setInt/setLong para casar com as colunas INTEGER/BIGINT do Progress
+            if (normalized.compareTo(BigDecimal.valueOf(Integer.MIN_VALUE)) >= 0
+                    && normalized.compareTo(BigDecimal.valueOf(Integer.MAX_VALUE)) <= 0) {
+                stmt.setInt(index, normalized.intValue());
+                return;
+            }
+            if (normalized.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) >= 0
+                    && normalized.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0) {
+                stmt.setLong(index, normalized.longValue());
+                return;
+            }
+        }
+        stmt.setBigDecimal(index, number);
+    }
+
+    private static void bindTyped(PreparedStatement stmt, int index, JsonObject parameter) throws SQLException {
+        String type = parameter.has("type") ? parameter.get("type").getAsString().toLowerCase() : "";
+        JsonElement value = parameter.get("value");
+
+        if (value == null || value.isJsonNull()) {
+            stmt.setNull(index, sqlType(type, index));
+            return;
+        }
+
+        switch (type) {
+            case "int":
+            case "integer":
+                stmt.setInt(index, value.getAsInt());
+                break;
+            case "long":
+            case "bigint":
+                stmt.setLong(index, value.getAsLong());
+                break;
+            case "decimal":
+                stmt.setBigDecimal(index, new BigDecimal(value.getAsString()));
+                break;
+            case "double":
+                stmt.setDouble(index, value.getAsDouble());
+                break;
+            case "string":
+                stmt.setString(index, value.getAsString());
+                break;
+            case "bool":
+            case "boolean":
+                stmt.setBoolean(index, value.getAsBoolean());
+                break;
+            case "date":
+                stmt.setDate(index, Date.valueOf(value.getAsString()));
+                break;
+            case "timestamp":
+                stmt.setTimestamp(index, Timestamp.valueOf(value.getAsString()));
+                break;
+            default:
+                throw new IllegalArgumentException("Parametro " + index + " com tipo desconhecido: " + type);
+        }
+    }
+
+    private static int sqlType(String type, int index) {
+        switch (type) {
+            case "int":
+            case "integer":
+                return Types.INTEGER;
+            case "long":
+            case "bigint":
+                return Types.BIGINT;
+            case "decimal":
+                return Types.DECIMAL;
+            case "double":
+                return Types.DOUBLE;
+            case "string":
+                return Types.VARCHAR;
+            case "bool":
+            case "boolean":
+                return Types.BIT;
+            case "date":
+                return Types.DATE;
+            case "timestamp":
+                return Types.TIMESTAMP;
+            default:
+                throw new IllegalArgumentException("Parametro " + index + " com tipo desconhecido: " + type);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Set;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Execucao de treino do arquivo AppCDS do modo CLI (acao cds-train).
+ *
+ * Roda cada acao do conector uma vez em cada formato de resposta, contra o banco real e
+ * com a resposta descartada. Iniciada com -XX:ArchiveClassesAtExit, a JVM grava ao sair
+ * todas as classes que as chamadas CLI carregam (conector, Gson, driver OpenEdge e JDK);
+ * as chamadas com -XX:SharedArchiveFile mapeiam essas classes ja verificadas em vez de
+ * ler e verificar cada uma dos jars.
+ *
+ * Somente leituras e gravacoes que nao alteram linhas (WHERE 1 = 0). schema-snapshot fica
+ * de fora porque regravaria o arquivo de snapshot. Uma acao que falha (ex: tabela ausente
+ * em um banco de teste) ainda serve: o caminho de erro tambem entra no arquivo.
+ */
+final class StartupTraining {
+
+    private static final String EXPORT_CSV = "cds-train.csv";
+    private static final String EXPORT_NDJSON = "cds-train.ndjson.gz";
+
+    // Acao e parametros posicionais, como na linha de comando. Parametros JSON em base64
+    // (b64(...)), como o ProgressService envia
+    private static final String[][] REQUESTS = {
+            {"test"},
+            {"transportes", "", "5"},
+            {"query-paginated", "", "5", "0"},
+            {"query", "SELECT TOP 5 codtrn, nomtrn FROM PUB.transporte"},
+            {"query-prepared", "SELECT TOP 5 codtrn, nomtrn FROM PUB.transporte WHERE codtrn > ?", b64("[0]")},
+            {"update", "UPDATE PUB.transporte SET nomtrn = nomtrn WHERE 1 = 0"},
+            {"update-prepared", "UPDATE PUB.transporte SET nomtrn = nomtrn WHERE codtrn = ? AND 1 = 0", b64("[0]")},
+            {"batch-update", b64("[\"UPDATE PUB.transporte SET nomtrn = nomtrn WHERE 1 = 0\","
+                    + " {\"sql\": \"UPDATE PUB.transporte SET nomtrn = nomtrn WHERE codtrn = ? AND 1 = 0\", \"params\": [[0]]}]")},
+            {"schema", "transporte"},
+            {"multi", b64("{\"dados\": \"SELECT TOP 5 codtrn, nomtrn FROM PUB.transporte ORDER BY codtrn\","
+                    + " \"total\": {\"sql\": \"SELECT COUNT(*) AS total FROM PUB.transporte WHERE codtrn > ?\", \"params\": [0]}}")},
+            {"page", b64("{\"from\": \"PUB.transporte\", \"columns\": \"codtrn, nomtrn\", \"keys\": [\"codtrn DESC\"],"
+                    + " \"where\": \"codtrn > ?\", \"params\": [0], \"limit\": 5, \"count\": true}")},
+            {"scan", b64("{\"table\": \"PUB.transporte\", \"key\": \"codtrn\", \"columns\": \"codtrn, nomtrn\","
+                    + " \"where\": \"codtrn < ?\", \"params\": [100], \"partitions\": 2}")},
+            {"lookup", b64("{\"table\": \"transporte\", \"where\": {\"codtrn\": 1}, \"limit\": 1}")},
+            {"autocomplete-municipio", "SAO", "", "5"},
+            {"export", "SELECT TOP 5 codtrn, nomtrn FROM PUB.transporte", b64("{\"file\": \"" + EXPORT_CSV + "\"}")},
+            {"export", "SELECT TOP 5 codtrn, nomtrn FROM PUB.transporte WHERE codtrn > ?",
+                    b64("{\"file\": \"" + EXPORT_NDJSON + "\", \"format\": \"ndjson\", \"gzip\": true, \"params\": [0]}")},
+            {"job-status", "cds-train"},
+            {"cds-train-invalida"},
+    };
+
+    // Respondem sempre com erro no modo CLI: so carregam o caminho de erro
+    private static final Set<String> ERROR_PATH_ACTIONS = Set.of("job-status", "cds-train-invalida");
+
+    private StartupTraining() {
+    }
+
+    /**
+     * Roda o treino e escreve em out um resumo por acao (formato, success e tempo)
+     */
+    static void run(ProgressJDBCConnector connector, Writer out) throws IOException {
+        long start = System.nanoTime();
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("data").beginObject();
+        json.name("actions").beginArray();
+        int failed = 0;
+        for (ResultFormat format : new ResultFormat[] {ResultFormat.OBJECTS, ResultFormat.COLUMNS}) {
+            for (String[] request : REQUESTS) {
+                long requestStart = System.nanoTime();
+                boolean succeeded = execute(connector, request, format);
+                boolean errorPath = ERROR_PATH_ACTIONS.contains(request[0]);
+                if (!succeeded && !errorPath) {
+                    failed++;
+                }
+                json.beginObject();
+                json.name("action").value(request[0]);
+                json.name("format").value(format.id);
+                json.name("success").value(succeeded || errorPath);
+                json.name("elapsed_ms").value((System.nanoTime() - requestStart) / 1_000_000);
+                json.endObject();
+            }
+        }
+        json.endArray();
+        deleteExports();
+        json.name("failed").value(failed);
+        json.name("elapsed_ms").value((System.nanoTime() - start) / 1_000_000);
+        json.endObject();
+        json.name("success").value(true);
+        json.name("message").value("Treino do arquivo CDS concluido");
+        json.endObject();
+        json.flush();
+    }
+
+    private static boolean execute(ProgressJDBCConnector connector, String[] request, ResultFormat format) {
+        String action = request[0];
+        String[] params = new String[request.length - 1];
+        System.arraycopy(request, 1, params, 0, params.length);
+        StringWriter buffer = new StringWriter();
+        try {
+            ResponseWriter json = new ResponseWriter(format.wrap(buffer));
+            json.beginObject();
+            try {
+                connector.dispatch(action, params, new RequestContext(0, null, null, format), json);
+            } catch (RuntimeException e) {
+                json.writeFailure("Erro ao executar acao " + action + ": " + e.getMessage());
+            }
+            json.endObject();
+            json.flush();
+            // Leitura da resposta como o PHP faria; tambem carrega as classes do parser
+            JsonElement success = JsonParser.parseString(buffer.toString()).getAsJsonObject().get("success");
+            return success != null && success.getAsBoolean();
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void deleteExports() throws IOException {
+        Path directory = Paths.get(System.getProperty("connector.export.dir", "exports")).toAbsolutePath();
+        for (String name : new String[] {EXPORT_CSV, EXPORT_NDJSON}) {
+            Files.deleteIfExists(directory.resolve(name));
+            Files.deleteIfExists(directory.resolve(name + ".progress"));
+        }
+    }
+
+    private static String b64(String json) {
+        return SqlParameters.BASE64_PREFIX + Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
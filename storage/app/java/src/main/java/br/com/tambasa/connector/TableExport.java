@@ -0,0 +1,382 @@
+package br.com.tambasa.connector;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Arquivo de exportacao da acao export: linhas de um ResultSet gravadas direto em
+ * disco em CSV ou NDJSON, opcionalmente com gzip, sem passar pelo PHP.
+ *
+ * As linhas sao codificadas em UTF-8 em um buffer de BUFFER_BYTES e gravadas no
+ * FileChannel em blocos grandes; o SHA-256 e calculado sobre os bytes gravados
+ * (o arquivo final, comprimido ou nao). A memoria usada nao depende do numero de linhas.
+ *
+ * O arquivo e escrito como .part e so recebe o nome final ao terminar, entao um
+ * arquivo com o nome pedido esta sempre completo. Enquanto grava, o progresso
+ * (linhas, bytes) fica em <arquivo>.progress, para acompanhamento por outro processo.
+ */
+final class TableExport {
+
+    enum Format {
+        CSV("csv"), NDJSON("ndjson");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        static Format parse(String name) {
+            for (Format format : values()) {
+                if (format.extension.equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Formato de exportacao invalido: " + name + " (use csv ou ndjson)");
+        }
+    }
+
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int GZIP_BUFFER_BYTES = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+    // Relogio conferido a cada tantas linhas, nao a cada linha
+    private static final int PROGRESS_CHECK_ROWS = 1024;
+    private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    /**
+     * Le uma coluna da linha atual como texto do CSV (null = celula vazia)
+     */
+    private interface Cell {
+        String read(ResultSet rs, int index) throws SQLException;
+    }
+
+    // Mesmo texto do JSON para datas e horas; decimais sem notacao cientifica
+    private static final Cell DATE = (rs, i) -> {
+        Date value = rs.getDate(i);
+        return value == null ? null : value.toString();
+    };
+    private static final Cell TIMESTAMP = (rs, i) -> {
+        Timestamp value = rs.getTimestamp(i);
+        return value == null ? null : value.toString();
+    };
+    private static final Cell TIME = (rs, i) -> {
+        Time value = rs.getTime(i);
+        return value == null ? null : value.toString();
+    };
+    private static final Cell DECIMAL = (rs, i) -> {
+        BigDecimal value = rs.getBigDecimal(i);
+        return value == null ? null : value.toPlainString();
+    };
+    private static final Cell TEXT = ResultSet::getString;
+
+    final Path file;
+    final Format format;
+    final boolean gzip;
+    private final char delimiter;
+    private final Path partFile;
+    private final Path progressFile;
+    private final DigestChannel channel;
+    private final Writer out;
+    private final long startedAt = System.nanoTime();
+    private long rows;
+    private long progressAt = startedAt;
+
+    private TableExport(Path file, Format format, boolean gzip, char delimiter) throws IOException {
+        this.file = file;
+        this.format = format;
+        this.gzip = gzip;
+        this.delimiter = delimiter;
+        this.partFile = file.resolveSibling(file.getFileName() + ".part");
+        this.progressFile = file.resolveSibling(file.getFileName() + ".progress");
+
+        this.channel = new DigestChannel(FileChannel.open(partFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        WritableByteChannel target = channel;
+        if (gzip) {
+            // O deflater devolve pedacos pequenos: o BufferedOutputStream junta em blocos de BUFFER_BYTES
+            target = Channels.newChannel(new GZIPOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES), GZIP_BUFFER_BYTES));
+        }
+        this.out = Channels.newWriter(target, StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE), BUFFER_BYTES);
+    }
+
+    /**
+     * Abre o arquivo de uma requisicao export
+     *
+     * Formato: {"format": "csv" | "ndjson", "gzip": true, "file": "nome.csv.gz", "delimiter": ";"}.
+     * O arquivo fica em -Dconnector.export.dir (padrao exports no diretorio do conector);
+     * sem "file", o nome e gerado pela data e hora.
+     */
+    static TableExport open(JsonObject spec) throws IOException {
+        Format format = Format.parse(spec.has("format") ? spec.get("format").getAsString() : "csv");
+        boolean gzip = spec.has("gzip") && spec.get("gzip").getAsBoolean();
+        String delimiter = spec.has("delimiter") ? spec.get("delimiter").getAsString() : ",";
+        if (delimiter.length() != 1 || delimiter.charAt(0) == '"' || delimiter.charAt(0) == '\r' || delimiter.charAt(0) == '\n') {
+            throw new IllegalArgumentException("delimiter deve ser um unico caractere, exceto aspas e quebra de linha");
+        }
+
+        String name = spec.has("file") ? spec.get("file").getAsString() : defaultFileName(format, gzip);
+        // Apenas um nome, sem diretorios: a exportacao nunca grava fora do diretorio configurado
+        if (!FILE_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Nome de arquivo invalido: " + name);
+        }
+
+        Path directory = Paths.get(System.getProperty("connector.export.dir", "exports")).toAbsolutePath();
+        Files.createDirectories(directory);
+        return new TableExport(directory.resolve(name), format, gzip, delimiter.charAt(0));
+    }
+
+    private static String defaultFileName(Format format, boolean gzip) {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(System.currentTimeMillis());
+        return "export-" + timestamp + "." + format.extension + (gzip ? ".gz" : "");
+    }
+
+    /**
+     * Grava todas as linhas do ResultSet. O tempo em rs.next() vai para fetchNanos e o
+     * de escrita (codificacao, compressao e disco) para serializeNanos.
+     */
+    ProgressJDBCConnector.RowStream write(ResultSet rs, RequestContext context) throws SQLException, IOException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        RowEncoder encoder = RowEncoder.of(metaData);
+        ProgressJDBCConnector.RowStream stream = new ProgressJDBCConnector.RowStream();
+
+        Cell[] cells = null;
+        JsonWriter json = null;
+        if (format == Format.CSV) {
+            cells = cells(metaData);
+            String[] names = encoder.columnNames();
+            for (int i = 0; i < names.length; i++) {
+                writeCsvField(i, names[i]);
+            }
+            out.write("\r\n");
+        } else {
+            // Leniente: um valor JSON por linha no mesmo writer
+            json = new JsonWriter(out);
+            json.setLenient(true);
+        }
+
+        long mark = System.nanoTime();
+        while (rs.next()) {
+            long fetched = System.nanoTime();
+            stream.fetchNanos += fetched - mark;
+
+            if (cells != null) {
+                for (int i = 0; i < cells.length; i++) {
+                    writeCsvField(i, cells[i].read(rs, i + 1));
+                }
+                out.write("\r\n");
+            } else {
+                encoder.write(rs, json);
+                out.write('\n');
+            }
+            rows++;
+
+            mark = System.nanoTime();
+            stream.serializeNanos += mark - fetched;
+            if (rows % PROGRESS_CHECK_ROWS == 0) {
+                context.checkCancelled();
+                if (mark - progressAt >= PROGRESS_INTERVAL_NANOS) {
+                    progressAt = mark;
+                    writeProgress("running", null);
+                }
+            }
+        }
+        stream.fetchNanos += System.nanoTime() - mark;
+        stream.count = (int) Math.min(rows, Integer.MAX_VALUE);
+        return stream;
+    }
+
+    private void writeCsvField(int index, String value) throws IOException {
+        if (index > 0) {
+            out.write(delimiter);
+        }
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == delimiter || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    private static Cell[] cells(ResultSetMetaData metaData) throws SQLException {
+        Cell[] cells = new Cell[metaData.getColumnCount()];
+        for (int i = 0; i < cells.length; i++) {
+            switch (metaData.getColumnType(i + 1)) {
+                case Types.DATE:
+                    cells[i] = DATE;
+                    break;
+                case Types.TIMESTAMP:
+                    cells[i] = TIMESTAMP;
+                    break;
+                case Types.TIME:
+                    cells[i] = TIME;
+                    break;
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    cells[i] = DECIMAL;
+                    break;
+                default:
+                    cells[i] = TEXT;
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Fecha o arquivo (terminando o gzip) e da a ele o nome final
+     */
+    void finish() throws IOException {
+        out.close();
+        try {
+            Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        writeProgress("done", null);
+    }
+
+    /**
+     * Descarta o arquivo parcial depois de uma falha
+     */
+    void abort(String error) {
+        try {
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            // Arquivo sera removido de qualquer forma
+        }
+        try {
+            Files.deleteIfExists(partFile);
+        } catch (IOException e) {
+            System.err.println("Aviso: arquivo parcial de exportacao nao removido: " + partFile);
+        }
+        writeProgress("failed", error);
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    /**
+     * Bytes gravados em disco (comprimidos, com gzip)
+     */
+    long bytes() {
+        return channel.bytes;
+    }
+
+    String checksum() {
+        StringBuilder hex = new StringBuilder("sha256:");
+        for (byte b : channel.digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    long elapsedMillis() {
+        return (System.nanoTime() - startedAt) / 1_000_000;
+    }
+
+    private void writeProgress(String state, String error) {
+        JsonObject progress = new JsonObject();
+        progress.addProperty("file", file.toString());
+        progress.addProperty("state", state);
+        progress.addProperty("rows", rows);
+        progress.addProperty("bytes", channel.bytes);
+        progress.addProperty("elapsed_ms", elapsedMillis());
+        progress.addProperty("updated_at", System.currentTimeMillis());
+        if (error != null) {
+            progress.addProperty("error", error);
+        }
+
+        Path temp = progressFile.resolveSibling(progressFile.getFileName() + ".tmp");
+        try {
+            Files.write(temp, progress.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, progressFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Progresso e so informativo: nao interrompe a exportacao
+            System.err.println("Aviso: progresso da exportacao nao gravado: " + e.getMessage());
+        }
+    }
+
+    /**
+     * FileChannel que calcula o SHA-256 e conta os bytes gravados
+     */
+    private static final class DigestChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private final MessageDigest digest;
+        private long bytes;
+
+        DigestChannel(FileChannel file) {
+            this.file = file;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            ByteBuffer written = source.duplicate();
+            int count = 0;
+            while (source.hasRemaining()) {
+                count += file.write(source);
+            }
+            written.limit(written.position() + count);
+            digest.update(written);
+            bytes += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Copia em memoria de tabelas pequenas e quase so de insercao (transporte, paccd,
+ * sPararViagem), para a acao lookup responder buscas por chave sem ir ao Progress.
+ *
+ * Cada tabela espelhada e lida inteira ao iniciar o conector residente e depois
+ * consultada a cada -Dconnector.mirror.pollSeconds so pelas linhas novas, pela coluna
+ * de marca d'agua (chave crescente como codpaccd ou data como dataCompra). Alteracoes
+ * e exclusoes em linhas antigas so aparecem na leitura completa seguinte, feita a cada
+ * -Dconnector.mirror.reconcileMinutes ou logo apos o proprio conector gravar na tabela.
+ *
+ * Uma busca so usa a copia se ela estiver em dia: carregada, sem gravacao do conector
+ * pendente de releitura e sincronizada ha menos de -Dconnector.mirror.maxLagSeconds.
+ * Fora disso (e sempre no modo CLI ou com consistency=live) a busca vai ao Progress,
+ * com o mesmo formato de resposta.
+ */
+final class TableMirror {
+
+    /**
+     * Tabelas que a acao lookup conhece: o SELECT, a chave unica e a marca d'agua.
+     * Colunas sao referidas pelo nome devolvido pelo driver, em minusculas.
+     */
+    static final class Definition {
+        final String name;
+        final String from;
+        final String[] expressions;
+        final String[] columns;
+        final String key;
+        final String watermark;
+        // Marca d'agua com datas: le de novo o ultimo dia, ja que varias linhas tem a mesma data
+        final boolean watermarkInclusive;
+        final String[][] indexes;
+        // Tabelas lidas pelo SELECT (sem schema, minusculas): gravacoes nelas invalidam a copia
+        final Set<String> tables;
+
+        Definition(String name, String from, String expressions, String key, String watermark,
+                   boolean watermarkInclusive, String[][] indexes, Set<String> tables) {
+            this.name = name;
+            this.from = from;
+            this.expressions = expressions.split(",\\s*");
+            this.columns = new String[this.expressions.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = columnName(this.expressions[i]);
+            }
+            this.key = key;
+            this.watermark = watermark;
+            this.watermarkInclusive = watermarkInclusive;
+            this.indexes = indexes;
+            this.tables = tables;
+        }
+
+        int column(String name) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        String select(int[] projection, int top) {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            if (top > 0) {
+                sql.append("TOP ").append(top).append(' ');
+            }
+            for (int i = 0; i < projection.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(expressions[projection[i]]);
+            }
+            return sql.append(" FROM ").append(from).toString();
+        }
+
+        String expression(String column) {
+            return expressions[column(column)];
+        }
+
+        private static String columnName(String expression) {
+            String column = expression.substring(expression.lastIndexOf('.') + 1);
+            return column.replace("\"", "").toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static final Map<String, Definition> DEFINITIONS = definitions(
+        // DDD do municipio junto: getDDDTransportador tambem sai da copia
+        new Definition("transporte",
+                "PUB.transporte t LEFT JOIN PUB.municipio m ON m.codmun = t.codmun AND m.codest = t.codest",
+                "t.codtrn, t.nomtrn, t.flgautonomo, t.natcam, t.tipcam, t.codcnpjcpf, t.numpla, t.numtel, t.dddtel,"
+                        + " t.numcel, t.dddcel, t.flgati, t.indcd, t.desend, t.numend, t.cplend, t.numceptrn,"
+                        + " t.\"e-mail\", t.numhab, t.venhab, t.cathab, t.datnas, t.codmun, t.codest, m.codddd",
+                "codtrn", "codtrn", false, new String[0][], Set.of("transporte", "municipio")),
+        new Definition("paccd", "PUB.paccd pcd", "pcd.codpaccd, pcd.codpac",
+                "codpaccd", "codpaccd", false, new String[][] {{"codpac"}}, Set.of("paccd")),
+        new Definition("spararviagem", "PUB.sPararViagem v",
+                "v.codViagem, v.CodPac, v.sPararRotID, v.NumPla, v.codtrn, v.valViagem, v.dataCompra, v.flgCancelado",
+                "codviagem", "datacompra", true, new String[][] {{"codpac", "spararrotid"}}, Set.of("spararviagem"))
+    );
+
+    /**
+     * Configuracao da copia, lida de propriedades de sistema (-Dconnector.mirror.*)
+     */
+    static final class Config {
+        List<String> tables = List.of("transporte", "paccd");
+        long pollMillis = 30_000;
+        long reconcileMillis = 15 * 60_000L;
+        long maxLagMillis = 5 * 60_000L;
+        int queryTimeoutSeconds = 120;
+
+        static Config fromSystemProperties() {
+            Config config = new Config();
+            String tables = System.getProperty("connector.mirror.tables");
+            if (tables != null) {
+                config.tables = new ArrayList<>();
+                for (String table : tables.split(",")) {
+                    if (!table.trim().isEmpty()) {
+                        config.tables.add(table.trim().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            config.pollMillis = Long.getLong("connector.mirror.pollSeconds", 30) * 1000;
+            config.reconcileMillis = Long.getLong("connector.mirror.reconcileMinutes", 15) * 60_000L;
+            config.maxLagMillis = Long.getLong("connector.mirror.maxLagSeconds", 300) * 1000;
+            config.queryTimeoutSeconds = Integer.getInteger("connector.mirror.queryTimeoutSeconds", config.queryTimeoutSeconds);
+            return config;
+        }
+    }
+
+    // Separa os valores de uma chave composta de indice
+    private static final char KEY_SEPARATOR = '\u0001';
+
+    private final ProgressJDBCConnector connector;
+    private final AdmissionControl admission;
+    private final ConnectorMetrics metrics;
+    private final Config config;
+    private final Map<String, Mirror> mirrors = new LinkedHashMap<>();
+    private final ScheduledExecutorService sync;
+
+    /**
+     * @param admission Classes de prioridade: a leitura da copia e uma requisicao batch
+     */
+    TableMirror(ProgressJDBCConnector connector, AdmissionControl admission, ConnectorMetrics metrics, Config config) {
+        this.connector = connector;
+        this.admission = admission;
+        this.metrics = metrics;
+        this.config = config;
+        for (String table : config.tables) {
+            Definition definition = DEFINITIONS.get(table);
+            if (definition == null) {
+                throw new IllegalArgumentException("connector.mirror.tables: tabela desconhecida " + table
+                        + ". Use: " + String.join(", ", DEFINITIONS.keySet()));
+            }
+            mirrors.put(table, new Mirror(definition));
+        }
+        // Uma thread so: leituras de uma mesma tabela nunca se sobrepoem
+        this.sync = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connector-mirror-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Agenda a carga inicial e as sincronizacoes periodicas. Ate a carga terminar as
+     * buscas vao ao Progress.
+     */
+    void start() {
+        if (mirrors.isEmpty()) {
+            return;
+        }
+        sync.scheduleWithFixedDelay(this::syncAll, 0, config.pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        sync.shutdownNow();
+    }
+
+    /**
+     * Gravacao do conector nas tabelas (null = nao identificadas): a copia deixa de
+     * responder buscas ate ser relida por inteiro, o que comeca na hora
+     */
+    void tablesChanged(Set<String> tables) {
+        for (Mirror mirror : mirrors.values()) {
+            if (tables == null || !Collections.disjoint(mirror.definition.tables, tables)) {
+                mirror.changes.incrementAndGet();
+                sync.execute(() -> sync(mirror, true));
+            }
+        }
+    }
+
+    /**
+     * Responde a busca pela copia, se a tabela for espelhada e estiver em dia
+     *
+     * @return false se a busca deve ir ao Progress (nada foi escrito em out)
+     */
+    boolean lookup(Lookup lookup, ResultFormat format, int maxRows, JsonWriter out) throws IOException {
+        Mirror mirror = mirrors.get(lookup.definition.name);
+        Snapshot snapshot = mirror == null ? null : mirror.current(config.maxLagMillis);
+        if (snapshot == null) {
+            if (mirror != null) {
+                mirror.misses.incrementAndGet();
+            }
+            return false;
+        }
+        mirror.hits.incrementAndGet();
+
+        int limit = lookup.limit > 0 && maxRows > 0 ? Math.min(lookup.limit, maxRows) : Math.max(lookup.limit, maxRows);
+        List<Object[]> rows = snapshot.find(lookup, limit);
+
+        String[] names = new String[lookup.projection.length];
+        String[] types = new String[lookup.projection.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = lookup.definition.columns[lookup.projection[i]];
+            types[i] = snapshot.types[lookup.projection[i]];
+        }
+
+        out.name("data").beginObject();
+        out.name("results");
+        format.beginRows(out, names, types);
+        Object[] values = new Object[names.length];
+        for (Object[] row : rows) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = row[lookup.projection[i]];
+            }
+            format.writeRow(names, values, out);
+        }
+        format.endRows(out);
+        out.name("total").value(rows.size());
+        out.name("source").value("mirror");
+        out.name("synced_at").value(new Timestamp(mirror.syncedAt).toString());
+        out.endObject();
+
+        out.name("success").value(true);
+        out.name("message").value("Consulta executada com sucesso");
+        return true;
+    }
+
+    JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        for (Mirror mirror : mirrors.values()) {
+            Snapshot snapshot = mirror.snapshot;
+            JsonObject table = new JsonObject();
+            table.addProperty("rows", snapshot == null ? 0 : snapshot.rows.size());
+            table.addProperty("serving", mirror.current(config.maxLagMillis) != null);
+            table.addProperty("loaded_at", mirror.loadedAt == 0 ? null : new Timestamp(mirror.loadedAt).toString());
+            table.addProperty("synced_at", mirror.syncedAt == 0 ? null : new Timestamp(mirror.syncedAt).toString());
+            table.addProperty("full_loads", mirror.fullLoads);
+            table.addProperty("polls", mirror.polls);
+            table.addProperty("polled_rows", mirror.polledRows);
+            table.addProperty("hits", mirror.hits.get());
+            table.addProperty("misses", mirror.misses.get());
+            table.addProperty("last_error", mirror.lastError);
+            stats.add(mirror.definition.name, table);
+        }
+        return stats;
+    }
+
+    private void syncAll() {
+        for (Mirror mirror : mirrors.values()) {
+            // Sem marca d'agua (tabela vazia na ultima leitura) a consulta incremental seria a completa
+            Snapshot snapshot = mirror.snapshot;
+            sync(mirror, snapshot == null || snapshot.watermark == null
+                    || System.currentTimeMillis() - mirror.loadedAt >= config.reconcileMillis);
+        }
+    }
+
+    /**
+     * Le a tabela inteira (full) ou so as linhas alem da marca d'agua, como requisicao batch.
+     * Sem vez na classe batch (interativas ocupando o broker) a leitura fica para a proxima
+     * rodada; a copia anterior continua valendo ate maxLagSeconds.
+     */
+    private void sync(Mirror mirror, boolean full) {
+        long startedAt = System.nanoTime();
+        long changes = mirror.changes.get();
+        RequestContext context = new RequestContext(config.queryTimeoutSeconds);
+        try {
+            AdmissionControl.Admission admitted = admission.admit(AdmissionControl.Priority.BATCH, context);
+            if (admitted != AdmissionControl.Admission.ADMITTED) {
+                mirror.lastError = "Conector sobrecarregado: leitura adiada para a proxima rodada";
+                context.timings().response(0, false);
+                metrics.recordOverloaded("mirror-sync", context.timings(), System.nanoTime() - startedAt);
+                return;
+            }
+            try {
+                context.timings().add(ConnectorMetrics.Phase.QUEUE, System.nanoTime() - startedAt);
+                Definition definition = mirror.definition;
+                Snapshot previous = mirror.snapshot;
+                Snapshot target = full ? new Snapshot(definition) : previous;
+                int[] all = new int[definition.columns.length];
+                Arrays.setAll(all, i -> i);
+
+                String sql = definition.select(all, 0);
+                JsonArray parameters = null;
+                if (!full) {
+                    sql += " WHERE " + definition.expression(definition.watermark)
+                            + (definition.watermarkInclusive ? " >= ?" : " > ?");
+                    parameters = new JsonArray();
+                    parameters.add(parameter(previous.watermark));
+                }
+
+                ProgressJDBCConnector.RowStream read = connector.readQuery(sql, parameters, context, target::load);
+
+                long now = System.currentTimeMillis();
+                if (full) {
+                    mirror.snapshot = target;
+                    mirror.loadedAt = now;
+                    mirror.fullLoads++;
+                    // Gravacoes ate o inicio desta leitura ja estao nela
+                    mirror.synced.set(changes);
+                } else {
+                    mirror.polls++;
+                    mirror.polledRows += read.count;
+                }
+                mirror.syncedAt = now;
+                mirror.lastError = null;
+            } finally {
+                admission.release(AdmissionControl.Priority.BATCH, context.timings());
+            }
+            context.timings().response(0, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (SQLException | ClassNotFoundException | IOException | RuntimeException e) {
+            // A copia anterior continua valendo ate maxLagSeconds; a proxima rodada tenta de novo
+            mirror.lastError = e.getMessage();
+            context.timings().response(0, false);
+            System.err.println("Aviso: falha ao sincronizar copia de " + mirror.definition.name + ": " + e.getMessage());
+        }
+        metrics.record("mirror-sync", context.timings(), System.nanoTime() - startedAt);
+    }
+
+    private static JsonElement parameter(Object value) {
+        if (value instanceof Timestamp) {
+            return typed("timestamp", value.toString());
+        } else if (value instanceof Date) {
+            return typed("date", value.toString());
+        } else if (value instanceof Number) {
+            return new JsonPrimitive((Number) value);
+        }
+        return new JsonPrimitive(value.toString());
+    }
+
+    private static JsonObject typed(String type, String value) {
+        JsonObject typed = new JsonObject();
+        typed.addProperty("type", type);
+        typed.addProperty("value", value);
+        return typed;
+    }
+
+    /**
+     * Valor normalizado para comparar chaves: numeros sem zeros a direita (10 = 10.0),
+     * textos sem espacos nas pontas e em maiusculas, como o Progress compara CHAR.
+     * null nao e igual a nada.
+     */
+    static String keyOf(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Number) {
+            return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+        } else if (value instanceof String) {
+            return ((String) value).trim().toUpperCase(Locale.ROOT);
+        }
+        return value.toString();
+    }
+
+    static String keyOf(JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        if (primitive.isNumber()) {
+            return primitive.getAsBigDecimal().stripTrailingZeros().toPlainString();
+        } else if (primitive.isBoolean()) {
+            return String.valueOf(primitive.getAsBoolean());
+        }
+        return primitive.getAsString().trim().toUpperCase(Locale.ROOT);
+    }
+
+    private static Map<String, Definition> definitions(Definition... definitions) {
+        Map<String, Definition> byName = new LinkedHashMap<>();
+        for (Definition definition : definitions) {
+            byName.put(definition.name, definition);
+        }
+        return Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * Busca da acao lookup. Especificacao (JSON):
+     *   {"table": "transporte", "where": {"codtrn": 10}, "columns": ["codtrn", "nomtrn"],
+     *    "limit": 1, "consistency": "mirror"}
+     * "where" compara igualdade em colunas da tabela (AND); consistency=live ignora a copia.
+     */
+    static final class Lookup {
+        final Definition definition;
+        final int[] projection;
+        final int[] whereColumns;
+        final JsonElement[] whereValues;
+        final int limit;
+        final boolean mirrorAllowed;
+
+        private Lookup(JsonObject spec) {
+            String table = spec.has("table") ? spec.get("table").getAsString().toLowerCase(Locale.ROOT) : "";
+            definition = DEFINITIONS.get(table);
+            if (definition == null) {
+                throw new IllegalArgumentException("table invalida: " + table + ". Use: " + String.join(", ", DEFINITIONS.keySet()));
+            }
+
+            if (spec.has("columns")) {
+                JsonArray columns = spec.getAsJsonArray("columns");
+                projection = new int[columns.size()];
+                for (int i = 0; i < projection.length; i++) {
+                    projection[i] = requireColumn(columns.get(i).getAsString());
+                }
+            } else {
+                projection = new int[definition.columns.length];
+                Arrays.setAll(projection, i -> i);
+            }
+
+            JsonObject where = spec.has("where") ? spec.getAsJsonObject("where") : new JsonObject();
+            if (where.size() == 0) {
+                throw new IllegalArgumentException("where e obrigatorio");
+            }
+            whereColumns = new int[where.size()];
+            whereValues = new JsonElement[where.size()];
+            int i = 0;
+            for (Map.Entry<String, JsonElement> condition : where.entrySet()) {
+                if (!condition.getValue().isJsonPrimitive()) {
+                    throw new IllegalArgumentException("where." + condition.getKey() + " deve ser texto, numero ou booleano");
+                }
+                whereColumns[i] = requireColumn(condition.getKey());
+                whereValues[i] = condition.getValue();
+                i++;
+            }
+
+            limit = spec.has("limit") ? spec.get("limit").getAsInt() : 0;
+            if (limit < 0) {
+                throw new IllegalArgumentException("limit deve ser maior ou igual a zero");
+            }
+            String consistency = spec.has("consistency") ? spec.get("consistency").getAsString() : "mirror";
+            if (!consistency.equals("mirror") && !consistency.equals("live")) {
+                throw new IllegalArgumentException("consistency deve ser mirror ou live");
+            }
+            mirrorAllowed = consistency.equals("mirror");
+        }
+
+        static Lookup parse(JsonObject spec) {
+            return new Lookup(spec);
+        }
+
+        /**
+         * O mesmo SELECT da copia com os filtros do where, para buscar no Progress
+         */
+        String liveSql() {
+            StringBuilder sql = new StringBuilder(definition.select(projection, limit));
+            for (int i = 0; i < whereColumns.length; i++) {
+                sql.append(i == 0 ? " WHERE " : " AND ").append(definition.expressions[whereColumns[i]]).append(" = ?");
+            }
+            return sql.toString();
+        }
+
+        JsonArray liveParameters() {
+            JsonArray parameters = new JsonArray();
+            for (JsonElement value : whereValues) {
+                parameters.add(value);
+            }
+            return parameters;
+        }
+
+        private int requireColumn(String name) {
+            int column = definition.column(name.toLowerCase(Locale.ROOT));
+            if (column < 0) {
+                throw new IllegalArgumentException("coluna invalida para " + definition.name + ": " + name);
+            }
+            return column;
+        }
+    }
+
+    /**
+     * Estado da copia de uma tabela. Escrito so pela thread de sincronizacao.
+     */
+    private static final class Mirror {
+        final Definition definition;
+        volatile Snapshot snapshot;
+        volatile long loadedAt;
+        volatile long syncedAt;
+        volatile String lastError;
+        volatile long fullLoads;
+        volatile long polls;
+        volatile long polledRows;
+        // Gravacoes do conector na tabela e quantas delas a copia ja inclui
+        final AtomicLong changes = new AtomicLong();
+        final AtomicLong synced = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        Mirror(Definition definition) {
+            this.definition = definition;
+        }
+
+        /**
+         * @return A copia, se ela pode responder buscas; null se carregando, pendente de releitura ou atrasada
+         */
+        Snapshot current(long maxLagMillis) {
+            Snapshot current = snapshot;
+            if (current == null || synced.get() != changes.get()
+                    || System.currentTimeMillis() - syncedAt > maxLagMillis) {
+                return null;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Linhas de uma tabela por chave unica, com indices de colunas nao unicas. A leitura
+     * completa monta uma instancia nova; a incremental atualiza a atual linha a linha
+     * (buscas concorrentes veem cada linha antes ou depois da troca, nunca pela metade).
+     */
+    private static final class Snapshot {
+        final Definition definition;
+        final Map<String, Object[]> rows = new ConcurrentHashMap<>();
+        final List<Map<String, Set<String>>> indexes = new ArrayList<>();
+        final int[][] indexColumns;
+        final int keyColumn;
+        final int watermarkColumn;
+        volatile String[] types;
+        volatile Object watermark;
+
+        Snapshot(Definition definition) {
+            this.definition = definition;
+            keyColumn = definition.column(definition.key);
+            watermarkColumn = definition.watermark == null ? -1 : definition.column(definition.watermark);
+            indexColumns = new int[definition.indexes.length][];
+            for (int i = 0; i < indexColumns.length; i++) {
+                indexColumns[i] = new int[definition.indexes[i].length];
+                for (int j = 0; j < indexColumns[i].length; j++) {
+                    indexColumns[i][j] = definition.column(definition.indexes[i][j]);
+                }
+                indexes.add(new ConcurrentHashMap<>());
+            }
+        }
+
+        /**
+         * RowReader de ProgressJDBCConnector.readQuery: guarda (ou substitui) cada linha lida
+         */
+        ProgressJDBCConnector.RowStream load(ResultSet rs) throws SQLException {
+            ProgressJDBCConnector.RowStream read = new ProgressJDBCConnector.RowStream();
+            types = RowEncoder.of(rs.getMetaData()).columnTypes();
+            long fetchStart = System.nanoTime();
+            while (rs.next()) {
+                Object[] row = new Object[definition.columns.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                put(row);
+                read.count++;
+            }
+            read.fetchNanos = System.nanoTime() - fetchStart;
+            return read;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void put(Object[] row) {
+            String key = keyOf(row[keyColumn]);
+            if (key == null) {
+                return;
+            }
+            Object[] previous = rows.put(key, row);
+            for (int i = 0; i < indexColumns.length; i++) {
+                String previousKey = previous == null ? null : indexKey(previous, indexColumns[i]);
+                if (previousKey != null) {
+                    Set<String> keys = indexes.get(i).get(previousKey);
+                    if (keys != null) {
+                        keys.remove(key);
+                    }
+                }
+                String indexKey = indexKey(row, indexColumns[i]);
+                if (indexKey != null) {
+                    indexes.get(i).computeIfAbsent(indexKey, k -> ConcurrentHashMap.newKeySet()).add(key);
+                }
+            }
+            if (watermarkColumn >= 0 && row[watermarkColumn] != null
+                    && (watermark == null || ((Comparable<Object>) row[watermarkColumn]).compareTo(watermark) > 0)) {
+                watermark = row[watermarkColumn];
+            }
+        }
+
+        /**
+         * Linhas que atendem o where: pela chave unica, por um indice cujas colunas estao
+         * todas no where, ou percorrendo a tabela
+         */
+        List<Object[]> find(Lookup lookup, int limit) {
+            String[] wanted = new String[definition.columns.length];
+            for (int i = 0; i < lookup.whereColumns.length; i++) {
+                String value = keyOf(lookup.whereValues[i]);
+                if (value == null) {
+                    return Collections.emptyList();
+                }
+                wanted[lookup.whereColumns[i]] = value;
+            }
+
+            Iterable<Object[]> candidates = rows.values();
+            if (wanted[keyColumn] != null) {
+                Object[] row = rows.get(wanted[keyColumn]);
+                candidates = row == null ? Collections.emptyList() : Collections.singletonList(row);
+            } else {
+                for (int i = 0; i < indexColumns.length; i++) {
+                    String indexKey = indexKey(wanted, indexColumns[i]);
+                    if (indexKey != null) {
+                        List<Object[]> indexed = new ArrayList<>();
+                        for (String key : indexes.get(i).getOrDefault(indexKey, Collections.emptySet())) {
+                            Object[] row = rows.get(key);
+                            if (row != null) {
+                                indexed.add(row);
+                            }
+                        }
+                        candidates = indexed;
+                        break;
+                    }
+                }
+            }
+
+            List<Object[]> found = new ArrayList<>();
+            for (Object[] row : candidates) {
+                if (matches(row, wanted)) {
+                    found.add(row);
+                    if (limit > 0 && found.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private static boolean matches(Object[] row, String[] wanted) {
+            for (int i = 0; i < wanted.length; i++) {
+                if (wanted[i] != null && !wanted[i].equals(keyOf(row[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Chave de indice das colunas; null se alguma estiver vazia (linha fora do indice
+         * ou where sem todas as colunas)
+         */
+        private static String indexKey(Object[] values, int[] columns) {
+            StringBuilder key = new StringBuilder();
+            for (int column : columns) {
+                String value = keyOf(values[column]);
+                if (value == null) {
+                    return null;
+                }
+                key.append(value).append(KEY_SEPARATOR);
+            }
+            return key.toString();
+        }
+    }
+}
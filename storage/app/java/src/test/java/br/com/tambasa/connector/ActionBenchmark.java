@@ -0,0 +1,180 @@
+package br.com.tambasa.connector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Acoes completas do conector contra o H2: consulta, PreparedStatement, multi e page
+ * chamando dispatch() direto, e a mesma consulta pelo socket do conector residente
+ * (protocolo de linha JSON), com e sem o cache de resultados.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActionBenchmark {
+
+    static final String QUERY = "SELECT TOP 100 p.codpac, p.datforpac, p.codtrn, p.valpac, p.sitpac, t.nomtrn"
+            + " FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn WHERE p.codtrn > 0 ORDER BY p.codpac DESC";
+
+    private ConnectionPool pool;
+    private ProgressJDBCConnector connector;
+    private String[] queryParams;
+    private String[] preparedParams;
+    private String[] multiParams;
+    private String[] pageParams;
+
+    private Socket socket;
+    private BufferedWriter socketOut;
+    private BufferedReader socketIn;
+    private String serverRequest;
+    private String cachedServerRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException, InterruptedException {
+        String url = BenchmarkDatabase.url();
+        pool = BenchmarkDatabase.pool(url, 4);
+        connector = new ProgressJDBCConnector(url, pool);
+
+        queryParams = new String[] {QUERY};
+        preparedParams = new String[] {QUERY.replace("p.codtrn > 0", "p.codtrn > ?"), "[0]"};
+
+        JsonObject multi = new JsonObject();
+        multi.addProperty("pacotes", QUERY);
+        multi.addProperty("total", "SELECT COUNT(*) AS total FROM PUB.pacote WHERE codtrn > 0");
+        multi.addProperty("rotas", "SELECT TOP 20 sPararRotID, desSPararRot FROM PUB.semPararRot ORDER BY sPararRotID DESC");
+        multiParams = new String[] {multi.toString()};
+
+        JsonObject page = new JsonObject();
+        page.addProperty("from", "PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn");
+        page.addProperty("columns", "p.codpac, p.datforpac, p.codtrn, p.valpac, p.sitpac, t.nomtrn");
+        JsonArray keys = new JsonArray();
+        keys.add("p.codpac DESC");
+        page.add("keys", keys);
+        page.addProperty("where", "p.codtrn > 0");
+        page.addProperty("limit", 100);
+        pageParams = new String[] {page.toString()};
+
+        startServer(url);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        pool.close();
+    }
+
+    @Benchmark
+    public void query() throws IOException {
+        dispatch("query", queryParams);
+    }
+
+    @Benchmark
+    public void queryPrepared() throws IOException {
+        dispatch("query-prepared", preparedParams);
+    }
+
+    @Benchmark
+    public void multi() throws IOException {
+        dispatch("multi", multiParams);
+    }
+
+    @Benchmark
+    public void page() throws IOException {
+        dispatch("page", pageParams);
+    }
+
+    @Benchmark
+    public String serverQuery() throws IOException {
+        return roundTrip(serverRequest);
+    }
+
+    @Benchmark
+    public String serverQueryCached() throws IOException {
+        return roundTrip(cachedServerRequest);
+    }
+
+    private void dispatch(String action, String[] params) throws IOException {
+        JsonWriter out = new JsonWriter(Writer.nullWriter());
+        out.beginObject();
+        connector.dispatch(action, params, RequestContext.defaults(), out);
+        out.endObject();
+    }
+
+    private String roundTrip(String request) throws IOException {
+        socketOut.write(request);
+        socketOut.write('\n');
+        socketOut.flush();
+        return socketIn.readLine();
+    }
+
+    /**
+     * Sobe o conector residente em uma porta livre, em thread daemon que termina com o fork do JMH
+     */
+    private void startServer(String url) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        ConnectorServer server = new ConnectorServer(url, "sa", "", port);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Falha ao iniciar conector residente: " + e.getMessage());
+            }
+        }, "benchmark-connector-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+        socket.setTcpNoDelay(true);
+        socketOut = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+        JsonObject request = new JsonObject();
+        request.addProperty("action", "query");
+        JsonArray params = new JsonArray();
+        params.add(QUERY);
+        request.add("params", params);
+        serverRequest = request.toString();
+        request.addProperty("cache", 60);
+        cachedServerRequest = request.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package br.com.tambasa.connector;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+
+/**
+ * Banco H2 em memoria (ou em arquivo, para outras JVMs) no formato das tabelas Progress
+ * usadas pelo conector (transporte, pacote, paccd, semPararRot, semPararRotMu), para os
+ * benchmarks rodarem sem servidor OpenEdge.
+ *
+ * O H2 roda em modo MSSQLServer, que aceita SELECT TOP como o Progress. Os dados sao
+ * gerados de forma deterministica, entao execucoes diferentes sao comparaveis.
+ */
+final class BenchmarkDatabase {
+
+    static final int TRANSPORTES = 20_000;
+    static final int PACOTES = 50_000;
+    static final int ROTAS = 300;
+    static final int MUNICIPIOS_POR_ROTA = 20;
+
+    static {
+        // DirectConnectionSource carrega o driver desta propriedade
+        System.setProperty("connector.driverClass", "org.h2.Driver");
+    }
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Cria (uma vez por JVM) e popula o banco; devolve a URL JDBC
+     */
+    static String url() throws SQLException {
+        return seeded("jdbc:h2:mem:progress;MODE=MSSQLServer;DB_CLOSE_DELAY=-1");
+    }
+
+    /**
+     * O mesmo banco em arquivo no diretorio informado, para JVMs separadas
+     * (ColdStartBenchmark): o arquivo fica livre quando a ultima conexao desta JVM fecha
+     */
+    static String fileUrl(Path directory) throws SQLException {
+        return seeded("jdbc:h2:file:" + directory.resolve("progress").toAbsolutePath() + ";MODE=MSSQLServer");
+    }
+
+    private static synchronized String seeded(String url) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE SCHEMA IF NOT EXISTS PUB");
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUB'")) {
+                rs.next();
+                if (rs.getInt(1) > 0) {
+                    return url;
+                }
+            }
+            seed(stmt);
+        }
+        return url;
+    }
+
+    static ConnectionPool pool(String url, int size) {
+        ConnectionPool.Config config = new ConnectionPool.Config();
+        config.minSize = size;
+        config.maxSize = size;
+        ConnectionPool pool = new ConnectionPool(new DirectConnectionSource(url, "sa", ""), config);
+        pool.warmUp();
+        return pool;
+    }
+
+    /**
+     * Resultado da consulta copiado para memoria: isola o custo de conversao para JSON
+     * do custo de execucao da consulta
+     */
+    static CachedRowSet cachedRows(String url, String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+            rows.populate(rs);
+            return rows;
+        }
+    }
+
+    private static void seed(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE PUB.transporte (codtrn INT PRIMARY KEY, nomtrn VARCHAR(60), flgautonomo BIT,"
+                + " natcam CHAR(1), tipcam INT, codcnpjcpf VARCHAR(20), numpla VARCHAR(10), numtel VARCHAR(15),"
+                + " dddtel INT, flgati BIT, indcd BIT)");
+        stmt.execute("INSERT INTO PUB.transporte SELECT X, 'TRANSPORTADORA ' || X || ' LTDA', MOD(X, 3) = 0,"
+                + " CASE WHEN MOD(X, 2) = 0 THEN 'J' ELSE 'F' END, MOD(X, 5), LPAD(X, 14, '0'),"
+                + " 'ABC' || LPAD(MOD(X, 10000), 4, '0'), '9' || LPAD(X, 8, '0'), 31, MOD(X, 7) <> 0, MOD(X, 11) = 0"
+                + " FROM SYSTEM_RANGE(1, " + TRANSPORTES + ")");
+
+        stmt.execute("CREATE TABLE PUB.pacote (codpac INT PRIMARY KEY, datforpac DATE, horforpac VARCHAR(8),"
+                + " codtrn INT, codmot INT, numpla VARCHAR(10), valpac DECIMAL(15,2), volpac DECIMAL(12,3),"
+                + " pespac DECIMAL(12,3), sitpac INT, codrot VARCHAR(10), nroped INT)");
+        stmt.execute("INSERT INTO PUB.pacote SELECT X, DATEADD(DAY, -MOD(X, 365), DATE '2025-06-30'),"
+                + " LPAD(MOD(X, 24), 2, '0') || ':' || LPAD(MOD(X, 60), 2, '0') || ':00', MOD(X, " + TRANSPORTES + ") + 1,"
+                + " MOD(X, 900) + 1, 'ABC' || LPAD(MOD(X, 10000), 4, '0'), MOD(X, 100000) / 7.0, MOD(X, 500) / 3.0,"
+                + " MOD(X, 30000) / 11.0, MOD(X, 4), 'R' || MOD(X, 120), X * 3"
+                + " FROM SYSTEM_RANGE(1, " + PACOTES + ")");
+        stmt.execute("CREATE TABLE PUB.paccd (codpaccd INT PRIMARY KEY)");
+        stmt.execute("INSERT INTO PUB.paccd SELECT X FROM SYSTEM_RANGE(1, " + PACOTES + ") WHERE MOD(X, 10) = 0");
+
+        stmt.execute("CREATE TABLE PUB.semPararRot (sPararRotID INT PRIMARY KEY, desSPararRot VARCHAR(60),"
+                + " tempoViagem INT, flgCD BIT, flgRetorno BIT, datAtu TIMESTAMP)");
+        stmt.execute("INSERT INTO PUB.semPararRot SELECT X, 'ROTA ' || X, MOD(X, 72) + 1, MOD(X, 2) = 0,"
+                + " MOD(X, 3) = 0, TIMESTAMP '2025-01-01 08:00:00' FROM SYSTEM_RANGE(1, " + ROTAS + ")");
+        stmt.execute("CREATE TABLE PUB.semPararRotMu (sPararRotID INT, sPararMuSeq INT, codEst INT, codMun INT,"
+                + " desEst VARCHAR(40), desMun VARCHAR(60), cdibge INT, PRIMARY KEY (sPararRotID, sPararMuSeq))");
+        stmt.execute("INSERT INTO PUB.semPararRotMu SELECT r.X, s.X, MOD(r.X + s.X, 27) + 1, r.X * 100 + s.X,"
+                + " 'MG', 'MUNICIPIO ' || (r.X * 100 + s.X), 3100000 + r.X * 100 + s.X"
+                + " FROM SYSTEM_RANGE(1, " + ROTAS + ") r CROSS JOIN SYSTEM_RANGE(1, " + MUNICIPIOS_POR_ROTA + ") s");
+    }
+}
@@ -0,0 +1,169 @@
+package br.com.tambasa.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.spi.ToolProvider;
+import java.util.stream.Stream;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Partida a frio do modo CLI: cada operacao inicia uma JVM nova com
+ * java ProgressJDBCConnector &lt;acao&gt; contra o H2 em arquivo e espera a resposta inteira,
+ * como o ProgressService faz a cada chamada sem conector residente.
+ *
+ * launcher: plain (so java -cp), tuned (@connector-cli.jvmopts) e cds (as mesmas opcoes e
+ * o arquivo AppCDS gerado pela acao cds-train no setup). O tempo inclui abrir o banco H2,
+ * que faz o papel do login no broker. Rodar a partir de storage/app/java (mvn -Pbench).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ColdStartBenchmark {
+
+    static final String OPTIONS_FILE = "connector-cli.jvmopts";
+    static final String MAIN = "br.com.tambasa.connector.ProgressJDBCConnector";
+
+    @Param({"test", "query", "query-prepared", "update", "multi", "page", "schema", "export"})
+    public String action;
+
+    @Param({"plain", "tuned", "cds"})
+    public String launcher;
+
+    private Path workDir;
+    private List<String> command;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException, SQLException, URISyntaxException {
+        Path options = Paths.get(OPTIONS_FILE).toAbsolutePath();
+        if (!Files.exists(options)) {
+            throw new IllegalStateException(OPTIONS_FILE + " nao encontrado: rode a partir de storage/app/java");
+        }
+
+        workDir = Files.createTempDirectory("connector-cold-start");
+        String url = BenchmarkDatabase.fileUrl(workDir);
+        // O CDS so arquiva classes lidas de jars: o conector roda do jar, como no ProgressService
+        String classpath = String.join(File.pathSeparator, connectorJar().toString(),
+                jarOf(Gson.class).toString(), jarOf(org.h2.Driver.class).toString());
+
+        List<String> jvm = new ArrayList<>();
+        jvm.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (!launcher.equals("plain")) {
+            jvm.add("@" + options);
+        }
+        jvm.add("-Dconnector.driverClass=org.h2.Driver");
+        jvm.add("-Dconnector.export.dir=" + workDir.resolve("exports"));
+        jvm.add("-Dconnector.schema.snapshotFile=" + workDir.resolve("schema-snapshot.json"));
+
+        if (launcher.equals("cds")) {
+            Path archive = workDir.resolve("connector-cli.jsa");
+            List<String> training = new ArrayList<>(jvm);
+            training.add("-XX:ArchiveClassesAtExit=" + archive);
+            training.addAll(Arrays.asList("-cp", classpath, MAIN, "cds-train", url, "sa", ""));
+            run(training);
+            jvm.add("-XX:SharedArchiveFile=" + archive);
+        }
+
+        command = new ArrayList<>(jvm);
+        command.addAll(Arrays.asList("-cp", classpath, MAIN, action, url, "sa", ""));
+        command.addAll(Arrays.asList(params(action)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public String launch() throws IOException, InterruptedException {
+        return run(command);
+    }
+
+    private static String[] params(String action) {
+        String query = "SELECT TOP 100 codtrn, nomtrn, numpla, flgati FROM PUB.transporte WHERE codtrn > 0 ORDER BY codtrn";
+        switch (action) {
+            case "query":
+                return new String[] {query};
+            case "query-prepared":
+                return new String[] {query.replace("codtrn > 0", "codtrn > ?"), "[0]"};
+            case "update":
+                return new String[] {"UPDATE PUB.transporte SET nomtrn = nomtrn WHERE codtrn = 1"};
+            case "multi":
+                return new String[] {"{\"dados\": \"" + query + "\", \"total\": \"SELECT COUNT(*) AS total FROM PUB.transporte\"}"};
+            case "page":
+                return new String[] {"{\"from\": \"PUB.pacote\", \"columns\": \"codpac, codtrn, valpac\","
+                        + " \"keys\": [\"codpac DESC\"], \"limit\": 50, \"count\": true}"};
+            case "schema":
+                return new String[] {"transporte"};
+            case "export":
+                return new String[] {query.replace("TOP 100", "TOP 1000"), "{\"file\": \"cold-start.csv\"}"};
+            default:
+                return new String[0];
+        }
+    }
+
+    /**
+     * Executa a JVM filha e devolve a saida; falha se a resposta nao for success=true
+     */
+    private static String run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (process.waitFor() != 0 || !output.contains("\"success\":true")) {
+            throw new IllegalStateException("Chamada CLI falhou: " + output);
+        }
+        return output;
+    }
+
+    /**
+     * Jar com as classes do conector (target/classes), como o ProgressService gera ao compilar
+     */
+    private Path connectorJar() throws URISyntaxException {
+        Path classes = jarOf(ProgressJDBCConnector.class);
+        Path jar = workDir.resolve("progress-jdbc-connector.jar");
+        ToolProvider tool = ToolProvider.findFirst("jar")
+                .orElseThrow(() -> new IllegalStateException("Ferramenta jar indisponivel nesta JVM"));
+        int exit = tool.run(System.out, System.err, "--create", "--file", jar.toString(), "-C", classes.toString(), ".");
+        if (exit != 0) {
+            throw new IllegalStateException("Falha ao gerar " + jar);
+        }
+        return jar;
+    }
+
+    private static Path jarOf(Class<?> type) throws URISyntaxException {
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+}
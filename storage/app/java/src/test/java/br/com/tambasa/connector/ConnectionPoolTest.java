@@ -0,0 +1,116 @@
+package br.com.tambasa.connector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Espera com limite no pool esgotado e validacao das conexoes ociosas, contra o H2 do
+ * BenchmarkDatabase
+ */
+class ConnectionPoolTest {
+
+    private static String url;
+    private ConnectionPool pool;
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        url = BenchmarkDatabase.url();
+    }
+
+    @AfterEach
+    void closePool() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    void exhaustedPoolFailsAfterBorrowTimeoutAndRecoversOnRelease() throws Exception {
+        ConnectionPool.Config config = config(1);
+        config.borrowTimeoutMs = 200;
+        pool = new ConnectionPool(new DirectConnectionSource(url, "sa", ""), config);
+
+        Connection held = pool.acquire();
+        long start = System.nanoTime();
+        SQLException e = assertThrows(SQLException.class, pool::acquire);
+        long waitedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(e.getMessage().startsWith("Pool de conexoes esgotado"), e.getMessage());
+        assertTrue(waitedMs >= 150, "desistiu antes do borrowTimeoutMs: " + waitedMs + " ms");
+        assertEquals(1, pool.stats().get("borrow_timeouts").getAsLong());
+
+        pool.release(held);
+        Connection again = pool.acquire();
+        // LIFO: a conexao devolvida volta no proximo emprestimo, sem novo login
+        assertSame(held, again);
+        assertEquals(1, pool.stats().get("created").getAsLong());
+        pool.release(again);
+    }
+
+    @Test
+    void brokenIdleConnectionIsReplacedOnBorrow() throws Exception {
+        ConnectionPool.Config config = config(2);
+        // Valida em todo emprestimo
+        config.validationIntervalMs = 0;
+        pool = new ConnectionPool(new DirectConnectionSource(url, "sa", ""), config);
+
+        Connection first = pool.acquire();
+        pool.release(first);
+        // Conexao derrubada enquanto estava ociosa no pool (ex: broker reiniciado)
+        first.close();
+
+        Connection replacement = pool.acquire();
+        assertNotSame(first, replacement);
+        try (Statement stmt = replacement.createStatement(); ResultSet rs = stmt.executeQuery("SELECT 1")) {
+            assertTrue(rs.next());
+        }
+        assertEquals(1, pool.stats().get("validation_failures").getAsLong());
+        assertEquals(1, pool.stats().get("destroyed").getAsLong());
+        assertEquals(1, pool.stats().get("total").getAsLong());
+        pool.release(replacement);
+    }
+
+    @Test
+    void connectionClosedWhileBorrowedIsDiscardedOnRelease() throws Exception {
+        pool = new ConnectionPool(new DirectConnectionSource(url, "sa", ""), config(1));
+
+        Connection connection = pool.acquire();
+        connection.close();
+        pool.release(connection);
+
+        assertEquals(0, pool.stats().get("total").getAsLong());
+        Connection next = pool.acquire();
+        assertNotSame(connection, next);
+        pool.release(next);
+    }
+
+    @Test
+    void closedPoolRefusesBorrows() {
+        pool = new ConnectionPool(new DirectConnectionSource(url, "sa", ""), config(1));
+        pool.close();
+
+        assertThrows(SQLException.class, pool::acquire);
+    }
+
+    /**
+     * Sem minimo pre-aberto e sem manutencao durante o teste: as contagens sao so dos emprestimos
+     */
+    private static ConnectionPool.Config config(int maxSize) {
+        ConnectionPool.Config config = new ConnectionPool.Config();
+        config.minSize = 0;
+        config.maxSize = maxSize;
+        config.maintenanceIntervalMs = 60_000;
+        return config;
+    }
+}
@@ -0,0 +1,106 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import javax.sql.rowset.CachedRowSet;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resposta completa de 1000 linhas de pacote em texto JSON: escrita em streaming com
+ * JsonWriter (formato atual) contra montar JsonArray/JsonObject e chamar toString()
+ * (formato anterior), e o formato compacto (format=columns). Com -prof gc mostra a
+ * diferenca de alocacao por resposta; o retorno e o tamanho da resposta em caracteres.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    private CachedRowSet rows;
+    private final StringWriter buffer = new StringWriter();
+
+    @Setup
+    public void setUp() throws SQLException {
+        rows = BenchmarkDatabase.cachedRows(BenchmarkDatabase.url(), RowEncoderBenchmark.PACOTE_SQL);
+    }
+
+    @Benchmark
+    public int streamingWriter() throws SQLException, IOException {
+        return writeResponse(ResultFormat.OBJECTS);
+    }
+
+    @Benchmark
+    public int streamingColumns() throws SQLException, IOException {
+        return writeResponse(ResultFormat.COLUMNS);
+    }
+
+    private int writeResponse(ResultFormat format) throws SQLException, IOException {
+        rows.beforeFirst();
+        buffer.getBuffer().setLength(0);
+
+        JsonWriter out = new JsonWriter(format.wrap(buffer));
+        out.beginObject();
+        out.name("data").beginObject();
+        out.name("results");
+        ProgressJDBCConnector.RowStream stream = ProgressJDBCConnector.writeRows(rows, out, Integer.MAX_VALUE, format);
+        out.name("total").value(stream.count);
+        out.endObject();
+        ProgressJDBCConnector.writeStatus(out, stream, "Consulta executada com sucesso", "");
+        out.endObject();
+        out.flush();
+        return buffer.getBuffer().length();
+    }
+
+    @Benchmark
+    public int jsonTree() throws SQLException {
+        rows.beforeFirst();
+        ResultSetMetaData metaData = rows.getMetaData();
+        int columnCount = metaData.getColumnCount();
+
+        JsonArray results = new JsonArray();
+        while (rows.next()) {
+            JsonObject row = new JsonObject();
+            for (int i = 1; i <= columnCount; i++) {
+                String columnName = metaData.getColumnName(i).toLowerCase();
+                Object value = rows.getObject(i);
+                if (value == null) {
+                    row.add(columnName, null);
+                } else if (value instanceof Number) {
+                    row.addProperty(columnName, (Number) value);
+                } else if (value instanceof Boolean) {
+                    row.addProperty(columnName, (Boolean) value);
+                } else {
+                    row.addProperty(columnName, value.toString());
+                }
+            }
+            results.add(row);
+        }
+
+        JsonObject data = new JsonObject();
+        data.add("results", results);
+        data.addProperty("total", results.size());
+        JsonObject response = new JsonObject();
+        response.addProperty("success", true);
+        response.addProperty("message", "Consulta executada com sucesso");
+        response.add("data", data);
+        return response.toString().length();
+    }
+}
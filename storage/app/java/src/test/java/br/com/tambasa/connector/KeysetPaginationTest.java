@@ -0,0 +1,221 @@
+package br.com.tambasa.connector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Condicao de continuacao (seek) e cursor da acao page, e a navegacao completa nos dois
+ * sentidos contra o H2 do BenchmarkDatabase
+ */
+class KeysetPaginationTest {
+
+    private static String url;
+    private static ConnectionPool pool;
+    private static ProgressJDBCConnector connector;
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        url = BenchmarkDatabase.url();
+        pool = BenchmarkDatabase.pool(url, 1);
+        connector = new ProgressJDBCConnector(url, pool);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    void multiKeySeekBoundsFirstKeyAndBreaksTiesOnTheNext() {
+        KeysetPagination page = KeysetPagination.parse(spec("next", "p.datforpac", "p.codpac"));
+
+        assertEquals("SELECT TOP 8 p.codpac, p.datforpac, p.sitpac FROM PUB.pacote p WHERE (p.codtrn <= ?)"
+                + " AND p.datforpac >= ? AND ((p.datforpac > ?) OR (p.datforpac = ? AND p.codpac > ?))"
+                + " ORDER BY p.datforpac, p.codpac", page.pageSql(true));
+
+        JsonArray position = page.position(new Object[] {Date.valueOf("2025-01-31"), 42});
+        JsonArray expected = new JsonArray();
+        expected.add(40);
+        expected.add(position.get(0));
+        expected.add(position.get(0));
+        expected.add(position.get(0));
+        expected.add(position.get(1));
+        assertEquals(expected, page.pageParameters(position));
+        assertEquals("date", position.get(0).getAsJsonObject().get("type").getAsString());
+        assertEquals("int", position.get(1).getAsJsonObject().get("type").getAsString());
+    }
+
+    @Test
+    void descendingKeyInvertsOnlyItsOwnOperator() {
+        KeysetPagination page = KeysetPagination.parse(spec("next", "p.datforpac DESC", "p.codpac"));
+
+        assertEquals("SELECT TOP 8 p.codpac, p.datforpac, p.sitpac FROM PUB.pacote p WHERE (p.codtrn <= ?)"
+                + " AND p.datforpac <= ? AND ((p.datforpac < ?) OR (p.datforpac = ? AND p.codpac > ?))"
+                + " ORDER BY p.datforpac DESC, p.codpac", page.pageSql(true));
+    }
+
+    @Test
+    void prevReadsBackwardFromTheCursor() {
+        KeysetPagination page = KeysetPagination.parse(spec("prev", "p.datforpac DESC", "p.codpac"));
+
+        assertEquals("SELECT TOP 8 p.codpac, p.datforpac, p.sitpac FROM PUB.pacote p WHERE (p.codtrn <= ?)"
+                + " AND p.datforpac >= ? AND ((p.datforpac > ?) OR (p.datforpac = ? AND p.codpac < ?))"
+                + " ORDER BY p.datforpac, p.codpac DESC", page.pageSql(true));
+        // Sem cursor a pagina "anterior" e a ultima da listagem: mesma ordem invertida, sem seek
+        assertEquals("SELECT TOP 8 p.codpac, p.datforpac, p.sitpac FROM PUB.pacote p WHERE (p.codtrn <= ?)"
+                + " ORDER BY p.datforpac, p.codpac DESC", page.pageSql(false));
+    }
+
+    @Test
+    void singleKeyHasNoRangePrefix() {
+        KeysetPagination page = KeysetPagination.parse(spec("next", "p.codpac DESC"));
+
+        assertEquals("SELECT TOP 8 p.codpac, p.datforpac, p.sitpac FROM PUB.pacote p WHERE (p.codtrn <= ?)"
+                + " AND ((p.codpac < ?)) ORDER BY p.codpac DESC", page.pageSql(true));
+        assertEquals(2, page.pageParameters(page.position(new Object[] {10})).size());
+    }
+
+    @Test
+    void cursorRoundTripsTheKeyValues() {
+        KeysetPagination page = KeysetPagination.parse(spec("next", "p.datforpac", "p.codpac"));
+        Object[] key = {Date.valueOf("2025-03-01"), 77};
+
+        assertEquals(page.position(key), page.decodeCursor(page.encodeCursor(key)));
+    }
+
+    @Test
+    void rejectsCursorFromAnotherListing() {
+        String cursor = KeysetPagination.parse(spec("next", "p.datforpac", "p.codpac"))
+                .encodeCursor(new Object[] {Date.valueOf("2025-03-01"), 77});
+
+        // Outra ordem, outro filtro e outra tabela: o cursor posicionaria a pagina errada
+        JsonObject otherOrder = spec("next", "p.datforpac DESC", "p.codpac");
+        JsonObject otherWhere = spec("next", "p.datforpac", "p.codpac");
+        otherWhere.addProperty("where", "p.codtrn > ?");
+        JsonObject otherTable = spec("next", "p.datforpac", "p.codpac");
+        otherTable.addProperty("from", "PUB.pacote p LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac");
+
+        for (JsonObject other : List.of(otherOrder, otherWhere, otherTable)) {
+            other.addProperty("cursor", cursor);
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> KeysetPagination.parse(other));
+            assertEquals("cursor nao pertence a esta consulta", e.getMessage());
+        }
+
+        JsonObject garbage = spec("next", "p.codpac");
+        garbage.addProperty("cursor", "nao-e-um-cursor");
+        assertEquals("cursor invalido",
+                assertThrows(IllegalArgumentException.class, () -> KeysetPagination.parse(garbage)).getMessage());
+    }
+
+    @Test
+    void pagesCoverTheListingOnceInBothDirections() throws SQLException, IOException {
+        List<Integer> expected = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             PreparedStatement stmt = connection.prepareStatement(
+                     "SELECT p.codpac FROM PUB.pacote p WHERE p.codtrn <= ? ORDER BY p.sitpac, p.codpac DESC")) {
+            stmt.setInt(1, 40);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    expected.add(rs.getInt(1));
+                }
+            }
+        }
+        assertTrue(expected.size() > 7 * 3, "poucas linhas para varias paginas: " + expected.size());
+
+        // Para frente, seguindo next_cursor ate a ultima pagina
+        List<Integer> forward = new ArrayList<>();
+        JsonObject data = page("next", null);
+        assertFalse(data.get("has_prev").getAsBoolean());
+        while (true) {
+            forward.addAll(codpacs(data));
+            if (!data.get("has_next").getAsBoolean()) {
+                break;
+            }
+            data = page("next", data.get("next_cursor").getAsString());
+        }
+        assertEquals(expected, forward);
+
+        // De volta a partir da ultima pagina, seguindo prev_cursor: cada pagina ja vem na ordem da listagem
+        List<Integer> backward = new ArrayList<>(codpacs(data));
+        data = page("prev", data.get("prev_cursor").getAsString());
+        while (true) {
+            assertTrue(data.get("has_next").getAsBoolean());
+            backward.addAll(0, codpacs(data));
+            if (!data.get("has_prev").getAsBoolean()) {
+                break;
+            }
+            data = page("prev", data.get("prev_cursor").getAsString());
+        }
+        assertEquals(expected, backward);
+    }
+
+    private static JsonObject spec(String direction, String... keys) {
+        JsonObject spec = new JsonObject();
+        spec.addProperty("from", "PUB.pacote p");
+        spec.addProperty("columns", "p.codpac, p.datforpac, p.sitpac");
+        JsonArray keyArray = new JsonArray();
+        for (String key : keys) {
+            keyArray.add(key);
+        }
+        spec.add("keys", keyArray);
+        spec.addProperty("where", "p.codtrn <= ?");
+        JsonArray params = new JsonArray();
+        params.add(40);
+        spec.add("params", params);
+        spec.addProperty("limit", 7);
+        spec.addProperty("direction", direction);
+        return spec;
+    }
+
+    private static JsonObject page(String direction, String cursor) throws IOException {
+        JsonObject spec = spec(direction, "p.sitpac", "p.codpac DESC");
+        if (cursor != null) {
+            spec.addProperty("cursor", cursor);
+        }
+        StringWriter text = new StringWriter();
+        JsonWriter out = new JsonWriter(text);
+        out.beginObject();
+        connector.dispatch("page", new String[] {spec.toString()}, RequestContext.defaults(), out);
+        out.endObject();
+
+        JsonObject response = JsonParser.parseString(text.toString()).getAsJsonObject();
+        assertTrue(response.get("success").getAsBoolean(), text.toString());
+        return response.getAsJsonObject("data");
+    }
+
+    /**
+     * codpac de cada linha (o H2 devolve os nomes das colunas em maiusculas)
+     */
+    private static List<Integer> codpacs(JsonObject data) {
+        List<Integer> values = new ArrayList<>();
+        for (JsonElement row : data.getAsJsonArray("results")) {
+            for (String name : row.getAsJsonObject().keySet()) {
+                if (name.equalsIgnoreCase("codpac")) {
+                    values.add(row.getAsJsonObject().get(name).getAsInt());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,110 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uma pagina de 50 transportes em profundidades diferentes, por estrategia:
+ * subconsultas TOP/MAX (query-paginated), OFFSET/FETCH em SQL, page com skip
+ * (numero de pagina) e page com cursor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaginationBenchmark {
+
+    static final int PAGE_SIZE = 50;
+
+    @Param({"0", "1000", "10000"})
+    public int offset;
+
+    private ConnectionPool pool;
+    private ProgressJDBCConnector connector;
+    private String[] nestedTopParams;
+    private String[] offsetFetchParams;
+    private String[] skipParams;
+    private String[] cursorParams;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        String url = BenchmarkDatabase.url();
+        pool = BenchmarkDatabase.pool(url, 2);
+        connector = new ProgressJDBCConnector(url, pool);
+
+        nestedTopParams = new String[] {"", String.valueOf(PAGE_SIZE), String.valueOf(offset)};
+        offsetFetchParams = new String[] {"SELECT codtrn, nomtrn FROM PUB.transporte ORDER BY codtrn"
+                + " OFFSET " + offset + " ROWS FETCH NEXT " + PAGE_SIZE + " ROWS ONLY"};
+
+        JsonObject spec = new JsonObject();
+        spec.addProperty("from", "PUB.transporte");
+        spec.addProperty("columns", "codtrn, nomtrn");
+        JsonArray keys = new JsonArray();
+        keys.add("codtrn");
+        spec.add("keys", keys);
+        spec.addProperty("limit", PAGE_SIZE);
+
+        JsonObject skip = spec.deepCopy();
+        skip.addProperty("skip", offset);
+        skipParams = new String[] {skip.toString()};
+
+        // codtrn vai de 1 a N: a pagina que comeca no offset continua a partir de codtrn = offset
+        JsonObject cursor = spec.deepCopy();
+        if (offset > 0) {
+            cursor.addProperty("cursor", KeysetPagination.parse(spec).encodeCursor(new Object[] {offset}));
+        }
+        cursorParams = new String[] {cursor.toString()};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public void nestedTop() throws IOException {
+        dispatch("query-paginated", nestedTopParams);
+    }
+
+    @Benchmark
+    public void offsetFetch() throws IOException {
+        dispatch("query", offsetFetchParams);
+    }
+
+    @Benchmark
+    public void keysetSkip() throws IOException {
+        dispatch("page", skipParams);
+    }
+
+    @Benchmark
+    public void keysetCursor() throws IOException {
+        dispatch("page", cursorParams);
+    }
+
+    private void dispatch(String action, String[] params) throws IOException {
+        JsonWriter out = new JsonWriter(Writer.nullWriter());
+        out.beginObject();
+        connector.dispatch(action, params, RequestContext.defaults(), out);
+        out.endObject();
+    }
+}
@@ -0,0 +1,207 @@
+package br.com.tambasa.connector;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Divisao das faixas e juncao ordenada da acao scan, isolada e contra o H2 do
+ * BenchmarkDatabase com leitores paralelos
+ */
+class PartitionedScanTest {
+
+    private static final int POOL_SIZE = 4;
+
+    private static ConnectionPool pool;
+    private static ProgressJDBCConnector connector;
+    private static ExecutorService workers;
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        String url = BenchmarkDatabase.url();
+        pool = BenchmarkDatabase.pool(url, POOL_SIZE);
+        connector = new ProgressJDBCConnector(url, pool);
+        workers = Executors.newCachedThreadPool();
+    }
+
+    @AfterAll
+    static void tearDown() {
+        workers.shutdownNow();
+        pool.close();
+    }
+
+    @Test
+    void splitCoversTheRangeWithContiguousNearlyEqualRanges() {
+        long[][] ranges = scan(4).split(1, 10);
+
+        assertArrayEquals(new long[][] {{1, 3}, {4, 6}, {7, 8}, {9, 10}}, ranges);
+    }
+
+    @Test
+    void splitNeverCreatesMoreRangesThanValues() {
+        assertArrayEquals(new long[][] {{5, 5}, {6, 6}, {7, 7}}, scan(8).split(5, 7));
+        assertArrayEquals(new long[][] {{42, 42}}, scan(8).split(42, 42));
+    }
+
+    @Test
+    void splitHandlesNegativeAndExtremeBounds() {
+        assertArrayEquals(new long[][] {{-5, -3}, {-2, 0}}, scan(2).split(-5, 0));
+
+        // Faixa com mais valores que um long: uma faixa so, sem estouro
+        assertArrayEquals(new long[][] {{Long.MIN_VALUE, Long.MAX_VALUE}}, scan(4).split(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        long[][] top = scan(3).split(Long.MAX_VALUE - 5, Long.MAX_VALUE);
+        assertArrayEquals(new long[][] {{Long.MAX_VALUE - 5, Long.MAX_VALUE - 4}, {Long.MAX_VALUE - 3, Long.MAX_VALUE - 2},
+                {Long.MAX_VALUE - 1, Long.MAX_VALUE}}, top);
+    }
+
+    @Test
+    void rejectsInvalidSpecs() {
+        JsonObject minAboveMax = spec(4, "key");
+        minAboveMax.addProperty("min", 10);
+        minAboveMax.addProperty("max", 5);
+
+        assertThrows(IllegalArgumentException.class, () -> PartitionedScan.parse(minAboveMax));
+        assertThrows(IllegalArgumentException.class, () -> PartitionedScan.parse(spec(0, "key")));
+        assertThrows(IllegalArgumentException.class, () -> PartitionedScan.parse(spec(PartitionedScan.MAX_PARTITIONS + 1, "key")));
+        assertThrows(IllegalArgumentException.class, () -> PartitionedScan.parse(spec(4, "random")));
+    }
+
+    @Test
+    void orderedMergeWritesRangesInKeyOrderUpToMaxRows() throws Exception {
+        int partitions = 3;
+        PartitionedScan.Merge merge = new PartitionedScan.Merge(partitions, true);
+        StringWriter text = new StringWriter();
+        JsonWriter out = new JsonWriter(text);
+        PartitionedScan.RowsWriter rows = new PartitionedScan.RowsWriter(out, ResultFormat.OBJECTS, 7);
+
+        // Faixas entregues fora de ordem, em lotes de 2 linhas (faixa i tem os valores i*10 .. i*10+3)
+        AtomicInteger running = new AtomicInteger(partitions);
+        List<Thread> readers = new ArrayList<>();
+        for (int partition = partitions - 1; partition >= 0; partition--) {
+            int index = partition;
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int chunk = 0; chunk < 2; chunk++) {
+                        List<String> values = List.of(String.valueOf(index * 10 + chunk * 2), String.valueOf(index * 10 + chunk * 2 + 1));
+                        if (!merge.accept(new PartitionedScan.Chunk(index, null, values, chunk == 1, null))) {
+                            return;
+                        }
+                    }
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        merge.drain(partitions, rows, new RequestContext(0), () -> running.get() == 0);
+        rows.finish();
+        for (Thread reader : readers) {
+            reader.join(5_000);
+        }
+
+        assertNull(merge.failure);
+        assertEquals(7, rows.count);
+        assertEquals("[0,1,2,3,10,11,12]", text.toString());
+    }
+
+    @Test
+    void parallelOrderedScanMatchesTheTableAndStopsAtMaxRows() throws IOException {
+        JsonObject data = run(spec(8, "key"), 0);
+        List<Long> keys = codpacs(data);
+
+        assertEquals(BenchmarkDatabase.PACOTES, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(i + 1, keys.get(i).longValue());
+        }
+        assertTrue(data.get("parallelism").getAsInt() > 1, data.toString());
+        assertEquals(8, data.getAsJsonArray("partitions").size());
+
+        // max_rows corta no meio de uma faixa, e as linhas ainda sao as primeiras pela chave
+        JsonObject limited = run(spec(8, "key"), 2500);
+        List<Long> firstRows = codpacs(limited);
+        assertEquals(2500, firstRows.size());
+        assertEquals(2500, limited.get("total").getAsLong());
+        assertEquals(2500, limited.get("max_rows").getAsInt());
+        for (int i = 0; i < firstRows.size(); i++) {
+            assertEquals(i + 1, firstRows.get(i).longValue());
+        }
+    }
+
+    @Test
+    void unorderedScanReturnsEveryRowOnce() throws IOException {
+        List<Long> keys = codpacs(run(spec(8, "none"), 0));
+
+        keys.sort(null);
+        assertEquals(BenchmarkDatabase.PACOTES, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(i + 1, keys.get(i).longValue());
+        }
+    }
+
+    private static PartitionedScan scan(int partitions) {
+        return PartitionedScan.parse(spec(partitions, "key"));
+    }
+
+    private static JsonObject spec(int partitions, String order) {
+        JsonObject spec = new JsonObject();
+        spec.addProperty("table", "PUB.pacote");
+        spec.addProperty("key", "codpac");
+        spec.addProperty("columns", "codpac, codtrn");
+        spec.addProperty("partitions", partitions);
+        spec.addProperty("order", order);
+        return spec;
+    }
+
+    /**
+     * Scan no modo residente: leitores extras nas threads e vagas livres do "servidor"
+     */
+    private static JsonObject run(JsonObject spec, int maxRows) throws IOException {
+        RequestContext context = new RequestContext(0, workers, new Semaphore(POOL_SIZE - 1, true), ResultFormat.OBJECTS)
+                .withRowLimits(maxRows, 0);
+        StringWriter text = new StringWriter();
+        JsonWriter out = new JsonWriter(text);
+        out.beginObject();
+        connector.dispatch("scan", new String[] {spec.toString()}, context, out);
+        out.endObject();
+
+        JsonObject response = JsonParser.parseString(text.toString()).getAsJsonObject();
+        assertTrue(response.get("success").getAsBoolean(), text.toString());
+        return response.getAsJsonObject("data");
+    }
+
+    private static List<Long> codpacs(JsonObject data) {
+        List<Long> values = new ArrayList<>();
+        JsonArray results = data.getAsJsonArray("results");
+        for (JsonElement row : results) {
+            for (String name : row.getAsJsonObject().keySet()) {
+                if (name.equalsIgnoreCase("codpac")) {
+                    values.add(row.getAsJsonObject().get(name).getAsLong());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,160 @@
+package br.com.tambasa.connector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * job-submit ate job-fetch contra o H2 do BenchmarkDatabase: trechos lidos do arquivo
+ * do job a partir dos checkpoints, inclusive atravessando um checkpoint
+ */
+class QueryJobsTest {
+
+    // Mais linhas que 16 checkpoints: o vetor de posicoes do job cresce durante a gravacao
+    private static final int ROWS = 17 * QueryJobs.CHECKPOINT_ROWS + 500;
+
+    @TempDir
+    Path directory;
+
+    private ConnectionPool pool;
+    private ExecutorService executor;
+    private AdmissionControl admission;
+    private QueryJobs jobs;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        String url = BenchmarkDatabase.url();
+        pool = BenchmarkDatabase.pool(url, 2);
+        executor = Executors.newCachedThreadPool();
+        admission = new AdmissionControl(new Semaphore(2, true), AdmissionControl.Config.fromSystemProperties(2));
+        QueryJobs.Config config = new QueryJobs.Config();
+        config.directory = directory;
+        jobs = new QueryJobs(new ProgressJDBCConnector(url, pool), executor, admission,
+                ConnectorMetrics.fromSystemProperties(), config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jobs.close();
+        admission.close();
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    @Test
+    void fetchReadsAnyRangeOfTheSpooledRows() throws Exception {
+        String id = submitAndWait();
+        int checkpoint = QueryJobs.CHECKPOINT_ROWS;
+
+        assertEquals(List.of(1L, 2L, 3L), codpacs(fetch(id, 0, 3)));
+        // Atravessa o primeiro checkpoint
+        assertRange(fetch(id, checkpoint - 5, 10), checkpoint - 5, 10);
+        // Comeca exatamente em um checkpoint e no ultimo antes dele
+        assertRange(fetch(id, checkpoint, 4), checkpoint, 4);
+        assertRange(fetch(id, 2L * checkpoint - 1, 2), 2L * checkpoint - 1, 2);
+        // Checkpoint alem dos 16 iniciais
+        assertRange(fetch(id, 17L * checkpoint - 3, 6), 17L * checkpoint - 3, 6);
+
+        // Ultimo trecho: menos linhas que o limite e nada mais a pedir
+        JsonObject last = fetch(id, ROWS - 4, 10);
+        assertRange(last, ROWS - 4, 4);
+        assertFalse(last.get("has_more").getAsBoolean());
+        assertEquals(ROWS, last.get("next_offset").getAsLong());
+
+        JsonObject beyond = fetch(id, ROWS + 10, 10);
+        assertEquals(0, beyond.get("count").getAsLong());
+    }
+
+    @Test
+    void fetchRejectsInvalidRanges() throws Exception {
+        String id = submitAndWait();
+
+        assertFalse(response("job-fetch", id, "-1", "10").get("success").getAsBoolean());
+        assertFalse(response("job-fetch", id, "0", "0").get("success").getAsBoolean());
+        assertFalse(response("job-fetch", "inexistente", "0", "10").get("success").getAsBoolean());
+    }
+
+    private String submitAndWait() throws IOException, InterruptedException {
+        JsonObject spec = new JsonObject();
+        spec.addProperty("sql", "SELECT codpac, sitpac FROM PUB.pacote WHERE codpac <= ? ORDER BY codpac");
+        JsonArray params = new JsonArray();
+        params.add(ROWS);
+        spec.add("params", params);
+
+        JsonObject submitted = response("job-submit", spec.toString());
+        assertTrue(submitted.get("success").getAsBoolean(), submitted.toString());
+        String id = submitted.getAsJsonObject("data").get("id").getAsString();
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            JsonObject status = response("job-status", id).getAsJsonObject("data");
+            String state = status.get("state").getAsString();
+            if (state.equals("done")) {
+                assertEquals(ROWS, status.get("available_rows").getAsLong());
+                return id;
+            }
+            assertTrue(state.equals("queued") || state.equals("running"), status.toString());
+            assertTrue(System.currentTimeMillis() < deadline, "job nao terminou: " + status);
+            Thread.sleep(20);
+        }
+    }
+
+    private JsonObject fetch(String id, long offset, int limit) throws IOException {
+        JsonObject response = response("job-fetch", id, String.valueOf(offset), String.valueOf(limit));
+        assertTrue(response.get("success").getAsBoolean(), response.toString());
+        return response.getAsJsonObject("data");
+    }
+
+    private JsonObject response(String action, String... params) throws IOException {
+        StringWriter text = new StringWriter();
+        JsonWriter out = new JsonWriter(text);
+        out.beginObject();
+        jobs.dispatch(action, params, ResultFormat.OBJECTS, out);
+        out.endObject();
+        return JsonParser.parseString(text.toString()).getAsJsonObject();
+    }
+
+    /**
+     * Linhas [offset, offset + count): codpac vai de 1 a ROWS, entao a linha i tem codpac i + 1
+     */
+    private static void assertRange(JsonObject data, long offset, int count) {
+        List<Long> expected = new ArrayList<>();
+        for (long row = offset; row < offset + count; row++) {
+            expected.add(row + 1);
+        }
+        assertEquals(expected, codpacs(data));
+        assertEquals(offset, data.get("offset").getAsLong());
+        assertEquals(offset + count, data.get("next_offset").getAsLong());
+    }
+
+    private static List<Long> codpacs(JsonObject data) {
+        List<Long> values = new ArrayList<>();
+        for (JsonElement row : data.getAsJsonArray("results")) {
+            for (String name : row.getAsJsonObject().keySet()) {
+                if (name.equalsIgnoreCase("codpac")) {
+                    values.add(row.getAsJsonObject().get(name).getAsLong());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,90 @@
+package br.com.tambasa.connector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonPrimitive;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Registro de execucoes em andamento: quem junta, quem executa de novo depois de uma
+ * gravacao (detachAll) e quais respostas do lider sao repassadas
+ */
+class RequestCoalescerTest {
+
+    private static final String OK = "{\"data\":{\"results\":[]},\"success\":true}";
+
+    private final RequestCoalescer coalescer = new RequestCoalescer(true, 1_000);
+
+    @Test
+    void followerGetsTheLeaderResponse() throws InterruptedException {
+        RequestCoalescer.Flight leader = coalescer.join("k");
+        RequestCoalescer.Flight follower = coalescer.join("k");
+
+        assertTrue(leader.leader);
+        assertFalse(follower.leader);
+        coalescer.complete(leader, OK);
+        assertEquals(OK, coalescer.await(follower, new RequestContext(0)));
+        // Terminada a execucao, a chave sai do registro: a proxima leitura executa de novo
+        assertTrue(coalescer.join("k").leader);
+    }
+
+    @Test
+    void detachAllStartsNewFlightsButKeepsWaitingFollowers() throws InterruptedException {
+        RequestCoalescer.Flight beforeWrite = coalescer.join("k");
+        RequestCoalescer.Flight waiting = coalescer.join("k");
+
+        coalescer.detachAll();
+
+        // Leitura depois da gravacao nao junta a execucao que comecou antes dela
+        RequestCoalescer.Flight afterWrite = coalescer.join("k");
+        assertTrue(afterWrite.leader);
+        assertEquals(1, coalescer.stats().get("in_flight").getAsInt());
+
+        // O lider antigo termina sem tirar o novo do registro; quem ja esperava por ele recebe a resposta
+        coalescer.complete(beforeWrite, OK);
+        assertEquals(OK, coalescer.await(waiting, new RequestContext(0)));
+        RequestCoalescer.Flight laterFollower = coalescer.join("k");
+        assertFalse(laterFollower.leader);
+
+        coalescer.complete(afterWrite, null);
+        assertNull(coalescer.await(laterFollower, new RequestContext(0)));
+        assertEquals(0, coalescer.stats().get("in_flight").getAsInt());
+        assertEquals(1, coalescer.stats().get("fallbacks").getAsLong());
+    }
+
+    @Test
+    void cancelledFollowerStopsWaiting() throws InterruptedException {
+        RequestCoalescer.Flight leader = coalescer.join("k");
+        RequestCoalescer.Flight follower = coalescer.join("k");
+        RequestContext context = new RequestContext(0);
+        context.cancel();
+
+        assertNull(coalescer.await(follower, context));
+        coalescer.complete(leader, OK);
+    }
+
+    @Test
+    void captureDropsLeaderIdAndKeepsOnlyCompleteSuccessfulResponses() {
+        RequestCoalescer.Capture capture = coalescer.capture(new JsonPrimitive(7));
+        capture.set("{\"id\":7," + OK.substring(1));
+        assertNull(capture.response());
+
+        capture.completed();
+        assertEquals(OK, capture.response());
+
+        // Erro do lider (ex: timeout dele) nao e repassado: quem espera executa sozinho
+        RequestCoalescer.Capture failed = coalescer.capture(new JsonPrimitive(8));
+        failed.set("{\"id\":8,\"success\":false,\"error\":\"Timeout\"}");
+        failed.completed();
+        assertNull(failed.response());
+
+        // Maior que maxChars
+        RequestCoalescer.Capture large = coalescer.capture(null);
+        large.set("{\"success\":true,\"data\":\"" + "x".repeat(1_000) + "\"}");
+        large.completed();
+        assertNull(large.response());
+    }
+}
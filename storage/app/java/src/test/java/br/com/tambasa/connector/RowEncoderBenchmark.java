@@ -0,0 +1,86 @@
+package br.com.tambasa.connector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import javax.sql.rowset.CachedRowSet;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversao de 1000 linhas ja em memoria para JSON: RowEncoder (extrator por tipo)
+ * contra a conversao anterior (getObject + cadeia de instanceof por celula).
+ * A saida vai para um Writer nulo, entao so a conversao e medida.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowEncoderBenchmark {
+
+    static final String TRANSPORTE_SQL = "SELECT TOP 1000 codtrn, nomtrn, flgautonomo, natcam, tipcam, codcnpjcpf,"
+            + " numpla, numtel, dddtel, flgati, indcd FROM PUB.transporte ORDER BY codtrn";
+    static final String PACOTE_SQL = "SELECT TOP 1000 p.codpac, p.datforpac, p.horforpac, p.codtrn, p.codmot,"
+            + " p.numpla, p.valpac, p.volpac, p.pespac, p.sitpac, p.codrot, p.nroped, t.nomtrn,"
+            + " CASE WHEN pcd.codpaccd IS NOT NULL THEN 1 ELSE 0 END as flg_tcd"
+            + " FROM PUB.pacote p LEFT JOIN PUB.transporte t ON p.codtrn = t.codtrn"
+            + " LEFT JOIN PUB.paccd pcd ON pcd.codpaccd = p.codpac ORDER BY p.codpac DESC";
+
+    @Param({"transporte", "pacote"})
+    public String table;
+
+    private CachedRowSet rows;
+
+    @Setup
+    public void setUp() throws SQLException {
+        rows = BenchmarkDatabase.cachedRows(BenchmarkDatabase.url(), table.equals("pacote") ? PACOTE_SQL : TRANSPORTE_SQL);
+    }
+
+    @Benchmark
+    public int rowEncoder() throws SQLException, IOException {
+        rows.beforeFirst();
+        JsonWriter out = new JsonWriter(Writer.nullWriter());
+        return ProgressJDBCConnector.writeRows(rows, out, Integer.MAX_VALUE).count;
+    }
+
+    @Benchmark
+    public int getObjectChain() throws SQLException, IOException {
+        rows.beforeFirst();
+        JsonWriter out = new JsonWriter(Writer.nullWriter());
+
+        ResultSetMetaData metaData = rows.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        String[] columnNames = new String[columnCount + 1];
+        for (int i = 1; i <= columnCount; i++) {
+            columnNames[i] = metaData.getColumnName(i).toLowerCase();
+        }
+
+        int count = 0;
+        out.beginArray();
+        while (rows.next()) {
+            out.beginObject();
+            for (int i = 1; i <= columnCount; i++) {
+                out.name(columnNames[i]);
+                RowEncoder.writeValue(out, rows.getObject(i));
+            }
+            out.endObject();
+            count++;
+        }
+        out.endArray();
+        return count;
+    }
+}
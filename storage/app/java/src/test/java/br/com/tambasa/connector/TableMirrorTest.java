@@ -0,0 +1,168 @@
+package br.com.tambasa.connector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Quando a copia em memoria deixa de responder: gravacao do conector na tabela (ate a
+ * releitura completa terminar) e sincronizacao mais antiga que maxLagSeconds.
+ *
+ * Usa um H2 proprio com PUB.paccd no formato da definicao da copia (codpaccd, codpac).
+ */
+class TableMirrorTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private String url;
+    private ConnectionPool pool;
+    private Semaphore slots;
+    private AdmissionControl admission;
+    private TableMirror mirror;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        System.setProperty("connector.driverClass", "org.h2.Driver");
+        url = "jdbc:h2:mem:mirror" + DATABASES.incrementAndGet() + ";MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+        execute("CREATE SCHEMA IF NOT EXISTS PUB",
+                "CREATE TABLE PUB.paccd (codpaccd INT PRIMARY KEY, codpac INT)",
+                "INSERT INTO PUB.paccd SELECT X, X * 10 FROM SYSTEM_RANGE(1, 100)");
+        pool = BenchmarkDatabase.pool(url, 1);
+        slots = new Semaphore(1, true);
+        admission = new AdmissionControl(slots, AdmissionControl.Config.fromSystemProperties(1));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        mirror.close();
+        admission.close();
+        pool.close();
+        execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void writeThroughConnectorStopsServingUntilFullReload() throws Exception {
+        start(300_000);
+        assertEquals(List.of(5), lookup(50));
+
+        // Vaga do servidor ocupada: a releitura pedida pela gravacao fica na fila
+        slots.acquire();
+        execute("UPDATE PUB.paccd SET codpac = 51 WHERE codpaccd = 5",
+                "INSERT INTO PUB.paccd VALUES (101, 5000)");
+        mirror.tablesChanged(Set.of("paccd"));
+
+        assertFalse(serving());
+        assertNull(lookup(51));
+        assertTrue(mirror.stats().getAsJsonObject("paccd").get("misses").getAsLong() > 0);
+
+        slots.release();
+        await(this::serving);
+        // A releitura completa ve a alteracao de uma linha antiga, que a incremental nao veria
+        assertEquals(List.of(5), lookup(51));
+        assertEquals(List.of(), lookup(50));
+        assertEquals(List.of(101), lookup(5000));
+        assertEquals(2, mirror.stats().getAsJsonObject("paccd").get("full_loads").getAsLong());
+    }
+
+    @Test
+    void writeToAnotherTableKeepsServing() throws Exception {
+        start(300_000);
+
+        mirror.tablesChanged(Set.of("pacote"));
+
+        assertTrue(serving());
+        assertEquals(List.of(5), lookup(50));
+    }
+
+    @Test
+    void copyOlderThanMaxLagIsNotUsed() throws Exception {
+        start(1_000);
+        assertEquals(List.of(5), lookup(50));
+
+        // Sem nova sincronizacao (pollSeconds alto), a copia passa do atraso maximo
+        Thread.sleep(1_200);
+
+        assertFalse(serving());
+        assertNull(lookup(50));
+    }
+
+    private void start(long maxLagMillis) throws InterruptedException {
+        TableMirror.Config config = new TableMirror.Config();
+        config.tables = List.of("paccd");
+        config.pollMillis = 600_000;
+        config.maxLagMillis = maxLagMillis;
+        mirror = new TableMirror(new ProgressJDBCConnector(url, pool), admission, ConnectorMetrics.fromSystemProperties(), config);
+        mirror.start();
+        await(this::serving);
+    }
+
+    private boolean serving() {
+        return mirror.stats().getAsJsonObject("paccd").get("serving").getAsBoolean();
+    }
+
+    /**
+     * codpaccd das linhas com o codpac, lidas da copia; null se a busca teria de ir ao banco
+     */
+    private List<Integer> lookup(int codpac) throws IOException {
+        JsonObject spec = new JsonObject();
+        spec.addProperty("table", "paccd");
+        JsonObject where = new JsonObject();
+        where.addProperty("codpac", codpac);
+        spec.add("where", where);
+
+        StringWriter text = new StringWriter();
+        JsonWriter out = new JsonWriter(text);
+        out.beginObject();
+        boolean answered = mirror.lookup(TableMirror.Lookup.parse(spec), ResultFormat.OBJECTS, 0, out);
+        out.endObject();
+        if (!answered) {
+            return null;
+        }
+
+        JsonObject data = JsonParser.parseString(text.toString()).getAsJsonObject().getAsJsonObject("data");
+        assertEquals("mirror", data.get("source").getAsString());
+        List<Integer> values = new ArrayList<>();
+        for (JsonElement row : data.getAsJsonArray("results")) {
+            values.add(row.getAsJsonObject().get("codpaccd").getAsInt());
+        }
+        return values;
+    }
+
+    private void execute(String... sqls) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement stmt = connection.createStatement()) {
+            for (String sql : sqls) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condicao nao atingida em 10 s");
+            Thread.sleep(10);
+        }
+    }
+}